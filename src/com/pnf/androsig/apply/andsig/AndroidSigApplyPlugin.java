@@ -25,10 +25,13 @@ import java.util.Map;
 
 import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexHashcodeCache;
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnf.androsig.apply.model.StructureInfo;
 import com.pnf.androsig.apply.util.MetadataGroupHandler;
 import com.pnf.androsig.apply.util.ReportHandler;
+import com.pnf.androsig.apply.util.SamplingHandler;
+import com.pnf.androsig.apply.util.TriageHandler;
 import com.pnf.androsig.common.AndroSigCommon;
 import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.AbstractEnginesPlugin;
@@ -120,16 +123,29 @@ public class AndroidSigApplyPlugin extends AbstractEnginesPlugin {
         }
 
         DatabaseReference ref = new DatabaseReference();
-        StructureInfo struInfo = new StructureInfo(executionOptions, ref);
+        DatabaseMatcherParameters params = DatabaseMatcherParameters.parseParameters(executionOptions);
+        StructureInfo struInfo = new StructureInfo(params, ref);
 
         try {
             // Load all hashcodes
             ref.loadAllHashCodes(sigFolder);
 
+            DexHashcodeCache cache = params.useHashCache ? new DexHashcodeCache(): null;
             List<IDexUnit> dexlist = RuntimeProjectUtil.findUnitsByType(prj, IDexUnit.class, false);
             for(IDexUnit dex: dexlist) {
                 DexHashcodeList dexHashCodeList = new DexHashcodeList();
-                dexHashCodeList.loadAPKHashcodes(dex);
+                dexHashCodeList.loadAPKHashcodes(dex, params.hashingThreads, ref.getHashAlgorithms(), cache);
+
+                if(params.triage) {
+                    // report only: the unit is not modified
+                    TriageHandler.generateRecord(dex, dexHashCodeList, ref, params);
+                    break;
+                }
+                if(params.sampleSize > 0) {
+                    // sample against the whole database, then restrict this unit to the preselected files
+                    ref.restrictFiles(null);
+                    ref.restrictFiles(SamplingHandler.preselectFiles(dex, dexHashCodeList, ref, params));
+                }
 
                 // Create MetadataGroup
                 MetadataGroupHandler.createCodeGroupMethod(dex, struInfo.getStructureResult());
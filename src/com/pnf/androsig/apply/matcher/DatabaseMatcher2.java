@@ -430,8 +430,9 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         }
         // First round: attempt to match a whole class
         // Look for candidate files: only uses hashcodes + prototype/compatible prototype
+        // (unmodified classes are directly found by their fingerprint)
         boolean hasCandidates = true;
-        if(matching.isEmpty()) {
+        if(matching.isEmpty() && !matching.processClassFingerprint(this, eClass, methods, innerLevel)) {
             hasCandidates = matching.processClass(this, eClass, methods, innerLevel);
             if(!hasCandidates && !whiteListClasses.contains(eClass.getIndex())) {
                 // there may be alternative, multi matching, by finding context
@@ -472,7 +473,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                 for(MethodSignature tight: allTight) {
                     String[] versions = tight.getVersions();
                     if(versions == null) {
-                        DatabaseReferenceFile.increment(methodCountPerVersion, "all");
+                        DatabaseReferenceFile.increment(methodCountPerVersion, DatabaseReferenceFile.ALL_VERSIONS);
                     }
                     else {
                         for(String v: versions) {
@@ -39,11 +39,30 @@ public class DatabaseMatcherParameters {
 
     public int complexSignatureParams = 2;
 
+    public int hashingThreads = 0; // number of threads used to hash apk methods (0: all available processors, 1: sequential)
+    public boolean useHashCache = true; // reload apk hashcodes computed by a previous run
+    public double blockMatchRatio = 0.6; // minimum fraction of shared basic blocks to match a method whose hashcodes differ (0: disabled)
+    public double minHashSimilarity = 0.7; // minimum estimated similarity of MinHash signatures to match a method whose hashcodes differ (0: disabled)
+    public int maxHashFiles = 10; // first round: a method whose hashcode is defined by more files is considered as a small method
+    public int maxHashClasses = 30; // first round: a method whose hashcode is defined by more classes (over all files) is considered as a small method
+    public boolean triage = false; // only report embedded libraries (no class matching, no renaming)
+    public int sampleSize = 0; // number of app methods sampled to preselect candidate signature files (0: disabled, all files are candidates)
+    public int sampleMinHits = 2; // minimum number of sampled methods found in a signature file to keep it as candidate
+
     public static DatabaseMatcherParameters parseParameters(Map<String, String> executionOptions) {
         DatabaseMatcherParameters params = new DatabaseMatcherParameters();
         params.methodSizeBar = parsePositiveInt(executionOptions, "methodSizeBar", 6);
         params.matchedMethodsOneMatch = parsePositiveInt(executionOptions, "matchedMethodsOneMatch", 10);
         params.complexSignatureParams = parsePositiveInt(executionOptions, "complexSignatureParams", 2);
+        params.hashingThreads = parsePositiveInt(executionOptions, "hashingThreads", 0);
+        params.useHashCache = parseBoolean(executionOptions, "hashCache", true);
+        params.blockMatchRatio = parseRatio(executionOptions, "blockMatchRatio", 0.6);
+        params.minHashSimilarity = parseRatio(executionOptions, "minHashSimilarity", 0.7);
+        params.maxHashFiles = parsePositiveInt(executionOptions, "maxHashFiles", 10);
+        params.maxHashClasses = parsePositiveInt(executionOptions, "maxHashClasses", 30);
+        params.triage = parseBoolean(executionOptions, "triage", false);
+        params.sampleSize = parsePositiveInt(executionOptions, "sampleSize", 0);
+        params.sampleMinHits = parsePositiveInt(executionOptions, "sampleMinHits", 2);
 
 
         String matchedInstusPercentageBar = executionOptions.get("matchedInstusPercentageBar");
@@ -80,6 +99,42 @@ public class DatabaseMatcherParameters {
         return paramValueInt;
     }
 
+    private static double parseRatio(Map<String, String> executionOptions, String paramName, double defaultValue) {
+        String paramValue = executionOptions.get(paramName);
+        double paramValueDouble = defaultValue;
+        if(!Strings.isBlank(paramValue)) {
+            try {
+                paramValueDouble = Double.parseDouble(paramValue);
+            }
+            catch(NumberFormatException e) {
+                logger.warn("Illegal %s parameter: \"%s\" (must be a double)", paramName,
+                        Formatter.escapeString(paramValue));
+            }
+            if(paramValueDouble < 0.0 || paramValueDouble > 1.0) {
+                paramValueDouble = defaultValue;
+            }
+        }
+        return paramValueDouble;
+    }
+
+    private static boolean parseBoolean(Map<String, String> executionOptions, String paramName,
+            boolean defaultValue) {
+        String paramValue = executionOptions.get(paramName);
+        if(Strings.isBlank(paramValue)) {
+            return defaultValue;
+        }
+        paramValue = paramValue.trim();
+        if(paramValue.equalsIgnoreCase("true") || paramValue.equals("1")) {
+            return true;
+        }
+        if(paramValue.equalsIgnoreCase("false") || paramValue.equals("0")) {
+            return false;
+        }
+        logger.warn("Illegal %s parameter: \"%s\" (must be true or false)", paramName,
+                Formatter.escapeString(paramValue));
+        return defaultValue;
+    }
+
     public static List<? extends IOptionDefinition> getExecutionOptionDefinitions() {
         return Arrays.asList(new OptionDefinition(null,
                 "Minimum number of instructions required to analyze a method by signature hashcode\n"
@@ -106,6 +161,48 @@ public class DatabaseMatcherParameters {
                                 + " \"Minimum number of complex parameters\" to consider that the matching is safe.\n"
                                 + " This is to avoid percentage bar matching when only getter/setter matches for example)\n"
                                 + "Value range: >= 0 (Default value: 2). The bigger will reduce false positive, the smaller will increase matching results"),
-                new OptionDefinition("complexSignatureParams", "Minimum number of complex parameters"));
+                new OptionDefinition("complexSignatureParams", "Minimum number of complex parameters"),
+
+                new OptionDefinition(null, "Number of threads used to compute the hashcodes of the apk methods\n"
+                        + "Value range: >= 0 (Default value: 0, use all available processors). Set to 1 to disable parallel hashing"),
+                new OptionDefinition("hashingThreads", "Hashing threads"),
+
+                new OptionDefinition(null, "Store the hashcodes of the apk methods in [HOME]/.androsig-cache and reload them on later runs\n"
+                        + "(entries unused for 30 days are removed, and the least recently used ones beyond 512 MB)\n"
+                        + "Value range: true or false (Default value: true)"),
+                new OptionDefinition("hashCache", "Hashcode cache"),
+
+                new OptionDefinition(null, "Minimum fraction of shared basic blocks to match a method whose hashcodes differ\n"
+                        + "(only for signature files generated with basic-block hashcodes)\n"
+                        + "Value range: 0.0 - 1.0 (Default value: 0.6, 0.0 disables block matching). The bigger will reduce false positive, the smaller will increase matching results"),
+                new OptionDefinition("blockMatchRatio", "Basic-block match ratio"),
+
+                new OptionDefinition(null, "Minimum similarity of opcode n-grams to match a method whose hashcodes differ\n"
+                        + "(only for signature files generated with MinHash signatures)\n"
+                        + "Value range: 0.0 - 1.0 (Default value: 0.7, 0.0 disables near-duplicate matching). The bigger will reduce false positive, the smaller will increase matching results"),
+                new OptionDefinition("minHashSimilarity", "MinHash similarity"),
+
+                new OptionDefinition(null, "Maximum number of signature files defining a method hashcode to use it for class detection\n"
+                        + "(common hashcodes, like getters or default constructors, can not identify a class and are only used once a class is found)\n"
+                        + "Value range: >= 0 (Default value: 10). The smaller will speed up matching"),
+                new OptionDefinition("maxHashFiles", "Maximum files per hashcode"),
+
+                new OptionDefinition(null, "Maximum number of classes (over all signature files) defining a method hashcode to use it for class detection\n"
+                        + "Value range: >= 0 (Default value: 30). The smaller will speed up matching"),
+                new OptionDefinition("maxHashClasses", "Maximum classes per hashcode"),
+
+                new OptionDefinition(null, "Library triage: only report the embedded libraries and their estimated versions to [TEMP]/androsig-triage.txt\n"
+                        + "(much faster, no class is matched nor renamed)\n"
+                        + "Value range: true or false (Default value: false)"),
+                new OptionDefinition("triage", "Library triage"),
+
+                new OptionDefinition(null, "Number of app methods sampled to preselect the candidate signature files before matching\n"
+                        + "(signature lines of other files are never loaded)\n"
+                        + "Value range: >= 0 (Default value: 0, disabled). The bigger will increase matching results, the smaller will speed up matching"),
+                new OptionDefinition("sampleSize", "Sample size"),
+
+                new OptionDefinition(null, "Minimum number of sampled methods found in a signature file to keep it as candidate\n"
+                        + "Value range: >= 0 (Default value: 2). The bigger will speed up matching, the smaller will increase matching results"),
+                new OptionDefinition("sampleMinHits", "Sample minimum hits"));
     }
 }
@@ -7,21 +7,18 @@ package com.pnf.androsig.apply.matcher;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
 
 import com.pnf.androsig.apply.model.MethodSignature;
-import com.pnfsoftware.jeb.util.collect.CollectionUtil;
+import com.pnf.androsig.apply.model.VersionTable;
 import com.pnfsoftware.jeb.util.format.Strings;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -36,49 +33,67 @@ public class DatabaseReferenceFile {
     /*  may be null: could be defined to kick the bad candidates */
     // private DatabaseReferenceFile parent;
 
+    /** pseudo-version of the signatures without version (sig1 or no version specified) */
+    public static final String ALL_VERSIONS = "all";
+
     public String file;
-    private Map<String, Integer> versions;
-    private List<String> merged = new ArrayList<>();
+    /** table of the merged signatures (adopted from the first versioned signature) */
+    private VersionTable versionTable;
+    /** occurrences per version id */
+    private int[] versionCounts = new int[0];
+    /** occurrences of signatures without version (sig1 or no version specified) */
+    private int unversionedCount;
+    private BitSet merged = new BitSet();
 
-    public DatabaseReferenceFile(String file, Map<String, Integer> versions) {
+    public DatabaseReferenceFile(String file) {
         this.file = file;
-        this.versions = versions;
     }
 
     void mergeVersions(Collection<MethodSignature> values) {
-        if(versions == null) {
-            versions = new HashMap<>();
-        }
         for(MethodSignature value: values) {
-            // put first as reference
-            String[] versionsArray = value.getVersions();
-            if(versionsArray == null) {
+            if(versionTable == null && value.getVersionTable() != null) {
+                versionTable = value.getVersionTable();
+            }
+            BitSet versionBits = value.getVersionBits(getVersionTable());
+            if(versionBits == null) {
                 // sig1 or no version specified
-                increment(versions, "all");
+                unversionedCount++;
+                continue;
+            }
+            if(isEmpty()) {
+                merged.or(versionBits);
+            }
+            else if(merged.intersects(versionBits)) {
+                merged.and(versionBits);
             }
             else {
-                List<String> versionsList = Arrays.asList(versionsArray);
-                if(versions.isEmpty()) {
-                    merged.addAll(versionsList);
-                }
-                else {
-                    List<String> tmp = new ArrayList<>(CollectionUtil.intersect(versionsList, merged));
-                    if(tmp.isEmpty()) {
-                        // 2 options: either method is wrong or old method included
-                        // it means that we make the choice here that previous version is still the good one
-                        // (there must have been a validation before adding a whole class, so it makes sense)
-                        logger.warn("Method %s->%s %s can not be found for current version", value.getCname(),
-                                value.getMname(), value.getShorty());
-                    }
-                    else {
-                        merged = tmp;
-                    }
-                }
-                for(String v: versionsArray) {
-                    increment(versions, v);
-                }
+                // 2 options: either method is wrong or old method included
+                // it means that we make the choice here that previous version is still the good one
+                // (there must have been a validation before adding a whole class, so it makes sense)
+                logger.warn("Method %s->%s %s can not be found for current version", value.getCname(),
+                        value.getMname(), value.getShorty());
+            }
+            if(versionBits.length() > versionCounts.length) {
+                versionCounts = Arrays.copyOf(versionCounts,
+                        Math.max(versionBits.length(), versionCounts.length * 2));
+            }
+            for(int id = versionBits.nextSetBit(0); id >= 0; id = versionBits.nextSetBit(id + 1)) {
+                versionCounts[id]++;
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        return unversionedCount == 0 && !hasVersion();
+    }
+
+    private boolean hasVersion() {
+        for(int count: versionCounts) {
+            if(count != 0) {
+                return true;
             }
         }
+        return false;
     }
 
     static void increment(Map<String, Integer> versionOccurences, String key) {
@@ -92,42 +107,98 @@ public class DatabaseReferenceFile {
     }
 
     boolean hasNoVersion() {
-        return versions == null || (versions.size() == 1 && versions.containsKey("all"));
+        return !hasVersion();
+    }
+
+    /**
+     * @return version table of the version ids returned by this file
+     */
+    public VersionTable getVersionTable() {
+        if(versionTable == null) {
+            versionTable = new VersionTable();
+        }
+        return versionTable;
     }
 
     public List<String> getMergedVersions() {
-        return merged;
+        return getVersionTable().toVersions(merged);
     }
 
-    public Set<String> getAvailableVersions() {
-        if(merged != null && !merged.isEmpty()) {
-            return new HashSet<>(merged);
+    /**
+     * Get the versions compatible with the merged signatures: the merged versions if any, else all
+     * encountered versions.
+     * 
+     * @return version ids of {@link #getVersionTable()}, null if no signature has versions
+     */
+    public BitSet getAvailableVersions() {
+        if(!merged.isEmpty()) {
+            return merged;
         }
         if(hasNoVersion()) {
             return null;
         }
-        return versions.keySet();
+        BitSet available = new BitSet();
+        for(int id = 0; id < versionCounts.length; id++) {
+            if(versionCounts[id] != 0) {
+                available.set(id);
+            }
+        }
+        return available;
     }
 
-    List<List<String>> getOrderedVersions() {
+    /**
+     * Group the versions by occurrences. Signatures without version are counted under the
+     * {@link #ALL_VERSIONS} pseudo-version.
+     * 
+     * @return version ids, most occurring group first
+     */
+    List<BitSet> getOrderedVersions() {
+        List<BitSet> ordered = new ArrayList<>();
         if(hasNoVersion()) {
-            return new ArrayList<>();
+            return ordered;
         }
-        Map<Integer, List<String>> versionsRev = versions.entrySet().stream().collect(
-                Collectors.groupingBy(Map.Entry::getValue, Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
-        versionsRev = new TreeMap<>(versionsRev);
-        List<List<String>> ordered = new ArrayList<>();
-        VersionComparator vsCmp = new VersionComparator();
-        for(Entry<Integer, List<String>> entry: versionsRev.entrySet()) {
-            List<String> vs = new ArrayList<>(entry.getValue());
-            Collections.sort(vs, vsCmp);
-            Collections.reverse(vs);
-            ordered.add(vs);
+        TreeMap<Integer, BitSet> versionsRev = new TreeMap<>(Collections.reverseOrder());
+        for(int id = 0; id < versionCounts.length; id++) {
+            if(versionCounts[id] != 0) {
+                addToGroup(versionsRev, versionCounts[id], id);
+            }
         }
-        Collections.reverse(ordered);
+        if(unversionedCount != 0) {
+            addToGroup(versionsRev, unversionedCount, getVersionTable().getId(ALL_VERSIONS));
+        }
+        ordered.addAll(versionsRev.values());
         return ordered;
     }
 
+    private static void addToGroup(Map<Integer, BitSet> versionsRev, int count, int id) {
+        BitSet group = versionsRev.get(count);
+        if(group == null) {
+            group = new BitSet();
+            versionsRev.put(count, group);
+        }
+        group.set(id);
+    }
+
+    /**
+     * @param versions group of version ids
+     * @return the preferred version of the group (the latest release), -1 if the group is empty
+     */
+    int getPreferredVersion(BitSet versions) {
+        VersionComparator vsCmp = new VersionComparator();
+        VersionTable table = getVersionTable();
+        int preferred = -1;
+        for(int id = versions.nextSetBit(0); id >= 0; id = versions.nextSetBit(id + 1)) {
+            if(preferred < 0 || vsCmp.compare(table.getVersion(id), table.getVersion(preferred)) > 0) {
+                preferred = id;
+            }
+        }
+        return preferred;
+    }
+
+    boolean isMergedVersion(int id) {
+        return merged.get(id);
+    }
+
     private static class VersionComparator implements Comparator<String> {
         @Override
         public int compare(String v1, String v2) {
@@ -142,7 +213,7 @@ public class DatabaseReferenceFile {
 
     public Set<String> getReducedVersions() {
         Set<String> versionList = new TreeSet<>(new VersionComparator());
-        for(String v: merged) {
+        for(String v: getMergedVersions()) {
             versionList.add(v.replace("_d8r", "").replace("_d8d", "").replace("_d8", ""));
         }
         return versionList;
@@ -17,6 +17,7 @@ import java.util.Set;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.MethodSignature;
 import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnf.androsig.common.MethodHash;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
@@ -124,7 +125,7 @@ public class FileMatches {
     private void addMatchedClassFiles(int dexClassIndex, String file) {
         DatabaseReferenceFile refFile = usedSigFiles.get(file);
         if(refFile == null) {
-            refFile = new DatabaseReferenceFile(file, null);
+            refFile = new DatabaseReferenceFile(file);
             usedSigFiles.put(file, refFile);
         }
         matchedClassesFile.put(dexClassIndex, refFile);
@@ -149,7 +150,7 @@ public class FileMatches {
             if(refFile == null) {
                 refFile = tempSigFiles.get(file);
                 if(refFile == null) {
-                    refFile = new DatabaseReferenceFile(file, null);
+                    refFile = new DatabaseReferenceFile(file);
                     tempSigFiles.put(file, refFile);
                 }
             }
@@ -207,7 +208,7 @@ public class FileMatches {
     private boolean saveFileVersions(String file, Collection<MethodSignature> values) {
         DatabaseReferenceFile refFile = usedSigFiles.get(file);
         if(refFile == null) {
-            refFile = new DatabaseReferenceFile(file, null);
+            refFile = new DatabaseReferenceFile(file);
             usedSigFiles.put(file, refFile);
         }
         refFile.mergeVersions(values);
@@ -218,7 +219,7 @@ public class FileMatches {
         for(String file: files) {
             DatabaseReferenceFile refFile = usedSigFiles.get(file);
             if(refFile == null) {
-                refFile = new DatabaseReferenceFile(file, null);
+                refFile = new DatabaseReferenceFile(file);
                 tempSigFiles.put(file, refFile);
             }
             refFile.mergeVersions(values);
@@ -252,7 +253,8 @@ public class FileMatches {
         return null;// maybe duplicated, wait for other part to decide
     }
 
-    public List<MethodSignature> getSignatureLines(DatabaseReference ref, String file, String hashcode, boolean tight) {
+    public List<MethodSignature> getSignatureLines(DatabaseReference ref, String file, MethodHash hashcode,
+            boolean tight) {
         if(!usedSigFiles.containsKey(file)) {
             return ref.getSignatureLines(file, hashcode, tight);
         }
@@ -6,10 +6,12 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -19,7 +21,12 @@ import java.util.stream.Collectors;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.apply.model.MethodSignature.MethodSignatureRevision;
 import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnf.androsig.common.MinHash;
+import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.units.code.IInstruction;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
@@ -198,40 +205,30 @@ public class MatchingSearch {
 
         public void validateVersions() {
             for(String file: files) {
-                DatabaseReferenceFile refFile = new DatabaseReferenceFile(file, null);
+                DatabaseReferenceFile refFile = new DatabaseReferenceFile(file);
                 refFiles.add(refFile);
                 refFile.mergeVersions(classPathMethod.values());
                 if(refFile.hasNoVersion()) {
                     continue;
                 }
-                List<List<String>> preferedOrderList = refFile.getOrderedVersions();
+                List<BitSet> preferedOrderList = refFile.getOrderedVersions();
                 if(preferedOrderList == null || preferedOrderList.isEmpty()) {
                     continue; //versionless
                 }
-                List<String> versions = preferedOrderList.get(0);
+                BitSet versions = preferedOrderList.get(0);
                 List<Integer> illegalMethods = new ArrayList<>();
                 for(Entry<Integer, MethodSignature> method: classPathMethod.entrySet()) {
-                    String[] versionsArray = method.getValue().getVersions();
-                    if(versionsArray == null) {
-                        continue;
-                    }
-                    boolean found = false;
-                    for(String v: versionsArray) {
-                        if(versions.contains(v)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if(!found) {
+                    BitSet versionBits = method.getValue().getVersionBits(refFile.getVersionTable());
+                    if(versionBits != null && !versionBits.intersects(versions)) {
                         illegalMethods.add(method.getKey());
                     }
                 }
                 for(Integer illegal: illegalMethods) {
                     classPathMethod.remove(illegal);
                 }
-                if(!refFile.getMergedVersions().contains(versions.get(0))) {
+                if(!refFile.isMergedVersion(refFile.getPreferredVersion(versions))) {
                     // regenerate, wrong base
-                    refFile = new DatabaseReferenceFile(files.get(0), null);
+                    refFile = new DatabaseReferenceFile(files.get(0));
                     refFile.mergeVersions(classPathMethod.values());
                 }
             }
@@ -329,8 +326,59 @@ public class MatchingSearch {
         this.firstPass = firstPass;
     }
 
-    private List<MethodSignature> getInnerClassSignatureLines(DatabaseReferenceFile file, String mhash, boolean tight,
-            String innerClass) {
+    /**
+     * Get the hashcode of a method, computed with the algorithm used by a signature file.
+     */
+    private MethodHash getHashcode(IDexMethod eMethod, String file, boolean tight) {
+        HashAlgorithm algorithm = ref.getHashAlgorithm(file);
+        return tight ? dexHashCodeList.getTightHashcode(eMethod, algorithm)
+                : dexHashCodeList.getLooseHashcode(eMethod, algorithm);
+    }
+
+    /**
+     * Get the files containing the hashcode of a method, for any of the computed algorithms.
+     */
+    private List<String> getFilesContainingHashcode(IDexMethod eMethod, boolean tight) {
+        List<String> res = null;
+        for(HashAlgorithm algorithm: dexHashCodeList.getHashAlgorithms()) {
+            MethodHash mhash = tight ? dexHashCodeList.getTightHashcode(eMethod, algorithm)
+                    : dexHashCodeList.getLooseHashcode(eMethod, algorithm);
+            if(mhash == null) {
+                continue;
+            }
+            List<String> files = tight ? ref.getFilesContainingTightHashcode(mhash)
+                    : ref.getFilesContainingLooseHashcode(mhash);
+            if(files == null) {
+                continue;
+            }
+            if(res == null) {
+                res = files;
+            }
+            else {
+                // files of distinct algorithms are distinct
+                res.addAll(files);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Get the number of reference classes defining the hashcode of a method (over all algorithms).
+     */
+    private int getClassCountContainingHashcode(IDexMethod eMethod, boolean tight) {
+        int count = 0;
+        for(HashAlgorithm algorithm: dexHashCodeList.getHashAlgorithms()) {
+            MethodHash mhash = tight ? dexHashCodeList.getTightHashcode(eMethod, algorithm)
+                    : dexHashCodeList.getLooseHashcode(eMethod, algorithm);
+            if(mhash != null) {
+                count += ref.getClassCountContainingHashcode(mhash, tight);
+            }
+        }
+        return count;
+    }
+
+    private List<MethodSignature> getInnerClassSignatureLines(DatabaseReferenceFile file, MethodHash mhash,
+            boolean tight, String innerClass) {
         List<MethodSignature> sigLine = ref.getSignatureLines(file, mhash, tight);
         if(sigLine != null) {
             sigLine = sigLine.stream().filter(s -> s.getCname().startsWith(innerClass)).collect(Collectors.toList());
@@ -352,7 +400,7 @@ public class MatchingSearch {
             }
             List<MethodSignature> sigLine = null;
             if(instructionBarReached) {
-                String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+                MethodHash mhash_tight = getHashcode(eMethod, file.file, true);
                 if(mhash_tight != null) {
                     sigLine = getInnerClassSignatureLines(file, mhash_tight, true, innerClass);
                 }
@@ -360,7 +408,7 @@ public class MatchingSearch {
             if(!firstRound) {
                 if((sigLine == null || sigLine.isEmpty()) && instructionBarReached) {
                     // may be done even if tight is found
-                    String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
+                    MethodHash mhash_loose = getHashcode(eMethod, file.file, false);
                     if(mhash_loose != null) {
                         sigLine = getInnerClassSignatureLines(file, mhash_loose, false, innerClass);
                     }
@@ -425,6 +473,70 @@ public class MatchingSearch {
         return genericApiParams >= params.complexSignatureParams;
     }
 
+    /**
+     * One-shot class match: look up the structural fingerprint of the class (see
+     * {@link com.pnf.androsig.common.ClassFingerprint}). Only unmodified classes share a
+     * fingerprint, so candidates are only saved when a single reference class name matches; methods
+     * are then paired by tight hashcode within that class, in each file defining it. Files are
+     * restricted to the valid files of {@link #processClass(IMatcherValidation, IDexClass, List, int)},
+     * so that the same first-round checks apply.
+     * 
+     * @return true if candidates were found
+     */
+    public boolean processClassFingerprint(IMatcherValidation validation, IDexClass eClass,
+            List<? extends IDexMethod> methods, int innerLevel) {
+        String className = null;
+        Set<String> files = new LinkedHashSet<>();
+        for(HashAlgorithm algorithm: dexHashCodeList.getHashAlgorithms()) {
+            MethodHash fingerprint = dexHashCodeList.getClassFingerprint(eClass, algorithm);
+            if(fingerprint == null) {
+                continue;
+            }
+            Map<String, Set<String>> classes = ref.getClassesWithFingerprint(fingerprint);
+            if(classes == null) {
+                continue;
+            }
+            for(Entry<String, Set<String>> entry: classes.entrySet()) {
+                if(className != null && !className.equals(entry.getKey())) {
+                    // same structure, several names: let per-method matching decide
+                    return false;
+                }
+                className = entry.getKey();
+                files.addAll(entry.getValue());
+            }
+        }
+        if(className == null || fileMatches.containsMatchedClassValue(className)
+                || DexUtilLocal.getInnerClassLevel(className) != innerLevel) {
+            return false;
+        }
+        files.retainAll(getValidFiles(validation, eClass, methods));
+        String cname = className;
+        for(String file: files) {
+            Map<String, InnerMatch> classes = new HashMap<>();
+            for(IDexMethod eMethod: methods) {
+                if(!eMethod.isInternal()) {
+                    continue;
+                }
+                MethodHash mhash_tight = getHashcode(eMethod, file, true);
+                if(mhash_tight == null) {
+                    continue;
+                }
+                List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file, mhash_tight, true);
+                if(sigLines == null || sigLines.isEmpty()) {
+                    continue;
+                }
+                sigLines = sigLines.stream().filter(s -> cname.equals(s.getCname())).collect(Collectors.toList());
+                if(!sigLines.isEmpty()) {
+                    saveTemporaryCandidate(eMethod, sigLines, firstRound, classes, file, innerLevel);
+                }
+            }
+            if(!classes.isEmpty()) {
+                fileCandidates.put(file, classes);
+            }
+        }
+        return !fileCandidates.isEmpty();
+    }
+
     public boolean processClass(IMatcherValidation validation, IDexClass eClass, List<? extends IDexMethod> methods,
             int innerLevel) {
         List<String> validFiles = getValidFiles(validation, eClass, methods);
@@ -463,21 +575,23 @@ public class MatchingSearch {
                 continue;
             }
 
-            String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+            MethodHash mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
             if(mhash_tight == null) {
                 continue;
             }
-            List<String> candidateFiles = ref.getFilesContainingTightHashcode(mhash_tight);
+            List<String> candidateFiles = getFilesContainingHashcode(eMethod, true);
             if(candidateFiles != null) {
                 candidateFiles = new ArrayList<>(CollectionUtil.intersect(validFiles, candidateFiles));
-                if(firstRound && candidateFiles.size() > 10) {
-                    // do not process here: will be considered as small method
+                if(firstRound && (candidateFiles.size() > params.maxHashFiles
+                        || getClassCountContainingHashcode(eMethod, true) > params.maxHashClasses)) {
+                    // low specificity, do not process here: will be considered as small method
                     easyMatches.add(eMethod);
                     continue;
                 }
 
                 for(String file: candidateFiles) {
-                    List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file, mhash_tight, true);
+                    List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file,
+                            getHashcode(eMethod, file, true), true);
                     if(sigLines == null || sigLines.isEmpty()) {
                         continue;
                     }
@@ -506,17 +620,18 @@ public class MatchingSearch {
             }
             else if(!firstRound) {
                 // may be done even if tight is found
-                String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
+                MethodHash mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
                 if(mhash_loose == null) {
                     continue;
                 }
-                candidateFiles = ref.getFilesContainingLooseHashcode(mhash_loose);
+                candidateFiles = getFilesContainingHashcode(eMethod, false);
                 if(candidateFiles != null) {
                     for(String file: candidateFiles) {
                         if(!validFiles.contains(file)) {
                             continue;
                         }
-                        List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file, mhash_loose, false);
+                        List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file,
+                                getHashcode(eMethod, file, false), false);
                         if(sigLines == null || sigLines.isEmpty()) {
                             continue;
                         }
@@ -558,17 +673,17 @@ public class MatchingSearch {
                 continue;
             }
 
-            String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+            MethodHash mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
             if(mhash_tight == null) {
                 continue;
             }
-            List<String> candidateFiles = ref.getFilesContainingTightHashcode(mhash_tight);
+            List<String> candidateFiles = getFilesContainingHashcode(eMethod, true);
             if(candidateFiles == null && !firstRound) {
-                String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
+                MethodHash mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
                 if(mhash_loose == null) {
                     continue;
                 }
-                candidateFiles = ref.getFilesContainingLooseHashcode(mhash_loose);
+                candidateFiles = getFilesContainingHashcode(eMethod, false);
             }
             if(candidateFiles == null || candidateFiles.isEmpty()) {
                 continue;
@@ -666,7 +781,7 @@ public class MatchingSearch {
         IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
         String prototypes = proto.generate(true);
         String shorty = proto.getShorty();
-        String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+        MethodHash mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
         if(mhash_tight == null) {
             return null;
         }
@@ -674,24 +789,136 @@ public class MatchingSearch {
                 allowEmptyMName);
     }
 
-    public MethodSignature findMethodMatch(DatabaseReferenceFile file, String mhash_tight, String prototypes,
+    public MethodSignature findMethodMatch(DatabaseReferenceFile file, MethodHash mhash_tight, String prototypes,
             String shorty, String classPath, Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod,
             boolean allowEmptyMName) {
         MethodSignature strArray = null;
+        if(mhash_tight.getAlgorithm() != ref.getHashAlgorithm(file.file)) {
+            mhash_tight = getHashcode(eMethod, file.file, true);
+        }
         List<MethodSignature> sigs = ref.getSignatureLines(file, mhash_tight, true);
         if(sigs != null) {
             strArray = findMethodName(sigs, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
         }
         if(strArray == null || (!allowEmptyMName && strArray.getMname().isEmpty())) {
-            String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
+            MethodHash mhash_loose = getHashcode(eMethod, file.file, false);
             sigs = ref.getSignatureLines(file, mhash_loose, false);
             if(sigs != null) {
                 strArray = findMethodName(sigs, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
             }
         }
+        if(strArray == null && !firstRound) {
+            strArray = findMethodMatchByBlocks(file, prototypes, shorty, classPath, alreadyProcessedMethods,
+                    eMethod);
+            if(strArray == null) {
+                strArray = findMethodMatchByMinHash(file, prototypes, shorty, classPath, alreadyProcessedMethods,
+                        eMethod);
+            }
+        }
         return strArray;
     }
 
+    /**
+     * Partial match: look for the signatures of a class sharing the largest fraction of basic blocks
+     * with a method (at least {@link DatabaseMatcherParameters#blockMatchRatio}). Candidates are
+     * retrieved from the block index of the file, so that the cost only depends on the number of
+     * blocks of the method.
+     */
+    private MethodSignature findMethodMatchByBlocks(DatabaseReferenceFile file, String prototypes, String shorty,
+            String classPath, Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod) {
+        if(params.blockMatchRatio <= 0) {
+            return null;
+        }
+        long[] blocks = dexHashCodeList.getBlockHashcodes(eMethod);
+        if(blocks.length == 0) {
+            return null;
+        }
+        Set<MethodSignature> candidates = new LinkedHashSet<>();
+        for(long block: blocks) {
+            List<MethodSignature> sigs = ref.getBlockSignatureLines(file, block);
+            if(sigs == null) {
+                continue;
+            }
+            for(MethodSignature sig: sigs) {
+                if(sig.getCname().equals(classPath)) {
+                    candidates.add(sig);
+                }
+            }
+        }
+        List<MethodSignature> best = new ArrayList<>();
+        double bestRatio = params.blockMatchRatio;
+        for(MethodSignature sig: candidates) {
+            double ratio = 0;
+            for(MethodSignatureRevision rev: sig.getRevisions()) {
+                long[] sigBlocks = rev.getBlockHashes();
+                if(sigBlocks != null) {
+                    ratio = Math.max(ratio, (double)SignatureHandler.countSharedBlocks(blocks, sigBlocks)
+                            / Math.max(blocks.length, sigBlocks.length));
+                }
+            }
+            if(ratio > bestRatio) {
+                bestRatio = ratio;
+                best.clear();
+            }
+            if(ratio >= bestRatio) {
+                best.add(sig);
+            }
+        }
+        if(best.isEmpty()) {
+            return null;
+        }
+        return findMethodName(best, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
+    }
+
+    /**
+     * Near-duplicate match: look for the signatures of a class whose MinHash signature is the most
+     * similar to the method one (at least {@link DatabaseMatcherParameters#minHashSimilarity}).
+     * Candidates are retrieved from the LSH buckets of the method, without scanning the class.
+     */
+    private MethodSignature findMethodMatchByMinHash(DatabaseReferenceFile file, String prototypes, String shorty,
+            String classPath, Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod) {
+        if(params.minHashSimilarity <= 0) {
+            return null;
+        }
+        int[] minHash = dexHashCodeList.getMinHash(eMethod);
+        if(minHash == null) {
+            return null;
+        }
+        Set<MethodSignature> candidates = new LinkedHashSet<>();
+        for(long bandKey: MinHash.getBandKeys(minHash)) {
+            List<MethodSignature> sigs = ref.getBandSignatureLines(file, bandKey);
+            if(sigs == null) {
+                continue;
+            }
+            for(MethodSignature sig: sigs) {
+                if(sig.getCname().equals(classPath)) {
+                    candidates.add(sig);
+                }
+            }
+        }
+        List<MethodSignature> best = new ArrayList<>();
+        double bestSimilarity = params.minHashSimilarity;
+        for(MethodSignature sig: candidates) {
+            double similarity = 0;
+            for(MethodSignatureRevision rev: sig.getRevisions()) {
+                if(rev.getMinHash() != null) {
+                    similarity = Math.max(similarity, MinHash.similarity(minHash, rev.getMinHash()));
+                }
+            }
+            if(similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best.clear();
+            }
+            if(similarity >= bestSimilarity) {
+                best.add(sig);
+            }
+        }
+        if(best.isEmpty()) {
+            return null;
+        }
+        return findMethodName(best, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
+    }
+
     public MethodSignature findMethodName(List<MethodSignature> sigs, String classPath,
             Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod) {
         IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
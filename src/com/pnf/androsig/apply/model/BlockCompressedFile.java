@@ -0,0 +1,329 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Seekable block-compressed signature file (<code>.sigz</code>). The uncompressed file is cut into
+ * blocks of fixed size, each block being deflated independently, so that offsets of the
+ * uncompressed file (as stored in index files) address a block id and an offset in this block.
+ * Only the blocks of the read lines are decompressed; a few recently used blocks are cached.
+ * <p>
+ * Format (big endian):
+ * <ul>
+ * <li>magic <code>SIGZ</code>, format version (int), block size (int), uncompressed size (long),
+ * block count (int)</li>
+ * <li>block table: file offset of each block, then end offset of the last block (longs)</li>
+ * <li>raw deflate blocks</li>
+ * </ul>
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class BlockCompressedFile implements Closeable {
+
+    public static final String EXTENSION = ".sigz";
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** decompressed blocks kept per file: many files are open at the same time */
+    private static final int CACHED_BLOCKS = 4;
+
+    private static final int MAGIC = 0x5349475A; // SIGZ
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int blockSize;
+    private final long size;
+    private final long[] blockOffsets;
+    private final Inflater inflater = new Inflater(true);
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    public BlockCompressedFile(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        try {
+            if(raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a compressed signature file: " + file);
+            }
+            blockSize = raf.readInt();
+            size = raf.readLong();
+            int blockCount = raf.readInt();
+            if(blockSize <= 0 || blockCount < 0 || (long)blockCount * blockSize < size) {
+                throw new IOException("Corrupted compressed signature file: " + file);
+            }
+            blockOffsets = new long[blockCount + 1];
+            for(int i = 0; i <= blockCount; i++) {
+                blockOffsets[i] = raf.readLong();
+            }
+        }
+        catch(IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public static boolean isCompressed(File sigFile) {
+        return sigFile.getName().endsWith(EXTENSION);
+    }
+
+    /**
+     * @return size of the uncompressed file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Read a range of the uncompressed file.
+     *
+     * @param offset offset in the uncompressed file
+     * @param length number of bytes
+     */
+    public synchronized byte[] read(long offset, int length) throws IOException {
+        if(offset < 0 || offset + length > size) {
+            throw new IOException("Out of range read in " + file + ": " + offset);
+        }
+        byte[] res = new byte[length];
+        int done = 0;
+        while(done < length) {
+            long position = offset + done;
+            int blockId = (int)(position / blockSize);
+            int inBlock = (int)(position % blockSize);
+            byte[] block = getBlock(blockId);
+            int n = Math.min(length - done, block.length - inBlock);
+            System.arraycopy(block, inBlock, res, done, n);
+            done += n;
+        }
+        return res;
+    }
+
+    private byte[] getBlock(int blockId) throws IOException {
+        byte[] block = cache.get(blockId);
+        if(block == null) {
+            block = readBlock(blockId);
+            cache.put(blockId, block);
+        }
+        return block;
+    }
+
+    private byte[] readBlock(int blockId) throws IOException {
+        byte[] compressed = new byte[(int)(blockOffsets[blockId + 1] - blockOffsets[blockId])];
+        raf.seek(blockOffsets[blockId]);
+        raf.readFully(compressed);
+        byte[] block = new byte[(int)Math.min(blockSize, size - (long)blockId * blockSize)];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int n = 0;
+            while(n < block.length && !inflater.finished()) {
+                int read = inflater.inflate(block, n, block.length - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if(n != block.length) {
+                throw new IOException("Truncated block " + blockId + " in " + file);
+            }
+        }
+        catch(DataFormatException e) {
+            throw new IOException("Corrupted block " + blockId + " in " + file, e);
+        }
+        return block;
+    }
+
+    /**
+     * @return sequential stream of the uncompressed file (blocks are not cached)
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private int blockId = 0;
+            private byte[] block = new byte[0];
+            private int index = 0;
+
+            @Override
+            public int read() throws IOException {
+                if(!fill()) {
+                    return -1;
+                }
+                return block[index++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) {
+                    return 0;
+                }
+                if(!fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, block.length - index);
+                System.arraycopy(block, index, b, off, n);
+                index += n;
+                return n;
+            }
+
+            private boolean fill() throws IOException {
+                while(index == block.length) {
+                    if(blockId >= blockOffsets.length - 1) {
+                        return false;
+                    }
+                    synchronized(BlockCompressedFile.this) {
+                        block = readBlock(blockId++);
+                    }
+                    index = 0;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Open a signature file, compressed or not, for sequential reading.
+     */
+    public static InputStream openSignatureFile(File sigFile) throws IOException {
+        if(!isCompressed(sigFile)) {
+            return new FileInputStream(sigFile);
+        }
+        BlockCompressedFile z = new BlockCompressedFile(sigFile);
+        return new FilterInputStream(z.newInputStream()) {
+            @Override
+            public void close() throws IOException {
+                z.close();
+            }
+        };
+    }
+
+    /**
+     * @return size of the uncompressed signature file
+     */
+    public static long getSignatureSize(File sigFile) throws IOException {
+        if(!isCompressed(sigFile)) {
+            return sigFile.length();
+        }
+        try(BlockCompressedFile z = new BlockCompressedFile(sigFile)) {
+            return z.getSize();
+        }
+    }
+
+    /**
+     * Read a whole signature file, compressed or not.
+     */
+    public static byte[] readSignatureFile(File sigFile) throws IOException {
+        if(!isCompressed(sigFile)) {
+            return Files.readAllBytes(sigFile.toPath());
+        }
+        try(BlockCompressedFile z = new BlockCompressedFile(sigFile)) {
+            if(z.getSize() > Integer.MAX_VALUE) {
+                throw new IOException("Signature file is too big: " + sigFile);
+            }
+            byte[] data = new byte[(int)z.getSize()];
+            try(InputStream in = z.newInputStream()) {
+                int n = 0;
+                int read;
+                while(n < data.length && (read = in.read(data, n, data.length - n)) > 0) {
+                    n += read;
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Compress a signature file. The index file of the source remains valid for the compressed
+     * file, since it stores uncompressed offsets.
+     *
+     * @param source signature file
+     * @param target compressed file
+     * @param blockSize uncompressed block size
+     */
+    public static void compress(File source, File target, int blockSize) throws IOException {
+        long size = source.length();
+        int blockCount = (int)((size + blockSize - 1) / blockSize);
+        long[] offsets = new long[blockCount + 1];
+        File tmp = new File(target.getPath() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try(InputStream in = new FileInputStream(source);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(blockSize);
+            out.writeLong(size);
+            out.writeInt(blockCount);
+            // table is written once block sizes are known
+            for(int i = 0; i <= blockCount; i++) {
+                out.writeLong(0);
+            }
+            long position = HEADER_SIZE + 8L * (blockCount + 1);
+            byte[] block = new byte[blockSize];
+            byte[] buffer = new byte[blockSize + blockSize / 8 + 64];
+            for(int i = 0; i < blockCount; i++) {
+                int length = (int)Math.min(blockSize, size - (long)i * blockSize);
+                int n = 0;
+                while(n < length) {
+                    int read = in.read(block, n, length - n);
+                    if(read < 0) {
+                        throw new IOException("Signature file was modified while compressed: " + source);
+                    }
+                    n += read;
+                }
+                offsets[i] = position;
+                deflater.reset();
+                deflater.setInput(block, 0, length);
+                deflater.finish();
+                while(!deflater.finished()) {
+                    int compressed = deflater.deflate(buffer);
+                    out.write(buffer, 0, compressed);
+                    position += compressed;
+                }
+            }
+            offsets[blockCount] = position;
+        }
+        finally {
+            deflater.end();
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.seek(HEADER_SIZE);
+            for(long offset: offsets) {
+                raf.writeLong(offset);
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        raf.close();
+    }
+}
@@ -7,6 +7,8 @@ package com.pnf.androsig.apply.model;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -16,6 +18,8 @@ import java.util.Set;
 
 import com.pnf.androsig.apply.matcher.DatabaseReferenceFile;
 import com.pnf.androsig.apply.model.MethodSignature.MethodSignatureRevision;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
 import com.pnfsoftware.jeb.util.base.Couple;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -31,9 +35,19 @@ public class DatabaseReference {
     private final ILogger logger = GlobalLog.getLogger(DatabaseReference.class);
 
     /** file list containing a hashcode, with hashcode as key */
-    private Map<String, Set<String>> allTightHashcodes = new HashMap<>();
-    private Map<String, Set<String>> allLooseHashcodes = new HashMap<>();
+    private Map<MethodHash, Set<String>> allTightHashcodes = new HashMap<>();
+    private Map<MethodHash, Set<String>> allLooseHashcodes = new HashMap<>();
     private Map<String, Set<String>> allClasses = new HashMap<>();
+    /** files defining a class, per class name, with class fingerprint as key */
+    private Map<MethodHash, Map<String, Set<String>>> allClassFingerprints = new HashMap<>();
+    /** class counts, per hashcode */
+    private HashSpecificity specificity = new HashSpecificity();
+    /** hashcode algorithm, with filename as key */
+    private Map<String, HashAlgorithm> allHashAlgorithms = new HashMap<>();
+    /** if not null, only these files are reported as candidates (see {@link #restrictFiles(Set)}) */
+    private Set<String> restrictedFiles;
+    /** number of distinct tight hashcodes, with filename as key (computed on first request) */
+    private Map<String, Integer> tightHashcodeCounts;
 
     private SignatureFileFactory signatureFileFactory = new SignatureFileFactory();
 
@@ -48,17 +62,24 @@ public class DatabaseReference {
         logger.info("Hashcodes loading start...");
         final long startTime = System.currentTimeMillis();
         loadAllHashCodesTemp(sigFolder);
+        specificity.compact(allTightHashcodes.keySet(), allLooseHashcodes.keySet());
         final long endTime = System.currentTimeMillis();
         logger.info("Hashcodes loading completed! (Execution Time: " + (endTime - startTime) / 1000 + "s)");
         logger.info("allTightHashcodes: " + allTightHashcodes.size());
         logger.info("allLooseHashcodes: " + allLooseHashcodes.size());
+        logger.info("allClassFingerprints: " + allClassFingerprints.size());
     }
 
     private void loadAllHashCodesTemp(File sigFolder) {
         Runtime rt = Runtime.getRuntime();
         long memused = rt.totalMemory() - rt.freeMemory();
         for(File f: sigFolder.listFiles()) {
-            if(f.isFile() && f.getName().endsWith(".sig")) {
+            if(f.isFile() && (f.getName().endsWith(".sig") || BlockCompressedFile.isCompressed(f))) {
+                File preferred = getPreferredFile(f);
+                if(preferred != f) {
+                    logger.warn("Signature file %s ignored: %s is loaded instead", f, preferred);
+                    continue;
+                }
                 allSignatureFileCount++;
                 if(!loadHashCodes(f)) {
                     logger.error("Cannot load signatures files: %s", f);
@@ -76,8 +97,55 @@ public class DatabaseReference {
         }
     }
 
+    /**
+     * A library may be present both as <code>.sig</code> and <code>.sigz</code> files (for example
+     * after compressing a folder): only one of them must be loaded, else the library is counted
+     * twice. The most recent one is preferred, the compressed one if they are as recent.
+     * 
+     * @return the file to load for the library of a signature file
+     */
+    static File getPreferredFile(File sigFile) {
+        String name = sigFile.getName();
+        boolean compressed = BlockCompressedFile.isCompressed(sigFile);
+        String basename = name.substring(0, name.lastIndexOf('.'));
+        File other = new File(sigFile.getParentFile(), basename + (compressed ? ".sig": BlockCompressedFile.EXTENSION));
+        if(!other.isFile()) {
+            return sigFile;
+        }
+        File compressedFile = compressed ? sigFile: other;
+        File plainFile = compressed ? other: sigFile;
+        return plainFile.lastModified() > compressedFile.lastModified() ? plainFile: compressedFile;
+    }
+
     private boolean loadHashCodes(File sigFile) {
-        return SignatureFileFactory.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
+        return SignatureFileFactory.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses,
+                allClassFingerprints, specificity, allHashAlgorithms);
+    }
+
+    /**
+     * Get the hashcode algorithms used by the loaded signature files. Apk hashcodes must be computed
+     * for each of them.
+     * 
+     * @return the algorithms, {@link HashAlgorithm#DEFAULT} if no file was loaded
+     */
+    public Set<HashAlgorithm> getHashAlgorithms() {
+        Set<HashAlgorithm> algorithms = EnumSet.noneOf(HashAlgorithm.class);
+        algorithms.addAll(allHashAlgorithms.values());
+        if(algorithms.isEmpty()) {
+            algorithms.add(HashAlgorithm.DEFAULT);
+        }
+        return algorithms;
+    }
+
+    /**
+     * Get the hashcode algorithm of a signature file.
+     * 
+     * @param file signature file path
+     * @return the algorithm used by hashcodes of this file
+     */
+    public HashAlgorithm getHashAlgorithm(String file) {
+        HashAlgorithm algorithm = allHashAlgorithms.get(file);
+        return algorithm == null ? HashAlgorithm.DEFAULT: algorithm;
     }
 
     /**
@@ -89,31 +157,136 @@ public class DatabaseReference {
         return allSignatureFileCount;
     }
 
-    public List<String> getFilesContainingTightHashcode(String hashcode) {
-        Set<String> res = allTightHashcodes.get(hashcode);
-        return res == null ? null: new ArrayList<>(res);
+    /**
+     * Restrict the candidate files returned by the getFilesContaining... methods and
+     * {@link #getClassesWithFingerprint(MethodHash)}, so that signature lines of other files are
+     * never loaded.
+     * 
+     * @param files candidate files, null to remove the restriction
+     */
+    public void restrictFiles(Set<String> files) {
+        restrictedFiles = files;
+    }
+
+    private List<String> filterFiles(Set<String> files) {
+        if(files == null) {
+            return null;
+        }
+        if(restrictedFiles == null) {
+            return new ArrayList<>(files);
+        }
+        List<String> res = new ArrayList<>();
+        for(String f: files) {
+            if(restrictedFiles.contains(f)) {
+                res.add(f);
+            }
+        }
+        return res.isEmpty() ? null: res;
     }
 
-    public List<String> getFilesContainingLooseHashcode(String hashcode) {
-        Set<String> res = allLooseHashcodes.get(hashcode);
-        return res == null ? null: new ArrayList<>(res);
+    public List<String> getFilesContainingTightHashcode(MethodHash hashcode) {
+        return filterFiles(allTightHashcodes.get(hashcode));
+    }
+
+    /**
+     * Get the number of distinct tight hashcodes of a signature file. Counts of all files are
+     * computed on first call, by walking the whole hashcode map.
+     * 
+     * @param file signature file path
+     * @return hashcode count, 0 if the file is unknown
+     */
+    public int getTightHashcodeCount(String file) {
+        if(tightHashcodeCounts == null) {
+            tightHashcodeCounts = new HashMap<>();
+            for(Set<String> files: allTightHashcodes.values()) {
+                for(String f: files) {
+                    Integer count = tightHashcodeCounts.get(f);
+                    tightHashcodeCounts.put(f, count == null ? 1: count + 1);
+                }
+            }
+        }
+        Integer count = tightHashcodeCounts.get(file);
+        return count == null ? 0: count;
+    }
+
+    public List<String> getFilesContainingLooseHashcode(MethodHash hashcode) {
+        return filterFiles(allLooseHashcodes.get(hashcode));
+    }
+
+    /**
+     * Get the number of distinct classes defining a hashcode, over all signature files. The bigger,
+     * the less a hashcode can discriminate a class.
+     * 
+     * @param hashcode tight or loose hashcode
+     * @param tight true for a tight hashcode
+     * @return class count, 0 if the hashcode is unknown
+     */
+    public int getClassCountContainingHashcode(MethodHash hashcode, boolean tight) {
+        return specificity.getClassCount(hashcode, tight);
     }
 
     public List<String> getFilesContainingClass(String className) {
-        Set<String> res = allClasses.get(className);
-        return res == null ? null: new ArrayList<>(res);
+        return filterFiles(allClasses.get(className));
+    }
+
+    /**
+     * Get the classes having a structural fingerprint (see
+     * {@link com.pnf.androsig.common.ClassFingerprint}).
+     * 
+     * @param fingerprint class fingerprint
+     * @return a Map (Key: class name. Value: files defining the class with this fingerprint), null
+     *         if none
+     */
+    public Map<String, Set<String>> getClassesWithFingerprint(MethodHash fingerprint) {
+        Map<String, Set<String>> res = allClassFingerprints.get(fingerprint);
+        if(res == null || restrictedFiles == null) {
+            return res;
+        }
+        Map<String, Set<String>> filtered = new HashMap<>();
+        for(Entry<String, Set<String>> entry: res.entrySet()) {
+            List<String> files = filterFiles(entry.getValue());
+            if(files != null) {
+                filtered.put(entry.getKey(), new HashSet<>(files));
+            }
+        }
+        return filtered.isEmpty() ? null: filtered;
     }
 
     @SuppressWarnings("resource")
-    public List<MethodSignature> getSignatureLines(String file, String hashcode, boolean tight) {
+    public List<MethodSignature> getSignatureLines(String file, MethodHash hashcode, boolean tight) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
         return tight ? sigFile.getTightSignatures(hashcode): sigFile.getLooseSignatures(hashcode);
     }
 
-    public List<MethodSignature> getSignatureLines(DatabaseReferenceFile file, String hashcode, boolean tight) {
+    public List<MethodSignature> getSignatureLines(DatabaseReferenceFile file, MethodHash hashcode, boolean tight) {
         List<MethodSignature> sigs = getSignatureLines(file.file, hashcode, tight);
-        Set<String> versions = file.getAvailableVersions();
-        return filterVersions(sigs, versions);
+        return filterVersions(sigs, file);
+    }
+
+    /**
+     * Get the signatures of a file containing a basic block.
+     * 
+     * @param file signature file
+     * @param blockHash block hashcode
+     * @return signatures, null if none
+     */
+    @SuppressWarnings("resource")
+    public List<MethodSignature> getBlockSignatureLines(DatabaseReferenceFile file, long blockHash) {
+        ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file.file);
+        return filterVersions(sigFile.getBlockSignatures(blockHash), file);
+    }
+
+    /**
+     * Get the signatures of a file sharing a MinHash LSH band key.
+     * 
+     * @param file signature file
+     * @param bandKey band key
+     * @return near-duplicate candidates, null if none
+     */
+    @SuppressWarnings("resource")
+    public List<MethodSignature> getBandSignatureLines(DatabaseReferenceFile file, long bandKey) {
+        ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file.file);
+        return filterVersions(sigFile.getBandSignatures(bandKey), file);
     }
 
     @SuppressWarnings("resource")
@@ -125,36 +298,25 @@ public class DatabaseReference {
     public List<MethodSignature> getSignaturesForClassname(DatabaseReferenceFile file, String className,
             boolean exactName) {
         List<MethodSignature> sigs = getSignaturesForClassname(file.file, className, exactName);
-        Set<String> versions = file.getAvailableVersions();
-        return filterVersions(sigs, versions);
+        return filterVersions(sigs, file);
     }
 
-    private List<MethodSignature> filterVersions(List<MethodSignature> sigs, Set<String> versions) {
+    private List<MethodSignature> filterVersions(List<MethodSignature> sigs, DatabaseReferenceFile file) {
+        BitSet versions = file.getAvailableVersions();
         if(sigs != null && versions != null && !versions.isEmpty()) {
+            VersionTable table = file.getVersionTable();
             List<MethodSignature> versioned = new ArrayList<>();
             for(MethodSignature sig: sigs) {
-                if(intersect(versions, sig.getVersions())) {
+                BitSet sigVersions = sig.getVersionBits(table);
+                if(sigVersions == null || sigVersions.intersects(versions)) {
                     versioned.add(sig);
                 }
             }
             return versioned;
-            //return sigs.stream().filter(m -> intersect(versions, m.getVersions())).collect(Collectors.toList());
         }
         return sigs;
     }
 
-    private boolean intersect(Set<String> versions, String[] versions2) {
-        if(versions2 == null || versions2.length == 0 || versions == null || versions.size() == 0) {
-            return true;
-        }
-        for(String v: versions2) {
-            if(versions.contains(v)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     @SuppressWarnings("resource")
     public LibraryInfo getLibraryInfos(String file, String className) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
@@ -189,8 +351,8 @@ public class DatabaseReference {
         if(rawSigs == null || rawSigs.isEmpty()) {
             return null;
         }
-        Set<String> versions = refFile.getAvailableVersions();
-        List<MethodSignature> sigs = filterVersions(rawSigs, versions);
+        BitSet versions = refFile.getAvailableVersions();
+        List<MethodSignature> sigs = filterVersions(rawSigs, refFile);
         if(sigs.size() != 1) {
             logger.warn("Parent of %s can not be found for current version", className);
             if(rawSigs.size() == 1) {
@@ -209,13 +371,8 @@ public class DatabaseReference {
         boolean firstFound = false;
         for(MethodSignatureRevision rev: sig.getRevisions()) {
             if(versions != null) {
-                boolean found = false;
-                for(String v: rev.getVersions()) {
-                    if(versions.contains(v)) {
-                        found = true;
-                    }
-                }
-                if(!found) {
+                BitSet revVersions = rev.getVersionBits(refFile.getVersionTable());
+                if(revVersions != null && !revVersions.intersects(versions)) {
                     continue;
                 }
             }
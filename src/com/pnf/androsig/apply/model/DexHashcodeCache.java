@@ -0,0 +1,322 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnf.androsig.common.SignatureHandler;
+import com.pnfsoftware.jeb.core.input.IInput;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Persistent cache of {@link DexHashcodeList}, to avoid hashing the same dex file again on later
+ * runs. One file is stored per dex, named after the dex checksum and SHA-1 signature (from the dex
+ * header) and the version of the hashing rules ({@link SignatureHandler#HASHING_VERSION}).
+ * <p>
+ * A cache file is ignored (then overwritten) if its format version, its hashing rules version or
+ * its hashcode algorithms do not match the requested ones. Only methods with code are stored.
+ * <p>
+ * The default folder belongs to the user, and is restricted to its owner when created. Entries
+ * unused for longer than the maximum age are removed when an entry is saved, then the least
+ * recently used ones until the folder fits the maximum size.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexHashcodeCache {
+    private static final ILogger logger = GlobalLog.getLogger(DexHashcodeCache.class);
+
+    private static final int MAGIC = 0x41534843; // ASHC
+    private static final int FORMAT_VERSION = 3;
+
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    private static final int DEX_HEADER_SIZE = 32;
+
+    private final File folder;
+    private final long maxSize;
+    private final long maxAge;
+
+    /**
+     * Cache stored in the default folder, see {@link #getDefaultFolder()}.
+     */
+    public DexHashcodeCache() {
+        this(getDefaultFolder());
+    }
+
+    public DexHashcodeCache(File folder) {
+        this(folder, DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxSize maximum size of the cache files, in bytes
+     * @param maxAge maximum time since the last use of a cache file, in milliseconds
+     */
+    public DexHashcodeCache(File folder, long maxSize, long maxAge) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return <code>[HOME]/.androsig-cache</code>: cache files are not shared with other users
+     */
+    public static File getDefaultFolder() {
+        return new File(System.getProperty("user.home"), ".androsig-cache");
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Compute the cache key of a dex unit: dex checksum and signature, classes and methods counts,
+     * hashing rules version.
+     *
+     * @param unit dex unit
+     * @return the key, null if the dex header can not be read
+     */
+    public static String getKey(IDexUnit unit) {
+        IInput input = unit.getInput();
+        if(input == null) {
+            return null;
+        }
+        byte[] header = new byte[DEX_HEADER_SIZE];
+        try(InputStream in = input.getStream()) {
+            int read = 0;
+            while(read < header.length) {
+                int n = in.read(header, read, header.length - read);
+                if(n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+        }
+        catch(IOException e) {
+            logger.catchingSilent(e);
+            return null;
+        }
+        if(header[0] != 'd' || header[1] != 'e' || header[2] != 'x' || header[3] != '\n') {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        // checksum (8-12) then signature (12-32)
+        for(int i = 8; i < DEX_HEADER_SIZE; i++) {
+            key.append(Character.forDigit((header[i] >> 4) & 0xF, 16)).append(Character.forDigit(header[i] & 0xF, 16));
+        }
+        List<?> classes = unit.getClasses();
+        List<?> methods = unit.getMethods();
+        key.append('-').append(classes == null ? 0: classes.size());
+        key.append('-').append(methods == null ? 0: methods.size());
+        key.append("-h").append(SignatureHandler.HASHING_VERSION);
+        return key.toString();
+    }
+
+    private File getCacheFile(String key) {
+        return new File(folder, key + ".hc");
+    }
+
+    /**
+     * Load the hashcodes of a dex unit from the cache.
+     *
+     * @param unit dex unit
+     * @param hashcodes target list, already configured with the expected algorithms
+     * @return true if the hashcodes were loaded, false if there is no valid cache entry
+     */
+    boolean load(IDexUnit unit, DexHashcodeList hashcodes) {
+        String key = getKey(unit);
+        if(key == null) {
+            return false;
+        }
+        File f = getCacheFile(key);
+        if(!f.isFile()) {
+            return false;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            if(data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION
+                    || data.getInt() != SignatureHandler.HASHING_VERSION) {
+                return false;
+            }
+            List<HashAlgorithm> algorithms = hashcodes.getHashAlgorithms();
+            if(data.getInt() != algorithms.size()) {
+                return false;
+            }
+            for(HashAlgorithm algorithm: algorithms) {
+                if(data.getInt() != algorithm.getId()) {
+                    return false;
+                }
+            }
+            int methodCount = hashcodes.getMethodCount();
+            if(data.getInt() != methodCount) {
+                return false;
+            }
+            int count = data.getInt();
+            for(int i = 0; i < count; i++) {
+                int index = data.getInt();
+                if(index < 0 || index >= methodCount) {
+                    throw new IOException("Illegal method index: " + index);
+                }
+                MethodHash[] res = new MethodHash[2 * algorithms.size()];
+                for(int j = 0; j < res.length; j++) {
+                    HashAlgorithm algorithm = algorithms.get(j / 2);
+                    res[j] = MethodHash.fromBytes(algorithm, data.array(), data.position());
+                    data.position(data.position() + algorithm.getSize());
+                }
+                hashcodes.putHashcodes(index, res);
+            }
+            if(data.hasRemaining()) {
+                throw new IOException("Trailing data");
+            }
+            // last use, for eviction
+            f.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        catch(IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            logger.warn("Invalid hashcode cache file %s: %s", f, e.toString());
+            hashcodes.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Save the hashcodes of a dex unit to the cache.
+     *
+     * @param unit dex unit
+     * @param hashcodes loaded hashcodes
+     * @return true on success
+     */
+    boolean save(IDexUnit unit, DexHashcodeList hashcodes) {
+        String key = getKey(unit);
+        if(key == null) {
+            return false;
+        }
+        if(!folder.isDirectory()) {
+            if(!folder.mkdirs()) {
+                logger.warn("Can not create hashcode cache folder %s", folder);
+                return false;
+            }
+            restrictToOwner(folder);
+        }
+        File f = getCacheFile(key);
+        File tmp = new File(folder, key + ".tmp");
+        List<HashAlgorithm> algorithms = hashcodes.getHashAlgorithms();
+        int methodCount = hashcodes.getMethodCount();
+        int count = 0;
+        for(int i = 0; i < methodCount; i++) {
+            if(hashcodes.hasHashcodes(i)) {
+                count++;
+            }
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(SignatureHandler.HASHING_VERSION);
+            out.writeInt(algorithms.size());
+            for(HashAlgorithm algorithm: algorithms) {
+                out.writeInt(algorithm.getId());
+            }
+            out.writeInt(methodCount);
+            out.writeInt(count);
+            for(int i = 0; i < methodCount; i++) {
+                MethodHash[] res = hashcodes.getHashcodes(i);
+                if(res == null) {
+                    continue;
+                }
+                out.writeInt(i);
+                for(MethodHash h: res) {
+                    out.write(h.toBytes());
+                }
+            }
+        }
+        catch(IOException e) {
+            logger.warn("Can not write hashcode cache file %s: %s", tmp, e.toString());
+            tmp.delete();
+            return false;
+        }
+        try {
+            // readers never see a partially written file
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {
+            logger.warn("Can not write hashcode cache file %s: %s", f, e.toString());
+            tmp.delete();
+            return false;
+        }
+        evict();
+        return true;
+    }
+
+    private static void restrictToOwner(File f) {
+        f.setReadable(false, false);
+        f.setReadable(true, true);
+        f.setWritable(false, false);
+        f.setWritable(true, true);
+        f.setExecutable(false, false);
+        f.setExecutable(true, true);
+    }
+
+    /**
+     * Remove the cache files unused for longer than the maximum age, then the least recently used
+     * ones while the cache is bigger than the maximum size. Temporary files are only removed when
+     * too old, since they may be written by another run.
+     *
+     * @return number of removed files
+     */
+    int evict() {
+        File[] files = folder.listFiles();
+        if(files == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        long size = 0;
+        List<File> entries = new ArrayList<>();
+        for(File f: files) {
+            String name = f.getName();
+            if(!f.isFile() || !(name.endsWith(".hc") || name.endsWith(".tmp"))) {
+                continue;
+            }
+            if(now - f.lastModified() > maxAge) {
+                if(f.delete()) {
+                    removed++;
+                }
+            }
+            else if(name.endsWith(".hc")) {
+                entries.add(f);
+                size += f.length();
+            }
+        }
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for(int i = 0; i < entries.size() && size > maxSize; i++) {
+            File f = entries.get(i);
+            long length = f.length();
+            if(f.delete()) {
+                removed++;
+                size -= length;
+            }
+        }
+        return removed;
+    }
+}
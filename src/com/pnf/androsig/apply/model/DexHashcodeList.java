@@ -5,16 +5,30 @@
  */
 package com.pnf.androsig.apply.model;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.DalvikInstructions;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
 import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
 
 /**
  * List of dex method hashcodes.
@@ -23,9 +37,23 @@ import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
  *
  */
 public class DexHashcodeList {
+    private static final ILogger logger = GlobalLog.getLogger(DexHashcodeList.class);
 
-    private static final String[] EMPTY = new String[]{null, null};
-    private Map<Integer, String[]> methodHashcodes = new HashMap<>();
+    private static final int CLASSES_PER_TASK = 64;
+
+    /** computed algorithms, the first one is the primary algorithm */
+    private HashAlgorithm[] algorithms = {HashAlgorithm.DEFAULT};
+    /** number of hashcodes per method: tight and loose hashcodes for each algorithm */
+    private int stride = 2;
+    /**
+     * hashcodes, indexed by method index: hashcodes of method i are stored in [i * stride, (i + 1) *
+     * stride). Methods without code have null entries.
+     */
+    private MethodHash[] methodHashcodes = new MethodHash[0];
+    /** basic-block hashcodes, indexed by method index, computed on demand */
+    private long[][] blockHashcodes;
+    /** MinHash signatures, indexed by method index, computed on demand */
+    private int[][] minHashes;
 
     /**
      * Load all current apk hash codes.
@@ -33,42 +61,361 @@ public class DexHashcodeList {
      * @param unit mandatory target unit
      */
     public void loadAPKHashcodes(IDexUnit unit) {
+        loadAPKHashcodes(unit, 1);
+    }
+
+    /**
+     * Load all current apk hash codes. Classes can be split across several threads, the result is
+     * the same as the sequential loading. The unit is only read from the calling thread, worker
+     * threads hash copies of the method instructions.
+     * 
+     * @param unit mandatory target unit
+     * @param threads number of hashing threads: 0 to use all available processors, 1 for sequential
+     *            loading
+     */
+    public void loadAPKHashcodes(IDexUnit unit, int threads) {
+        loadAPKHashcodes(unit, threads, null);
+    }
+
+    /**
+     * Load all current apk hash codes, for several digest algorithms.
+     * 
+     * @param unit mandatory target unit
+     * @param threads number of hashing threads: 0 to use all available processors, 1 for sequential
+     *            loading
+     * @param hashAlgorithms algorithms used by the signature files (see
+     *            {@link DatabaseReference#getHashAlgorithms()}). If null or empty,
+     *            {@link HashAlgorithm#DEFAULT} is used. {@link HashAlgorithm#DEFAULT}, when present,
+     *            is the primary algorithm.
+     */
+    public void loadAPKHashcodes(IDexUnit unit, int threads, Collection<HashAlgorithm> hashAlgorithms) {
+        loadAPKHashcodes(unit, threads, hashAlgorithms, null);
+    }
+
+    /**
+     * Load all current apk hash codes, for several digest algorithms. Hash codes are read from the
+     * cache when available, otherwise they are computed then stored in the cache.
+     * 
+     * @param unit mandatory target unit
+     * @param threads number of hashing threads: 0 to use all available processors, 1 for sequential
+     *            loading
+     * @param hashAlgorithms algorithms used by the signature files, see
+     *            {@link #loadAPKHashcodes(IDexUnit, int, Collection)}
+     * @param cache optional hashcode cache
+     */
+    public void loadAPKHashcodes(IDexUnit unit, int threads, Collection<HashAlgorithm> hashAlgorithms,
+            DexHashcodeCache cache) {
+        if(hashAlgorithms != null && !hashAlgorithms.isEmpty()) {
+            // enum order: DEFAULT first
+            algorithms = EnumSet.copyOf(hashAlgorithms).toArray(new HashAlgorithm[0]);
+            stride = 2 * algorithms.length;
+        }
+        List<? extends IDexMethod> methods = unit.getMethods();
+        init(methods == null ? 0: methods.size());
+        if(cache != null && cache.load(unit, this)) {
+            logger.info("Hashcodes loaded from cache %s", cache.getFolder());
+            return;
+        }
+        computeHashcodes(unit, threads);
+        if(cache != null) {
+            cache.save(unit, this);
+        }
+    }
+
+    private void computeHashcodes(IDexUnit unit, int threads) {
         List<? extends IDexClass> classes = unit.getClasses();
         if(classes == null || classes.size() == 0) {
             return;
         }
-        for(IDexClass eClass: classes) {
-            List<? extends IDexMethod> methods = eClass.getMethods();
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if(threads == 1 || classes.size() <= CLASSES_PER_TASK) {
+            loadClassHashcodes(classes, 0, classes.size());
+            return;
+        }
+        // JEB units are only accessed from the calling thread: instructions are extracted here, batch by
+        // batch, and workers hash the extracted copies. Pending batches are bounded to keep memory low.
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<?>> pending = new ArrayDeque<>();
+        try {
+            for(int from = 0; from < classes.size(); from += CLASSES_PER_TASK) {
+                List<MethodCode> batch = extractCode(classes, from, Math.min(from + CLASSES_PER_TASK, classes.size()));
+                if(pending.size() >= 2 * threads) {
+                    // tasks write distinct methods: no synchronization needed, get() publishes the results
+                    pending.poll().get();
+                }
+                pending.add(executor.submit(() -> hashCode(batch)));
+            }
+            while(!pending.isEmpty()) {
+                pending.poll().get();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void loadClassHashcodes(List<? extends IDexClass> classes, int from, int to) {
+        DalvikInstructions insns = new DalvikInstructions();
+        for(int i = from; i < to; i++) {
+            List<? extends IDexMethod> methods = classes.get(i).getMethods();
             if(methods == null || methods.size() == 0) {
                 continue;
             }
             for(IDexMethod m: methods) {
-                if(!m.isInternal()) {
-                    continue;
-                }
-                IDexMethodData md = m.getData();
-                if(md == null) {
-                    continue;
-                }
-                IDexCodeItem ci = md.getCodeItem();
+                IDexCodeItem ci = getCodeItem(m);
                 if(ci == null) {
-                    methodHashcodes.put(m.getIndex(), EMPTY);
+                    continue;
                 }
-                else {
-                    methodHashcodes.put(m.getIndex(), new String[]{SignatureHandler.generateTightHashcode(ci),
-                            SignatureHandler.generateLooseHashcode(ci)});
+                insns.clear();
+                insns.addAll(ci);
+                hashCode(m.getIndex(), insns);
+            }
+        }
+    }
+
+    /**
+     * @return code item of an internal method, null if none or if the method index is out of range
+     */
+    private IDexCodeItem getCodeItem(IDexMethod m) {
+        if(!m.isInternal()) {
+            return null;
+        }
+        IDexMethodData md = m.getData();
+        if(md == null) {
+            return null;
+        }
+        int base = m.getIndex() * stride;
+        if(base < 0 || base >= methodHashcodes.length) {
+            return null;
+        }
+        return md.getCodeItem();
+    }
+
+    private List<MethodCode> extractCode(List<? extends IDexClass> classes, int from, int to) {
+        List<MethodCode> res = new ArrayList<>();
+        for(int i = from; i < to; i++) {
+            List<? extends IDexMethod> methods = classes.get(i).getMethods();
+            if(methods == null || methods.size() == 0) {
+                continue;
+            }
+            for(IDexMethod m: methods) {
+                IDexCodeItem ci = getCodeItem(m);
+                if(ci != null) {
+                    DalvikInstructions insns = new DalvikInstructions();
+                    insns.addAll(ci);
+                    res.add(new MethodCode(m.getIndex(), insns));
                 }
             }
         }
+        return res;
+    }
+
+    private void hashCode(List<MethodCode> batch) {
+        for(MethodCode code: batch) {
+            hashCode(code.methodIndex, code.insns);
+        }
+    }
+
+    private void hashCode(int methodIndex, DalvikInstructions insns) {
+        int base = methodIndex * stride;
+        for(int j = 0; j < algorithms.length; j++) {
+            MethodHash[] hashes = SignatureHandler.generateMethodHashes(insns, algorithms[j]);
+            methodHashcodes[base + 2 * j] = hashes[0];
+            methodHashcodes[base + 2 * j + 1] = hashes[1];
+        }
+    }
+
+    /**
+     * Instructions of a method, extracted from its JEB code item.
+     */
+    private static class MethodCode {
+        private final int methodIndex;
+        private final DalvikInstructions insns;
+
+        MethodCode(int methodIndex, DalvikInstructions insns) {
+            this.methodIndex = methodIndex;
+            this.insns = insns;
+        }
+    }
+
+    private void init(int methodCount) {
+        methodHashcodes = new MethodHash[methodCount * stride];
+        blockHashcodes = null;
+        minHashes = null;
+    }
+
+    /**
+     * @return number of methods of the dex unit
+     */
+    int getMethodCount() {
+        return methodHashcodes.length / stride;
+    }
+
+    boolean hasHashcodes(int methodIndex) {
+        return methodHashcodes[methodIndex * stride] != null;
+    }
+
+    /**
+     * @param methodIndex method index
+     * @return tight and loose hashcodes for each algorithm, null if the method has no code
+     */
+    MethodHash[] getHashcodes(int methodIndex) {
+        if(!hasHashcodes(methodIndex)) {
+            return null;
+        }
+        int base = methodIndex * stride;
+        return Arrays.copyOfRange(methodHashcodes, base, base + stride);
+    }
+
+    /**
+     * @param methodIndex method index, in [0, {@link #getMethodCount()})
+     * @param hashcodes tight and loose hashcodes for each algorithm
+     */
+    void putHashcodes(int methodIndex, MethodHash[] hashcodes) {
+        System.arraycopy(hashcodes, 0, methodHashcodes, methodIndex * stride, stride);
+    }
+
+    void clear() {
+        Arrays.fill(methodHashcodes, null);
+        blockHashcodes = null;
+        minHashes = null;
+    }
+
+    /**
+     * @return the primary algorithm, used by {@link #getTightHashcode(IDexMethod)} and
+     *         {@link #getLooseHashcode(IDexMethod)}
+     */
+    public HashAlgorithm getPrimaryHashAlgorithm() {
+        return algorithms[0];
+    }
+
+    /**
+     * @return all computed algorithms, starting with the primary algorithm
+     */
+    public List<HashAlgorithm> getHashAlgorithms() {
+        return Arrays.asList(algorithms);
+    }
+
+    private int getAlgorithmIndex(HashAlgorithm algorithm) {
+        for(int i = 0; i < algorithms.length; i++) {
+            if(algorithms[i] == algorithm) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private MethodHash get(int methodIndex, int offset) {
+        int idx = methodIndex * stride + offset;
+        return idx < 0 || idx >= methodHashcodes.length ? null: methodHashcodes[idx];
     }
 
-    public String getTightHashcode(IDexMethod method) {
-        String[] hashcodes = methodHashcodes.get(method.getIndex());
-        return hashcodes == null ? null: hashcodes[0];
+    public MethodHash getTightHashcode(IDexMethod method) {
+        return get(method.getIndex(), 0);
     }
 
-    public String getLooseHashcode(IDexMethod method) {
-        String[] hashcodes = methodHashcodes.get(method.getIndex());
-        return hashcodes == null ? null: hashcodes[1];
+    public MethodHash getLooseHashcode(IDexMethod method) {
+        return get(method.getIndex(), 1);
+    }
+
+    /**
+     * @return the tight hashcode computed with the given algorithm, null if none
+     */
+    public MethodHash getTightHashcode(IDexMethod method, HashAlgorithm algorithm) {
+        int idx = getAlgorithmIndex(algorithm);
+        return idx < 0 ? null: get(method.getIndex(), 2 * idx);
+    }
+
+    /**
+     * @return the loose hashcode computed with the given algorithm, null if none
+     */
+    public MethodHash getLooseHashcode(IDexMethod method, HashAlgorithm algorithm) {
+        int idx = getAlgorithmIndex(algorithm);
+        return idx < 0 ? null: get(method.getIndex(), 2 * idx + 1);
+    }
+
+    /**
+     * Compute the structural fingerprint of a class (see {@link ClassFingerprint}) from the tight
+     * hashcodes of its methods.
+     * 
+     * @param algorithm digest algorithm of the reference fingerprints
+     * @return the fingerprint, null if the class has too few methods with code
+     */
+    public MethodHash getClassFingerprint(IDexClass eClass, HashAlgorithm algorithm) {
+        List<? extends IDexMethod> methods = eClass.getMethods();
+        if(methods == null || methods.size() < ClassFingerprint.MIN_METHODS) {
+            return null;
+        }
+        List<MethodHash> hashcodes = new ArrayList<>(methods.size());
+        for(IDexMethod m: methods) {
+            if(!m.isInternal()) {
+                continue;
+            }
+            MethodHash h = getTightHashcode(m, algorithm);
+            if(h != null) {
+                hashcodes.add(h);
+            }
+        }
+        return ClassFingerprint.compute(algorithm, hashcodes);
+    }
+
+    /**
+     * Get the basic-block hashcodes of a method (see {@link SignatureHandler#generateBlockHashcodes}).
+     * They are only needed for partial matches, hence computed on first request.
+     * 
+     * @return sorted distinct block hashcodes, empty if the method has no code
+     */
+    public long[] getBlockHashcodes(IDexMethod method) {
+        int index = method.getIndex();
+        int methodCount = getMethodCount();
+        if(index < 0 || index >= methodCount) {
+            return new long[0];
+        }
+        if(blockHashcodes == null) {
+            blockHashcodes = new long[methodCount][];
+        }
+        long[] res = blockHashcodes[index];
+        if(res == null) {
+            IDexMethodData md = method.getData();
+            IDexCodeItem ci = md == null ? null: md.getCodeItem();
+            res = ci == null ? new long[0]: SignatureHandler.generateBlockHashcodes(ci);
+            blockHashcodes[index] = res;
+        }
+        return res;
+    }
+
+    /**
+     * Get the MinHash signature of a method (see {@link SignatureHandler#generateMinHash}), computed
+     * on first request.
+     * 
+     * @return the signature, null if the method has no code
+     */
+    public int[] getMinHash(IDexMethod method) {
+        int index = method.getIndex();
+        int methodCount = getMethodCount();
+        if(index < 0 || index >= methodCount) {
+            return null;
+        }
+        if(minHashes == null) {
+            minHashes = new int[methodCount][];
+        }
+        int[] res = minHashes[index];
+        if(res == null) {
+            IDexMethodData md = method.getData();
+            IDexCodeItem ci = md == null ? null: md.getCodeItem();
+            res = ci == null ? null: SignatureHandler.generateMinHash(ci);
+            // empty array: no signature
+            minHashes[index] = res == null ? new int[0]: res;
+        }
+        return res == null || res.length == 0 ? null: res;
     }
 }
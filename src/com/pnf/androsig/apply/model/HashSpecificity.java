@@ -0,0 +1,110 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.pnf.androsig.common.MethodHash;
+
+/**
+ * Specificity of the tight and loose hashcodes: number of distinct classes defining each hashcode.
+ * Hashcodes shared by many classes (getters, default constructors...) can not discriminate a class
+ * and may be skipped before loading any signature line.
+ * <p>
+ * Counts added while signature files are loaded are appended to flat arrays, then summed by
+ * {@link #compact(Collection, Collection)} into one count per hashcode, next to the sorted
+ * hashcodes: no map is needed besides the hashcode maps of the caller.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class HashSpecificity {
+
+    private final Table tight = new Table();
+    private final Table loose = new Table();
+
+    /**
+     * Record the hashcode of one signature file. The count is available once compacted.
+     *
+     * @param hashcode tight or loose hashcode
+     * @param tight true for a tight hashcode
+     * @param classCount number of distinct classes defining the hashcode in the file
+     */
+    public void add(MethodHash hashcode, boolean tight, int classCount) {
+        (tight ? this.tight: loose).add(hashcode, classCount);
+    }
+
+    /**
+     * Sum the added counts per hashcode. Hashcodes may still be added afterward, then compacted
+     * again.
+     *
+     * @param tightHashcodes all tight hashcodes added so far, such as the key set of the tight
+     *            hashcode map of the caller
+     * @param looseHashcodes all loose hashcodes added so far
+     */
+    public void compact(Collection<MethodHash> tightHashcodes, Collection<MethodHash> looseHashcodes) {
+        tight.compact(tightHashcodes);
+        loose.compact(looseHashcodes);
+    }
+
+    /**
+     * @return number of distinct classes defining the hashcode, over all signature files, 0 if
+     *         unknown
+     */
+    public int getClassCount(MethodHash hashcode, boolean tight) {
+        return (tight ? this.tight: loose).get(hashcode);
+    }
+
+    private static class Table {
+        /** sorted keys */
+        private MethodHash[] hashcodes = new MethodHash[0];
+        private int[] counts = new int[0];
+        /** counts added since last compaction */
+        private MethodHash[] added = new MethodHash[0];
+        private int[] addedCounts = new int[0];
+        private int addedSize;
+
+        void add(MethodHash hashcode, int classCount) {
+            if(addedSize == added.length) {
+                int capacity = Math.max(16, addedSize * 2);
+                added = Arrays.copyOf(added, capacity);
+                addedCounts = Arrays.copyOf(addedCounts, capacity);
+            }
+            added[addedSize] = hashcode;
+            addedCounts[addedSize] = classCount;
+            addedSize++;
+        }
+
+        int get(MethodHash hashcode) {
+            int idx = Arrays.binarySearch(hashcodes, hashcode);
+            return idx < 0 ? 0: counts[idx];
+        }
+
+        void compact(Collection<MethodHash> keys) {
+            if(addedSize == 0) {
+                return;
+            }
+            MethodHash[] newHashcodes = keys.toArray(new MethodHash[keys.size()]);
+            Arrays.sort(newHashcodes);
+            int[] newCounts = new int[newHashcodes.length];
+            for(int i = 0; i < newHashcodes.length; i++) {
+                newCounts[i] = get(newHashcodes[i]);
+            }
+            for(int i = 0; i < addedSize; i++) {
+                int idx = Arrays.binarySearch(newHashcodes, added[i]);
+                if(idx >= 0) {
+                    newCounts[idx] = (int)Math.min((long)newCounts[idx] + addedCounts[i], Integer.MAX_VALUE);
+                }
+            }
+            hashcodes = newHashcodes;
+            counts = newCounts;
+            added = new MethodHash[0];
+            addedCounts = new int[0];
+            addedSize = 0;
+        }
+    }
+}
@@ -8,17 +8,45 @@ package com.pnf.androsig.apply.model;
 import java.io.Closeable;
 import java.util.List;
 
+import com.pnf.androsig.common.MethodHash;
+
 /**
  * @author Cedric Lucas
  *
  */
 public interface ISignatureFile extends Closeable {
 
-    LibraryInfo getLibraryInfos();
+    /** blocks shared by more signatures are too common to identify a method and are not indexed */
+    int MAX_BLOCK_SIGNATURES = 32;
 
-    List<MethodSignature> getTightSignatures(String hashcode);
+    /** LSH buckets with more signatures are too common to select candidates and are not indexed */
+    int MAX_BAND_SIGNATURES = 32;
+
+    LibraryInfo getLibraryInfos();
 
-    List<MethodSignature> getLooseSignatures(String hashcode);
+    List<MethodSignature> getTightSignatures(MethodHash hashcode);
+
+    List<MethodSignature> getLooseSignatures(MethodHash hashcode);
+
+    /**
+     * Get the signatures containing a basic block (see
+     * {@link com.pnf.androsig.common.SignatureHandler#generateBlockHashcodes}).
+     * 
+     * @param blockHash block hashcode
+     * @return signatures, null if none (or if the block is shared by more than
+     *         {@link #MAX_BLOCK_SIGNATURES} signatures)
+     */
+    List<MethodSignature> getBlockSignatures(long blockHash);
+
+    /**
+     * Get the signatures whose MinHash signature has a band key (see
+     * {@link com.pnf.androsig.common.MinHash#getBandKeys(int[])}).
+     * 
+     * @param bandKey LSH band key
+     * @return near-duplicate candidates, null if none (or if the bucket holds more than
+     *         {@link #MAX_BAND_SIGNATURES} signatures)
+     */
+    List<MethodSignature> getBandSignatures(long bandKey);
 
     boolean hasSignaturesForClassname(String className);
 
@@ -6,13 +6,13 @@
 package com.pnf.androsig.apply.model;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -22,9 +22,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
 import com.pnfsoftware.jeb.util.encoding.Conversion;
 import com.pnfsoftware.jeb.util.io.EndianUtil;
-import com.pnfsoftware.jeb.util.io.IO;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
@@ -37,25 +39,45 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
  */
 public class IndexedSignatureFile implements ISignatureFile {
 
-    private static final int CURRENT_INDEX_VERSION = 2;
+    static final int CURRENT_INDEX_VERSION = 7;
+    private static final int HEADER_SIZE = 14;
     private static final boolean FORCE_GENERATION = false;
     private static final ILogger logger = GlobalLog.getLogger(IndexedSignatureFile.class);
 
-    private Map<String, List<Integer>> tightSignaturesIdx = new HashMap<>();
-    private Map<String, List<Integer>> looseSignaturesIdx = new HashMap<>();
-    private Map<String, List<Integer>> signaturesByClassnameIdx = new HashMap<>();
-    private Map<String, List<Integer>> signaturesByMethodsIdx = new HashMap<>();
-
-    private Map<String, List<MethodSignature>> tightSignatures = new HashMap<>();
-    private Map<String, List<MethodSignature>> looseSignatures = new HashMap<>();
+    private static final int SECTION_TIGHT = 0;
+    private static final int SECTION_LOOSE = 1;
+    private static final int SECTION_CLASSES = 2;
+    private static final int SECTION_FINGERPRINTS = 3;
+    private static final int SECTION_METHODS = 4;
+    private static final int SECTION_BLOCKS = 5;
+    private static final int SECTION_BANDS = 6;
+
+    /** line offsets (start, end) per key */
+    private Map<MethodHash, int[]> tightSignaturesIdx = new HashMap<>();
+    private Map<MethodHash, int[]> looseSignaturesIdx = new HashMap<>();
+    private Map<String, int[]> signaturesByClassnameIdx = new HashMap<>();
+    private Map<String, int[]> signaturesByMethodsIdx = new HashMap<>();
+    private Map<Long, int[]> blockSignaturesIdx = new HashMap<>();
+    private Map<Long, int[]> bandSignaturesIdx = new HashMap<>();
+
+    private Map<MethodHash, List<MethodSignature>> tightSignatures = new HashMap<>();
+    private Map<MethodHash, List<MethodSignature>> looseSignatures = new HashMap<>();
     private Map<String, List<MethodSignature>> signaturesByClassname = new HashMap<>();
     private Map<String, List<MethodSignature>> signaturesByMethod = new HashMap<>();
     private Map<String, List<MethodSignature>> metaByClassname = new HashMap<>();
+    private Map<Long, List<MethodSignature>> blockSignatures = new HashMap<>();
+    private Map<Long, List<MethodSignature>> bandSignatures = new HashMap<>();
     private LibraryInfo libraryInfo;
+    private HashAlgorithm hashAlgorithm;
     private int allSignatureCount = 0;
+    private VersionTable versionTable = new VersionTable();
+    /** read with the library information */
+    private CallerDictionary callerDictionary = new CallerDictionary();
 
     private File sigFile;
     private RandomAccessFile f = null;
+    /** reader of block-compressed files, see {@link BlockCompressedFile} */
+    private BlockCompressedFile z = null;
 
     public boolean loadSignatures(File sigFile) {
         if(this.sigFile != null) {
@@ -83,34 +105,58 @@ public class IndexedSignatureFile implements ISignatureFile {
                     return false;
                 }
             }
-            Map<String, List<Integer>> currentList = tightSignaturesIdx;
+            hashAlgorithm = readHashAlgorithm(data);
+            startIndex = index; // first key starts right after the header
+            int section = SECTION_TIGHT;
             while(index < data.length) {
-                if(IndexLine.isSeparator(data[index])) {
-                    IndexLine line = IndexLine.parseLine(data, startIndex, index, utf8, false);
-                    currentList.put(line.mhash, line.indexes);
-                    index = line.index;
+                if(index == startIndex && IndexLine.isSectionSeparator(data[index])) {
+                    // empty section
+                    if(section == SECTION_BANDS) {
+                        break;
+                    }
+                    index++;
                     startIndex = index;
-                    if(currentList == signaturesByClassnameIdx) {
+                    section++;
+                    continue;
+                }
+                if(IndexLine.isSeparator(data[index])) {
+                    IndexLine line = IndexLine.parseLine(data, startIndex, index, false, hasClassCount(section));
+                    switch(section) {
+                    case SECTION_TIGHT:
+                        putHashKey(tightSignaturesIdx, line.getHashKey(data, hashAlgorithm), line.indexes);
+                        break;
+                    case SECTION_LOOSE:
+                        putHashKey(looseSignaturesIdx, line.getHashKey(data, hashAlgorithm), line.indexes);
+                        break;
+                    case SECTION_CLASSES:
+                        signaturesByClassnameIdx.put(line.getKey(data, utf8), line.indexes);
                         allSignatureCount += line.nb;
+                        break;
+                    case SECTION_FINGERPRINTS:
+                        // only used to populate references
+                        break;
+                    case SECTION_METHODS:
+                        signaturesByMethodsIdx.put(line.getKey(data, utf8), line.indexes);
+                        break;
+                    case SECTION_BLOCKS:
+                        putLongKey(blockSignaturesIdx, line.getLongKey(data), line.indexes);
+                        break;
+                    default:
+                        putLongKey(bandSignaturesIdx, line.getLongKey(data), line.indexes);
+                        break;
                     }
+                    index = line.index;
+                    startIndex = index;
                     if(index >= data.length) {
                         break;
                     }
                     if(IndexLine.isSectionSeparator(data[index])) {
                         index++;
                         startIndex = index;
-                        if(currentList == tightSignaturesIdx) {
-                            currentList = looseSignaturesIdx;
-                        }
-                        else if(currentList == looseSignaturesIdx) {
-                            currentList = signaturesByClassnameIdx;
-                        }
-                        else if(currentList == signaturesByClassnameIdx) {
-                            currentList = signaturesByMethodsIdx;
-                        }
-                        else {
+                        if(section == SECTION_BANDS) {
                             break;
                         }
+                        section++;
                     }
                     continue;
                 }
@@ -124,6 +170,18 @@ public class IndexedSignatureFile implements ISignatureFile {
         return true;
     }
 
+    private static void putHashKey(Map<MethodHash, int[]> map, MethodHash hashcode, int[] indexes) {
+        if(hashcode != null) {
+            map.put(hashcode, indexes);
+        }
+    }
+
+    private static void putLongKey(Map<Long, int[]> map, Long key, int[] indexes) {
+        if(key != null) {
+            map.put(key, indexes);
+        }
+    }
+
     private LibraryInfo getLibraryInfo(File sigFile, Charset encoding) {
         int version = 0;
         String libname = "Unknown library code";
@@ -131,12 +189,15 @@ public class IndexedSignatureFile implements ISignatureFile {
         LibraryInfo libraryInfo = new LibraryInfo();
         libraryInfo.setLibName(libname);
         libraryInfo.setAuthor(author);
-        try(FileInputStream input = new FileInputStream(sigFile)) {
+        try(InputStream input = BlockCompressedFile.openSignatureFile(sigFile)) {
             try(BufferedReader br = new BufferedReader(new InputStreamReader(input, encoding))) {
                 String line;
                 while((line = br.readLine()) != null) {
                     if(line.startsWith(";")) {
                         line = line.substring(1);
+                        if(callerDictionary.parseHeader(line)) {
+                            continue;
+                        }
 
                         String value = checkMarker(line, "version");
                         if(value != null) {
@@ -155,6 +216,11 @@ public class IndexedSignatureFile implements ISignatureFile {
                             author = value;
                             libraryInfo.setAuthor(author);
                         }
+
+                        value = checkMarker(line, "hash");
+                        if(value != null) {
+                            libraryInfo.setHashAlgorithm(HashAlgorithm.fromName(value));
+                        }
                         continue;
                     }
                     else if(!line.isEmpty()) {
@@ -187,8 +253,15 @@ public class IndexedSignatureFile implements ISignatureFile {
         return libraryInfo;
     }
 
+    /**
+     * @return the digest algorithm of the hashcodes of this file
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
     @Override
-    public List<MethodSignature> getTightSignatures(String hashcode) {
+    public List<MethodSignature> getTightSignatures(MethodHash hashcode) {
         List<MethodSignature> res = tightSignatures.get(hashcode);
         if(res == null) {
             res = load(tightSignaturesIdx, hashcode, tightSignatures);
@@ -199,8 +272,7 @@ public class IndexedSignatureFile implements ISignatureFile {
         return res;
     }
 
-    private List<MethodSignature> load(Map<String, List<Integer>> mapIdx, String hashcode,
-            Map<String, List<MethodSignature>> map) {
+    private <K> List<MethodSignature> load(Map<K, int[]> mapIdx, K hashcode, Map<K, List<MethodSignature>> map) {
         List<MethodSignature> signatures = load(mapIdx, hashcode, map, null);
         mergeSignatures(signatures);
         return signatures;
@@ -239,8 +311,8 @@ public class IndexedSignatureFile implements ISignatureFile {
             boolean shared = false;
             if(refreshClassname) {
                 String key = ref.getCname() + "->" + ref.getMname();
-                List<Integer> sameMethods = signaturesByMethodsIdx.get(key);
-                if(sameMethods == null || sameMethods.size() == 2) {
+                int[] sameMethods = signaturesByMethodsIdx.get(key);
+                if(sameMethods == null || sameMethods.length == 2) {
                     continue; // only one
                 }
                 allMethods = signaturesByClassname.get(ref.getCname());
@@ -270,32 +342,43 @@ public class IndexedSignatureFile implements ISignatureFile {
         }
     }
 
-    private List<MethodSignature> load(Map<String, List<Integer>> mapIdx, String hashcode,
-            Map<String, List<MethodSignature>> map, Map<String, List<MethodSignature>> mapmeta) {
+    private <K> List<MethodSignature> load(Map<K, int[]> mapIdx, K hashcode, Map<K, List<MethodSignature>> map,
+            Map<K, List<MethodSignature>> mapmeta) {
         List<MethodSignature> sigs = new ArrayList<>();
         List<MethodSignature> metaSigs = new ArrayList<>();
         map.put(hashcode, sigs);
         try {
-            if(f == null) {
+            boolean compressed = BlockCompressedFile.isCompressed(sigFile);
+            if(compressed && z == null) {
+                z = new BlockCompressedFile(sigFile);
+            }
+            else if(!compressed && f == null) {
                 f = new RandomAccessFile(sigFile, "r");
             }
-            List<Integer> indexes = mapIdx.get(hashcode);
+            int[] indexes = mapIdx.get(hashcode);
             if(indexes == null) {
                 return sigs;
             }
-            for(int i = 0; i < indexes.size(); i += 2) {
-                int start = indexes.get(i);
-                int end = indexes.get(i + 1);
-                f.seek(start);
-                byte[] lineBytes = new byte[end - start];
-                f.read(lineBytes);
+            for(int i = 0; i < indexes.length; i += 2) {
+                int start = indexes[i];
+                int end = indexes[i + 1];
+                byte[] lineBytes;
+                if(compressed) {
+                    // only decompress the blocks of the line
+                    lineBytes = z.read(start, end - start);
+                }
+                else {
+                    f.seek(start);
+                    lineBytes = new byte[end - start];
+                    f.read(lineBytes);
+                }
                 String line = new String(lineBytes);
-                MethodSignature m = MethodSignature.parse(line);
+                MethodSignature m = MethodSignature.parse(line, true, versionTable, callerDictionary);
                 if(m != null) {
                     sigs.add(m);
                 }
                 else if(mapmeta != null) {
-                    m = MethodSignature.parse(line, false);
+                    m = MethodSignature.parse(line, false, versionTable, callerDictionary);
                     if(m != null) {
                         metaSigs.add(m);
                         mapmeta.put(hashcode, metaSigs);
@@ -311,7 +394,7 @@ public class IndexedSignatureFile implements ISignatureFile {
     }
 
     @Override
-    public List<MethodSignature> getLooseSignatures(String hashcode) {
+    public List<MethodSignature> getLooseSignatures(MethodHash hashcode) {
         List<MethodSignature> res = looseSignatures.get(hashcode);
         if(res == null) {
             res = load(looseSignaturesIdx, hashcode, looseSignatures);
@@ -322,6 +405,37 @@ public class IndexedSignatureFile implements ISignatureFile {
         return res;
     }
 
+    @Override
+    public List<MethodSignature> getBlockSignatures(long blockHash) {
+        List<MethodSignature> res = blockSignatures.get(blockHash);
+        if(res == null) {
+            if(!blockSignaturesIdx.containsKey(blockHash)) {
+                // most apk blocks are unknown: do not cache misses
+                return null;
+            }
+            res = load(blockSignaturesIdx, blockHash, blockSignatures);
+        }
+        if(res.isEmpty()) {
+            return null;
+        }
+        return res;
+    }
+
+    @Override
+    public List<MethodSignature> getBandSignatures(long bandKey) {
+        List<MethodSignature> res = bandSignatures.get(bandKey);
+        if(res == null) {
+            if(!bandSignaturesIdx.containsKey(bandKey)) {
+                return null;
+            }
+            res = load(bandSignaturesIdx, bandKey, bandSignatures);
+        }
+        if(res.isEmpty()) {
+            return null;
+        }
+        return res;
+    }
+
     @Override
     public boolean hasSignaturesForClassname(String className) {
         return signaturesByClassnameIdx.get(className) != null;
@@ -341,7 +455,7 @@ public class IndexedSignatureFile implements ISignatureFile {
             }
             return res;
         }
-        for(Entry<String, List<Integer>> entry: signaturesByClassnameIdx.entrySet()) {
+        for(Entry<String, int[]> entry: signaturesByClassnameIdx.entrySet()) {
             if(entry.getKey().startsWith(className)) {
                 List<MethodSignature> ms = getSignaturesForClassname(entry.getKey(), true);
                 if(ms != null) {
@@ -365,100 +479,23 @@ public class IndexedSignatureFile implements ISignatureFile {
     }
 
     public static boolean buildIndexFile(File sigFile, File indexFile) {
-        long fileSize = sigFile.length();
-        if(fileSize > Integer.MAX_VALUE) {
-            throw new RuntimeException("Signature file is too big. Is it really a signature file? If so, split it.");
-        }
-        Charset utf8 = Charset.forName("UTF-8");
-        Map<String, List<Integer>> tightHashcodes = new HashMap<>();
-        Map<String, List<Integer>> looseHashcodes = new HashMap<>();
-        Map<String, List<Integer>> classes = new HashMap<>();
-        Map<String, List<Integer>> methods = new HashMap<>();
+        SignatureIndexBuilder builder = new SignatureIndexBuilder(sigFile);
         try {
-            byte[] data = Files.readAllBytes(sigFile.toPath());
+            long fileSize = BlockCompressedFile.getSignatureSize(sigFile);
+            if(fileSize > Integer.MAX_VALUE) {
+                throw new RuntimeException(
+                        "Signature file is too big. Is it really a signature file? If so, split it.");
+            }
+            byte[] data = BlockCompressedFile.readSignatureFile(sigFile);
             int startIndex = 0;
             int endIndex = 0;
             while((endIndex = getNextLine(data, startIndex)) != -1) {
-                if(data[startIndex] == ';') {
-                    startIndex = endIndex + 1;
-                    continue;
-                }
-
-                String[] subLines = MethodSignature.parseNative(data, startIndex, endIndex);
-                if(subLines == null) {
-                    logger.warn("Invalid parameter signature line at index " + startIndex + " in file " + sigFile);
-                    startIndex = endIndex + 1;
-                    continue;
-                }
-
-                String mhash_tight = MethodSignature.getTightSignature(subLines);
-                if(mhash_tight != null && !mhash_tight.isEmpty() && !mhash_tight.equals("null")) {
-                    List<Integer> files = tightHashcodes.get(mhash_tight);
-                    if(files == null) {
-                        files = new ArrayList<>();
-                        tightHashcodes.put(mhash_tight, files);
-                    }
-                    files.add(startIndex);
-                    files.add(endIndex);
-                }
-                String mhash_loose = MethodSignature.getLooseSignature(subLines);
-                if(mhash_loose != null && !mhash_loose.isEmpty() && !mhash_loose.equals("null")) {
-                    List<Integer> files = looseHashcodes.get(mhash_loose);
-                    if(files == null) {
-                        files = new ArrayList<>();
-                        looseHashcodes.put(mhash_loose, files);
-                    }
-                    files.add(startIndex);
-                    files.add(endIndex);
-                }
-                String className = MethodSignature.getClassname(subLines);
-                if(className != null && !className.isEmpty()) {
-                    List<Integer> files = classes.get(className);
-                    if(files == null) {
-                        files = new ArrayList<>();
-                        classes.put(className, files);
-                    }
-                    files.add(startIndex);
-                    files.add(endIndex);
-                    String methodName = MethodSignature.getMethodName(subLines);
-                    if(methodName != null && !methodName.isEmpty()) {
-                        String key = className + "->" + methodName;
-                        List<Integer> filesM = methods.get(key);
-                        if(filesM == null) {
-                            filesM = new ArrayList<>();
-                            methods.put(key, filesM);
-                        }
-                        filesM.add(startIndex);
-                        filesM.add(endIndex);
-                    }
+                if(!builder.addLine(data, startIndex, endIndex, startIndex)) {
+                    return false;
                 }
                 startIndex = endIndex + 1;
             }
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            byte[] buffInt = new byte[4];
-
-            // header
-            writeInt(buffInt, CURRENT_INDEX_VERSION, bos); // version
-            writeInt(buffInt, (int)fileSize, bos); // filesize
-            bos.write('\n');
-            bos.write('\n');
-
-
-            // tight section
-            writeSection(bos, utf8, buffInt, tightHashcodes);
-
-            // loose section
-            bos.write('\n');
-            writeSection(bos, utf8, buffInt, looseHashcodes);
-
-            // classes section
-            bos.write('\n');
-            writeSection(bos, utf8, buffInt, classes);
-
-            bos.write('\n');
-            writeMethodSection(bos, utf8, buffInt, methods);
-
-            IO.writeFile(indexFile, bos.toByteArray());
+            builder.write(indexFile, fileSize);
         }
         catch(IOException e) {
             logger.catching(e);
@@ -467,40 +504,6 @@ public class IndexedSignatureFile implements ISignatureFile {
         return true;
     }
 
-    private static void writeSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
-            Map<String, List<Integer>> classes) throws IOException {
-        for(Entry<String, List<Integer>> entry: classes.entrySet()) {
-            bos.write(entry.getKey().getBytes(utf8));
-            bos.write('=');
-            writeInt(buffInt, entry.getValue().size(), bos);
-            for(Integer address: entry.getValue()) {
-                writeInt(buffInt, address, bos);
-            }
-            bos.write('\n');
-        }
-    }
-
-    private static void writeMethodSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
-            Map<String, List<Integer>> classes) throws IOException {
-        for(Entry<String, List<Integer>> entry: classes.entrySet()) {
-            if(entry.getValue().size() == 2) {
-                continue; // only save duplicated entries
-            }
-            bos.write(entry.getKey().getBytes(utf8));
-            bos.write('=');
-            writeInt(buffInt, entry.getValue().size(), bos);
-            for(Integer address: entry.getValue()) {
-                writeInt(buffInt, address, bos);
-            }
-            bos.write('\n');
-        }
-    }
-
-    private static void writeInt(byte[] buffInt, int val, ByteArrayOutputStream bos) throws IOException {
-        EndianUtil.intToBEBytes(val, buffInt);
-        bos.write(buffInt);
-    }
-
     private static int getNextLine(byte[] data, int startIndex) {
         if(startIndex == data.length) {
             return -1;
@@ -516,15 +519,22 @@ public class IndexedSignatureFile implements ISignatureFile {
     }
 
     public static File getIndexFile(File sigFile) {
-        if(!sigFile.getName().endsWith(".sig")) {
+        String name = sigFile.getName();
+        if(BlockCompressedFile.isCompressed(sigFile)) {
+            // distinct from the index of an uncompressed file of same name
+            return new File(sigFile.getParentFile(),
+                    name.substring(0, name.length() - BlockCompressedFile.EXTENSION.length()) + ".zidx");
+        }
+        if(!name.endsWith(".sig")) {
             return null;
         }
-        return new File(sigFile.getParentFile(),
-                sigFile.getName().substring(0, sigFile.getName().length() - 4) + ".idx");
+        return new File(sigFile.getParentFile(), name.substring(0, name.length() - 4) + ".idx");
     }
 
-    public static boolean populate(File sigFile, Map<String, Set<String>> allTightHashcodes,
-            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses) {
+    public static boolean populate(File sigFile, Map<MethodHash, Set<String>> allTightHashcodes,
+            Map<MethodHash, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses,
+            Map<MethodHash, Map<String, Set<String>>> allClassFingerprints, HashSpecificity specificity,
+            Map<String, HashAlgorithm> allHashAlgorithms) {
         File indexFile = getIndexFile(sigFile);
         if(indexFile == null) {
             logger.error("Can not determine index file name. Is Signature extension is correct for %s?", sigFile);
@@ -536,6 +546,7 @@ public class IndexedSignatureFile implements ISignatureFile {
 
         // Read index file
         Charset utf8 = Charset.forName("UTF-8");
+        String path = sigFile.getAbsolutePath();
         try {
             byte[] data = Files.readAllBytes(indexFile.toPath());
             int startIndex = 0;
@@ -550,16 +561,39 @@ public class IndexedSignatureFile implements ISignatureFile {
                     return false;
                 }
             }
-            Map<String, Set<String>> currentList = allTightHashcodes;
+            HashAlgorithm hashAlgorithm = readHashAlgorithm(data);
+            allHashAlgorithms.put(path, hashAlgorithm);
+            startIndex = index; // first key starts right after the header
+            int section = SECTION_TIGHT;
             while(index < data.length) {
+                if(index == startIndex && IndexLine.isSectionSeparator(data[index])) {
+                    // empty section
+                    if(section == SECTION_FINGERPRINTS) {
+                        break;
+                    }
+                    index++;
+                    startIndex = index;
+                    section++;
+                    continue;
+                }
                 if(IndexLine.isSeparator(data[index])) {
-                    IndexLine line = IndexLine.parseLine(data, startIndex, index, utf8, true);
-                    Set<String> files = currentList.get(line.mhash);
-                    if(files == null) {
-                        files = new LinkedHashSet<>();
-                        currentList.put(line.mhash, files);
+                    IndexLine line = IndexLine.parseLine(data, startIndex, index, true, hasClassCount(section));
+                    switch(section) {
+                    case SECTION_TIGHT:
+                        addHashcode(allTightHashcodes, specificity, true, line.getHashKey(data, hashAlgorithm),
+                                line.classCount, path);
+                        break;
+                    case SECTION_LOOSE:
+                        addHashcode(allLooseHashcodes, specificity, false, line.getHashKey(data, hashAlgorithm),
+                                line.classCount, path);
+                        break;
+                    case SECTION_CLASSES:
+                        addFile(allClasses, line.getKey(data, utf8), path);
+                        break;
+                    default:
+                        addFingerprint(allClassFingerprints, line.getKey(data, utf8), hashAlgorithm, path);
+                        break;
                     }
-                    files.add(sigFile.getAbsolutePath());
 
                     index = line.index;
                     startIndex = index;
@@ -569,15 +603,10 @@ public class IndexedSignatureFile implements ISignatureFile {
                     if(IndexLine.isSectionSeparator(data[index])) {
                         index++;
                         startIndex = index;
-                        if(currentList == allTightHashcodes) {
-                            currentList = allLooseHashcodes;
-                        }
-                        else if(currentList == allLooseHashcodes) {
-                            currentList = allClasses;
-                        }
-                        else {
+                        if(section == SECTION_FINGERPRINTS) {
                             break;
                         }
+                        section++;
                     }
                     continue;
                 }
@@ -591,9 +620,49 @@ public class IndexedSignatureFile implements ISignatureFile {
         return true;
     }
 
-    private static int validateHeader(File sigFile, File indexFile, byte[] data) {
+    private static void addHashcode(Map<MethodHash, Set<String>> map, HashSpecificity specificity, boolean tight,
+            MethodHash hashcode, int classCount, String path) {
+        if(hashcode == null) {
+            return;
+        }
+        addFile(map, hashcode, path);
+        specificity.add(hashcode, tight, classCount);
+    }
+
+    private static <K> void addFile(Map<K, Set<String>> map, K key, String path) {
+        if(key == null) {
+            return;
+        }
+        Set<String> files = map.get(key);
+        if(files == null) {
+            files = new LinkedHashSet<>();
+            map.put(key, files);
+        }
+        files.add(path);
+    }
+
+    private static void addFingerprint(Map<MethodHash, Map<String, Set<String>>> map, String key,
+            HashAlgorithm hashAlgorithm, String path) {
+        int sep = key.lastIndexOf(',');
+        MethodHash fingerprint = sep < 0 ? null: MethodHash.fromHex(hashAlgorithm, key.substring(sep + 1));
+        if(fingerprint == null) {
+            return;
+        }
+        Map<String, Set<String>> classes = map.get(fingerprint);
+        if(classes == null) {
+            classes = new HashMap<>();
+            map.put(fingerprint, classes);
+        }
+        addFile(classes, key.substring(0, sep), path);
+    }
+
+    private static boolean hasClassCount(int section) {
+        return section == SECTION_TIGHT || section == SECTION_LOOSE;
+    }
+
+    private static int validateHeader(File sigFile, File indexFile, byte[] data) throws IOException {
         int index = 0;
-        if(data.length < 10) {
+        if(data.length < HEADER_SIZE) {
             return -1;
         }
         int version = readInt(data, index);
@@ -603,33 +672,49 @@ public class IndexedSignatureFile implements ISignatureFile {
         }
         int expectedSize = readInt(data, index);
         index += 4;
-        if(expectedSize != sigFile.length()) {
+        if(expectedSize != BlockCompressedFile.getSignatureSize(sigFile)) {
+            return -1;
+        }
+        if(HashAlgorithm.fromId(readInt(data, index)) == null) {
             return -1;
         }
+        index += 4;
         index += 2; // line end + section end
         return index;
     }
 
+    private static HashAlgorithm readHashAlgorithm(byte[] data) {
+        return HashAlgorithm.fromId(readInt(data, 8));
+    }
+
     @Override
     public void close() throws IOException {
         if(f != null) {
             f.close();
         }
+        if(z != null) {
+            z.close();
+        }
 
     }
 
     private static class IndexLine {
-        String mhash;
+        int keyStart;
+        int keyEnd;
         int index = 0;
         int nb = 0;
-        List<Integer> indexes;
+        int[] indexes;
+        /** number of distinct classes (tight/loose sections) */
+        int classCount = 0;
 
-        public IndexLine(int endIndex) {
+        public IndexLine(int startIndex, int endIndex) {
+            keyStart = startIndex;
+            keyEnd = endIndex;
             index = endIndex;
         }
-        static IndexLine parseLine(byte[] data, int startIndex, int endIndex, Charset utf8, boolean skip) {
-            IndexLine line = new IndexLine(endIndex);
-            line.mhash = new String(data, startIndex, line.index - startIndex, utf8);
+
+        static IndexLine parseLine(byte[] data, int startIndex, int endIndex, boolean skip, boolean counted) {
+            IndexLine line = new IndexLine(startIndex, endIndex);
             line.index++;
             line.nb = readInt(data, line.index);
             line.index += 4;
@@ -638,17 +723,39 @@ public class IndexedSignatureFile implements ISignatureFile {
                 line.index += line.nb * 4; // 4*address
             }
             else {
-                line.indexes = new ArrayList<>();
+                line.indexes = new int[line.nb];
                 for(int i = 0; i < line.nb; i++) {
-                    line.indexes.add(readInt(data, line.index));
+                    line.indexes[i] = readInt(data, line.index);
                     line.index += 4;
                 }
             }
+            if(counted) {
+                line.classCount = readInt(data, line.index);
+                line.index += 4;
+            }
 
             line.index++; // \n
             return line;
         }
 
+        String getKey(byte[] data, Charset utf8) {
+            return new String(data, keyStart, keyEnd - keyStart, utf8);
+        }
+
+        MethodHash getHashKey(byte[] data, HashAlgorithm hashAlgorithm) {
+            return MethodHash.fromHex(hashAlgorithm, data, keyStart, keyEnd);
+        }
+
+        Long getLongKey(byte[] data) {
+            try {
+                return Long.parseUnsignedLong(new String(data, keyStart, keyEnd - keyStart, StandardCharsets.US_ASCII),
+                        16);
+            }
+            catch(NumberFormatException e) {
+                return null;
+            }
+        }
+
         static boolean isSeparator(byte b) {
             return b == '=';
         }
@@ -19,6 +19,8 @@ package com.pnf.androsig.apply.model;
 
 import java.util.Set;
 
+import com.pnf.androsig.common.HashAlgorithm;
+
 /**
  * Definition of one library signature info.
  * 
@@ -30,6 +32,7 @@ public class LibraryInfo {
     private int version;
     private Set<String> versions;
     private String libName;
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
 
     /**
      * Get the author of the library signature file.
@@ -89,4 +92,21 @@ public class LibraryInfo {
     public void setLibName(String libName) {
         this.libName = libName;
     }
+
+    /**
+     * Get the digest algorithm of the hashcodes of the library signature file.
+     * 
+     * @return the hashcode algorithm
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Set the digest algorithm of the hashcodes of the library signature file.
+     * 
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
 }
@@ -20,6 +20,7 @@ package com.pnf.androsig.apply.model;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,6 +28,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.MethodHash;
+import com.pnf.androsig.common.MinHash;
 import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
 import com.pnfsoftware.jeb.util.encoding.Conversion;
@@ -39,6 +43,9 @@ import com.pnfsoftware.jeb.util.format.Strings;
  *
  */
 public class MethodSignature {
+    /** index of the first optional extension column */
+    public static final int EXTENSIONS_INDEX = 9;
+
     private String cname;
     private String mname;
     private String shorty;
@@ -46,30 +53,40 @@ public class MethodSignature {
     private String versions;
     /** avoid split high cpu usage */
     private String[] versionsCache;
+    /** table of the signature file, null if the signature was not read from a file */
+    private VersionTable versionTable;
+    /** union of the revision versions (ids of {@link #versionTable}) */
+    private BitSet versionBits;
     private List<MethodSignatureRevision> revisions = new ArrayList<>();
 
     public static class MethodSignatureRevision {
         private int opcount;
-        private String mhash_tight;
-        private String mhash_loose;
+        private MethodHash mhash_tight;
+        private MethodHash mhash_loose;
         private String caller;
+        /** dictionary of the caller references, null if the caller column is not encoded */
+        private CallerDictionary callerDictionary;
         private String versions;
+        private VersionTable versionTable;
+        private BitSet versionBits;
+        private long[] blockHashes;
+        private int[] minHash;
 
         /**
          * Get the tight signature of the method.
          * 
-         * @return the tight signature of the method
+         * @return the tight signature of the method, null if none
          */
-        public String getMhash_tight() {
+        public MethodHash getMhash_tight() {
             return mhash_tight;
         }
 
         /**
          * Get the loose signature of the method.
          * 
-         * @return the loose signature of the method
+         * @return the loose signature of the method, null if none
          */
-        public String getMhash_loose() {
+        public MethodHash getMhash_loose() {
             return mhash_loose;
         }
 
@@ -85,10 +102,19 @@ public class MethodSignature {
         /**
          * Get the caller method list.
          * 
-         * @return the list of all caller methods
+         * @return the list of all caller methods (dictionary references are resolved)
          */
         public String getCaller() {
-            return caller;
+            return callerDictionary == null ? caller: callerDictionary.decode(caller);
+        }
+
+        /**
+         * Get the caller methods and their call counts.
+         *
+         * @return caller method signatures (dictionary references are resolved on demand)
+         */
+        public Map<String, Integer> getTargetCaller() {
+            return MethodSignature.getTargetCaller(caller, callerDictionary);
         }
 
         public String[] getVersions() {
@@ -98,6 +124,34 @@ public class MethodSignature {
             return versions.split(";");
         }
 
+        /**
+         * Get the versions of the revision as ids of a version table.
+         * 
+         * @param table version table of the signature file
+         * @return version ids (must not be modified), null if the revision has no version
+         */
+        public BitSet getVersionBits(VersionTable table) {
+            return MethodSignature.getVersionBits(table, versionTable, versionBits, versions);
+        }
+
+        /**
+         * Get the basic-block hashcodes of the method.
+         * 
+         * @return sorted distinct block hashcodes, null if none was generated
+         */
+        public long[] getBlockHashes() {
+            return blockHashes;
+        }
+
+        /**
+         * Get the MinHash signature of the method.
+         * 
+         * @return signature of {@link MinHash#SIZE} values, null if none was generated
+         */
+        public int[] getMinHash() {
+            return minHash;
+        }
+
         public String getTargetSuperType() {
             return MethodSignature.getTargetSuperType(caller);
         }
@@ -115,6 +169,8 @@ public class MethodSignature {
             result = prime * result + ((mhash_tight == null) ? 0: mhash_tight.hashCode());
             result = prime * result + opcount;
             result = prime * result + ((versions == null) ? 0: versions.hashCode());
+            result = prime * result + Arrays.hashCode(blockHashes);
+            result = prime * result + Arrays.hashCode(minHash);
             return result;
         }
 
@@ -153,6 +209,10 @@ public class MethodSignature {
             }
             else if(!versions.equals(other.versions))
                 return false;
+            if(!Arrays.equals(blockHashes, other.blockHashes))
+                return false;
+            if(!Arrays.equals(minHash, other.minHash))
+                return false;
             return true;
         }
 
@@ -236,7 +296,7 @@ public class MethodSignature {
     @Deprecated
     public Map<String, Integer> getTargetCaller() {
         //return getTargetCaller(methodSignatureVersions.get(index).caller);
-        return getTargetCaller(revisions.get(0).caller);
+        return getTargetCaller(revisions.get(0).caller, revisions.get(0).callerDictionary);
     }
 
     private String getParentField() {
@@ -314,6 +374,17 @@ public class MethodSignature {
     }
 
     public static Map<String, Integer> getTargetCaller(String caller) {
+        return getTargetCaller(caller, null);
+    }
+
+    /**
+     * Parse a caller column.
+     * 
+     * @param caller caller column
+     * @param dictionary dictionary of the caller references, null if the column is not encoded
+     * @return caller method signatures and their call counts
+     */
+    public static Map<String, Integer> getTargetCaller(String caller, CallerDictionary dictionary) {
         Map<String, Integer> targetCallerList = new HashMap<>();
         if(caller.isEmpty()) {
             return targetCallerList;
@@ -321,7 +392,8 @@ public class MethodSignature {
         String[] targetCallers = caller.split("\\|");
         for(int i = 0; i < targetCallers.length; i++) {
             String[] tokens = targetCallers[i].split("=");
-            targetCallerList.put(tokens[0], Integer.parseInt(tokens[1]));
+            String method = dictionary == null ? tokens[0]: dictionary.resolve(tokens[0]);
+            targetCallerList.put(method, Integer.parseInt(tokens[1]));
         }
         return targetCallerList;
     }
@@ -337,6 +409,32 @@ public class MethodSignature {
         return versionsCache;
     }
 
+    /**
+     * Get the versions of the signature as ids of a version table. Ids are converted only if the
+     * signature was parsed with another table.
+     * 
+     * @param table version table of the signature file
+     * @return version ids (must not be modified), null if the signature has no version
+     */
+    public BitSet getVersionBits(VersionTable table) {
+        return getVersionBits(table, versionTable, versionBits, versions);
+    }
+
+    /**
+     * @return version table used to parse the signature, null if none
+     */
+    public VersionTable getVersionTable() {
+        return versionTable;
+    }
+
+    private static BitSet getVersionBits(VersionTable table, VersionTable ownTable, BitSet ownBits,
+            String versions) {
+        if(table == ownTable && ownBits != null) {
+            return ownBits;
+        }
+        return table == null ? null: table.parse(versions);
+    }
+
     public MethodSignature() {
     }
 
@@ -361,6 +459,33 @@ public class MethodSignature {
     }
 
     public static MethodSignature parse(String line, boolean strict) {
+        return parse(line, strict, null);
+    }
+
+    /**
+     * Parse one line of a signature file.
+     * 
+     * @param line signature line
+     * @param strict false to accept metadata lines (no shorty nor prototype)
+     * @param versionTable version table of the signature file, null to skip version ids
+     * @return the signature, null if the line is invalid
+     */
+    public static MethodSignature parse(String line, boolean strict, VersionTable versionTable) {
+        return parse(line, strict, versionTable, null);
+    }
+
+    /**
+     * Parse one line of a signature file.
+     * 
+     * @param line signature line
+     * @param strict false to accept metadata lines (no shorty nor prototype)
+     * @param versionTable version table of the signature file, null to skip version ids
+     * @param callerDictionary caller dictionary of the signature file, null if there is none.
+     *            References are resolved on demand.
+     * @return the signature, null if the line is invalid
+     */
+    public static MethodSignature parse(String line, boolean strict, VersionTable versionTable,
+            CallerDictionary callerDictionary) {
         String[] tokens = line.trim().split(",");
         if(tokens.length < 8) {
             return null;
@@ -388,7 +513,8 @@ public class MethodSignature {
         }
 
         // signature v2
-        ml.addRevision(buildRevision(tokens));
+        ml.versionTable = versionTable;
+        ml.addRevision(buildRevision(tokens, versionTable, callerDictionary));
         if(tokens.length > 8) {
             ml.versions = tokens[8];
         }
@@ -400,23 +526,35 @@ public class MethodSignature {
         return revisions.get(0);
     }
 
-    private static MethodSignatureRevision buildRevision(String[] tokens) {
+    private static MethodSignatureRevision buildRevision(String[] tokens, VersionTable versionTable,
+            CallerDictionary callerDictionary) {
         MethodSignatureRevision revision = new MethodSignatureRevision();
         revision.opcount = Conversion.stringToInt(tokens[4]);
         if(revision.opcount < 0) {
             return null;
         }
 
-        revision.mhash_tight = tokens[5].equals("null") ? "": tokens[5];
+        revision.mhash_tight = MethodHash.fromHex(tokens[5]);
 
-        revision.mhash_loose = tokens[6].equals("null") ? "": tokens[6];
+        revision.mhash_loose = MethodHash.fromHex(tokens[6]);
 
         revision.caller = tokens[7].equals("null") ? "": tokens[7];
+        if(callerDictionary != null && !callerDictionary.isEmpty()) {
+            revision.callerDictionary = callerDictionary;
+        }
 
         // signature v2
         if(tokens.length > 8) {
             revision.versions = tokens[8];
+            if(versionTable != null) {
+                revision.versionTable = versionTable;
+                revision.versionBits = versionTable.parse(revision.versions);
+            }
         }
+
+        revision.blockHashes = SignatureHandler
+                .parseBlockHashcodes(getExtension(tokens, SignatureHandler.BLOCKS_PREFIX));
+        revision.minHash = MinHash.parse(getExtension(tokens, MinHash.PREFIX));
         return revision;
     }
 
@@ -433,6 +571,17 @@ public class MethodSignature {
             versions += ";" + revision.versions;
         }
         versionsCache = null;
+        if(revision.versionBits != null && revision.versionTable == versionTable) {
+            if(versionBits == null) {
+                versionBits = revision.versionBits;
+            }
+            else {
+                // copy on write: revision bitsets are shared
+                BitSet merged = (BitSet)versionBits.clone();
+                merged.or(revision.versionBits);
+                versionBits = merged;
+            }
+        }
     }
 
     @Override
@@ -459,26 +608,49 @@ public class MethodSignature {
         return tokens;
     }
 
+    /**
+     * Parse the columns required to build indexes: class name, method name, hashcodes and
+     * extensions. Other columns are null.
+     */
     public static String[] parseNative(byte[] data, int startIndex, int endIndex) {
-        String[] tokens = new String[9];
+        String[] tokens = new String[EXTENSIONS_INDEX];
         int index = 0;
         int iStart = startIndex;
-        for(int i = startIndex; i < endIndex; i++) {
-            if(data[i] == ',') {
+        for(int i = startIndex; i <= endIndex; i++) {
+            if(i == endIndex || data[i] == ',') {
                 if(index == 0 || index == 1 || index == 5 || index == 6) {
                     tokens[index] = new String(data, iStart, i - iStart);
                 }
+                else if(index >= EXTENSIONS_INDEX) {
+                    tokens = Arrays.copyOf(tokens, index + 1);
+                    tokens[index] = new String(data, iStart, i - iStart);
+                }
                 index++;
                 iStart = i + 1;
             }
         }
-        index++;
         if(index < 8) {
             return null;
         }
         return tokens;
     }
 
+    /**
+     * Retrieve an optional extension column (after the versions column), identified by its prefix.
+     * 
+     * @param signatureLine tokens
+     * @param prefix column prefix, like {@link SignatureHandler#BLOCKS_PREFIX}
+     * @return the column (including its prefix), null if absent
+     */
+    public static String getExtension(String[] signatureLine, String prefix) {
+        for(int i = EXTENSIONS_INDEX; i < signatureLine.length; i++) {
+            if(signatureLine[i] != null && signatureLine[i].startsWith(prefix)) {
+                return signatureLine[i];
+            }
+        }
+        return null;
+    }
+
     /**
      * Get exact signature of method. See {@link SignatureHandler} for more details.
      * 
@@ -593,8 +765,22 @@ public class MethodSignature {
             }
             versionsStr = Strings.join(";", versions);
         }
-        return new MethodSignature(MethodSignature.getClassname(result), MethodSignature.getMethodName(result),
-                MethodSignature.getShorty(result), MethodSignature.getPrototype(result), versionsStr);
+        MethodSignature merged = new MethodSignature(MethodSignature.getClassname(result),
+                MethodSignature.getMethodName(result), MethodSignature.getShorty(result),
+                MethodSignature.getPrototype(result), versionsStr);
+        VersionTable table = results.get(0).versionTable;
+        if(mergeVersions && table != null) {
+            BitSet bits = new BitSet();
+            for(MethodSignature value: results) {
+                BitSet valueBits = value.getVersionBits(table);
+                if(valueBits != null) {
+                    bits.or(valueBits);
+                }
+            }
+            merged.versionTable = table;
+            merged.versionBits = bits.isEmpty() ? null: bits;
+        }
+        return merged;
     }
 
 }
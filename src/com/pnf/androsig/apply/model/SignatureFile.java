@@ -5,11 +5,16 @@
  */
 package com.pnf.androsig.apply.model;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +22,11 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
 
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnf.androsig.common.MinHash;
 import com.pnfsoftware.jeb.util.encoding.Conversion;
 import com.pnfsoftware.jeb.util.io.IO;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
@@ -32,12 +42,16 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 public class SignatureFile implements ISignatureFile {
     private static final ILogger logger = GlobalLog.getLogger(SignatureFile.class);
 
-    private Map<String, List<MethodSignature>> allTightSignatures = new HashMap<>();
-    private Map<String, List<MethodSignature>> allLooseSignatures = new HashMap<>();
+    private Map<MethodHash, List<MethodSignature>> allTightSignatures = new HashMap<>();
+    private Map<MethodHash, List<MethodSignature>> allLooseSignatures = new HashMap<>();
+    private Map<Long, List<MethodSignature>> allBlockSignatures = new HashMap<>();
+    private Map<Long, List<MethodSignature>> allBandSignatures = new HashMap<>();
     private Map<String, List<MethodSignature>> allSignaturesByClassname = new HashMap<>();
     private Map<String, List<MethodSignature>> allMetaByClassname = new HashMap<>();
     private LibraryInfo libraryInfos;
     private int allSignatureCount = 0;
+    private VersionTable versionTable = new VersionTable();
+    private CallerDictionary callerDictionary = new CallerDictionary();
 
     public boolean loadSignatures(File sigFile) {
         if(libraryInfos != null) {
@@ -47,7 +61,7 @@ public class SignatureFile implements ISignatureFile {
         String libname = "Unknown library code";
         String author = "Unknown author";
 
-        List<String> lines = IO.readLinesSafe(sigFile, Charset.forName("UTF-8"));
+        List<String> lines = readLines(sigFile);
         if(lines == null) {
             return false;
         }
@@ -63,6 +77,9 @@ public class SignatureFile implements ISignatureFile {
 
             if(line.startsWith(";")) {
                 line = line.substring(1);
+                if(callerDictionary.parseHeader(line)) {
+                    continue;
+                }
 
                 String value = checkMarker(line, "version");
                 if(value != null) {
@@ -81,18 +98,24 @@ public class SignatureFile implements ISignatureFile {
                     author = value;
                     libraryInfos.setAuthor(author);
                 }
+
+                value = checkMarker(line, "hash");
+                if(value != null) {
+                    libraryInfos.setHashAlgorithm(HashAlgorithm.fromName(value));
+                }
                 continue;
             }
 
-            MethodSignature ml = MethodSignature.parse(line);
+            MethodSignature ml = MethodSignature.parse(line, true, versionTable, callerDictionary);
             if(ml == null) {
-                ml = MethodSignature.parse(line, false);
+                ml = MethodSignature.parse(line, false, versionTable, callerDictionary);
                 if(ml == null) {
                     logger.warn("Invalid signature line: %s", line);
                     continue;
                 }
                 boolean found = false;
-                for(MethodSignature method: allMetaByClassname.get(ml.getCname())) {
+                List<MethodSignature> metas = allMetaByClassname.get(ml.getCname());
+                for(MethodSignature method: metas == null ? Collections.<MethodSignature> emptyList(): metas) {
                     if(MethodSignature.equalsMethodSig(method, ml)) {
                         // one MethodSignature already exists
                         method.addRevision(ml.getOwnRevision());
@@ -113,6 +136,23 @@ public class SignatureFile implements ISignatureFile {
         return true;
     }
 
+    /**
+     * @return lines of a signature file, compressed or not; null on error
+     */
+    private static List<String> readLines(File sigFile) {
+        if(!BlockCompressedFile.isCompressed(sigFile)) {
+            return IO.readLinesSafe(sigFile, Charset.forName("UTF-8"));
+        }
+        try(BufferedReader br = new BufferedReader(
+                new InputStreamReader(BlockCompressedFile.openSignatureFile(sigFile), Charset.forName("UTF-8")))) {
+            return br.lines().collect(Collectors.toList());
+        }
+        catch(IOException | UncheckedIOException e) {
+            logger.catchingSilent(e);
+            return null;
+        }
+    }
+
     private String checkMarker(String line, String marker) {
         if(line.startsWith(marker + "=")) {
             return line.substring(marker.length() + 1).trim();
@@ -121,11 +161,15 @@ public class SignatureFile implements ISignatureFile {
     }
 
     private void storeMethodHash(MethodSignature sig) {
-        String tight = sig.getOwnRevision().getMhash_tight();
-        String loose = sig.getOwnRevision().getMhash_loose();
+        MethodHash tight = sig.getOwnRevision().getMhash_tight();
+        MethodHash loose = sig.getOwnRevision().getMhash_loose();
+        long[] blocks = sig.getOwnRevision().getBlockHashes();
+        int[] minHash = sig.getOwnRevision().getMinHash();
         // search for a shared sig
         boolean found = false;
-        for(MethodSignature method: allSignaturesByClassname.get(sig.getCname())) {
+        List<MethodSignature> classSignatures = allSignaturesByClassname.get(sig.getCname());
+        for(MethodSignature method: classSignatures == null ? Collections.<MethodSignature> emptyList()
+                : classSignatures) {
             if(MethodSignature.equalsMethodSig(method, sig)) {
                 // one MethodSignature already exists
                 method.addRevision(sig.getOwnRevision());
@@ -143,13 +187,27 @@ public class SignatureFile implements ISignatureFile {
         if(!found) {
             saveValue(allSignaturesByClassname, sig.getCname(), sig);
         }
+        if(blocks != null) {
+            for(long block: blocks) {
+                if(!found || !contains(allBlockSignatures.get(block), sig)) {
+                    saveValue(allBlockSignatures, block, sig);
+                }
+            }
+        }
+        if(minHash != null) {
+            for(long bandKey: MinHash.getBandKeys(minHash)) {
+                if(!found || !contains(allBandSignatures.get(bandKey), sig)) {
+                    saveValue(allBandSignatures, bandKey, sig);
+                }
+            }
+        }
     }
 
     private boolean contains(List<MethodSignature> list, MethodSignature sig) {
         return list != null && list.contains(sig);
     }
 
-    private static void saveValue(Map<String, List<MethodSignature>> map, String key, MethodSignature value) {
+    private static <K> void saveValue(Map<K, List<MethodSignature>> map, K key, MethodSignature value) {
         List<MethodSignature> val = map.get(key);
         if(val == null) {
             val = new ArrayList<>();
@@ -166,12 +224,12 @@ public class SignatureFile implements ISignatureFile {
      * @deprecated require whole file to be loaded: use {@link #getTightSignatures(String)} instead
      */
     @Deprecated
-    public Map<String, List<MethodSignature>> getAllTightSignatures() {
+    public Map<MethodHash, List<MethodSignature>> getAllTightSignatures() {
         return allTightSignatures;
     }
 
     @Override
-    public List<MethodSignature> getTightSignatures(String hashcode) {
+    public List<MethodSignature> getTightSignatures(MethodHash hashcode) {
         return allTightSignatures.get(hashcode);
     }
 
@@ -193,10 +251,22 @@ public class SignatureFile implements ISignatureFile {
     }
 
     @Override
-    public List<MethodSignature> getLooseSignatures(String hashcode) {
+    public List<MethodSignature> getLooseSignatures(MethodHash hashcode) {
         return allLooseSignatures.get(hashcode);
     }
 
+    @Override
+    public List<MethodSignature> getBlockSignatures(long blockHash) {
+        List<MethodSignature> res = allBlockSignatures.get(blockHash);
+        return res == null || res.size() > MAX_BLOCK_SIGNATURES ? null: res;
+    }
+
+    @Override
+    public List<MethodSignature> getBandSignatures(long bandKey) {
+        List<MethodSignature> res = allBandSignatures.get(bandKey);
+        return res == null || res.size() > MAX_BAND_SIGNATURES ? null: res;
+    }
+
     public long getLooseSignaturesSize() {
         return allLooseSignatures.size();
     }
@@ -209,7 +279,7 @@ public class SignatureFile implements ISignatureFile {
      * @deprecated require whole file to be loaded: use {@link #getLooseSignatures(String)} instead
      */
     @Deprecated
-    public Map<String, List<MethodSignature>> getAllLooseSignatures() {
+    public Map<MethodHash, List<MethodSignature>> getAllLooseSignatures() {
         return allLooseSignatures;
     }
 
@@ -258,15 +328,49 @@ public class SignatureFile implements ISignatureFile {
         return compatibleSignatures;
     }
 
-    public static boolean populate(File sigFile, Map<String, Set<String>> allTightHashcodes,
-            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses) {
-        List<String> lines = IO.readLinesSafe(sigFile, Charset.forName("UTF-8"));
+    public static boolean populate(File sigFile, Map<MethodHash, Set<String>> allTightHashcodes,
+            Map<MethodHash, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses,
+            Map<MethodHash, Map<String, Set<String>>> allClassFingerprints, HashSpecificity specificity,
+            Map<String, HashAlgorithm> allHashAlgorithms) {
+        List<String> lines = readLines(sigFile);
         if(lines == null) {
             return false;
         }
+        String path = sigFile.getAbsolutePath();
+        HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+        allHashAlgorithms.put(path, hashAlgorithm);
+        // distinct classes per hashcode, for specificity
+        Map<MethodHash, Set<String>> tightClasses = new HashMap<>();
+        Map<MethodHash, Set<String>> looseClasses = new HashMap<>();
 
         for(String line: lines) {
             line = line.trim();
+            if(line.startsWith(";hash=")) {
+                hashAlgorithm = HashAlgorithm.fromName(line.substring(6));
+                if(hashAlgorithm == null) {
+                    logger.error("Unsupported hash algorithm %s in file %s", line.substring(6), sigFile);
+                    return false;
+                }
+                allHashAlgorithms.put(path, hashAlgorithm);
+                continue;
+            }
+            if(line.startsWith(";" + ClassFingerprint.MARKER)) {
+                ClassFingerprint fingerprint = ClassFingerprint.parse(line.substring(1), hashAlgorithm);
+                if(fingerprint != null) {
+                    Map<String, Set<String>> classes = allClassFingerprints.get(fingerprint.getFingerprint());
+                    if(classes == null) {
+                        classes = new HashMap<>();
+                        allClassFingerprints.put(fingerprint.getFingerprint(), classes);
+                    }
+                    Set<String> files = classes.get(fingerprint.getClassName());
+                    if(files == null) {
+                        files = new LinkedHashSet<>();
+                        classes.put(fingerprint.getClassName(), files);
+                    }
+                    files.add(path);
+                }
+                continue;
+            }
             if(!MethodSignature.isSignatureLine(line)) {
                 continue;
             }
@@ -277,37 +381,54 @@ public class SignatureFile implements ISignatureFile {
                 continue;
             }
 
-            String mhash_tight = MethodSignature.getTightSignature(subLines);
-            if(mhash_tight != null && !mhash_tight.isEmpty()) {
+            String className = MethodSignature.getClassname(subLines);
+            MethodHash mhash_tight = MethodHash.fromHex(MethodSignature.getTightSignature(subLines));
+            if(mhash_tight != null) {
                 Set<String> files = allTightHashcodes.get(mhash_tight);
                 if(files == null) {
                     files = new LinkedHashSet<>();
                     allTightHashcodes.put(mhash_tight, files);
                 }
-                files.add(sigFile.getAbsolutePath());
+                files.add(path);
+                addClass(tightClasses, mhash_tight, className);
             }
-            String mhash_loose = MethodSignature.getLooseSignature(subLines);
-            if(mhash_loose != null && !mhash_loose.isEmpty()) {
+            MethodHash mhash_loose = MethodHash.fromHex(MethodSignature.getLooseSignature(subLines));
+            if(mhash_loose != null) {
                 Set<String> files = allLooseHashcodes.get(mhash_loose);
                 if(files == null) {
                     files = new LinkedHashSet<>();
                     allLooseHashcodes.put(mhash_loose, files);
                 }
-                files.add(sigFile.getAbsolutePath());
+                files.add(path);
+                addClass(looseClasses, mhash_loose, className);
             }
-            String className = MethodSignature.getClassname(subLines);
             if(className != null && !className.isEmpty()) {
                 Set<String> files = allClasses.get(className);
                 if(files == null) {
                     files = new LinkedHashSet<>();
                     allClasses.put(className, files);
                 }
-                files.add(sigFile.getAbsolutePath());
+                files.add(path);
             }
         }
+        for(Entry<MethodHash, Set<String>> entry: tightClasses.entrySet()) {
+            specificity.add(entry.getKey(), true, entry.getValue().size());
+        }
+        for(Entry<MethodHash, Set<String>> entry: looseClasses.entrySet()) {
+            specificity.add(entry.getKey(), false, entry.getValue().size());
+        }
         return true;
     }
 
+    private static void addClass(Map<MethodHash, Set<String>> map, MethodHash hashcode, String className) {
+        Set<String> classes = map.get(hashcode);
+        if(classes == null) {
+            classes = new HashSet<>();
+            map.put(hashcode, classes);
+        }
+        classes.add(className);
+    }
+
     @Override
     public void close() throws IOException {
 
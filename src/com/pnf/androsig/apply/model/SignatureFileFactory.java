@@ -13,6 +13,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
@@ -29,10 +31,14 @@ public class SignatureFileFactory {
     private Map<String, ISignatureFile> sigLinePerFilename = new HashMap<>();
     private List<String> loadOrder = new ArrayList<>();
 
-    public static boolean populate(File sigFile, Map<String, Set<String>> allTightHashcodes,
-            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses) {
-        //return SignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
-        return IndexedSignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
+    public static boolean populate(File sigFile, Map<MethodHash, Set<String>> allTightHashcodes,
+            Map<MethodHash, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses,
+            Map<MethodHash, Map<String, Set<String>>> allClassFingerprints, HashSpecificity specificity,
+            Map<String, HashAlgorithm> allHashAlgorithms) {
+        //return SignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses,
+        //        allClassFingerprints, specificity, allHashAlgorithms);
+        return IndexedSignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses,
+                allClassFingerprints, specificity, allHashAlgorithms);
     }
 
     private static ISignatureFile getSignatureFile(File sigF) {
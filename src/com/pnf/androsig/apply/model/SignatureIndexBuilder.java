@@ -0,0 +1,262 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MinHash;
+import com.pnf.androsig.common.SignatureHandler;
+import com.pnfsoftware.jeb.util.io.EndianUtil;
+import com.pnfsoftware.jeb.util.io.IO;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Build the index file of a signature file (see {@link IndexedSignatureFile}) from its lines, given
+ * in file order with their byte offsets. Lines can be read back from an existing file or indexed
+ * while the signature file is being written.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureIndexBuilder {
+    private static final ILogger logger = GlobalLog.getLogger(SignatureIndexBuilder.class);
+
+    private final Charset utf8 = StandardCharsets.UTF_8;
+    private final File sigFile;
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+    private Map<String, Key> tightHashcodes = new HashMap<>();
+    private Map<String, Key> looseHashcodes = new HashMap<>();
+    private Map<String, Key> classes = new HashMap<>();
+    private Map<String, Key> methods = new HashMap<>();
+    private Map<String, Key> fingerprints = new HashMap<>();
+    private Map<String, Key> blocks = new HashMap<>();
+    private Map<String, Key> bands = new HashMap<>();
+
+    /**
+     * Lines of one index key.
+     */
+    private static class Key {
+        /** start and end offsets of the lines */
+        private final List<Integer> lines = new ArrayList<>();
+        private String firstClass;
+        /** distinct classes other than {@link #firstClass}, allocated on demand */
+        private Set<String> otherClasses;
+
+        void add(int start, int end, String className) {
+            lines.add(start);
+            lines.add(end);
+            if(className == null) {
+                return;
+            }
+            if(firstClass == null) {
+                firstClass = className;
+            }
+            else if(!firstClass.equals(className)) {
+                if(otherClasses == null) {
+                    otherClasses = new HashSet<>();
+                }
+                otherClasses.add(className);
+            }
+        }
+
+        int getClassCount() {
+            return otherClasses == null ? 1: 1 + otherClasses.size();
+        }
+    }
+
+    /**
+     * @param sigFile signature file (for messages)
+     */
+    public SignatureIndexBuilder(File sigFile) {
+        this.sigFile = sigFile;
+    }
+
+    /**
+     * Index one line.
+     *
+     * @param line line, without line end
+     * @param offset offset of the line in the signature file
+     * @return false if the signature file can not be indexed (unsupported hashcode algorithm)
+     */
+    public boolean addLine(String line, int offset) {
+        byte[] data = line.getBytes(utf8);
+        return addLine(data, 0, data.length, offset);
+    }
+
+    /**
+     * Index one line.
+     *
+     * @param data buffer containing the line
+     * @param startIndex line start in buffer
+     * @param endIndex line end in buffer (exclusive, position of the line end)
+     * @param offset offset of the line in the signature file
+     * @return false if the signature file can not be indexed (unsupported hashcode algorithm)
+     */
+    public boolean addLine(byte[] data, int startIndex, int endIndex, int offset) {
+        int start = offset;
+        int end = offset + endIndex - startIndex;
+        if(startIndex < endIndex && data[startIndex] == ';') {
+            String header = new String(data, startIndex + 1, endIndex - startIndex - 1, utf8);
+            if(header.startsWith("hash=")) {
+                hashAlgorithm = HashAlgorithm.fromName(header.substring(5));
+                if(hashAlgorithm == null) {
+                    logger.error("Unsupported hash algorithm %s in file %s", header.substring(5), sigFile);
+                    return false;
+                }
+            }
+            else if(header.startsWith(ClassFingerprint.MARKER)) {
+                ClassFingerprint fingerprint = ClassFingerprint.parse(header, hashAlgorithm);
+                if(fingerprint != null) {
+                    // key: classname,fingerprint
+                    String key = fingerprint.getClassName() + "," + fingerprint.getFingerprint().toHex();
+                    add(fingerprints, key, start, end, null);
+                }
+            }
+            return true;
+        }
+
+        String[] subLines = MethodSignature.parseNative(data, startIndex, endIndex);
+        if(subLines == null) {
+            logger.warn("Invalid parameter signature line at index " + start + " in file " + sigFile);
+            return true;
+        }
+
+        String className = MethodSignature.getClassname(subLines);
+        String mhash_tight = MethodSignature.getTightSignature(subLines);
+        if(mhash_tight != null && !mhash_tight.isEmpty() && !mhash_tight.equals("null")) {
+            add(tightHashcodes, mhash_tight, start, end, className);
+        }
+        String mhash_loose = MethodSignature.getLooseSignature(subLines);
+        if(mhash_loose != null && !mhash_loose.isEmpty() && !mhash_loose.equals("null")) {
+            add(looseHashcodes, mhash_loose, start, end, className);
+        }
+        if(className != null && !className.isEmpty()) {
+            add(classes, className, start, end, null);
+            String methodName = MethodSignature.getMethodName(subLines);
+            if(methodName != null && !methodName.isEmpty()) {
+                add(methods, className + "->" + methodName, start, end, null);
+            }
+        }
+        String blockColumn = MethodSignature.getExtension(subLines, SignatureHandler.BLOCKS_PREFIX);
+        if(blockColumn != null) {
+            String[] blockList = blockColumn.substring(SignatureHandler.BLOCKS_PREFIX.length()).split("\\|");
+            for(String block: blockList) {
+                add(blocks, block, start, end, null);
+            }
+        }
+        int[] minHash = MinHash.parse(MethodSignature.getExtension(subLines, MinHash.PREFIX));
+        if(minHash != null) {
+            for(long bandKey: MinHash.getBandKeys(minHash)) {
+                add(bands, Long.toHexString(bandKey), start, end, null);
+            }
+        }
+        return true;
+    }
+
+    private static void add(Map<String, Key> map, String key, int start, int end, String className) {
+        Key entry = map.get(key);
+        if(entry == null) {
+            entry = new Key();
+            map.put(key, entry);
+        }
+        entry.add(start, end, className);
+    }
+
+    /**
+     * Write the index file.
+     *
+     * @param indexFile index file
+     * @param fileSize size of the signature file, checked when the index is loaded
+     */
+    public void write(File indexFile, long fileSize) throws IOException {
+        if(fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Signature file is too big. Is it really a signature file? If so, split it.");
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffInt = new byte[4];
+
+        // header
+        writeInt(buffInt, IndexedSignatureFile.CURRENT_INDEX_VERSION, bos); // version
+        writeInt(buffInt, (int)fileSize, bos); // filesize
+        writeInt(buffInt, hashAlgorithm.getId(), bos); // hashcode algorithm
+        bos.write('\n');
+        bos.write('\n');
+
+        // tight section
+        writeSection(bos, buffInt, tightHashcodes, 1, Integer.MAX_VALUE, true);
+
+        // loose section
+        bos.write('\n');
+        writeSection(bos, buffInt, looseHashcodes, 1, Integer.MAX_VALUE, true);
+
+        // classes section
+        bos.write('\n');
+        writeSection(bos, buffInt, classes, 1, Integer.MAX_VALUE, false);
+
+        // class fingerprints section
+        bos.write('\n');
+        writeSection(bos, buffInt, fingerprints, 1, Integer.MAX_VALUE, false);
+
+        // methods section: only save duplicated entries
+        bos.write('\n');
+        writeSection(bos, buffInt, methods, 2, Integer.MAX_VALUE, false);
+
+        // basic-block section
+        bos.write('\n');
+        writeSection(bos, buffInt, blocks, 1, ISignatureFile.MAX_BLOCK_SIGNATURES, false);
+
+        // MinHash LSH section
+        bos.write('\n');
+        writeSection(bos, buffInt, bands, 1, ISignatureFile.MAX_BAND_SIGNATURES, false);
+
+        IO.writeFile(indexFile, bos.toByteArray());
+    }
+
+    /**
+     * @param minLines keys with fewer lines are skipped
+     * @param maxLines keys with more lines are too common and skipped
+     * @param counted append the number of distinct classes of the lines of each key
+     */
+    private void writeSection(ByteArrayOutputStream bos, byte[] buffInt, Map<String, Key> keys, int minLines,
+            int maxLines, boolean counted) throws IOException {
+        for(Entry<String, Key> entry: keys.entrySet()) {
+            List<Integer> lines = entry.getValue().lines;
+            int lineCount = lines.size() / 2;
+            if(lineCount < minLines || lineCount > maxLines) {
+                continue;
+            }
+            bos.write(entry.getKey().getBytes(utf8));
+            bos.write('=');
+            writeInt(buffInt, lines.size(), bos);
+            for(Integer address: lines) {
+                writeInt(buffInt, address, bos);
+            }
+            if(counted) {
+                writeInt(buffInt, entry.getValue().getClassCount(), bos);
+            }
+            bos.write('\n');
+        }
+    }
+
+    private static void writeInt(byte[] buffInt, int val, ByteArrayOutputStream bos) throws IOException {
+        EndianUtil.intToBEBytes(val, buffInt);
+        bos.write(buffInt);
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
 import com.pnf.androsig.apply.matcher.DatabaseMatcherFactory;
 import com.pnf.androsig.apply.matcher.IDatabaseMatcher;
 import com.pnf.androsig.apply.util.DexUtilLocal;
@@ -58,6 +59,10 @@ public class StructureInfo {
         dbMatcher = DatabaseMatcherFactory.build(executionOptions, ref);
     }
 
+    public StructureInfo(DatabaseMatcherParameters params, DatabaseReference ref) {
+        dbMatcher = DatabaseMatcherFactory.build(params, ref);
+    }
+
     /**
      * Rebuild project structure using signatures.
      * 
@@ -0,0 +1,105 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versions of one signature file, each version being identified by a small integer id. Version
+ * columns of the signature lines are stored as {@link BitSet} of ids, so that version filtering and
+ * merging are bitwise operations.
+ * <p>
+ * Bitsets returned by {@link #parse(String)} are shared between signatures and must not be
+ * modified.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class VersionTable {
+    private final List<String> versions = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    /** same version columns are repeated over most lines of a file */
+    private final Map<String, BitSet> parsed = new HashMap<>();
+
+    /**
+     * Get the id of a version, a new id is assigned to unknown versions.
+     */
+    public int getId(String version) {
+        Integer id = ids.get(version);
+        if(id == null) {
+            id = versions.size();
+            versions.add(version);
+            ids.put(version, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return version name, null if the id is unknown
+     */
+    public String getVersion(int id) {
+        return id >= 0 && id < versions.size() ? versions.get(id): null;
+    }
+
+    /**
+     * @return number of known versions
+     */
+    public int size() {
+        return versions.size();
+    }
+
+    /**
+     * Parse a version column (versions separated by ';').
+     *
+     * @param column version column
+     * @return shared bitset (must not be modified), null if the column is empty
+     */
+    public BitSet parse(String column) {
+        if(column == null || column.isEmpty()) {
+            return null;
+        }
+        BitSet bits = parsed.get(column);
+        if(bits == null) {
+            bits = new BitSet();
+            for(String v: column.split(";")) {
+                bits.set(getId(v));
+            }
+            parsed.put(column, bits);
+        }
+        return bits;
+    }
+
+    /**
+     * @return new bitset of the versions, null if there is no version
+     */
+    public BitSet toBits(String[] versions) {
+        if(versions == null || versions.length == 0) {
+            return null;
+        }
+        BitSet bits = new BitSet();
+        for(String v: versions) {
+            bits.set(getId(v));
+        }
+        return bits;
+    }
+
+    /**
+     * @return version names, in id order
+     */
+    public List<String> toVersions(BitSet bits) {
+        List<String> res = new ArrayList<>();
+        if(bits != null) {
+            for(int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                res.add(versions.get(id));
+            }
+        }
+        return res;
+    }
+}
@@ -20,7 +20,7 @@ import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnf.androsig.apply.model.MethodSignature;
 import com.pnf.androsig.apply.util.DexUtilLocal;
-import com.pnf.androsig.common.SignatureHandler;
+import com.pnf.androsig.common.CallGraph;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
@@ -33,7 +33,13 @@ import com.pnfsoftware.jeb.util.format.Strings;
 public class ApkCallerModule extends AbstractModule {
 
 
-    private Map<Integer, Map<Integer, Integer>> apkCallerLists = null;
+    /** call structure does not change on renaming: built once per dex */
+    private CallGraph apkCallGraph = null;
+    private IDexUnit apkCallGraphUnit = null;
+    /** callers are only considered by {@link #filterList} after post-processing started */
+    private boolean callersAvailable = false;
+    /** method signatures, looked up again after each renaming step */
+    private String[] methodSignatures = null;
 
     public ApkCallerModule(ContextMatches contextMatches, FileMatches fileMatches,
             DatabaseReference ref) {
@@ -42,23 +48,46 @@ public class ApkCallerModule extends AbstractModule {
 
     @Override
     public void initNewPass(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound) {
-        apkCallerLists = new HashMap<>();
+        if(unit != apkCallGraphUnit) {
+            apkCallGraph = null;
+            apkCallGraphUnit = null;
+        }
+        callersAvailable = false;
+        methodSignatures = null;
+    }
+
+    private CallGraph getCallGraph(IDexUnit unit) {
+        if(apkCallGraph == null || unit != apkCallGraphUnit) {
+            apkCallGraph = CallGraph.build(unit);
+            apkCallGraphUnit = unit;
+            methodSignatures = null;
+        }
+        callersAvailable = true;
+        return apkCallGraph;
+    }
+
+    private String getMethodSignature(IDexUnit unit, int methodIndex) {
+        if(methodSignatures == null) {
+            methodSignatures = new String[apkCallGraph.getMethodCount()];
+        }
+        String signature = methodSignatures[methodIndex];
+        if(signature == null) {
+            signature = unit.getMethod(methodIndex).getSignature(true);
+            methodSignatures[methodIndex] = signature;
+        }
+        return signature;
     }
 
     @Override
     public Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
-        if(apkCallerLists.isEmpty()) {
-            SignatureHandler.loadAllCallerLists(unit, apkCallerLists);
-        }
+        CallGraph callGraph = getCallGraph(unit);
         for(Entry<Integer, MethodSignature> match: fileMatches.entrySetMatchedSigMethods()) {
-            Map<Integer, Integer> callers = apkCallerLists.get(match.getKey());
+            int callee = match.getKey();
             Map<String, Integer> calls = new HashMap<>();
-            if(callers != null) {
-                for(Entry<Integer, Integer> caller: callers.entrySet()) {
-                    IDexMethod m = unit.getMethod(caller.getKey());
-                    Integer count = caller.getValue();
-                    calls.put(m.getSignature(true), count);
+            if(callGraph.hasCallers(callee)) {
+                for(int i = callGraph.getCallersStart(callee); i < callGraph.getCallersEnd(callee); i++) {
+                    calls.put(getMethodSignature(unit, callGraph.getCallerAt(i)), callGraph.getCallCountAt(i));
                 }
             }
             Map<String, Integer> expectedCallers = match.getValue().getTargetCaller();
@@ -89,9 +118,9 @@ public class ApkCallerModule extends AbstractModule {
     @Override
     public Map<Integer, String> postProcessRenameClasses(IDexUnit dex, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
-        if(apkCallerLists.isEmpty()) {
-            SignatureHandler.loadAllCallerLists(dex, apkCallerLists);
-        }
+        getCallGraph(dex);
+        // classes were renamed since the beginning of the pass
+        methodSignatures = null;
         return new HashMap<>();
     }
 
@@ -452,11 +481,11 @@ public class ApkCallerModule extends AbstractModule {
     @Override
     public Set<MethodSignature> filterList(IDexUnit dex, IDexMethod eMethod, List<MethodSignature> results) {
         // secondly, filter by caller
-        if(apkCallerLists.isEmpty()) {
+        if(!callersAvailable || apkCallGraph.getEdgeCount() == 0) {
             return null;
         }
-        Map<Integer, Integer> callers = apkCallerLists.get(eMethod.getIndex());
-        if(callers == null) {
+        int callee = eMethod.getIndex();
+        if(!apkCallGraph.hasCallers(callee)) {
             return null;
         }
         // caller may not be referenced in lib
@@ -466,12 +495,11 @@ public class ApkCallerModule extends AbstractModule {
             if(targets.isEmpty()) {
                 continue;
             }
-            for(Entry<Integer, Integer> c: callers.entrySet()) {
+            for(int i = apkCallGraph.getCallersStart(callee); i < apkCallGraph.getCallersEnd(callee); i++) {
                 // is there a method matching?
                 // FIXME allow partial matching? maybe in later steps
-                IDexMethod cMethod = dex.getMethod(c.getKey());
-                Integer occ = targets.remove(cMethod.getSignature(true));
-                if(occ == null || occ != c.getValue()) {
+                Integer occ = targets.remove(getMethodSignature(dex, apkCallGraph.getCallerAt(i)));
+                if(occ == null || occ != apkCallGraph.getCallCountAt(i)) {
                     //not the same method
                     continue outer;
                 }
@@ -25,6 +25,7 @@ import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnf.androsig.apply.model.MethodSignature;
 import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnf.androsig.common.MethodHash;
 import com.pnfsoftware.jeb.core.units.code.IInstruction;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
@@ -110,7 +111,7 @@ public class MethodFinderModule extends AbstractModule {
                     String prototypes = proto.generate(true);
                     String shorty = proto.getShorty();
                     if(methodHint == null && instructions != null && instructions.size() > params.methodSizeBar) {
-                        String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+                        MethodHash mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
                         if(mhash_tight == null) {
                             continue;
                         }
@@ -0,0 +1,101 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
+import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnfsoftware.jeb.core.units.code.IInstruction;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Candidate file preselection: a sample of the app methods is looked up in the global
+ * hashcode-to-file table, and only files found by at least
+ * {@link DatabaseMatcherParameters#sampleMinHits} sampled methods are kept for matching. The sample
+ * is pseudo-random but reproducible.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SamplingHandler {
+    private static final ILogger logger = GlobalLog.getLogger(SamplingHandler.class);
+
+    private static final long SEED = 0x616E64726F736967L;
+
+    /**
+     * Select the candidate files of a dex unit.
+     *
+     * @param unit dex unit
+     * @param dexHashCodeList hashcodes of the unit
+     * @param ref loaded signature database, without file restriction
+     * @param params matcher parameters ({@link DatabaseMatcherParameters#sampleSize} methods are
+     *            sampled)
+     * @return candidate files
+     */
+    public static Set<String> preselectFiles(IDexUnit unit, DexHashcodeList dexHashCodeList, DatabaseReference ref,
+            DatabaseMatcherParameters params) {
+        List<IDexMethod> methods = new ArrayList<>();
+        List<? extends IDexMethod> allMethods = unit.getMethods();
+        if(allMethods != null) {
+            for(IDexMethod m: allMethods) {
+                if(!m.isInternal() || dexHashCodeList.getTightHashcode(m) == null) {
+                    continue;
+                }
+                // small methods are too common to identify a library
+                List<? extends IInstruction> instructions = m.getInstructions();
+                if(instructions != null && instructions.size() > params.methodSizeBar) {
+                    methods.add(m);
+                }
+            }
+        }
+        if(methods.size() > params.sampleSize) {
+            Collections.shuffle(methods, new Random(SEED));
+            methods = methods.subList(0, params.sampleSize);
+        }
+
+        Map<String, Integer> hits = new HashMap<>();
+        for(IDexMethod m: methods) {
+            for(HashAlgorithm algorithm: dexHashCodeList.getHashAlgorithms()) {
+                MethodHash mhash_tight = dexHashCodeList.getTightHashcode(m, algorithm);
+                if(mhash_tight == null) {
+                    continue;
+                }
+                List<String> files = ref.getFilesContainingTightHashcode(mhash_tight);
+                if(files == null || files.size() > params.maxHashFiles) {
+                    continue;
+                }
+                for(String file: files) {
+                    Integer count = hits.get(file);
+                    hits.put(file, count == null ? 1: count + 1);
+                }
+            }
+        }
+        Set<String> candidates = new HashSet<>();
+        for(Entry<String, Integer> entry: hits.entrySet()) {
+            if(entry.getValue() >= params.sampleMinHits) {
+                candidates.add(entry.getKey());
+            }
+        }
+        logger.info("Sampling: %d methods sampled, %d candidate files (out of %d)", methods.size(),
+                candidates.size(), ref.getAllSignatureFileCount());
+        return candidates;
+    }
+}
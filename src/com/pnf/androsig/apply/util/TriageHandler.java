@@ -0,0 +1,242 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
+import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.LibraryInfo;
+import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Library triage: report the libraries (and versions) embedded in a dex unit, without class
+ * matching nor renaming. Each distinct tight hashcode of the app votes for the signature files
+ * defining it; hashcodes defined by more than {@link DatabaseMatcherParameters#maxHashFiles} files
+ * do not vote. Only the signature lines of the reported files are read, to estimate versions.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class TriageHandler {
+    private static final ILogger logger = GlobalLog.getLogger(TriageHandler.class);
+
+    /** minimum number of hashcodes found to report a file */
+    private static final int MIN_HITS = 5;
+    /** minimum fraction of the hashcodes of a file found in the app to report it */
+    private static final double MIN_HIT_RATIO = 0.05;
+    /** maximum number of hashcodes per file used to vote for versions */
+    private static final int MAX_VERSION_SAMPLES = 500;
+    private static final int MAX_REPORTED_VERSIONS = 3;
+
+    /**
+     * Triage result for one signature file.
+     */
+    public static class FileHit implements Comparable<FileHit> {
+        private final String file;
+        private final List<MethodHash> hashcodes = new ArrayList<>();
+        /** votes weighted by hashcode specificity */
+        private double score;
+        private int hashcodeCount;
+        private LibraryInfo libraryInfo;
+        private Map<String, Integer> versionHits = new HashMap<>();
+
+        FileHit(String file) {
+            this.file = file;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public int getHits() {
+            return hashcodes.size();
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * @return fraction of the tight hashcodes of the file found in the app
+         */
+        public double getHitRatio() {
+            return hashcodeCount == 0 ? 0: (double)hashcodes.size() / hashcodeCount;
+        }
+
+        public LibraryInfo getLibraryInfo() {
+            return libraryInfo;
+        }
+
+        /**
+         * @return per version, number of found hashcodes defined for this version (empty if the
+         *         file is not versioned)
+         */
+        public Map<String, Integer> getVersionHits() {
+            return versionHits;
+        }
+
+        /**
+         * @return the most voted versions, best first
+         */
+        public List<String> getBestVersions() {
+            List<Entry<String, Integer>> entries = new ArrayList<>(versionHits.entrySet());
+            Collections.sort(entries, (a, b) -> {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c: a.getKey().compareTo(b.getKey());
+            });
+            List<String> versions = new ArrayList<>();
+            for(Entry<String, Integer> entry: entries) {
+                if(versions.size() == MAX_REPORTED_VERSIONS) {
+                    break;
+                }
+                versions.add(entry.getKey() + " (" + entry.getValue() + ")");
+            }
+            return versions;
+        }
+
+        @Override
+        public int compareTo(FileHit o) {
+            int c = Double.compare(o.score, score);
+            return c != 0 ? c: file.compareTo(o.file);
+        }
+    }
+
+    /**
+     * Vote the app hashcodes against the signature files.
+     *
+     * @param unit dex unit
+     * @param dexHashCodeList hashcodes of the unit
+     * @param ref loaded signature database
+     * @param params matcher parameters
+     * @return reported files, best score first
+     */
+    public static List<FileHit> triage(IDexUnit unit, DexHashcodeList dexHashCodeList, DatabaseReference ref,
+            DatabaseMatcherParameters params) {
+        Map<String, FileHit> hits = new HashMap<>();
+        List<? extends IDexMethod> methods = unit.getMethods();
+        if(methods == null) {
+            return new ArrayList<>();
+        }
+        for(HashAlgorithm algorithm: dexHashCodeList.getHashAlgorithms()) {
+            Set<MethodHash> processed = new HashSet<>();
+            for(IDexMethod m: methods) {
+                MethodHash mhash_tight = dexHashCodeList.getTightHashcode(m, algorithm);
+                if(mhash_tight == null || !processed.add(mhash_tight)) {
+                    continue;
+                }
+                List<String> files = ref.getFilesContainingTightHashcode(mhash_tight);
+                if(files == null || files.size() > params.maxHashFiles) {
+                    continue;
+                }
+                for(String file: files) {
+                    FileHit hit = hits.get(file);
+                    if(hit == null) {
+                        hit = new FileHit(file);
+                        hits.put(file, hit);
+                    }
+                    hit.hashcodes.add(mhash_tight);
+                    hit.score += 1.0 / files.size();
+                }
+            }
+        }
+
+        List<FileHit> res = new ArrayList<>();
+        for(FileHit hit: hits.values()) {
+            hit.hashcodeCount = ref.getTightHashcodeCount(hit.file);
+            if(hit.getHits() >= MIN_HITS && hit.getHitRatio() >= MIN_HIT_RATIO) {
+                res.add(hit);
+            }
+        }
+        Collections.sort(res);
+        for(FileHit hit: res) {
+            hit.libraryInfo = ref.getLibraryInfos(hit.file, null);
+            voteVersions(ref, hit);
+        }
+        return res;
+    }
+
+    private static void voteVersions(DatabaseReference ref, FileHit hit) {
+        int step = Math.max(1, hit.hashcodes.size() / MAX_VERSION_SAMPLES);
+        for(int i = 0; i < hit.hashcodes.size(); i += step) {
+            List<MethodSignature> sigs = ref.getSignatureLines(hit.file, hit.hashcodes.get(i), true);
+            if(sigs == null) {
+                continue;
+            }
+            Set<String> versions = new HashSet<>();
+            for(MethodSignature sig: sigs) {
+                String[] sigVersions = sig.getVersions();
+                if(sigVersions != null) {
+                    Collections.addAll(versions, sigVersions);
+                }
+            }
+            for(String v: versions) {
+                Integer count = hit.versionHits.get(v);
+                hit.versionHits.put(v, count == null ? 1: count + 1);
+            }
+        }
+    }
+
+    /**
+     * Run the triage and write the report to <code>[TEMP]/androsig-triage.txt</code>.
+     *
+     * @param unit dex unit
+     * @param dexHashCodeList hashcodes of the unit
+     * @param ref loaded signature database
+     * @param params matcher parameters
+     */
+    public static void generateRecord(IDexUnit unit, DexHashcodeList dexHashCodeList, DatabaseReference ref,
+            DatabaseMatcherParameters params) {
+        List<FileHit> hits = triage(unit, dexHashCodeList, ref, params);
+        DecimalFormat df = new DecimalFormat("#.00");
+
+        StringBuilder stb = new StringBuilder();
+        stb.append("*************** Library Triage ***************\n");
+        stb.append("Total number of signature files: ").append(ref.getAllSignatureFileCount()).append("\n");
+        stb.append("Total number of detected signature files: ").append(hits.size()).append("\n");
+        for(FileHit hit: hits) {
+            LibraryInfo info = hit.getLibraryInfo();
+            stb.append(info == null ? new File(hit.getFile()).getName(): info.getLibName());
+            stb.append(": ").append(hit.getHits()).append(" hashcodes (")
+                    .append(df.format(hit.getHitRatio() * 100.0)).append("%), score ")
+                    .append(df.format(hit.getScore()));
+            List<String> versions = hit.getBestVersions();
+            if(!versions.isEmpty()) {
+                stb.append(", versions: ").append(Strings.join(", ", versions));
+            }
+            stb.append("\n");
+        }
+        String reportContent = stb.toString();
+        File report = new File(System.getProperty("java.io.tmpdir"), "androsig-triage.txt");
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(report))) {
+            writer.write(reportContent);
+        }
+        catch(IOException e) {
+            logger.error(e.toString());
+        }
+        logger.info(reportContent);
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstructionParameter;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
+
+/**
+ * Callers of dex methods, stored in compressed sparse row format: the callers of method
+ * <code>callee</code> are stored at positions [{@link #getCallersStart(int)},
+ * {@link #getCallersEnd(int)}) of the caller and count arrays, sorted by caller index.
+ * <p>
+ * Use a {@link Builder} to create a graph.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class CallGraph {
+
+    private final int methodCount;
+    /** methodCount + 1 entries */
+    private final int[] offsets;
+    private final int[] callers;
+    private final int[] counts;
+
+    private CallGraph(int methodCount, int[] offsets, int[] callers, int[] counts) {
+        this.methodCount = methodCount;
+        this.offsets = offsets;
+        this.callers = callers;
+        this.counts = counts;
+    }
+
+    /**
+     * Build the call graph of all internal methods of a dex unit.
+     *
+     * @param unit dex unit
+     * @return call graph
+     */
+    public static CallGraph build(IDexUnit unit) {
+        List<? extends IDexMethod> allMethods = unit.getMethods();
+        Builder builder = new Builder(allMethods == null ? 0: allMethods.size());
+        List<? extends IDexClass> classes = unit.getClasses();
+        if(classes == null) {
+            return builder.build();
+        }
+        for(IDexClass eClass: classes) {
+            List<? extends IDexMethod> methods = eClass.getMethods();
+            if(methods == null) {
+                continue;
+            }
+            for(IDexMethod m: methods) {
+                if(!m.isInternal()) {
+                    continue;
+                }
+                IDexMethodData md = m.getData();
+                if(md == null || md.getCodeItem() == null) {
+                    continue;
+                }
+                builder.addCalls(md.getCodeItem(), m.getIndex());
+            }
+        }
+        return builder.build();
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /**
+     * @return total number of distinct (caller, callee) pairs
+     */
+    public int getEdgeCount() {
+        return callers.length;
+    }
+
+    public boolean hasCallers(int callee) {
+        return callee >= 0 && callee < methodCount && offsets[callee] != offsets[callee + 1];
+    }
+
+    /**
+     * @return the number of distinct callers of a method
+     */
+    public int getCallerCount(int callee) {
+        return callee >= 0 && callee < methodCount ? offsets[callee + 1] - offsets[callee]: 0;
+    }
+
+    public int getCallersStart(int callee) {
+        return offsets[callee];
+    }
+
+    public int getCallersEnd(int callee) {
+        return offsets[callee + 1];
+    }
+
+    /**
+     * @param pos position in [{@link #getCallersStart(int)}, {@link #getCallersEnd(int)})
+     * @return caller method index
+     */
+    public int getCallerAt(int pos) {
+        return callers[pos];
+    }
+
+    /**
+     * @param pos position in [{@link #getCallersStart(int)}, {@link #getCallersEnd(int)})
+     * @return number of calls from this caller
+     */
+    public int getCallCountAt(int pos) {
+        return counts[pos];
+    }
+
+    /**
+     * Retrieve the callers of a method. Prefer the positional accessors in loops.
+     *
+     * @param callee method index
+     * @return a map (Key: caller method index. Value: number of calls), sorted by caller, empty if
+     *         there is no caller
+     */
+    public Map<Integer, Integer> getCallers(int callee) {
+        Map<Integer, Integer> res = new LinkedHashMap<>();
+        if(hasCallers(callee)) {
+            for(int i = offsets[callee]; i < offsets[callee + 1]; i++) {
+                res.put(callers[i], counts[i]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Call graph builder. Calls are appended to flat arrays, then grouped by callee with counting
+     * sorts in {@link #build()}.
+     */
+    public static class Builder {
+        private final int methodCount;
+        private int[] edgeCallers = new int[256];
+        private int[] edgeCallees = new int[256];
+        private int size;
+
+        /**
+         * @param methodCount number of methods of the dex unit: method indexes are in [0,
+         *            methodCount)
+         */
+        public Builder(int methodCount) {
+            this.methodCount = methodCount;
+        }
+
+        /**
+         * Record one call. Calls with an invalid method index are ignored.
+         */
+        public void addCall(int caller, int callee) {
+            if(caller < 0 || caller >= methodCount || callee < 0 || callee >= methodCount) {
+                return;
+            }
+            if(size == edgeCallers.length) {
+                edgeCallers = Arrays.copyOf(edgeCallers, size * 2);
+                edgeCallees = Arrays.copyOf(edgeCallees, size * 2);
+            }
+            edgeCallers[size] = caller;
+            edgeCallees[size] = callee;
+            size++;
+        }
+
+        /**
+         * Record all method invocations of a method.
+         *
+         * @param ci code of the caller
+         * @param caller caller method index
+         */
+        public void addCalls(IDexCodeItem ci, int caller) {
+            for(IDalvikInstruction insn: ci.getInstructions()) {
+                if(!OpcodeInfo.get(insn).isInvoke()
+                        || insn.getParameterFirstIndexType() != IDalvikInstruction.INDEX_TO_METHOD) {
+                    continue;
+                }
+                for(IDalvikInstructionParameter param: insn.getParameters()) {
+                    if(param.getType() == IDalvikInstruction.TYPE_IDX) {
+                        addCall(caller, (int)param.getValue());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Same as {@link #addCalls(IDexCodeItem, int)}, for instructions decoded without JEB.
+         *
+         * @param insns code of the caller
+         * @param caller caller method index
+         */
+        public void addCalls(DalvikInstructions insns, int caller) {
+            addCalls(insns, caller, null);
+        }
+
+        /**
+         * Same as {@link #addCalls(DalvikInstructions, int)}, for a graph whose method ids are not
+         * the method indexes of the instructions, such as the graph of a multi-dex artifact.
+         *
+         * @param insns code of the caller
+         * @param caller caller method id
+         * @param methodIds method id of each method index of the instructions, null if they are equal
+         */
+        public void addCalls(DalvikInstructions insns, int caller, int[] methodIds) {
+            for(int i = 0; i < insns.size(); i++) {
+                OpcodeInfo info = insns.getOpcode(i);
+                // call sites are not method indexes
+                if(!info.isInvoke() || info.getMnemonic().startsWith("invoke-custom")) {
+                    continue;
+                }
+                for(int j = 0; j < insns.getParameterCount(i); j++) {
+                    if(insns.getParameterType(i, j) == IDalvikInstruction.TYPE_IDX) {
+                        int callee = (int)insns.getParameterValue(i, j);
+                        if(methodIds != null) {
+                            if(callee < 0 || callee >= methodIds.length) {
+                                continue;
+                            }
+                            callee = methodIds[callee];
+                        }
+                        addCall(caller, callee);
+                    }
+                }
+            }
+        }
+
+        public CallGraph build() {
+            // sort by caller, then (stable) by callee: callers are sorted within each row
+            int[] byCaller = countingSort(edgeCallers, null);
+            int[] order = countingSort(edgeCallees, byCaller);
+
+            int[] offsets = new int[methodCount + 1];
+            int[] callers = new int[size];
+            int[] counts = new int[size];
+            int n = 0;
+            int prevCaller = -1;
+            int prevCallee = -1;
+            for(int i = 0; i < size; i++) {
+                int e = order[i];
+                int caller = edgeCallers[e];
+                int callee = edgeCallees[e];
+                if(caller == prevCaller && callee == prevCallee) {
+                    counts[n - 1]++;
+                    continue;
+                }
+                callers[n] = caller;
+                counts[n] = 1;
+                offsets[callee + 1]++;
+                n++;
+                prevCaller = caller;
+                prevCallee = callee;
+            }
+            for(int i = 0; i < methodCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            return new CallGraph(methodCount, offsets, Arrays.copyOf(callers, n), Arrays.copyOf(counts, n));
+        }
+
+        /**
+         * Stable counting sort of edge indexes.
+         *
+         * @param keys key of each edge, in [0, methodCount)
+         * @param input edge indexes to sort, null for natural order
+         * @return sorted edge indexes
+         */
+        private int[] countingSort(int[] keys, int[] input) {
+            int[] start = new int[methodCount + 1];
+            for(int i = 0; i < size; i++) {
+                start[keys[i] + 1]++;
+            }
+            for(int i = 0; i < methodCount; i++) {
+                start[i + 1] += start[i];
+            }
+            int[] output = new int[size];
+            for(int i = 0; i < size; i++) {
+                int e = input == null ? i: input[i];
+                output[start[keys[e]]++] = e;
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of the method signatures referenced by the caller column, to avoid repeating full
+ * signatures on each line. Entries are stored in signature files as header lines
+ * <code>;d=&lt;method signature&gt;</code>, the id of an entry being its rank among these lines.
+ * Caller columns then reference entries as <code>@&lt;id&gt;=&lt;count&gt;</code> instead of
+ * <code>&lt;method signature&gt;=&lt;count&gt;</code>; both forms may be mixed.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class CallerDictionary {
+
+    /** header marker of dictionary lines (without leading ';') */
+    public static final String MARKER = "d=";
+
+    /** prefix of a reference to a dictionary entry */
+    public static final char REFERENCE = '@';
+
+    private static final int CALLER_INDEX = 7;
+
+    private final List<String> signatures = new ArrayList<>();
+    /** built on demand, only needed to encode */
+    private Map<String, Integer> ids;
+
+    /**
+     * Add an entry, if not already present.
+     *
+     * @return id of the entry
+     */
+    public int add(String signature) {
+        Integer id = getIds().get(signature);
+        if(id == null) {
+            id = signatures.size();
+            signatures.add(signature);
+            ids.put(signature, id);
+        }
+        return id;
+    }
+
+    private Map<String, Integer> getIds() {
+        if(ids == null) {
+            ids = new HashMap<>();
+            for(int i = 0; i < signatures.size(); i++) {
+                ids.put(signatures.get(i), i);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return method signature, null if the id is unknown
+     */
+    public String get(int id) {
+        return id >= 0 && id < signatures.size() ? signatures.get(id): null;
+    }
+
+    public int size() {
+        return signatures.size();
+    }
+
+    public boolean isEmpty() {
+        return signatures.isEmpty();
+    }
+
+    /**
+     * Read a header line.
+     *
+     * @param header header line content, without the leading ';'
+     * @return true if the line is a dictionary entry
+     */
+    public boolean parseHeader(String header) {
+        if(!header.startsWith(MARKER)) {
+            return false;
+        }
+        // entries are never removed: append without lookup map
+        signatures.add(header.substring(MARKER.length()));
+        ids = null;
+        return true;
+    }
+
+    /**
+     * @return header line content of an entry, without the leading ';'
+     */
+    public String formatHeader(int id) {
+        return MARKER + signatures.get(id);
+    }
+
+    /**
+     * Resolve one caller reference.
+     *
+     * @param caller method signature or reference to an entry (<code>@id</code>)
+     * @return method signature, the caller itself if it is not a valid reference
+     */
+    public String resolve(String caller) {
+        if(caller.isEmpty() || caller.charAt(0) != REFERENCE) {
+            return caller;
+        }
+        try {
+            String signature = get(Integer.parseInt(caller.substring(1)));
+            return signature == null ? caller: signature;
+        }
+        catch(NumberFormatException e) {
+            return caller;
+        }
+    }
+
+    /**
+     * Replace the known method signatures of a caller column by references.
+     *
+     * @param callers caller column: <code>signature=count</code> entries separated by '|'
+     */
+    public String encode(String callers) {
+        if(callers.isEmpty() || signatures.isEmpty()) {
+            return callers;
+        }
+        StringBuilder sb = new StringBuilder(callers.length());
+        for(String caller: callers.split("\\|")) {
+            if(sb.length() != 0) {
+                sb.append('|');
+            }
+            int index = caller.lastIndexOf('=');
+            Integer id = index < 0 ? null: getIds().get(caller.substring(0, index));
+            if(id == null) {
+                sb.append(caller);
+            }
+            else {
+                sb.append(REFERENCE).append(id).append(caller, index, caller.length());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace references of a caller column by method signatures.
+     *
+     * @param callers caller column: <code>signature=count</code> or <code>@id=count</code> entries
+     *            separated by '|'
+     */
+    public String decode(String callers) {
+        if(callers.indexOf(REFERENCE) < 0) {
+            return callers;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String caller: callers.split("\\|")) {
+            if(sb.length() != 0) {
+                sb.append('|');
+            }
+            int index = caller.lastIndexOf('=');
+            if(index < 0) {
+                sb.append(caller);
+            }
+            else {
+                sb.append(resolve(caller.substring(0, index))).append(caller, index, caller.length());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encode the caller column of a signature line. Metadata lines (<code>&lt;parent&gt;</code>),
+     * which do not store callers, and header lines are unchanged.
+     */
+    public String encodeLine(String line) {
+        return transformLine(line, true);
+    }
+
+    /**
+     * Decode the caller column of a signature line, see {@link #encodeLine(String)}.
+     */
+    public String decodeLine(String line) {
+        return transformLine(line, false);
+    }
+
+    private String transformLine(String line, boolean encode) {
+        if(line.startsWith(";") || signatures.isEmpty()) {
+            return line;
+        }
+        int start = 0;
+        for(int i = 0; i < CALLER_INDEX; i++) {
+            start = line.indexOf(',', start) + 1;
+            if(start == 0) {
+                return line;
+            }
+            if(i == 0 && line.startsWith("<parent>,", start)) {
+                return line;
+            }
+        }
+        int end = line.indexOf(',', start);
+        if(end < 0) {
+            end = line.length();
+        }
+        String callers = line.substring(start, end);
+        String transformed = encode ? encode(callers): decode(callers);
+        if(transformed.equals(callers)) {
+            return line;
+        }
+        return line.substring(0, start) + transformed + line.substring(end);
+    }
+}
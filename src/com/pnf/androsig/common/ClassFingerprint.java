@@ -0,0 +1,114 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Structural fingerprint of a class: digest of the sorted multiset of the tight hashcodes of its
+ * methods (with code) and of their number. Two classes share a fingerprint when their method bodies
+ * are identical, regardless of method order and names, so that an unmodified library class can be
+ * found with a single lookup.
+ * <p>
+ * Fingerprints are stored in signature files as header lines
+ * <code>;class=&lt;classname&gt;,&lt;method count&gt;,&lt;fingerprint&gt;</code>, ignored by older
+ * readers. They are only generated on demand (see
+ * {@link com.pnf.androsig.gen.DexProcessor#EXT_CLASS_FINGERPRINTS}).
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class ClassFingerprint {
+
+    /** header marker of fingerprint lines (without leading ';') */
+    public static final String MARKER = "class=";
+
+    /** classes with fewer methods are too generic to be identified by their fingerprint */
+    public static final int MIN_METHODS = 3;
+
+    private final String className;
+    private final int methodCount;
+    private final MethodHash fingerprint;
+
+    public ClassFingerprint(String className, int methodCount, MethodHash fingerprint) {
+        this.className = className;
+        this.methodCount = methodCount;
+        this.fingerprint = fingerprint;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public MethodHash getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Compute the fingerprint of a class.
+     *
+     * @param algorithm digest algorithm, must be the algorithm of the hashcodes
+     * @param tightHashcodes tight hashcodes of the methods with code
+     * @return the fingerprint, null if there are fewer than {@link #MIN_METHODS} hashcodes
+     */
+    public static MethodHash compute(HashAlgorithm algorithm, Collection<MethodHash> tightHashcodes) {
+        if(tightHashcodes.size() < MIN_METHODS) {
+            return null;
+        }
+        List<MethodHash> sorted = new ArrayList<>(tightHashcodes);
+        Collections.sort(sorted);
+        MethodHasher hasher = MethodHasher.get(algorithm, 0);
+        hasher.append(sorted.size());
+        for(MethodHash h: sorted) {
+            hasher.append('|').append(h.toHex());
+        }
+        return hasher.digestHash();
+    }
+
+    /**
+     * @return header line content, without the leading ';'
+     */
+    public String format() {
+        return MARKER + className + "," + methodCount + "," + fingerprint.toHex();
+    }
+
+    /**
+     * Parse a header line built by {@link #format()}.
+     *
+     * @param line header line content, without the leading ';'
+     * @param algorithm hashcode algorithm of the signature file
+     * @return the fingerprint, null if the line is not a valid fingerprint line
+     */
+    public static ClassFingerprint parse(String line, HashAlgorithm algorithm) {
+        if(!line.startsWith(MARKER)) {
+            return null;
+        }
+        int hashSep = line.lastIndexOf(',');
+        int countSep = hashSep <= 0 ? -1: line.lastIndexOf(',', hashSep - 1);
+        if(countSep <= MARKER.length()) {
+            return null;
+        }
+        int methodCount;
+        try {
+            methodCount = Integer.parseInt(line.substring(countSep + 1, hashSep));
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+        MethodHash fingerprint = MethodHash.fromHex(algorithm, line.substring(hashSep + 1).trim());
+        if(fingerprint == null) {
+            return null;
+        }
+        return new ClassFingerprint(line.substring(MARKER.length(), countSep), methodCount, fingerprint);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.util.Arrays;
+
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstructionParameter;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
+
+/**
+ * Decoded instructions of a method, independent from JEB units: opcodes and parameters are stored
+ * in flat arrays, so that a list can be reused from one method to the next. Parameters follow the
+ * model of {@link IDalvikInstruction#getParameters()} (same types and values), so that hashcodes
+ * computed by {@link SignatureHandler} are identical for both representations.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DalvikInstructions {
+
+    private int size;
+    private OpcodeInfo[] opcodes = new OpcodeInfo[64];
+    /** size + 1 entries: parameters of instruction i are [paramStarts[i], paramStarts[i + 1]) */
+    private int[] paramStarts = new int[65];
+    private int paramCount;
+    private int[] paramTypes = new int[128];
+    private long[] paramValues = new long[128];
+
+    /**
+     * Remove all instructions.
+     */
+    public void clear() {
+        size = 0;
+        paramCount = 0;
+    }
+
+    /**
+     * Append an instruction. Its parameters are appended next, with
+     * {@link #addParameter(int, long)}.
+     */
+    public void add(OpcodeInfo opcode) {
+        if(size == opcodes.length) {
+            int capacity = Math.max(16, size * 2);
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            paramStarts = Arrays.copyOf(paramStarts, capacity + 1);
+        }
+        opcodes[size] = opcode;
+        paramStarts[size] = paramCount;
+        size++;
+        paramStarts[size] = paramCount;
+    }
+
+    /**
+     * Append the instructions of a JEB code item, with their parameters.
+     *
+     * @param ci code item of a method
+     */
+    public void addAll(IDexCodeItem ci) {
+        for(IDalvikInstruction insn: ci.getInstructions()) {
+            add(OpcodeInfo.get(insn));
+            for(IDalvikInstructionParameter param: insn.getParameters()) {
+                addParameter(param.getType(), param.getValue());
+            }
+        }
+    }
+
+    /**
+     * Append a parameter to the last instruction.
+     *
+     * @param type one of the <code>IDalvikInstruction.TYPE_xxx</code> constants
+     * @param value parameter value, as <code>IDalvikInstructionParameter.getValue()</code>
+     */
+    public void addParameter(int type, long value) {
+        if(paramCount == paramTypes.length) {
+            int capacity = Math.max(16, paramCount * 2);
+            paramTypes = Arrays.copyOf(paramTypes, capacity);
+            paramValues = Arrays.copyOf(paramValues, capacity);
+        }
+        paramTypes[paramCount] = type;
+        paramValues[paramCount] = value;
+        paramCount++;
+        paramStarts[size] = paramCount;
+    }
+
+    /**
+     * Release the unused capacity, for lists kept once filled.
+     */
+    public void trimToSize() {
+        opcodes = Arrays.copyOf(opcodes, size);
+        paramStarts = Arrays.copyOf(paramStarts, size + 1);
+        paramTypes = Arrays.copyOf(paramTypes, paramCount);
+        paramValues = Arrays.copyOf(paramValues, paramCount);
+    }
+
+    /**
+     * @return number of instructions
+     */
+    public int size() {
+        return size;
+    }
+
+    public OpcodeInfo getOpcode(int index) {
+        return opcodes[index];
+    }
+
+    public int getParameterCount(int index) {
+        return paramStarts[index + 1] - paramStarts[index];
+    }
+
+    public int getParameterType(int index, int param) {
+        return paramTypes[paramStarts[index] + param];
+    }
+
+    public long getParameterValue(int index, int param) {
+        return paramValues[paramStarts[index] + param];
+    }
+}
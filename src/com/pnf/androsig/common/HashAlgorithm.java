@@ -0,0 +1,118 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest algorithms used to compute method hashcodes. The algorithm of a signature file is stored
+ * in its <code>;hash=</code> header; files without this header use {@link #SHA256}.
+ * <p>
+ * Hashcodes only identify opcode sequences, a cryptographic digest is not required: prefer
+ * {@link #MURMUR3_128} for new signature files when compatibility with older plugin versions does
+ * not matter.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public enum HashAlgorithm {
+    SHA256(0, "sha256", 32),
+    MURMUR3_128(1, "murmur3-128", 16);
+
+    /** algorithm of signature files without <code>;hash=</code> header */
+    public static final HashAlgorithm DEFAULT = SHA256;
+
+    private final int id;
+    private final String name;
+    private final int size;
+
+    private HashAlgorithm(int id, String name, int size) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+    }
+
+    /**
+     * @return stable identifier, used in binary files
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return name, as stored in the <code>;hash=</code> header
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return size of the hashcodes, in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public MessageDigest newDigest() {
+        if(this == MURMUR3_128) {
+            return new Murmur3Digest();
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param name algorithm name (case insensitive)
+     * @return algorithm, null if unknown
+     */
+    public static HashAlgorithm fromName(String name) {
+        if(name == null) {
+            return null;
+        }
+        for(HashAlgorithm algo: values()) {
+            if(algo.name.equalsIgnoreCase(name.trim())) {
+                return algo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id algorithm identifier
+     * @return algorithm, null if unknown
+     */
+    public static HashAlgorithm fromId(int id) {
+        for(HashAlgorithm algo: values()) {
+            if(algo.id == id) {
+                return algo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param size size of a hashcode, in bytes
+     * @return algorithm producing hashcodes of this size, null if none
+     */
+    public static HashAlgorithm fromSize(int size) {
+        for(HashAlgorithm algo: values()) {
+            if(algo.size == size) {
+                return algo;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
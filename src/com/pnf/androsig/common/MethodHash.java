@@ -0,0 +1,206 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+/**
+ * Immutable method hashcode (tight or loose), stored in binary form. Hashcodes are represented as
+ * lowercase hexadecimal strings in signature files only; use this class as key everywhere else.
+ * <p>
+ * Hashcodes produced by different {@link HashAlgorithm}s are never equal.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public final class MethodHash implements Comparable<MethodHash> {
+
+    /** maximum size of a hashcode, in bytes */
+    public static final int MAX_SIZE = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final HashAlgorithm algorithm;
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+
+    public MethodHash(HashAlgorithm algorithm, long h0, long h1, long h2, long h3) {
+        this.algorithm = algorithm;
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+    }
+
+    /**
+     * Build a hashcode from a digest.
+     *
+     * @param algorithm algorithm which produced the digest
+     * @param digest digest of {@link HashAlgorithm#getSize()} bytes
+     * @return hashcode
+     */
+    public static MethodHash fromBytes(HashAlgorithm algorithm, byte[] digest) {
+        if(digest.length != algorithm.getSize()) {
+            throw new IllegalArgumentException("Illegal digest size: " + digest.length);
+        }
+        return fromBytes(algorithm, digest, 0);
+    }
+
+    /**
+     * Build a hashcode from a buffer.
+     *
+     * @param algorithm algorithm which produced the digest
+     * @param data buffer containing at least {@link HashAlgorithm#getSize()} bytes from offset
+     * @param offset start offset of the digest
+     * @return hashcode
+     */
+    public static MethodHash fromBytes(HashAlgorithm algorithm, byte[] data, int offset) {
+        long[] words = new long[MAX_SIZE / 8];
+        for(int i = 0; i < algorithm.getSize(); i++) {
+            words[i >> 3] = (words[i >> 3] << 8) | (data[offset + i] & 0xFF);
+        }
+        return new MethodHash(algorithm, words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * Parse an hexadecimal hashcode. The algorithm is determined by the hashcode length.
+     *
+     * @param hex hexadecimal representation (case insensitive)
+     * @return hashcode, null if the string is null, empty or does not represent a hashcode
+     */
+    public static MethodHash fromHex(CharSequence hex) {
+        if(hex == null) {
+            return null;
+        }
+        HashAlgorithm algorithm = HashAlgorithm.fromSize(hex.length() / 2);
+        return algorithm == null ? null: fromHex(algorithm, hex);
+    }
+
+    /**
+     * Parse an hexadecimal hashcode.
+     *
+     * @param algorithm expected algorithm
+     * @param hex hexadecimal representation (case insensitive)
+     * @return hashcode, null if the string is null, empty or does not represent a hashcode of this
+     *         algorithm
+     */
+    public static MethodHash fromHex(HashAlgorithm algorithm, CharSequence hex) {
+        if(hex == null || hex.length() != 2 * algorithm.getSize()) {
+            return null;
+        }
+        long[] words = new long[MAX_SIZE / 8];
+        for(int i = 0; i < hex.length(); i++) {
+            int v = hexValue(hex.charAt(i));
+            if(v < 0) {
+                return null;
+            }
+            words[i >> 4] = (words[i >> 4] << 4) | v;
+        }
+        return new MethodHash(algorithm, words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * Parse an hexadecimal hashcode stored as ASCII bytes, without intermediate String.
+     *
+     * @param algorithm expected algorithm
+     * @param data buffer
+     * @param start start offset (inclusive)
+     * @param end end offset (exclusive)
+     * @return hashcode, null if the range does not represent a hashcode of this algorithm
+     */
+    public static MethodHash fromHex(HashAlgorithm algorithm, byte[] data, int start, int end) {
+        if(end - start != 2 * algorithm.getSize()) {
+            return null;
+        }
+        long[] words = new long[MAX_SIZE / 8];
+        for(int i = 0; i < end - start; i++) {
+            int v = hexValue((char)data[start + i]);
+            if(v < 0) {
+                return null;
+            }
+            words[i >> 4] = (words[i >> 4] << 4) | v;
+        }
+        return new MethodHash(algorithm, words[0], words[1], words[2], words[3]);
+    }
+
+    private static int hexValue(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if(c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return lowercase hexadecimal representation, as stored in signature files
+     */
+    public String toHex() {
+        char[] chars = new char[2 * algorithm.getSize()];
+        long[] words = {h0, h1, h2, h3};
+        for(int i = 0; i < chars.length; i++) {
+            chars[i] = HEX[(int)(words[i >> 4] >>> (60 - 4 * (i & 15))) & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public byte[] toBytes() {
+        byte[] b = new byte[algorithm.getSize()];
+        long[] words = {h0, h1, h2, h3};
+        for(int i = 0; i < b.length; i++) {
+            b[i] = (byte)(words[i >> 3] >>> (56 - 8 * (i & 7)));
+        }
+        return b;
+    }
+
+    @Override
+    public int hashCode() {
+        // digest bits are uniformly distributed
+        return (int)(h0 ^ (h0 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj)
+            return true;
+        if(!(obj instanceof MethodHash))
+            return false;
+        MethodHash other = (MethodHash)obj;
+        return h0 == other.h0 && h1 == other.h1 && h2 == other.h2 && h3 == other.h3
+                && algorithm == other.algorithm;
+    }
+
+    @Override
+    public int compareTo(MethodHash o) {
+        int c = algorithm.compareTo(o.algorithm);
+        if(c == 0) {
+            c = Long.compareUnsigned(h0, o.h0);
+            if(c == 0) {
+                c = Long.compareUnsigned(h1, o.h1);
+                if(c == 0) {
+                    c = Long.compareUnsigned(h2, o.h2);
+                    if(c == 0) {
+                        c = Long.compareUnsigned(h3, o.h3);
+                    }
+                }
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Streaming method hasher. Tokens (ASCII only) are written to a small internal buffer which is
+ * flushed to a reused {@link MessageDigest} (see {@link HashAlgorithm}), so that no intermediate
+ * string is built for a method.
+ * The result is byte-identical to hashing the concatenated tokens at once.
+ * <p>
+ * Instances are not thread-safe; use {@link #get()} to retrieve an instance bound to the current
+ * thread.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class MethodHasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** number of hashers available per thread, see {@link #get(int)} */
+    public static final int SLOT_COUNT = 2;
+
+    private static final ThreadLocal<MethodHasher[][]> instances = new ThreadLocal<MethodHasher[][]>() {
+        @Override
+        protected MethodHasher[][] initialValue() {
+            return new MethodHasher[HashAlgorithm.values().length][SLOT_COUNT];
+        }
+    };
+
+    private final HashAlgorithm algorithm;
+    private final MessageDigest md;
+    private final byte[] buffer = new byte[512];
+    private int pos;
+    private final char[] hexChars;
+    private final byte[] digestBuffer;
+
+    public MethodHasher() {
+        this(HashAlgorithm.DEFAULT);
+    }
+
+    public MethodHasher(HashAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        md = algorithm.newDigest();
+        hexChars = new char[md.getDigestLength() * 2];
+        digestBuffer = new byte[md.getDigestLength()];
+    }
+
+    /**
+     * Retrieve the {@link HashAlgorithm#DEFAULT} hasher bound to the current thread. The hasher is
+     * reset.
+     *
+     * @return a ready-to-use hasher
+     */
+    public static MethodHasher get() {
+        return get(HashAlgorithm.DEFAULT, 0);
+    }
+
+    /**
+     * Same as {@link #get(HashAlgorithm, int)} for {@link HashAlgorithm#DEFAULT}.
+     */
+    public static MethodHasher get(int slot) {
+        return get(HashAlgorithm.DEFAULT, slot);
+    }
+
+    /**
+     * Retrieve one of the hashers bound to the current thread. Several slots allow computing
+     * distinct hashes at the same time. The hasher is reset.
+     *
+     * @param algorithm digest algorithm
+     * @param slot index of the hasher, in [0, {@link #SLOT_COUNT})
+     * @return a ready-to-use hasher
+     */
+    public static MethodHasher get(HashAlgorithm algorithm, int slot) {
+        MethodHasher[] hashers = instances.get()[algorithm.ordinal()];
+        MethodHasher hasher = hashers[slot];
+        if(hasher == null) {
+            hasher = new MethodHasher(algorithm);
+            hashers[slot] = hasher;
+        }
+        else {
+            hasher.reset();
+        }
+        return hasher;
+    }
+
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public void reset() {
+        pos = 0;
+        md.reset();
+    }
+
+    private void flush() {
+        if(pos > 0) {
+            md.update(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    public MethodHasher append(char c) {
+        if(pos == buffer.length) {
+            flush();
+        }
+        buffer[pos++] = (byte)c;
+        return this;
+    }
+
+    /**
+     * Append an ASCII string.
+     */
+    public MethodHasher append(String s) {
+        return append(s, 0, s.length());
+    }
+
+    /**
+     * Append a range of an ASCII string.
+     */
+    public MethodHasher append(String s, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(pos == buffer.length) {
+                flush();
+            }
+            buffer[pos++] = (byte)s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Append the decimal representation of a value, as {@link Long#toString(long)} would.
+     */
+    public MethodHasher append(long v) {
+        if(buffer.length - pos < 20) {
+            flush();
+        }
+        if(v == Long.MIN_VALUE) {
+            return append(Long.toString(v));
+        }
+        if(v < 0) {
+            buffer[pos++] = '-';
+            v = -v;
+        }
+        int start = pos;
+        do {
+            buffer[pos++] = (byte)('0' + (v % 10));
+            v /= 10;
+        }
+        while(v != 0);
+        // digits were written in reverse order
+        for(int i = start, j = pos - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+        return this;
+    }
+
+    /**
+     * Complete the hash computation. The hasher is reset.
+     *
+     * @return the digest
+     */
+    public byte[] digest() {
+        flush();
+        return md.digest();
+    }
+
+    /**
+     * Complete the hash computation. The hasher is reset.
+     *
+     * @return the digest, as a binary hashcode
+     */
+    public MethodHash digestHash() {
+        flush();
+        try {
+            md.digest(digestBuffer, 0, digestBuffer.length);
+        }
+        catch(DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return MethodHash.fromBytes(algorithm, digestBuffer, 0);
+    }
+
+    /**
+     * Complete the hash computation. The hasher is reset.
+     *
+     * @return the first 8 bytes of the digest, as a big-endian value
+     */
+    public long digestLong() {
+        flush();
+        try {
+            md.digest(digestBuffer, 0, digestBuffer.length);
+        }
+        catch(DigestException e) {
+            throw new RuntimeException(e);
+        }
+        long v = 0;
+        for(int i = 0; i < 8; i++) {
+            v = (v << 8) | (digestBuffer[i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Complete the hash computation. The hasher is reset.
+     *
+     * @return the digest, as a lowercase hexadecimal string
+     */
+    public String digestHex() {
+        flush();
+        byte[] h = md.digest();
+        for(int i = 0; i < h.length; i++) {
+            hexChars[2 * i] = HEX[(h[i] >> 4) & 0xF];
+            hexChars[2 * i + 1] = HEX[h[i] & 0xF];
+        }
+        return new String(hexChars);
+    }
+}
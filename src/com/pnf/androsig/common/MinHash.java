@@ -0,0 +1,194 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.util.Arrays;
+
+/**
+ * MinHash signature of a method, computed over the n-grams of its instruction tokens (see
+ * {@link SignatureHandler#generateMinHash}). The fraction of equal components of two signatures
+ * estimates the Jaccard similarity of their n-gram sets.
+ * <p>
+ * Signatures are split in {@link #BANDS} bands of {@link #ROWS} components for locality-sensitive
+ * hashing: two methods sharing at least one band key are near-duplicate candidates. With 4 bands of
+ * 4 rows, a pair with a similarity of 0.7 shares a band with a probability of about 0.65, a pair with
+ * a similarity of 0.3 with a probability of about 0.03.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class MinHash {
+
+    /** number of components of a signature */
+    public static final int SIZE = 16;
+    public static final int BANDS = 4;
+    public static final int ROWS = SIZE / BANDS;
+    /** n-gram length */
+    public static final int NGRAM = 3;
+
+    /** prefix of the MinHash column in signature files */
+    public static final String PREFIX = "mh:";
+
+    private static final long[] SEEDS = new long[SIZE];
+    static {
+        long seed = 0x2545F4914F6CDD1DL;
+        for(int i = 0; i < SIZE; i++) {
+            seed = fmix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private final int[] mins = new int[SIZE];
+    private final int[] window = new int[NGRAM];
+    private int tokenCount;
+    private boolean hasShingle;
+
+    public MinHash() {
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(mins, Integer.MAX_VALUE);
+        tokenCount = 0;
+        hasShingle = false;
+    }
+
+    /**
+     * Add the next token of the method.
+     *
+     * @param token token identifier (for example, the hash code of an opcode mnemonic)
+     */
+    public void add(int token) {
+        window[tokenCount % NGRAM] = token;
+        tokenCount++;
+        if(tokenCount >= NGRAM) {
+            addShingle(shingle(tokenCount));
+        }
+    }
+
+    private long shingle(int end) {
+        long h = 0;
+        for(int i = end - NGRAM; i < end; i++) {
+            h = h * 0x100000001B3L + (window[i % NGRAM] & 0xFFFFFFFFL);
+        }
+        return h;
+    }
+
+    private void addShingle(long shingle) {
+        hasShingle = true;
+        for(int i = 0; i < SIZE; i++) {
+            int h = (int)(fmix(shingle ^ SEEDS[i]) >>> 32);
+            if(h < mins[i]) {
+                mins[i] = h;
+            }
+        }
+    }
+
+    /**
+     * Complete the computation. Methods shorter than {@link #NGRAM} tokens are represented by a
+     * single shingle of all their tokens. The instance is reset.
+     *
+     * @return the signature, null if no token was added
+     */
+    public int[] digest() {
+        if(!hasShingle && tokenCount > 0) {
+            long h = tokenCount;
+            for(int i = 0; i < tokenCount; i++) {
+                h = h * 0x100000001B3L + (window[i] & 0xFFFFFFFFL);
+            }
+            addShingle(h);
+        }
+        int[] res = hasShingle ? mins.clone(): null;
+        reset();
+        return res;
+    }
+
+    /**
+     * Estimate the similarity of two signatures.
+     *
+     * @return fraction of equal components, in [0, 1]
+     */
+    public static double similarity(int[] sig1, int[] sig2) {
+        int equals = 0;
+        for(int i = 0; i < SIZE; i++) {
+            if(sig1[i] == sig2[i]) {
+                equals++;
+            }
+        }
+        return (double)equals / SIZE;
+    }
+
+    /**
+     * Compute the LSH keys of a signature, one per band. Keys of distinct bands never collide on
+     * purpose, so that all keys can share a single index.
+     *
+     * @return {@link #BANDS} keys
+     */
+    public static long[] getBandKeys(int[] sig) {
+        long[] keys = new long[BANDS];
+        for(int b = 0; b < BANDS; b++) {
+            long h = b + 1;
+            for(int r = 0; r < ROWS; r++) {
+                h = fmix(h * 31 + (sig[b * ROWS + r] & 0xFFFFFFFFL));
+            }
+            keys[b] = h;
+        }
+        return keys;
+    }
+
+    /**
+     * Format a signature as a signature file column: {@link #PREFIX} followed by {@link #SIZE}
+     * 8-digit hexadecimal values.
+     */
+    public static String format(int[] sig) {
+        if(sig == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(PREFIX.length() + SIZE * 8);
+        sb.append(PREFIX);
+        for(int v: sig) {
+            String hex = Integer.toHexString(v);
+            for(int j = hex.length(); j < 8; j++) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a column built by {@link #format(int[])}.
+     *
+     * @return the signature, null if the column does not contain a valid signature
+     */
+    public static int[] parse(String column) {
+        if(column == null || column.length() != PREFIX.length() + SIZE * 8 || !column.startsWith(PREFIX)) {
+            return null;
+        }
+        int[] sig = new int[SIZE];
+        for(int i = 0; i < SIZE; i++) {
+            int start = PREFIX.length() + 8 * i;
+            try {
+                sig[i] = Integer.parseUnsignedInt(column.substring(start, start + 8), 16);
+            }
+            catch(NumberFormatException e) {
+                return null;
+            }
+        }
+        return sig;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
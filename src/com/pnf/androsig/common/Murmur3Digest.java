@@ -0,0 +1,179 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Streaming implementation of MurmurHash3 (x64, 128-bit variant). The 16-byte digest is the
+ * little-endian encoding of h1 followed by h2, as in the reference implementation.
+ * <p>
+ * This is not a cryptographic digest. It is only used to identify opcode sequences.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class Murmur3Digest extends MessageDigest {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long seed;
+    private long h1;
+    private long h2;
+    private long length;
+    private final byte[] tail = new byte[16];
+    private int tailLength;
+
+    public Murmur3Digest() {
+        this(0);
+    }
+
+    public Murmur3Digest(long seed) {
+        super("Murmur3-128");
+        this.seed = seed & 0xFFFFFFFFL;
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineReset() {
+        h1 = seed;
+        h2 = seed;
+        length = 0;
+        tailLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        tail[tailLength++] = input;
+        length++;
+        if(tailLength == 16) {
+            processBlock(tail, 0);
+            tailLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        length += len;
+        int end = offset + len;
+        if(tailLength > 0) {
+            int n = Math.min(16 - tailLength, len);
+            System.arraycopy(input, offset, tail, tailLength, n);
+            tailLength += n;
+            offset += n;
+            if(tailLength < 16) {
+                return;
+            }
+            processBlock(tail, 0);
+            tailLength = 0;
+        }
+        for(; offset + 16 <= end; offset += 16) {
+            processBlock(input, offset);
+        }
+        tailLength = end - offset;
+        System.arraycopy(input, offset, tail, 0, tailLength);
+    }
+
+    private void processBlock(byte[] b, int offset) {
+        long k1 = getLong(b, offset);
+        long k2 = getLong(b, offset + 8);
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long v = 0;
+        for(int i = 7; i >= 0; i--) {
+            v = (v << 8) | (b[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        byte[] out = new byte[16];
+        try {
+            engineDigest(out, 0, out.length);
+        }
+        catch(DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return out;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+        if(len < 16) {
+            throw new DigestException("Buffer too short");
+        }
+        long k1 = 0;
+        long k2 = 0;
+        for(int i = tailLength - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (tail[i] & 0xFF);
+        }
+        for(int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (tail[i] & 0xFF);
+        }
+        if(tailLength > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if(tailLength > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        for(int i = 0; i < 8; i++) {
+            buf[offset + i] = (byte)(h1 >>> (8 * i));
+            buf[offset + 8 + i] = (byte)(h2 >>> (8 * i));
+        }
+        engineReset();
+        return 16;
+    }
+}
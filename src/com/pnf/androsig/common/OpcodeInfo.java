@@ -0,0 +1,199 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+
+/**
+ * Hashing classification of a Dalvik opcode. Entries of the 256 Dalvik opcodes are built once, in a
+ * static table indexed by opcode, so that hashers only look up the opcode of each instruction.
+ * <p>
+ * Loose hash rules (see {@link SignatureHandler#generateLooseHashcode}):
+ * <ul>
+ * <li>{@link #SKIP}: mnemonic contains "move" or "const", instruction is not hashed</li>
+ * <li>{@link #GOTO}: mnemonic contains "goto", only "goto" is recorded</li>
+ * <li>{@link #STRIP}: mnemonic contains "/", only the part before "/" is recorded</li>
+ * <li>{@link #KEEP}: mnemonic is recorded as is</li>
+ * </ul>
+ * Basic blocks (see {@link SignatureHandler#generateBlockHashcodes}) end after branch, switch,
+ * return and throw instructions.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class OpcodeInfo {
+
+    public static final int KEEP = 0;
+    public static final int SKIP = 1;
+    public static final int GOTO = 2;
+    public static final int STRIP = 3;
+
+    private static final OpcodeInfo[] table = new OpcodeInfo[256];
+
+    static {
+        op(0x00, "nop");
+        ops(0x01, "move", "move/from16", "move/16", "move-wide", "move-wide/from16", "move-wide/16", "move-object",
+                "move-object/from16", "move-object/16", "move-result", "move-result-wide", "move-result-object",
+                "move-exception");
+        ops(0x0E, "return-void", "return", "return-wide", "return-object");
+        ops(0x12, "const/4", "const/16", "const", "const/high16", "const-wide/16", "const-wide/32", "const-wide",
+                "const-wide/high16", "const-string", "const-string/jumbo", "const-class");
+        ops(0x1D, "monitor-enter", "monitor-exit", "check-cast", "instance-of", "array-length", "new-instance",
+                "new-array", "filled-new-array", "filled-new-array/range", "fill-array-data", "throw");
+        ops(0x28, "goto", "goto/16", "goto/32", "packed-switch", "sparse-switch");
+        ops(0x2D, "cmpl-float", "cmpg-float", "cmpl-double", "cmpg-double", "cmp-long");
+        ops(0x32, "if-eq", "if-ne", "if-lt", "if-ge", "if-gt", "if-le", "if-eqz", "if-nez", "if-ltz", "if-gez",
+                "if-gtz", "if-lez");
+        String[] types = {"", "-wide", "-object", "-boolean", "-byte", "-char", "-short"};
+        for(int i = 0; i < types.length; i++) {
+            op(0x44 + i, "aget" + types[i]);
+            op(0x4B + i, "aput" + types[i]);
+            op(0x52 + i, "iget" + types[i]);
+            op(0x59 + i, "iput" + types[i]);
+            op(0x60 + i, "sget" + types[i]);
+            op(0x67 + i, "sput" + types[i]);
+        }
+        String[] kinds = {"virtual", "super", "direct", "static", "interface"};
+        for(int i = 0; i < kinds.length; i++) {
+            op(0x6E + i, "invoke-" + kinds[i]);
+            op(0x74 + i, "invoke-" + kinds[i] + "/range");
+        }
+        ops(0x7B, "neg-int", "not-int", "neg-long", "not-long", "neg-float", "neg-double", "int-to-long",
+                "int-to-float", "int-to-double", "long-to-int", "long-to-float", "long-to-double", "float-to-int",
+                "float-to-long", "float-to-double", "double-to-int", "double-to-long", "double-to-float",
+                "int-to-byte", "int-to-char", "int-to-short");
+        String[] binops = {"add-int", "sub-int", "mul-int", "div-int", "rem-int", "and-int", "or-int", "xor-int",
+                "shl-int", "shr-int", "ushr-int", "add-long", "sub-long", "mul-long", "div-long", "rem-long",
+                "and-long", "or-long", "xor-long", "shl-long", "shr-long", "ushr-long", "add-float", "sub-float",
+                "mul-float", "div-float", "rem-float", "add-double", "sub-double", "mul-double", "div-double",
+                "rem-double"};
+        for(int i = 0; i < binops.length; i++) {
+            op(0x90 + i, binops[i]);
+            op(0xB0 + i, binops[i] + "/2addr");
+        }
+        ops(0xD0, "add-int/lit16", "rsub-int", "mul-int/lit16", "div-int/lit16", "rem-int/lit16", "and-int/lit16",
+                "or-int/lit16", "xor-int/lit16");
+        ops(0xD8, "add-int/lit8", "rsub-int/lit8", "mul-int/lit8", "div-int/lit8", "rem-int/lit8", "and-int/lit8",
+                "or-int/lit8", "xor-int/lit8", "shl-int/lit8", "shr-int/lit8", "ushr-int/lit8");
+        ops(0xFA, "invoke-polymorphic", "invoke-polymorphic/range", "invoke-custom", "invoke-custom/range",
+                "const-method-handle", "const-method-type");
+    }
+
+    private static void op(int opcode, String mnemonic) {
+        boolean invoke = opcode >= 0x6E && opcode <= 0x78 || opcode >= 0xFA && opcode <= 0xFD;
+        // return, throw, goto, switch, if
+        boolean blockEnd = opcode >= 0x0E && opcode <= 0x11 || opcode >= 0x27 && opcode <= 0x2C
+                || opcode >= 0x32 && opcode <= 0x3D;
+        table[opcode] = new OpcodeInfo(opcode, mnemonic, invoke, blockEnd);
+    }
+
+    private static void ops(int firstOpcode, String... mnemonics) {
+        for(int i = 0; i < mnemonics.length; i++) {
+            op(firstOpcode + i, mnemonics[i]);
+        }
+    }
+
+    private final int opcode;
+    private final String mnemonic;
+    private final String tightToken;
+    private final int looseKind;
+    private final String looseToken;
+    private final boolean invoke;
+    private final boolean blockEnd;
+
+    private OpcodeInfo(int opcode, String mnemonic, boolean invoke, boolean blockEnd) {
+        this.opcode = opcode;
+        this.mnemonic = mnemonic;
+        tightToken = mnemonic + ":";
+        if(mnemonic.contains("move") || mnemonic.contains("const")) {
+            looseKind = SKIP;
+            looseToken = null;
+        }
+        else if(mnemonic.contains("goto")) {
+            looseKind = GOTO;
+            looseToken = "goto:";
+        }
+        else if(mnemonic.indexOf('/') >= 0) {
+            looseKind = STRIP;
+            looseToken = mnemonic.substring(0, mnemonic.indexOf('/')) + ":";
+        }
+        else {
+            looseKind = KEEP;
+            looseToken = tightToken;
+        }
+        this.invoke = invoke;
+        this.blockEnd = blockEnd;
+    }
+
+    /**
+     * Retrieve the hashing information of an instruction.
+     *
+     * @param insn instruction
+     * @return hashing information, never null
+     */
+    public static OpcodeInfo get(IDalvikInstruction insn) {
+        int opcode = insn.getOpcode();
+        OpcodeInfo info = get(opcode);
+        if(info == null) {
+            // not a standard Dalvik opcode (optimized dex): classified from its mnemonic
+            String mnemonic = insn.getMnemonic();
+            info = new OpcodeInfo(opcode, mnemonic, mnemonic.contains("invoke"),
+                    mnemonic.startsWith("goto") || mnemonic.startsWith("if-") || mnemonic.startsWith("return")
+                            || mnemonic.equals("throw") || mnemonic.endsWith("-switch"));
+        }
+        return info;
+    }
+
+    /**
+     * Retrieve the hashing information for an opcode.
+     *
+     * @param opcode Dalvik opcode
+     * @return hashing information, null if the opcode is not a standard Dalvik opcode
+     */
+    public static OpcodeInfo get(int opcode) {
+        return opcode >= 0 && opcode < table.length ? table[opcode]: null;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public String getMnemonic() {
+        return mnemonic;
+    }
+
+    /**
+     * @return the mnemonic followed by ':'
+     */
+    public String getTightToken() {
+        return tightToken;
+    }
+
+    /**
+     * @return one of {@link #KEEP}, {@link #SKIP}, {@link #GOTO}, {@link #STRIP}
+     */
+    public int getLooseKind() {
+        return looseKind;
+    }
+
+    /**
+     * @return the loose mnemonic followed by ':', null for {@link #SKIP}ped opcodes
+     */
+    public String getLooseToken() {
+        return looseToken;
+    }
+
+    public boolean isInvoke() {
+        return invoke;
+    }
+
+    /**
+     * @return true if the instruction terminates a basic block
+     */
+    public boolean isBlockEnd() {
+        return blockEnd;
+    }
+}
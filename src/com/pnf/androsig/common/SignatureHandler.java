@@ -2,23 +2,27 @@ package com.pnf.androsig.common;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 import com.pnfsoftware.jeb.core.IEnginesContext;
-import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstructionParameter;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
-import com.pnfsoftware.jeb.util.format.Formatter;
 
 public class SignatureHandler {
+    /** prefix of the basic-block hashcodes column */
+    public static final String BLOCKS_PREFIX = "bb:";
+
+    /** smaller basic blocks are too common to identify a method */
+    public static final int MIN_BLOCK_SIZE = 2;
+
+    /**
+     * Version of the hashing rules (instruction tokens of {@link OpcodeInfo}, hashed parameters): to
+     * be incremented whenever the hashcodes of a method change, so that stored hashcodes computed by
+     * earlier rules are not reused.
+     */
+    public static final int HASHING_VERSION = 1;
+
     /**
      * Generate tight hashcode for each method.
      * Combine all instructions of the method to a string and use SHA-256 hash function to generate hashcode.
@@ -27,31 +31,38 @@ public class SignatureHandler {
      * @return tight hashcode
      */
     public static String generateTightHashcode(IDexCodeItem ci) {
-        StringBuilder sig = new StringBuilder();
+        MethodHasher sig = MethodHasher.get();
         for(IDalvikInstruction insn: ci.getInstructions()) {
-            sig.append(insn.getMnemonic()).append(":");
-            // note: array- and switch-data are disregarded
-            for(IDalvikInstructionParameter param: insn.getParameters()) {
-                int pt = param.getType();
-                sig.append(pt).append(',');
-                if(pt == IDalvikInstruction.TYPE_IDX || pt == IDalvikInstruction.TYPE_REG) {
-                    sig.append("x,"); // disregard pool indexes;
-                }
-                else {
-                    sig.append(param.getValue()).append(',');
-                }
-            }
-            sig.append(" ");
+            appendTight(sig, OpcodeInfo.get(insn), insn.getParameters());
+        }
+        return sig.digestHex();
+    }
+
+    private static void appendTight(MethodHasher sig, OpcodeInfo info, IDalvikInstructionParameter[] params) {
+        sig.append(info.getTightToken());
+        // note: array- and switch-data are disregarded
+        for(IDalvikInstructionParameter param: params) {
+            appendTightParameter(sig, param.getType(), param.getValue());
+        }
+        sig.append(' ');
+    }
+
+    private static void appendTight(MethodHasher sig, DalvikInstructions insns, int index) {
+        sig.append(insns.getOpcode(index).getTightToken());
+        for(int i = 0; i < insns.getParameterCount(index); i++) {
+            appendTightParameter(sig, insns.getParameterType(index, i), insns.getParameterValue(index, i));
         }
-        byte[] h;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            h = md.digest(sig.toString().getBytes());
+        sig.append(' ');
+    }
+
+    private static void appendTightParameter(MethodHasher sig, int pt, long value) {
+        sig.append(pt).append(',');
+        if(pt == IDalvikInstruction.TYPE_IDX || pt == IDalvikInstruction.TYPE_REG) {
+            sig.append("x,"); // disregard pool indexes;
         }
-        catch(NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        else {
+            sig.append(value).append(',');
         }
-        return Formatter.byteArrayToHexString(h).toLowerCase();
     }
 
     /**
@@ -67,153 +78,341 @@ public class SignatureHandler {
      * @return loose hashcode
      */
     public static String generateLooseHashcode(IDexCodeItem ci) {
-        StringBuilder sig = new StringBuilder();
+        MethodHasher sig = MethodHasher.get();
         for(IDalvikInstruction insn: ci.getInstructions()) {
-            if(insn.getMnemonic().contains("move") || insn.getMnemonic().contains("const")) {
-                continue;
+            OpcodeInfo info = OpcodeInfo.get(insn);
+            if(info.getLooseKind() != OpcodeInfo.SKIP) {
+                appendLoose(sig, info, insn.getParameters());
             }
-            boolean flag = false;
-            if(insn.getMnemonic().contains("goto")) {
-                sig.append("goto:");
-            }
-            else if(insn.getMnemonic().contains("/")) {
-                sig.append(insn.getMnemonic().split("/")[0]).append(":");
-                flag = true;
+        }
+        return sig.digestHex();
+    }
+
+    private static void appendLoose(MethodHasher sig, OpcodeInfo info, IDalvikInstructionParameter[] params) {
+        sig.append(info.getLooseToken());
+        // note: array- and switch-data are disregarded
+        for(IDalvikInstructionParameter param: params) {
+            sig.append(param.getType()).append(',');
+        }
+        if(info.getLooseKind() == OpcodeInfo.STRIP) {
+            sig.append(params[0].getType()).append(',');
+        }
+        sig.append(' ');
+    }
+
+    private static void appendLoose(MethodHasher sig, DalvikInstructions insns, int index) {
+        OpcodeInfo info = insns.getOpcode(index);
+        sig.append(info.getLooseToken());
+        int count = insns.getParameterCount(index);
+        for(int i = 0; i < count; i++) {
+            sig.append(insns.getParameterType(index, i)).append(',');
+        }
+        if(info.getLooseKind() == OpcodeInfo.STRIP) {
+            sig.append(insns.getParameterType(index, 0)).append(',');
+        }
+        sig.append(' ');
+    }
+
+    /**
+     * Generate both tight and loose hashcodes of a method in a single pass over its instructions.
+     * Results are identical to {@link #generateTightHashcode(IDexCodeItem)} and
+     * {@link #generateLooseHashcode(IDexCodeItem)}.
+     * 
+     * @param ci IDexCodeItem of the method
+     * @return array of 2 elements: tight hashcode, loose hashcode
+     */
+    public static String[] generateHashcodes(IDexCodeItem ci) {
+        return generateHashcodes(ci, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #generateHashcodes(IDexCodeItem)}, with a custom digest algorithm.
+     * 
+     * @param ci IDexCodeItem of the method
+     * @param algorithm digest algorithm
+     * @return array of 2 elements: tight hashcode, loose hashcode
+     */
+    public static String[] generateHashcodes(IDexCodeItem ci, HashAlgorithm algorithm) {
+        MethodHasher tight = MethodHasher.get(algorithm, 0);
+        MethodHasher loose = MethodHasher.get(algorithm, 1);
+        appendInstructions(ci, tight, loose);
+        return new String[]{tight.digestHex(), loose.digestHex()};
+    }
+
+    /**
+     * Same as {@link #generateHashcodes(IDexCodeItem, HashAlgorithm)}, with binary results.
+     * 
+     * @param ci IDexCodeItem of the method
+     * @param algorithm digest algorithm
+     * @return array of 2 elements: tight hashcode, loose hashcode
+     */
+    public static MethodHash[] generateMethodHashes(IDexCodeItem ci, HashAlgorithm algorithm) {
+        MethodHasher tight = MethodHasher.get(algorithm, 0);
+        MethodHasher loose = MethodHasher.get(algorithm, 1);
+        appendInstructions(ci, tight, loose);
+        return new MethodHash[]{tight.digestHash(), loose.digestHash()};
+    }
+
+    /**
+     * Same as {@link #generateHashcodes(IDexCodeItem, HashAlgorithm)}, for instructions decoded
+     * without JEB.
+     * 
+     * @param insns instructions of the method
+     * @param algorithm digest algorithm
+     * @return array of 2 elements: tight hashcode, loose hashcode
+     */
+    public static String[] generateHashcodes(DalvikInstructions insns, HashAlgorithm algorithm) {
+        MethodHasher tight = MethodHasher.get(algorithm, 0);
+        MethodHasher loose = MethodHasher.get(algorithm, 1);
+        appendInstructions(insns, tight, loose);
+        return new String[]{tight.digestHex(), loose.digestHex()};
+    }
+
+    /**
+     * Same as {@link #generateHashcodes(DalvikInstructions, HashAlgorithm)}, with binary results.
+     * 
+     * @param insns instructions of the method
+     * @param algorithm digest algorithm
+     * @return array of 2 elements: tight hashcode, loose hashcode
+     */
+    public static MethodHash[] generateMethodHashes(DalvikInstructions insns, HashAlgorithm algorithm) {
+        MethodHasher tight = MethodHasher.get(algorithm, 0);
+        MethodHasher loose = MethodHasher.get(algorithm, 1);
+        appendInstructions(insns, tight, loose);
+        return new MethodHash[]{tight.digestHash(), loose.digestHash()};
+    }
+
+    private static void appendInstructions(DalvikInstructions insns, MethodHasher tight, MethodHasher loose) {
+        for(int i = 0; i < insns.size(); i++) {
+            appendTight(tight, insns, i);
+            if(insns.getOpcode(i).getLooseKind() != OpcodeInfo.SKIP) {
+                appendLoose(loose, insns, i);
             }
-            else {
-                sig.append(insn.getMnemonic()).append(":");
+        }
+    }
+
+    private static void appendInstructions(IDexCodeItem ci, MethodHasher tight, MethodHasher loose) {
+        for(IDalvikInstruction insn: ci.getInstructions()) {
+            OpcodeInfo info = OpcodeInfo.get(insn);
+            IDalvikInstructionParameter[] params = insn.getParameters();
+            appendTight(tight, info, params);
+            if(info.getLooseKind() != OpcodeInfo.SKIP) {
+                appendLoose(loose, info, params);
             }
-            // note: array- and switch-data are disregarded
+        }
+    }
+
+    /**
+     * Generate the basic-block hashcodes of a method. A block ends after each branch, switch, return
+     * or throw instruction (see {@link OpcodeInfo#isBlockEnd()}). Each block is hashed like the tight
+     * hashcode, except that branch offsets are disregarded, so that a change in one block does not
+     * alter the hashcodes of the others. Blocks of less than {@link #MIN_BLOCK_SIZE} instructions
+     * are ignored.
+     * <p>
+     * Block hashcodes are 64-bit values computed with {@link HashAlgorithm#MURMUR3_128}, whatever the
+     * algorithm of the method hashcodes.
+     * 
+     * @param ci IDexCodeItem of the method
+     * @return sorted distinct block hashcodes, possibly empty
+     */
+    public static long[] generateBlockHashcodes(IDexCodeItem ci) {
+        BlockHasher hasher = new BlockHasher();
+        for(IDalvikInstruction insn: ci.getInstructions()) {
+            OpcodeInfo info = OpcodeInfo.get(insn);
+            hasher.sig.append(info.getTightToken());
             for(IDalvikInstructionParameter param: insn.getParameters()) {
-                int pt = param.getType();
-                sig.append(pt).append(',');
+                hasher.appendParameter(param.getType(), param.getValue());
+            }
+            hasher.endInstruction(info);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Same as {@link #generateBlockHashcodes(IDexCodeItem)}, for instructions decoded without JEB.
+     * 
+     * @param insns instructions of the method
+     * @return sorted distinct block hashcodes, possibly empty
+     */
+    public static long[] generateBlockHashcodes(DalvikInstructions insns) {
+        BlockHasher hasher = new BlockHasher();
+        for(int i = 0; i < insns.size(); i++) {
+            OpcodeInfo info = insns.getOpcode(i);
+            hasher.sig.append(info.getTightToken());
+            for(int j = 0; j < insns.getParameterCount(i); j++) {
+                hasher.appendParameter(insns.getParameterType(i, j), insns.getParameterValue(i, j));
+            }
+            hasher.endInstruction(info);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Basic-block hashcodes of one method, see {@link SignatureHandler#generateBlockHashcodes}.
+     */
+    private static class BlockHasher {
+        private final MethodHasher sig = MethodHasher.get(HashAlgorithm.MURMUR3_128, 0);
+        private long[] blocks = new long[8];
+        private int count = 0;
+        private int blockSize = 0;
+
+        private void appendParameter(int pt, long value) {
+            sig.append(pt).append(',');
+            if(pt == IDalvikInstruction.TYPE_IDX || pt == IDalvikInstruction.TYPE_REG
+                    || pt == IDalvikInstruction.TYPE_BRA) {
+                sig.append("x,");
             }
-            if(flag) {
-                sig.append(insn.getParameters()[0].getType()).append(',');
+            else {
+                sig.append(value).append(',');
             }
+        }
 
-            sig.append(" ");
+        private void endInstruction(OpcodeInfo info) {
+            sig.append(' ');
+            blockSize++;
+            if(info.isBlockEnd()) {
+                if(blockSize >= MIN_BLOCK_SIZE) {
+                    addBlock();
+                }
+                else {
+                    sig.reset();
+                }
+                blockSize = 0;
+            }
         }
 
-        byte[] h;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            h = md.digest(sig.toString().getBytes());
+        private void addBlock() {
+            if(count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+            }
+            blocks[count++] = sig.digestLong();
         }
-        catch(NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+
+        private long[] digest() {
+            if(blockSize >= MIN_BLOCK_SIZE) {
+                addBlock();
+            }
+            return distinct(blocks, count);
         }
-        return Formatter.byteArrayToHexString(h).toLowerCase();
+    }
+
+    private static long[] distinct(long[] values, int count) {
+        long[] res = Arrays.copyOf(values, count);
+        Arrays.sort(res);
+        int n = 0;
+        for(int i = 0; i < res.length; i++) {
+            if(n == 0 || res[n - 1] != res[i]) {
+                res[n++] = res[i];
+            }
+        }
+        return n == res.length ? res: Arrays.copyOf(res, n);
     }
 
     /**
-     * Generate caller list based on methods relationship and store them to hashmap.
-     * eg: method1 call method2 2 times and method3 4 times
-     *     store:
-     *          key: method2.getIndex()     value: (method1.getIndex(), 2 times)
-     *          key: method3.getIndex()     value: (method1.getIndex(), 4 times)
-     *     to hashmap (key is the method index which is called, the value is also a hashmap, the key is caller method index, the value is call times).
+     * Format block hashcodes as a signature file column: {@link #BLOCKS_PREFIX} followed by
+     * '|'-separated hexadecimal values.
      * 
-     * @param unit mandatory target unit
-     * @param allCallerLists hashmap used to store all caller list
-     * @param matchedClasses hashmap used to store all matched classes (This parameter is used to filter the unmatched classes. If this function is called from AndroidSigGenPlugin, set it to null)
-     * @param matchedMethods hashmap used to store all matched methods (This parameter is used to filter the unmatched methods. If this function is called from AndroidSigGenPlugin, set it to null)
-     */
-    public static void loadAllCallerLists(IDexUnit unit, Map<Integer, Map<Integer, Integer>> allCallerLists, Map<Integer, String> matchedClasses, Map<Integer, String> matchedMethods) {
-        allCallerLists.clear();
-        List<? extends IDexClass> classes = unit.getClasses();
-        if(classes == null || classes.size() == 0) {
-            return;
-        }
-        for(IDexClass eClass: classes) {
-            List<? extends IDexMethod> methods = eClass.getMethods();
-            if(methods == null || methods.size() == 0)
-                continue;
-            if(matchedClasses != null) {
-                if(!matchedClasses.containsKey(eClass.getIndex())) {
-                    continue;
-                }
+     * @param blocks block hashcodes
+     * @return column value, empty if there is no block
+     */
+    public static String formatBlockHashcodes(long[] blocks) {
+        if(blocks == null || blocks.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(BLOCKS_PREFIX);
+        for(int i = 0; i < blocks.length; i++) {
+            if(i != 0) {
+                sb.append('|');
             }
-            for(IDexMethod m: methods) {
-                if(!m.isInternal()) {
-                    continue;
-                }
-                if(matchedMethods != null) {
-                    if(!matchedMethods.containsKey(m.getIndex())) {
-                        continue;
-                    }
-                }
-                loadCallerList(unit, allCallerLists, m);
+            String hex = Long.toHexString(blocks[i]);
+            for(int j = hex.length(); j < 16; j++) {
+                sb.append('0');
             }
+            sb.append(hex);
         }
+        return sb.toString();
     }
 
-    public static void loadAllCallerLists(IDexUnit unit, Map<Integer, Map<Integer, Integer>> allCallerLists) {
-        allCallerLists.clear();
-        List<? extends IDexClass> classes = unit.getClasses();
-        if(classes == null || classes.size() == 0) {
-            return;
+    /**
+     * Parse a column built by {@link #formatBlockHashcodes(long[])}.
+     * 
+     * @param column column value
+     * @return sorted distinct block hashcodes, null if the column does not contain block hashcodes
+     */
+    public static long[] parseBlockHashcodes(String column) {
+        if(column == null || !column.startsWith(BLOCKS_PREFIX) || column.length() == BLOCKS_PREFIX.length()) {
+            return null;
         }
-        for(IDexClass eClass: classes) {
-            List<? extends IDexMethod> methods = eClass.getMethods();
-            if(methods == null || methods.size() == 0)
-                continue;
-            for(IDexMethod m: methods) {
-                if(!m.isInternal()) {
-                    continue;
-                }
-                loadCallerList(unit, allCallerLists, m);
+        String[] tokens = column.substring(BLOCKS_PREFIX.length()).split("\\|");
+        long[] blocks = new long[tokens.length];
+        for(int i = 0; i < tokens.length; i++) {
+            try {
+                blocks[i] = Long.parseUnsignedLong(tokens[i], 16);
+            }
+            catch(NumberFormatException e) {
+                return null;
             }
         }
+        return distinct(blocks, blocks.length);
     }
 
-    public static void loadCallerList(IDexUnit unit, Map<Integer, Map<Integer, Integer>> allCallerLists, IDexMethod m) {
-        IDexMethodData md = m.getData();
-        if(md == null) {
-            return;
-        }
-        IDexCodeItem ci = md.getCodeItem();
-        if(ci == null) {
-            return;
+    /**
+     * Count the hashcodes shared by two sorted distinct block lists.
+     */
+    public static int countSharedBlocks(long[] blocks1, long[] blocks2) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while(i < blocks1.length && j < blocks2.length) {
+            if(blocks1[i] == blocks2[j]) {
+                shared++;
+                i++;
+                j++;
+            }
+            else if(blocks1[i] < blocks2[j]) {
+                i++;
+            }
+            else {
+                j++;
+            }
         }
-        loadCallerList(unit, allCallerLists, ci, m);
+        return shared;
     }
 
-    public static void loadCallerList(IDexUnit unit, Map<Integer, Map<Integer, Integer>> allCallerLists,
-            IDexCodeItem ci, IDexMethod m) {
+    /**
+     * Generate the MinHash signature of a method, over the n-grams of its loose instruction tokens
+     * (see {@link #generateLooseHashcode(IDexCodeItem)}): small differences (one inserted or changed
+     * instruction) only alter a few n-grams.
+     * 
+     * @param ci IDexCodeItem of the method
+     * @return signature of {@link MinHash#SIZE} values, null if the method has no loose token
+     */
+    public static int[] generateMinHash(IDexCodeItem ci) {
+        MinHash mh = new MinHash();
         for(IDalvikInstruction insn: ci.getInstructions()) {
-            if(!insn.getMnemonic().contains("invoke")) {
-                continue;
+            OpcodeInfo info = OpcodeInfo.get(insn);
+            if(info.getLooseKind() != OpcodeInfo.SKIP) {
+                mh.add(info.getLooseToken().hashCode());
             }
-            for(IDalvikInstructionParameter param: insn.getParameters()) {
-                if(param.getType() == IDalvikInstruction.TYPE_IDX) {
-                    int poolIndex = insn.getParameterFirstIndexType();
-                    if(poolIndex == IDalvikInstruction.INDEX_TO_METHOD) {
-                        int paraValue = (int)param.getValue();
-                        if(paraValue > unit.getMethods().size()) {
-                            continue;
-                        }
-                        // Store method info
-                        Map<Integer, Integer> temp = allCallerLists.get(paraValue);
-                        int methodIndex = m.getIndex();
-                        if(temp != null) {
-                            Integer times = temp.get(methodIndex);
-                            if(times != null) {
-                                temp.put(methodIndex, times + 1);
-                            }
-                            else {
-                                temp.put(methodIndex, 1);
-                            }
-                        }
-                        else {
-                            HashMap<Integer, Integer> temp1 = new HashMap<>();
-                            temp1.put(methodIndex, 1);
-                            allCallerLists.put(paraValue, temp1);
-                        }
-                    }
-                }
+        }
+        return mh.digest();
+    }
+
+    /**
+     * Same as {@link #generateMinHash(IDexCodeItem)}, for instructions decoded without JEB.
+     * 
+     * @param insns instructions of the method
+     * @return signature of {@link MinHash#SIZE} values, null if the method has no loose token
+     */
+    public static int[] generateMinHash(DalvikInstructions insns) {
+        MinHash mh = new MinHash();
+        for(int i = 0; i < insns.size(); i++) {
+            OpcodeInfo info = insns.getOpcode(i);
+            if(info.getLooseKind() != OpcodeInfo.SKIP) {
+                mh.add(info.getLooseToken().hashCode());
             }
         }
+        return mh.digest();
     }
 
     /**
@@ -20,11 +20,14 @@ package com.pnf.androsig.gen;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import com.pnf.androsig.apply.model.BlockCompressedFile;
 import com.pnf.androsig.common.AndroSigCommon;
+import com.pnf.androsig.common.HashAlgorithm;
 import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.AbstractEnginesPlugin;
 import com.pnfsoftware.jeb.core.IEnginesContext;
@@ -71,7 +74,39 @@ public class AndroidSigGenPlugin extends AbstractEnginesPlugin {
     @Override
     public List<? extends IOptionDefinition> getExecutionOptionDefinitions() {
         return Arrays.asList(new OptionDefinition("libname", "Library name"),
-                new OptionDefinition("filter", "Classname regular expression "));
+                new OptionDefinition("filter", "Classname regular expression "),
+                new OptionDefinition("hash", "Hashcode algorithm: sha256 (default) or murmur3-128"),
+                new OptionDefinition("blockHashes",
+                        "Also store basic-block hashcodes, for partial method matching: true or false (default)"),
+                new OptionDefinition("minHash",
+                        "Also store MinHash signatures, for near-duplicate method matching: true or false (default)"),
+                new OptionDefinition("classFingerprints",
+                        "Also store class fingerprints, to match unmodified classes in one lookup: true or false "
+                                + "(default)"),
+                new OptionDefinition("callerDictionary",
+                        "Store callers as references to a dictionary of method signatures (smaller files, "
+                                + "not readable by older versions): true or false (default)"),
+                new OptionDefinition("compress",
+                        "Write a block-compressed signature file (.sigz), not readable by older versions: "
+                                + "true or false (default)"),
+                new OptionDefinition("threads",
+                        "Number of dex units (or batch artifacts) signed concurrently: 0 (default) for all processors, "
+                                + "1 to disable"),
+                new OptionDefinition("inputFolder",
+                        "Batch mode: sign every DEX/APK file of this folder (recursively) instead of the opened "
+                                + "project. Up-to-date signature files are skipped"),
+                new OptionDefinition("readDex",
+                        "Batch mode: parse DEX/APK files directly instead of processing them in JEB projects "
+                                + "(faster; the callers of multi-dex artifacts may be listed in another order): "
+                                + "true or false (default)"),
+                new OptionDefinition("mergeInto",
+                        "Path of an existing signature file into which the generated signatures are merged, "
+                                + "with the library version given by 'version' (compressed if its extension is "
+                                + BlockCompressedFile.EXTENSION + ")"),
+                new OptionDefinition("version", "Version of the signed library, used with 'mergeInto'"),
+                new OptionDefinition("mergeIntoVersion",
+                        "Version of the unversioned signatures of the 'mergeInto' file "
+                                + "(required if it has unversioned signatures)"));
     }
 
     @Override
@@ -89,9 +124,17 @@ public class AndroidSigGenPlugin extends AbstractEnginesPlugin {
 
     @Override
     public void execute(IEnginesContext engctx, Map<String, String> executionOptions) {
-        IRuntimeProject prj = engctx.getProject(0);
-        if(prj == null) {
-            logger.info("There is no opened project");
+        String inputFolder = executionOptions.get("inputFolder");
+        IRuntimeProject prj = null;
+        if(Strings.isBlank(inputFolder)) {
+            prj = engctx.getProject(0);
+            if(prj == null) {
+                logger.info("There is no opened project");
+                return;
+            }
+        }
+        else if(!new File(inputFolder).isDirectory()) {
+            logger.error("Input folder %s does not exist", inputFolder);
             return;
         }
 
@@ -103,10 +146,6 @@ public class AndroidSigGenPlugin extends AbstractEnginesPlugin {
             throw new RuntimeException(ex);
         }
 
-        String libname = executionOptions.get("libname");
-        if(Strings.isBlank(libname)) {
-            libname = prj.getName();
-        }
         String filter = executionOptions.get("filter");
         if(!Strings.isBlank(filter)) {
             if(!filter.startsWith("L")) {
@@ -115,6 +154,120 @@ public class AndroidSigGenPlugin extends AbstractEnginesPlugin {
             }
         }
 
-        LibraryGenerator.generate(prj, sigFolder, libname, filter);
+        HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+        String hash = executionOptions.get("hash");
+        if(!Strings.isBlank(hash)) {
+            hashAlgorithm = HashAlgorithm.fromName(hash);
+            if(hashAlgorithm == null) {
+                logger.error("Unsupported hash algorithm: %s. Expected 'sha256' or 'murmur3-128'", hash);
+                return;
+            }
+        }
+
+        int extensions = 0;
+        if(isEnabled(executionOptions, "blockHashes")) {
+            extensions |= DexProcessor.EXT_BLOCK_HASHES;
+        }
+        if(isEnabled(executionOptions, "minHash")) {
+            extensions |= DexProcessor.EXT_MIN_HASH;
+        }
+        if(isEnabled(executionOptions, "classFingerprints")) {
+            extensions |= DexProcessor.EXT_CLASS_FINGERPRINTS;
+        }
+        if(isEnabled(executionOptions, "callerDictionary")) {
+            extensions |= DexProcessor.EXT_CALLER_DICTIONARY;
+        }
+        if(isEnabled(executionOptions, "compress")) {
+            extensions |= DexProcessor.EXT_COMPRESSED;
+        }
+
+        int threads = 0;
+        String threadsValue = executionOptions.get("threads");
+        if(!Strings.isBlank(threadsValue)) {
+            try {
+                threads = Math.max(0, Integer.parseInt(threadsValue.trim()));
+            }
+            catch(NumberFormatException e) {
+                logger.warn("Illegal threads parameter: \"%s\" (must be an integer)", threadsValue);
+            }
+        }
+
+        if(prj == null) {
+            // batch mode: library names are derived from the artifact paths
+            if(isEnabled(executionOptions, "readDex")) {
+                BatchGenerator.generate(new File(inputFolder), sigFolder, filter, hashAlgorithm, extensions, threads);
+            }
+            else {
+                BatchGenerator.generate(engctx, new File(inputFolder), sigFolder, filter, hashAlgorithm, extensions,
+                        threads);
+            }
+            return;
+        }
+        String libname = executionOptions.get("libname");
+        if(Strings.isBlank(libname)) {
+            libname = prj.getName();
+        }
+        String mergeInto = executionOptions.get("mergeInto");
+        if(Strings.isBlank(mergeInto)) {
+            LibraryGenerator.generate(prj, sigFolder, libname, filter, hashAlgorithm, extensions, threads);
+            return;
+        }
+        String version = executionOptions.get("version");
+        if(Strings.isBlank(version)) {
+            logger.error("Missing 'version' parameter: the version of the library is required to merge signatures");
+            return;
+        }
+        merge(prj, new File(mergeInto), version.trim(), executionOptions.get("mergeIntoVersion"), libname, filter,
+                hashAlgorithm, extensions, threads);
+    }
+
+    private static void merge(IRuntimeProject prj, File target, String version, String targetVersion, String libname,
+            String filter, HashAlgorithm hashAlgorithm, int extensions, int threads) {
+        // generated out of the signature folder: the target may have the same name
+        File tmpFolder = null;
+        try {
+            tmpFolder = Files.createTempDirectory("androsig-gen").toFile();
+            if((extensions & DexProcessor.EXT_COMPRESSED) != 0) {
+                // merged signatures are compressed if the target is
+                if(!BlockCompressedFile.isCompressed(target)) {
+                    logger.warn("Compression is given by the extension of the merge target: %s is not compressed",
+                            target);
+                }
+                extensions &= ~DexProcessor.EXT_COMPRESSED;
+            }
+            LibraryGenerator.generate(prj, tmpFolder, libname, filter, hashAlgorithm, extensions, threads);
+            File generated = new File(tmpFolder, LibraryGenerator.sanitizeFilename(libname) + ".sig");
+            if(!generated.exists()) {
+                return;
+            }
+            if(!target.exists()) {
+                // first version: only assign the version
+                SignatureMerger.merge(generated, version, generated, version, target);
+            }
+            else {
+                SignatureMerger.merge(target, Strings.isBlank(targetVersion) ? null: targetVersion.trim(),
+                        generated, version, target);
+            }
+        }
+        catch(IOException e) {
+            logger.error("Could not merge signatures into %s", target);
+            logger.catching(e);
+        }
+        finally {
+            if(tmpFolder != null) {
+                File[] files = tmpFolder.listFiles();
+                if(files != null) {
+                    for(File f: files) {
+                        f.delete();
+                    }
+                }
+                tmpFolder.delete();
+            }
+        }
+    }
+
+    private static boolean isEnabled(Map<String, String> executionOptions, String option) {
+        String value = executionOptions.get(option);
+        return !Strings.isBlank(value) && (value.trim().equalsIgnoreCase("true") || value.trim().equals("1"));
     }
 }
\ No newline at end of file
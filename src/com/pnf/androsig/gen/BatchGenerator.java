@@ -0,0 +1,354 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.pnf.androsig.apply.model.BlockCompressedFile;
+import com.pnf.androsig.apply.model.IndexedSignatureFile;
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnfsoftware.jeb.core.Artifact;
+import com.pnfsoftware.jeb.core.IEnginesContext;
+import com.pnfsoftware.jeb.core.IRuntimeProject;
+import com.pnfsoftware.jeb.core.RuntimeProjectUtil;
+import com.pnfsoftware.jeb.core.input.FileInput;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Generate the signature files of all DEX/APK artifacts of a folder (recursively), without UI
+ * interaction. Artifacts are signed by a bounded pool of workers. With JEB projects, JEB is only
+ * accessed from the calling thread: each artifact is loaded in its own project, processed, copied
+ * (see {@link DexUnitCopy}) and unloaded there, and workers sign the copies.
+ * <p>
+ * The library name is the artifact path relative to the input folder, so that an artifact at the
+ * root of the folder gives the same signature file as {@link AndroidSigGenPlugin} run on it.
+ * Artifacts whose signature and index files are newer than the artifact, and were generated with
+ * the same options (see {@link LibraryGenerator#getOptionHeaders(String, HashAlgorithm, int)}), are
+ * skipped: an interrupted run resumes where it stopped (signature files are only replaced once
+ * complete, and the index is written last).
+ * <p>
+ * Artifacts whose paths give the same signature file name (see
+ * {@link LibraryGenerator#sanitizeFilename(String)}, such as <code>a/b.apk</code> and
+ * <code>a_b.apk</code>, or names only differing by case) fail: one signature file can not hold both.
+ * <p>
+ * Artifacts can also be read without JEB projects (see
+ * {@link #generate(File, File, String, HashAlgorithm, int, int)}), which is much faster.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class BatchGenerator {
+    private static final ILogger logger = GlobalLog.getLogger(BatchGenerator.class);
+
+    private static final String[] EXTENSIONS = {".dex", ".apk"};
+
+    /**
+     * Batch statistics.
+     */
+    public static class Result {
+        private int generated;
+        private int skipped;
+        private int failed;
+
+        public int getGenerated() {
+            return generated;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * @param engctx engines context in which artifact projects are created
+     * @param inputFolder folder containing the DEX/APK artifacts
+     * @param sigFolder output folder
+     * @param classnameFilter optional classname regular expression
+     * @param hashAlgorithm hashcode algorithm
+     * @param extensions optional columns, see
+     *            {@link LibraryGenerator#generate(IRuntimeProject, File, String, String, HashAlgorithm, int)}
+     * @param threads number of artifacts signed concurrently: 0 to use all available processors
+     */
+    public static Result generate(IEnginesContext engctx, File inputFolder, File sigFolder, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads) {
+        return generate(inputFolder, sigFolder, classnameFilter, hashAlgorithm, extensions, threads,
+                (artifact, libname) -> prepare(engctx, artifact, sigFolder, libname, classnameFilter, hashAlgorithm,
+                        extensions));
+    }
+
+    /**
+     * Same as {@link #generate(IEnginesContext, File, File, String, HashAlgorithm, int, int)}, without
+     * JEB projects: artifacts are parsed by {@link DexFile}.
+     */
+    public static Result generate(File inputFolder, File sigFolder, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads) {
+        return generate(inputFolder, sigFolder, classnameFilter, hashAlgorithm, extensions, threads,
+                (artifact, libname) -> () -> generate(artifact, sigFolder, libname, classnameFilter, hashAlgorithm,
+                        extensions));
+    }
+
+    /**
+     * Generation of one artifact.
+     */
+    private interface ArtifactGenerator {
+        /**
+         * Called from the calling thread.
+         * 
+         * @return generation task, run by a worker: true if the signature file was generated
+         */
+        Callable<Boolean> prepare(File artifact, String libname);
+    }
+
+    private static Result generate(File inputFolder, File sigFolder, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads, ArtifactGenerator generator) {
+        Result result = new Result();
+        List<String> options = LibraryGenerator.getOptionHeaders(classnameFilter, hashAlgorithm, extensions);
+        List<File> artifacts = new ArrayList<>();
+        listArtifacts(inputFolder, artifacts);
+        Collections.sort(artifacts);
+
+        // signature file names are compared ignoring case, for case-insensitive file systems
+        Map<String, Integer> sigFileCounts = new HashMap<>();
+        for(File artifact: artifacts) {
+            sigFileCounts.merge(getSignatureFileKey(sigFolder, inputFolder, artifact, extensions), 1, Integer::sum);
+        }
+        List<File> todo = new ArrayList<>();
+        for(File artifact: artifacts) {
+            File sigFile = getSignatureFile(sigFolder, getLibname(inputFolder, artifact), extensions);
+            if(sigFileCounts.get(getSignatureFileKey(sigFolder, inputFolder, artifact, extensions)) > 1) {
+                logger.error("Can not generate signatures of %s: other artifacts have the same signature file %s",
+                        artifact, sigFile);
+                result.failed++;
+            }
+            else if(isUpToDate(artifact, sigFile, options)) {
+                result.skipped++;
+            }
+            else {
+                todo.add(artifact);
+            }
+        }
+        logger.info("%d artifacts found in %s, %d up to date, %d with colliding signature files", artifacts.size(),
+                inputFolder, result.skipped, result.failed);
+        if(todo.isEmpty()) {
+            return result;
+        }
+
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.min(threads, todo.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<Boolean>> pending = new ArrayDeque<>();
+        try {
+            for(File artifact: todo) {
+                if(pending.size() >= threads) {
+                    // prepared artifacts waiting for a worker stay bounded
+                    count(result, pending.poll().get());
+                }
+                Callable<Boolean> task = generator.prepare(artifact, getLibname(inputFolder, artifact));
+                pending.add(executor.submit(task));
+            }
+            while(!pending.isEmpty()) {
+                count(result, pending.poll().get());
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        logger.info("Batch generation done: %d generated, %d skipped, %d failed", result.generated,
+                result.skipped, result.failed);
+        return result;
+    }
+
+    private static void count(Result result, boolean generated) {
+        if(generated) {
+            result.generated++;
+        }
+        else {
+            result.failed++;
+        }
+    }
+
+    /**
+     * Load an artifact in a project and copy its dex units. Called from the calling thread: the
+     * engines context and the units are not documented as thread-safe.
+     * 
+     * @return signing task of the copied units
+     */
+    private static Callable<Boolean> prepare(IEnginesContext engctx, File artifact, File sigFolder, String libname,
+            String classnameFilter, HashAlgorithm hashAlgorithm, int extensions) {
+        String key = "androsig-batch:" + libname;
+        List<DexUnitCopy> units = new ArrayList<>();
+        try {
+            IRuntimeProject prj = engctx.loadProject(key);
+            prj.processArtifact(new Artifact(artifact.getName(), new FileInput(artifact)));
+            for(IDexUnit dex: RuntimeProjectUtil.findUnitsByType(prj, IDexUnit.class, false)) {
+                DexUnitCopy copy = DexUnitCopy.copy(dex, classnameFilter);
+                if(copy != null) {
+                    units.add(copy);
+                }
+            }
+        }
+        catch(Exception e) {
+            logger.error("Can not generate signatures of %s", artifact);
+            logger.catching(e);
+            return () -> false;
+        }
+        finally {
+            engctx.unloadProject(key);
+        }
+        return () -> generate(units, artifact, sigFolder, libname, classnameFilter, hashAlgorithm, extensions);
+    }
+
+    private static boolean generate(List<DexUnitCopy> units, File artifact, File sigFolder, String libname,
+            String classnameFilter, HashAlgorithm hashAlgorithm, int extensions) {
+        try {
+            // artifacts are already signed concurrently
+            LibraryGenerator.generate(units, sigFolder, libname, classnameFilter, hashAlgorithm, extensions, 1);
+        }
+        catch(Exception e) {
+            logger.error("Can not generate signatures of %s", artifact);
+            logger.catching(e);
+            return false;
+        }
+        return checkGenerated(artifact, sigFolder, libname, classnameFilter, hashAlgorithm, extensions);
+    }
+
+    private static boolean generate(File artifact, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions) {
+        try {
+            // artifacts are already signed concurrently
+            LibraryGenerator.generate(artifact, sigFolder, libname, classnameFilter, hashAlgorithm, extensions, 1);
+        }
+        catch(Exception e) {
+            logger.error("Can not generate signatures of %s", artifact);
+            logger.catching(e);
+            return false;
+        }
+        return checkGenerated(artifact, sigFolder, libname, classnameFilter, hashAlgorithm, extensions);
+    }
+
+    private static boolean checkGenerated(File artifact, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions) {
+        List<String> options = LibraryGenerator.getOptionHeaders(classnameFilter, hashAlgorithm, extensions);
+        if(!isUpToDate(artifact, getSignatureFile(sigFolder, libname, extensions), options)) {
+            // no signed method or write failure
+            logger.warn("No signature file generated for %s", artifact);
+            return false;
+        }
+        return true;
+    }
+
+    private static void listArtifacts(File folder, List<File> artifacts) {
+        File[] files = folder.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File f: files) {
+            if(f.isDirectory()) {
+                listArtifacts(f, artifacts);
+            }
+            else if(isArtifact(f)) {
+                artifacts.add(f);
+            }
+        }
+    }
+
+    private static boolean isArtifact(File f) {
+        String name = f.getName().toLowerCase();
+        for(String ext: EXTENSIONS) {
+            if(name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return artifact path relative to the input folder, with '/' separators
+     */
+    static String getLibname(File inputFolder, File artifact) {
+        String libname = inputFolder.getAbsoluteFile().toPath().relativize(artifact.getAbsoluteFile().toPath())
+                .toString();
+        return libname.replace(File.separatorChar, '/');
+    }
+
+    static File getSignatureFile(File sigFolder, String libname, int extensions) {
+        return LibraryGenerator.getSignatureFile(sigFolder, LibraryGenerator.sanitizeFilename(libname), extensions);
+    }
+
+    private static String getSignatureFileKey(File sigFolder, File inputFolder, File artifact, int extensions) {
+        return getSignatureFile(sigFolder, getLibname(inputFolder, artifact), extensions).getName()
+                .toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param options expected option headers, see
+     *            {@link LibraryGenerator#getOptionHeaders(String, HashAlgorithm, int)}
+     * @return true if the signature file and its index exist, are newer than the artifact, and the
+     *         signature file was generated with the given options
+     */
+    static boolean isUpToDate(File artifact, File sigFile, List<String> options) {
+        File indexFile = IndexedSignatureFile.getIndexFile(sigFile);
+        return sigFile.isFile() && indexFile.isFile() && sigFile.lastModified() >= artifact.lastModified()
+                && indexFile.lastModified() >= sigFile.lastModified() && options.equals(readOptionHeaders(sigFile));
+    }
+
+    /**
+     * @return option headers of a signature file, null if it can not be read
+     */
+    static List<String> readOptionHeaders(File sigFile) {
+        List<String> headers = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(
+                new InputStreamReader(BlockCompressedFile.openSignatureFile(sigFile), StandardCharsets.UTF_8))) {
+            String line;
+            // options come before the caller dictionary and the sorted lines
+            while((line = reader.readLine()) != null && line.startsWith(";")
+                    && !line.startsWith(";" + CallerDictionary.MARKER)
+                    && !line.startsWith(";" + ClassFingerprint.MARKER)) {
+                if(LibraryGenerator.isOptionHeader(line)) {
+                    headers.add(line);
+                }
+            }
+        }
+        catch(IOException e) {
+            return null;
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,661 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.pnf.androsig.common.DalvikInstructions;
+import com.pnf.androsig.common.OpcodeInfo;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+
+/**
+ * Minimal DEX reader, independent from JEB: only the pools, class definitions and code items
+ * needed to sign methods are parsed, directly from the (memory-mapped) file, and instructions are
+ * decoded on demand. Instruction parameters follow the JEB model (see {@link DalvikInstructions}),
+ * so that signatures are identical to the ones generated from a processed dex unit.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexFile {
+
+    private static final int NO_INDEX = -1;
+
+    // instruction formats
+    private static final int F_UNUSED = 0;
+    private static final int F10X = 1;
+    private static final int F12X = 2;
+    private static final int F11N = 3;
+    private static final int F11X = 4;
+    private static final int F10T = 5;
+    private static final int F20T = 6;
+    private static final int F22X = 7;
+    private static final int F21T = 8;
+    private static final int F21S = 9;
+    private static final int F21H = 10;
+    private static final int F21C = 11;
+    private static final int F23X = 12;
+    private static final int F22B = 13;
+    private static final int F22T = 14;
+    private static final int F22S = 15;
+    private static final int F22C = 16;
+    private static final int F30T = 17;
+    private static final int F32X = 18;
+    private static final int F31I = 19;
+    private static final int F31T = 20;
+    private static final int F31C = 21;
+    private static final int F35C = 22;
+    private static final int F3RC = 23;
+    private static final int F45CC = 24;
+    private static final int F4RCC = 25;
+    private static final int F51L = 26;
+
+    /** size in code units, per format */
+    private static final int[] FORMAT_SIZES = {0, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3,
+            4, 4, 5};
+
+    /** format per opcode, mnemonics are given by {@link OpcodeInfo} */
+    private static final int[] FORMATS = new int[256];
+
+    static {
+        formats(0x00, F10X, F12X, F22X, F32X, F12X, F22X, F32X, F12X, F22X, F32X, F11X, F11X, F11X, F11X, F10X,
+                F11X, F11X, F11X, F11N, F21S, F31I, F21H, F21S, F31I, F51L, F21H, F21C, F31C, F21C, F11X, F11X,
+                F21C, F22C, F12X, F21C, F22C, F35C, F3RC, F31T, F11X, F10T, F20T, F30T, F31T, F31T);
+        range(0x2D, 0x31, F23X); // cmpkind
+        range(0x32, 0x37, F22T); // if-test
+        range(0x38, 0x3D, F21T); // if-testz
+        range(0x44, 0x51, F23X); // arrayop
+        range(0x52, 0x5F, F22C); // iinstanceop
+        range(0x60, 0x6D, F21C); // sstaticop
+        range(0x6E, 0x72, F35C); // invoke-kind
+        range(0x74, 0x78, F3RC); // invoke-kind/range
+        range(0x7B, 0x8F, F12X); // unop
+        range(0x90, 0xAF, F23X); // binop
+        range(0xB0, 0xCF, F12X); // binop/2addr
+        range(0xD0, 0xD7, F22S); // binop/lit16
+        range(0xD8, 0xE2, F22B); // binop/lit8
+        formats(0xFA, F45CC, F4RCC, F35C, F3RC, F21C, F21C);
+    }
+
+    private static void formats(int firstOpcode, int... formats) {
+        System.arraycopy(formats, 0, FORMATS, firstOpcode, formats.length);
+    }
+
+    private static void range(int firstOpcode, int lastOpcode, int format) {
+        Arrays.fill(FORMATS, firstOpcode, lastOpcode + 1, format);
+    }
+
+    /**
+     * Class definition.
+     */
+    public static class ClassDef {
+        private final int index;
+        private final String type;
+        private final String superType;
+        private final List<String> interfaces;
+        private final int[] methodIndexes;
+        private final int[] codeOffsets;
+
+        private ClassDef(int index, String type, String superType, List<String> interfaces, int[] methodIndexes,
+                int[] codeOffsets) {
+            this.index = index;
+            this.type = type;
+            this.superType = superType;
+            this.interfaces = interfaces;
+            this.methodIndexes = methodIndexes;
+            this.codeOffsets = codeOffsets;
+        }
+
+        /**
+         * @return class definition index
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return class type descriptor
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return super class descriptor, null if none
+         */
+        public String getSuperType() {
+            return superType;
+        }
+
+        public List<String> getInterfaces() {
+            return interfaces;
+        }
+
+        /**
+         * @return number of defined (direct and virtual) methods
+         */
+        public int getMethodCount() {
+            return methodIndexes.length;
+        }
+
+        /**
+         * @return method index (in the method pool) of a defined method
+         */
+        public int getMethodIndex(int i) {
+            return methodIndexes[i];
+        }
+
+        /**
+         * @return code item offset of a defined method, 0 for abstract and native methods
+         */
+        public int getCodeOffset(int i) {
+            return codeOffsets[i];
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int stringIdsOff;
+    private final int typeIdsSize;
+    private final int typeIdsOff;
+    private final int protoIdsSize;
+    private final int protoIdsOff;
+    private final int methodIdsSize;
+    private final int methodIdsOff;
+    private final int classDefsSize;
+    private final int classDefsOff;
+    private final String[] strings;
+    private char[] chars = new char[64];
+
+    /**
+     * @param buf dex file content
+     */
+    public DexFile(ByteBuffer buf) throws IOException {
+        this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        if(buf.limit() < 0x70 || buf.get(0) != 'd' || buf.get(1) != 'e' || buf.get(2) != 'x'
+                || buf.get(3) != '\n') {
+            throw new IOException("Not a dex file");
+        }
+        if(buf.getInt(0x28) != 0x12345678) {
+            throw new IOException("Unsupported dex endianness");
+        }
+        int stringIdsSize = buf.getInt(0x38);
+        stringIdsOff = buf.getInt(0x3C);
+        typeIdsSize = buf.getInt(0x40);
+        typeIdsOff = buf.getInt(0x44);
+        protoIdsSize = buf.getInt(0x48);
+        protoIdsOff = buf.getInt(0x4C);
+        methodIdsSize = buf.getInt(0x58);
+        methodIdsOff = buf.getInt(0x5C);
+        classDefsSize = buf.getInt(0x60);
+        classDefsOff = buf.getInt(0x64);
+        checkRange(stringIdsOff, stringIdsSize, 4);
+        checkRange(typeIdsOff, typeIdsSize, 4);
+        checkRange(protoIdsOff, protoIdsSize, 12);
+        checkRange(methodIdsOff, methodIdsSize, 8);
+        checkRange(classDefsOff, classDefsSize, 32);
+        strings = new String[stringIdsSize];
+    }
+
+    private void checkRange(int offset, int count, int itemSize) throws IOException {
+        if(count < 0 || (count != 0 && (offset < 0 || (long)offset + (long)count * itemSize > buf.limit()))) {
+            throw new IOException("Corrupted dex header");
+        }
+    }
+
+    /**
+     * Map a dex file in memory.
+     */
+    public static DexFile open(File dexFile) throws IOException {
+        try(FileChannel channel = FileChannel.open(dexFile.toPath(), StandardOpenOption.READ)) {
+            // the mapping remains valid once the channel is closed
+            return new DexFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Open the dex files of an artifact: a dex file (memory-mapped), or an APK/JAR/ZIP archive whose
+     * <code>classes[N].dex</code> entries are read in memory.
+     *
+     * @return dex files, possibly empty
+     */
+    public static List<DexFile> openArtifact(File artifact) throws IOException {
+        if(artifact.getName().toLowerCase().endsWith(".dex")) {
+            return Collections.singletonList(open(artifact));
+        }
+        List<DexFile> res = new ArrayList<>();
+        try(ZipFile zip = new ZipFile(artifact)) {
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while(entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if(name.matches("classes[0-9]*\\.dex")) {
+                    names.add(name);
+                }
+            }
+            Collections.sort(names);
+            for(String name: names) {
+                try(InputStream in = zip.getInputStream(zip.getEntry(name))) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                    res.add(new DexFile(ByteBuffer.wrap(out.toByteArray())));
+                }
+            }
+        }
+        return res;
+    }
+
+    public int getClassCount() {
+        return classDefsSize;
+    }
+
+    /**
+     * @return number of methods of the method pool (internal and external)
+     */
+    public int getMethodCount() {
+        return methodIdsSize;
+    }
+
+    /**
+     * Parse a class definition.
+     *
+     * @param index class definition index
+     */
+    public ClassDef getClass(int index) throws IOException {
+        try {
+            int off = classDefsOff + index * 32;
+            String type = getType(buf.getInt(off));
+            int superIdx = buf.getInt(off + 8);
+            String superType = superIdx == NO_INDEX ? null: getType(superIdx);
+            List<String> interfaces = new ArrayList<>();
+            int interfacesOff = buf.getInt(off + 12);
+            if(interfacesOff != 0) {
+                int size = buf.getInt(interfacesOff);
+                for(int i = 0; i < size; i++) {
+                    interfaces.add(getType(buf.getShort(interfacesOff + 4 + 2 * i) & 0xFFFF));
+                }
+            }
+            int[] methodIndexes = new int[0];
+            int[] codeOffsets = new int[0];
+            int classDataOff = buf.getInt(off + 24);
+            if(classDataOff != 0) {
+                int[] pos = {classDataOff};
+                int staticFields = readUleb128(pos);
+                int instanceFields = readUleb128(pos);
+                int directMethods = readUleb128(pos);
+                int virtualMethods = readUleb128(pos);
+                for(int i = 0; i < staticFields + instanceFields; i++) {
+                    readUleb128(pos);
+                    readUleb128(pos);
+                }
+                methodIndexes = new int[directMethods + virtualMethods];
+                codeOffsets = new int[methodIndexes.length];
+                int methodIdx = 0;
+                for(int i = 0; i < methodIndexes.length; i++) {
+                    if(i == directMethods) {
+                        // index diffs restart with the virtual methods
+                        methodIdx = 0;
+                    }
+                    methodIdx += readUleb128(pos);
+                    readUleb128(pos);
+                    methodIndexes[i] = methodIdx;
+                    codeOffsets[i] = readUleb128(pos);
+                }
+            }
+            return new ClassDef(index, type, superType, interfaces, methodIndexes, codeOffsets);
+        }
+        catch(IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Corrupted class definition " + index, e);
+        }
+    }
+
+    private int readUleb128(int[] pos) {
+        int res = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buf.get(pos[0]++) & 0xFF;
+            res |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while((b & 0x80) != 0 && shift < 35);
+        return res;
+    }
+
+    /**
+     * @return string of the string pool
+     */
+    public String getString(int index) {
+        String s = strings[index];
+        if(s == null) {
+            s = decodeString(buf.getInt(stringIdsOff + 4 * index));
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Decode a MUTF-8 string_data_item.
+     */
+    private String decodeString(int offset) {
+        int[] pos = {offset};
+        int length = readUleb128(pos);
+        if(chars.length < length) {
+            chars = new char[length];
+        }
+        int p = pos[0];
+        for(int i = 0; i < length; i++) {
+            int a = buf.get(p++) & 0xFF;
+            if(a < 0x80) {
+                chars[i] = (char)a;
+            }
+            else if((a & 0xE0) == 0xC0) {
+                chars[i] = (char)(((a & 0x1F) << 6) | (buf.get(p++) & 0x3F));
+            }
+            else {
+                int b = buf.get(p++) & 0x3F;
+                chars[i] = (char)(((a & 0x0F) << 12) | (b << 6) | (buf.get(p++) & 0x3F));
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * @return type descriptor of the type pool
+     */
+    public String getType(int index) {
+        if(index < 0 || index >= typeIdsSize) {
+            throw new IndexOutOfBoundsException("Illegal type index: " + index);
+        }
+        return getString(buf.getInt(typeIdsOff + 4 * index));
+    }
+
+    /**
+     * @return prototype shorty, such as <code>VL</code>
+     */
+    public String getShorty(int protoIndex) {
+        return getString(buf.getInt(protoIdsOff + 12 * protoIndex));
+    }
+
+    /**
+     * @return prototype descriptor, such as <code>([Ljava/lang/String;)V</code>
+     */
+    public String getPrototype(int protoIndex) {
+        int off = protoIdsOff + 12 * protoIndex;
+        StringBuilder sb = new StringBuilder("(");
+        int parametersOff = buf.getInt(off + 8);
+        if(parametersOff != 0) {
+            int size = buf.getInt(parametersOff);
+            for(int i = 0; i < size; i++) {
+                sb.append(getType(buf.getShort(parametersOff + 4 + 2 * i) & 0xFFFF));
+            }
+        }
+        return sb.append(')').append(getType(buf.getInt(off + 4))).toString();
+    }
+
+    /**
+     * @return class type descriptor of a method of the method pool
+     */
+    public String getMethodClass(int methodIndex) {
+        return getType(buf.getShort(methodIdsOff + 8 * methodIndex) & 0xFFFF);
+    }
+
+    public int getMethodPrototypeIndex(int methodIndex) {
+        return buf.getShort(methodIdsOff + 8 * methodIndex + 2) & 0xFFFF;
+    }
+
+    public String getMethodName(int methodIndex) {
+        return getString(buf.getInt(methodIdsOff + 8 * methodIndex + 4));
+    }
+
+    /**
+     * @return method signature, such as <code>Lcom/Foo;->bar(I)V</code>
+     */
+    public String getMethodSignature(int methodIndex) {
+        return getMethodClass(methodIndex) + "->" + getMethodName(methodIndex)
+                + getPrototype(getMethodPrototypeIndex(methodIndex));
+    }
+
+    /**
+     * Decode the instructions of a code item. Array and switch payloads are not instructions: they
+     * are skipped, as well as the nop aligning them (JEB does not count it either).
+     *
+     * @param codeOffset code item offset
+     * @param insns cleared, then filled with the decoded instructions
+     * @throws IOException if the code is truncated or contains unknown opcodes
+     */
+    public void readInstructions(int codeOffset, DalvikInstructions insns) throws IOException {
+        insns.clear();
+        try {
+            int size = buf.getInt(codeOffset + 12);
+            int start = codeOffset + 16;
+            if(size < 0 || (long)start + 2L * size > buf.limit()) {
+                throw new IOException("Truncated code item at " + codeOffset);
+            }
+            int pc = 0;
+            while(pc < size) {
+                int unit = u(start, pc);
+                int opcode = unit & 0xFF;
+                if(opcode == 0 && unit != 0) {
+                    pc += getPayloadSize(start, pc, unit);
+                    continue;
+                }
+                if(unit == 0 && (pc & 1) != 0 && pc + 1 < size && isPayload(u(start, pc + 1))) {
+                    // padding: payloads are 4-byte aligned
+                    pc++;
+                    continue;
+                }
+                int format = FORMATS[opcode];
+                if(format == F_UNUSED) {
+                    throw new IOException("Unsupported opcode 0x" + Integer.toHexString(opcode) + " at " + codeOffset);
+                }
+                if(pc + FORMAT_SIZES[format] > size) {
+                    throw new IOException("Truncated instruction at " + codeOffset);
+                }
+                OpcodeInfo info = OpcodeInfo.get(opcode);
+                insns.add(info);
+                decodeParameters(start, pc, unit, format, insns);
+                pc += FORMAT_SIZES[format];
+            }
+        }
+        catch(IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted code item at " + codeOffset, e);
+        }
+    }
+
+    private int u(int start, int pc) {
+        return buf.getShort(start + 2 * pc) & 0xFFFF;
+    }
+
+    /** signed 32-bit value stored in 2 code units */
+    private int i32(int start, int pc) {
+        return u(start, pc) | (u(start, pc + 1) << 16);
+    }
+
+    private static boolean isPayload(int unit) {
+        return unit == 0x0100 || unit == 0x0200 || unit == 0x0300;
+    }
+
+    private int getPayloadSize(int start, int pc, int ident) throws IOException {
+        switch(ident) {
+        case 0x0100: // packed-switch-payload
+            return 4 + u(start, pc + 1) * 2;
+        case 0x0200: // sparse-switch-payload
+            return 2 + u(start, pc + 1) * 4;
+        case 0x0300: // fill-array-data-payload
+            long count = (i32(start, pc + 2) & 0xFFFFFFFFL) * u(start, pc + 1);
+            return (int)(4 + (count + 1) / 2);
+        default:
+            throw new IOException("Unsupported opcode 0x00 (0x" + Integer.toHexString(ident) + ")");
+        }
+    }
+
+    private void decodeParameters(int start, int pc, int unit, int format, DalvikInstructions insns) {
+        int a = unit >> 8;
+        switch(format) {
+        case F10X:
+            break;
+        case F12X:
+            reg(insns, a & 0xF);
+            reg(insns, a >> 4);
+            break;
+        case F11N:
+            reg(insns, a & 0xF);
+            imm(insns, (byte)(a & 0xF0) >> 4);
+            break;
+        case F11X:
+            reg(insns, a);
+            break;
+        case F10T:
+            bra(insns, (byte)a);
+            break;
+        case F20T:
+            bra(insns, (short)u(start, pc + 1));
+            break;
+        case F22X:
+            reg(insns, a);
+            reg(insns, u(start, pc + 1));
+            break;
+        case F21T:
+            reg(insns, a);
+            bra(insns, (short)u(start, pc + 1));
+            break;
+        case F21S:
+            reg(insns, a);
+            imm(insns, (short)u(start, pc + 1));
+            break;
+        case F21H:
+            reg(insns, a);
+            // value of the register, not the encoded high bits
+            if((unit & 0xFF) == 0x19) {
+                imm(insns, (long)(short)u(start, pc + 1) << 48);
+            }
+            else {
+                imm(insns, (short)u(start, pc + 1) << 16);
+            }
+            break;
+        case F21C:
+            reg(insns, a);
+            idx(insns, u(start, pc + 1));
+            break;
+        case F23X:
+            reg(insns, a);
+            reg(insns, u(start, pc + 1) & 0xFF);
+            reg(insns, u(start, pc + 1) >> 8);
+            break;
+        case F22B:
+            reg(insns, a);
+            reg(insns, u(start, pc + 1) & 0xFF);
+            imm(insns, (byte)(u(start, pc + 1) >> 8));
+            break;
+        case F22T:
+            reg(insns, a & 0xF);
+            reg(insns, a >> 4);
+            bra(insns, (short)u(start, pc + 1));
+            break;
+        case F22S:
+            reg(insns, a & 0xF);
+            reg(insns, a >> 4);
+            imm(insns, (short)u(start, pc + 1));
+            break;
+        case F22C:
+            reg(insns, a & 0xF);
+            reg(insns, a >> 4);
+            idx(insns, u(start, pc + 1));
+            break;
+        case F30T:
+            bra(insns, i32(start, pc + 1));
+            break;
+        case F32X:
+            reg(insns, u(start, pc + 1));
+            reg(insns, u(start, pc + 2));
+            break;
+        case F31I:
+            reg(insns, a);
+            imm(insns, i32(start, pc + 1));
+            break;
+        case F31T:
+            // offset of the payload
+            reg(insns, a);
+            bra(insns, i32(start, pc + 1));
+            break;
+        case F31C:
+            reg(insns, a);
+            idx(insns, i32(start, pc + 1) & 0xFFFFFFFFL);
+            break;
+        case F35C:
+        case F45CC:
+            idx(insns, u(start, pc + 1));
+            int regs = u(start, pc + 2);
+            int count = a >> 4;
+            for(int i = 0; i < count && i < 4; i++) {
+                reg(insns, (regs >> (4 * i)) & 0xF);
+            }
+            if(count == 5) {
+                reg(insns, a & 0xF);
+            }
+            if(format == F45CC) {
+                idx(insns, u(start, pc + 3));
+            }
+            break;
+        case F3RC:
+        case F4RCC:
+            idx(insns, u(start, pc + 1));
+            // register range: first register in the low 32 bits, last register in the high 32 bits
+            int first = u(start, pc + 2);
+            insns.addParameter(IDalvikInstruction.TYPE_RGR, ((long)(first + a - 1) << 32) | first);
+            if(format == F4RCC) {
+                idx(insns, u(start, pc + 3));
+            }
+            break;
+        case F51L:
+            reg(insns, a);
+            imm(insns, (i32(start, pc + 1) & 0xFFFFFFFFL) | ((long)i32(start, pc + 3) << 32));
+            break;
+        default:
+            throw new IllegalStateException("Unknown format " + format);
+        }
+    }
+
+    private static void reg(DalvikInstructions insns, int register) {
+        insns.addParameter(IDalvikInstruction.TYPE_REG, register);
+    }
+
+    private static void imm(DalvikInstructions insns, long value) {
+        insns.addParameter(IDalvikInstruction.TYPE_IMM, value);
+    }
+
+    private static void idx(DalvikInstructions insns, long index) {
+        insns.addParameter(IDalvikInstruction.TYPE_IDX, index);
+    }
+
+    /**
+     * @param offset branch offset, in code units, relative to the instruction
+     */
+    private static void bra(DalvikInstructions insns, long offset) {
+        insns.addParameter(IDalvikInstruction.TYPE_BRA, offset);
+    }
+}
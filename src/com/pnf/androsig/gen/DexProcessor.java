@@ -5,19 +5,25 @@
  */
 package com.pnf.androsig.gen;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import com.pnf.androsig.apply.model.BlockCompressedFile;
+import com.pnf.androsig.common.CallGraph;
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.DalvikInstructions;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.MethodHash;
+import com.pnf.androsig.common.MinHash;
 import com.pnf.androsig.common.SignatureHandler;
-import com.pnfsoftware.jeb.core.units.code.ICodeType;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
 import com.pnfsoftware.jeb.util.format.Strings;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -29,21 +35,71 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 public class DexProcessor {
     private static final ILogger logger = GlobalLog.getLogger(DexProcessor.class);
 
+    /** extension: basic-block hashcodes, see {@link SignatureHandler#generateBlockHashcodes} */
+    public static final int EXT_BLOCK_HASHES = 1;
+    /** extension: MinHash signature, see {@link SignatureHandler#generateMinHash} */
+    public static final int EXT_MIN_HASH = 2;
+    /**
+     * format option: caller columns reference a dictionary of method signatures, see
+     * {@link CallerDictionary} (applied by {@link LibraryGenerator}, ignored here)
+     */
+    public static final int EXT_CALLER_DICTIONARY = 4;
+    /**
+     * format option: write a block-compressed signature file, see {@link BlockCompressedFile}
+     * (applied by {@link LibraryGenerator}, ignored here)
+     */
+    public static final int EXT_COMPRESSED = 8;
+    /** format option: class fingerprint header lines, see {@link ClassFingerprint} */
+    public static final int EXT_CLASS_FINGERPRINTS = 16;
+
     private String classnameFilter;
+    private HashAlgorithm hashAlgorithm;
+    private int extensions;
     private int methodCount = 0;
 
-    private Map<Integer, Map<Integer, Integer>> allCallerLists = new HashMap<>();
+    private CallGraph callGraph;
     private Map<Integer, String> sigMap = new HashMap<>();
     private Map<Integer, String> hierarchyMap = new HashMap<>();
+    private Map<Integer, String> extensionMap = new HashMap<>();
+    private Map<Integer, ClassFingerprint> fingerprintMap = new HashMap<>();
 
     /**
      * @param classnameFilter regular expression of classes to be processed
      */
     public DexProcessor(String classnameFilter) {
+        this(classnameFilter, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * @param classnameFilter regular expression of classes to be processed
+     * @param hashAlgorithm digest algorithm of the hashcodes
+     */
+    public DexProcessor(String classnameFilter, HashAlgorithm hashAlgorithm) {
+        this(classnameFilter, hashAlgorithm, 0);
+    }
+
+    /**
+     * @param classnameFilter regular expression of classes to be processed
+     * @param hashAlgorithm digest algorithm of the hashcodes
+     * @param extensions optional columns to compute: combination of {@link #EXT_BLOCK_HASHES},
+     *            {@link #EXT_MIN_HASH} and {@link #EXT_CLASS_FINGERPRINTS}
+     */
+    public DexProcessor(String classnameFilter, HashAlgorithm hashAlgorithm, int extensions) {
         this.classnameFilter = classnameFilter;
+        this.hashAlgorithm = hashAlgorithm;
+        this.extensions = extensions;
     }
 
+    /**
+     * Process one dex unit. Results of a previous dex are discarded: use one processor per dex to
+     * keep them. The unit is read from the calling thread only, see
+     * {@link #processDex(DexUnitCopy)} to sign units from worker threads.
+     * 
+     * @param dex dex unit
+     * @return false if the unit could not be processed or has no class
+     */
     public boolean processDex(IDexUnit dex) {
+        reset();
         if(!dex.isProcessed()) {
             if(!dex.process()) {
                 return false;
@@ -54,96 +110,295 @@ public class DexProcessor {
             logger.info("No classes in current project");
             return false;
         }
-        Pattern p = null;
-        if(!Strings.isBlank(classnameFilter)) {
-            p = Pattern.compile(classnameFilter);
-        }
+        Pattern p = getFilterPattern();
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(dex.getMethods().size());
         for(IDexClass eClass: classes) {
-            List<? extends IDexMethod> methods = eClass.getMethods();
-            if(methods == null || methods.size() == 0) {
+            // one class at a time: the copy is released once signed
+            DexUnitCopy.ClassCopy c = DexUnitCopy.copyClass(dex, eClass, p);
+            if(c != null) {
+                processClass(c, callGraphBuilder);
+            }
+        }
+        callGraph = callGraphBuilder.build();
+        return true;
+    }
+
+    /**
+     * Process a copy of a dex unit (see {@link DexUnitCopy}). Results are identical to
+     * {@link #processDex(IDexUnit)} for the copied unit, and JEB is not accessed: this method can be
+     * called from any thread.
+     * 
+     * @param dex copy of a dex unit, filtered by the classname filter of this processor
+     * @return false if the copy has no class
+     */
+    public boolean processDex(DexUnitCopy dex) {
+        reset();
+        if(dex.getClasses().isEmpty()) {
+            logger.info("No classes in current project");
+            return false;
+        }
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(dex.getMethodCount());
+        for(DexUnitCopy.ClassCopy c: dex.getClasses()) {
+            processClass(c, callGraphBuilder);
+        }
+        callGraph = callGraphBuilder.build();
+        return true;
+    }
+
+    private void reset() {
+        methodCount = 0;
+        callGraph = null;
+        sigMap = new HashMap<>();
+        hierarchyMap = new HashMap<>();
+        extensionMap = new HashMap<>();
+        fingerprintMap = new HashMap<>();
+    }
+
+    private void processClass(DexUnitCopy.ClassCopy eClass, CallGraph.Builder callGraphBuilder) {
+        String classname = eClass.getType();
+        List<MethodHash> classHashcodes = new ArrayList<>();
+        for(DexUnitCopy.MethodCopy m: eClass.getMethods()) {
+            String mhash_tight = "";
+            String mhash_loose = "";
+            int opcount = 0;
+            DalvikInstructions insns = m.getCode();
+            if(insns != null) {
+                String[] hashcodes = SignatureHandler.generateHashcodes(insns, hashAlgorithm);
+                mhash_tight = hashcodes[0];
+                mhash_loose = hashcodes[1];
+                callGraphBuilder.addCalls(insns, m.getIndex());// Store all callers
+                opcount = insns.size();
+                if(extensions != 0) {
+                    String ext = getExtensions(insns);
+                    if(!ext.isEmpty()) {
+                        extensionMap.put(m.getIndex(), ext);
+                    }
+                }
+                classHashcodes.add(MethodHash.fromHex(hashAlgorithm, mhash_tight));
+            }
+            sigMap.put(m.getIndex(), formatSignature(classname, m.getName(), m.getShorty(), m.getPrototype(), opcount,
+                    mhash_tight, mhash_loose));
+
+            methodCount++;
+        }
+        addFingerprint(eClass.getIndex(), classname, classHashcodes);
+        hierarchyMap.put(eClass.getIndex(), formatHierarchy(classname, eClass.getSuperTypes(), eClass.getInterfaces()));
+    }
+
+    /**
+     * Process one dex file read without JEB (see {@link DexFile}). Results are identical to
+     * {@link #processDex(IDexUnit)} for a unit made of this file only: maps are indexed by the same
+     * method and class indexes.
+     * 
+     * @param dex dex file
+     * @return false if the file has no class
+     */
+    public boolean processDex(DexFile dex) throws IOException {
+        return processDex(dex, null, null);
+    }
+
+    /**
+     * Process one dex file of a multi-dex artifact. JEB merges the dex files of an artifact in one
+     * unit: callers are resolved across dex files, with the call graph of the artifact (see
+     * {@link #buildCallGraph(List, int[][], int)}), and maps are indexed by artifact method ids.
+     * 
+     * @param dex dex file
+     * @param methodIds artifact method id of each method index of the dex, null to use method indexes
+     * @param callGraph call graph of the artifact, null to build the call graph of the dex
+     * @return false if the file has no class
+     */
+    public boolean processDex(DexFile dex, int[] methodIds, CallGraph callGraph) throws IOException {
+        reset();
+        if(dex.getClassCount() == 0) {
+            logger.info("No classes in current dex file");
+            return false;
+        }
+        Pattern p = getFilterPattern();
+        CallGraph.Builder callGraphBuilder = callGraph == null ? new CallGraph.Builder(dex.getMethodCount()): null;
+        DalvikInstructions insns = new DalvikInstructions();
+        for(int c = 0; c < dex.getClassCount(); c++) {
+            DexFile.ClassDef eClass = dex.getClass(c);
+            if(eClass.getMethodCount() == 0) {
                 continue;
             }
-            String classname = eClass.getClassType().getSignature(true);
+            String classname = eClass.getType();
             if(p != null && !p.matcher(classname).matches()) {
                 continue;
             }
-            for(IDexMethod m: methods) {
-                if(!m.isInternal()) {
-                    continue;
-                }
-
-                IDexMethodData md = m.getData();
-                if(md == null) {
-                    continue;
-                }
-
-                String mhash_tight = new String();
-                String mhash_loose = new String();
+            List<MethodHash> classHashcodes = new ArrayList<>();
+            for(int i = 0; i < eClass.getMethodCount(); i++) {
+                int methodIndex = eClass.getMethodIndex(i);
+                int methodId = methodIds == null ? methodIndex: methodIds[methodIndex];
+                String mhash_tight = "";
+                String mhash_loose = "";
                 int opcount = 0;
-
-                IDexCodeItem ci = md.getCodeItem();
-                if(ci == null) {
-                    mhash_tight = "";
-                    mhash_loose = "";
-                }
-                else {
-                    mhash_tight = SignatureHandler.generateTightHashcode(ci);
-                    mhash_loose = SignatureHandler.generateLooseHashcode(ci);
-                    SignatureHandler.loadCallerList(dex, allCallerLists, ci, m);// Store all callers
-                    opcount = ci.getInstructions().size();
-                }
-                if(mhash_tight == null || mhash_loose == null) {
-                    continue;
+                if(eClass.getCodeOffset(i) != 0) {
+                    try {
+                        dex.readInstructions(eClass.getCodeOffset(i), insns);
+                    }
+                    catch(IOException e) {
+                        logger.warn("Method %s is not signed: %s", dex.getMethodSignature(methodIndex),
+                                e.getMessage());
+                        continue;
+                    }
+                    String[] hashcodes = SignatureHandler.generateHashcodes(insns, hashAlgorithm);
+                    mhash_tight = hashcodes[0];
+                    mhash_loose = hashcodes[1];
+                    if(callGraphBuilder != null) {
+                        callGraphBuilder.addCalls(insns, methodIndex);
+                    }
+                    opcount = insns.size();
+                    if(extensions != 0) {
+                        String ext = getExtensions(insns);
+                        if(!ext.isEmpty()) {
+                            extensionMap.put(methodId, ext);
+                        }
+                    }
+                    classHashcodes.add(MethodHash.fromHex(hashAlgorithm, mhash_tight));
                 }
-                StringBuilder s = new StringBuilder();
-                s.append(classname).append(',');
-                s.append(m.getName(true)).append(',');
-                IDexPrototype proto = dex.getPrototype(m.getPrototypeIndex());
-                s.append(proto.getShorty()).append(',');
-                s.append(proto.generate(false)).append(',');
-                s.append(opcount).append(',');
-                s.append(mhash_tight).append(',');
-                s.append(mhash_loose);
-
-                sigMap.put(m.getIndex(), s.toString());
+                int protoIndex = dex.getMethodPrototypeIndex(methodIndex);
+                sigMap.put(methodId, formatSignature(classname, dex.getMethodName(methodIndex),
+                        dex.getShorty(protoIndex), dex.getPrototype(protoIndex), opcount, mhash_tight, mhash_loose));
 
                 methodCount++;
             }
-            // add hierarchy
-            List<? extends ICodeType> superTypes = eClass.getSupertypes();
-            List<? extends ICodeType> interfaces = eClass.getImplementedInterfaces();
-            StringBuilder s = new StringBuilder();
-            s.append(classname).append(",<parent>,,,0,,,");
-            StringBuilder ss = new StringBuilder();
-            if(superTypes != null && !superTypes.isEmpty()) {
-                if(!(superTypes.size() == 1 && superTypes.get(0).getSignature(true).equals("Ljava/lang/Object;"))) {
-                    for(ICodeType su: superTypes) {
-                        ss.append(su.getSignature(true)).append('|');
+            addFingerprint(eClass.getIndex(), classname, classHashcodes);
+            List<String> superTypes = eClass.getSuperType() == null ? Collections.emptyList()
+                    : Collections.singletonList(eClass.getSuperType());
+            hierarchyMap.put(eClass.getIndex(), formatHierarchy(classname, superTypes, eClass.getInterfaces()));
+        }
+        this.callGraph = callGraphBuilder != null ? callGraphBuilder.build(): callGraph;
+        return true;
+    }
+
+    /**
+     * Build the call graph of the dex files of an artifact: only calls from classes matching the
+     * classname filter are recorded, as in {@link #processDex(DexFile, int[], CallGraph)}. Methods
+     * that can not be decoded are skipped.
+     * 
+     * @param dexlist dex files of the artifact
+     * @param methodIds artifact method id of each method index, per dex file
+     * @param methodCount number of artifact method ids
+     */
+    public CallGraph buildCallGraph(List<DexFile> dexlist, int[][] methodIds, int methodCount) throws IOException {
+        Pattern p = getFilterPattern();
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(methodCount);
+        DalvikInstructions insns = new DalvikInstructions();
+        for(int d = 0; d < dexlist.size(); d++) {
+            DexFile dex = dexlist.get(d);
+            for(int c = 0; c < dex.getClassCount(); c++) {
+                DexFile.ClassDef eClass = dex.getClass(c);
+                if(p != null && !p.matcher(eClass.getType()).matches()) {
+                    continue;
+                }
+                for(int i = 0; i < eClass.getMethodCount(); i++) {
+                    if(eClass.getCodeOffset(i) == 0) {
+                        continue;
+                    }
+                    try {
+                        dex.readInstructions(eClass.getCodeOffset(i), insns);
                     }
-                    ss.deleteCharAt(ss.length() - 1);
+                    catch(IOException e) {
+                        continue;
+                    }
+                    callGraphBuilder.addCalls(insns, methodIds[d][eClass.getMethodIndex(i)], methodIds[d]);
                 }
             }
-            StringBuilder si = new StringBuilder();
-            if(interfaces != null && !interfaces.isEmpty()) {
-                for(ICodeType su: interfaces) {
-                    si.append(su.getSignature(true)).append('|');
+        }
+        return callGraphBuilder.build();
+    }
+
+    private Pattern getFilterPattern() {
+        return Strings.isBlank(classnameFilter) ? null: Pattern.compile(classnameFilter);
+    }
+
+    private static String formatSignature(String classname, String methodName, String shorty, String prototype,
+            int opcount, String mhash_tight, String mhash_loose) {
+        StringBuilder s = new StringBuilder();
+        s.append(classname).append(',');
+        s.append(methodName).append(',');
+        s.append(shorty).append(',');
+        s.append(prototype).append(',');
+        s.append(opcount).append(',');
+        s.append(mhash_tight).append(',');
+        s.append(mhash_loose);
+        return s.toString();
+    }
+
+    private void addFingerprint(int classIndex, String classname, List<MethodHash> classHashcodes) {
+        if((extensions & EXT_CLASS_FINGERPRINTS) == 0) {
+            return;
+        }
+        MethodHash fingerprint = ClassFingerprint.compute(hashAlgorithm, classHashcodes);
+        if(fingerprint != null) {
+            fingerprintMap.put(classIndex, new ClassFingerprint(classname, classHashcodes.size(), fingerprint));
+        }
+    }
+
+    private static String formatHierarchy(String classname, List<String> superTypes, List<String> interfaces) {
+        StringBuilder s = new StringBuilder();
+        s.append(classname).append(",<parent>,,,0,,,");
+        StringBuilder ss = new StringBuilder();
+        if(!superTypes.isEmpty()) {
+            if(!(superTypes.size() == 1 && superTypes.get(0).equals("Ljava/lang/Object;"))) {
+                for(String su: superTypes) {
+                    ss.append(su).append('|');
                 }
-                si.deleteCharAt(si.length() - 1);
+                ss.deleteCharAt(ss.length() - 1);
             }
-            if(ss.length() != 0 || si.length() != 0) {
-                s.append(ss).append("||").append(si);
+        }
+        StringBuilder si = new StringBuilder();
+        if(!interfaces.isEmpty()) {
+            for(String su: interfaces) {
+                si.append(su).append('|');
             }
-            hierarchyMap.put(eClass.getIndex(), s.toString());
+            si.deleteCharAt(si.length() - 1);
         }
-        return true;
+        if(ss.length() != 0 || si.length() != 0) {
+            s.append(ss).append("||").append(si);
+        }
+        return s.toString();
+    }
+
+    private String getExtensions(DalvikInstructions insns) {
+        return formatExtensions((extensions & EXT_BLOCK_HASHES) != 0 ? SignatureHandler.generateBlockHashcodes(insns)
+                : null, (extensions & EXT_MIN_HASH) != 0 ? SignatureHandler.generateMinHash(insns): null);
     }
 
+    private String formatExtensions(long[] blockHashcodes, int[] minHashValues) {
+        StringBuilder s = new StringBuilder();
+        if((extensions & EXT_BLOCK_HASHES) != 0) {
+            String blocks = SignatureHandler.formatBlockHashcodes(blockHashcodes);
+            if(!blocks.isEmpty()) {
+                s.append(blocks);
+            }
+        }
+        if((extensions & EXT_MIN_HASH) != 0) {
+            String minHash = MinHash.format(minHashValues);
+            if(!minHash.isEmpty()) {
+                if(s.length() != 0) {
+                    s.append(',');
+                }
+                s.append(minHash);
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return number of signed methods of the last processed dex
+     */
     public int getMethodCount() {
         return methodCount;
     }
 
-    public Map<Integer, Map<Integer, Integer>> getAllCallerLists() {
-        return allCallerLists;
+    /**
+     * @return callers of the methods of the last processed dex (only calls from processed classes
+     *         are recorded), or the artifact call graph given to
+     *         {@link #processDex(DexFile, int[], CallGraph)}
+     */
+    public CallGraph getCallGraph() {
+        return callGraph;
     }
 
     public Map<Integer, String> getSigMap() {
@@ -154,4 +409,21 @@ public class DexProcessor {
         return hierarchyMap;
     }
 
+    /**
+     * @return extension columns (comma-separated), per method index. Only methods with at least one
+     *         enabled extension are present.
+     */
+    public Map<Integer, String> getExtensionMap() {
+        return extensionMap;
+    }
+
+    /**
+     * @return structural fingerprints, per class index, empty unless {@link #EXT_CLASS_FINGERPRINTS}
+     *         is enabled. Classes with fewer than {@link ClassFingerprint#MIN_METHODS} methods with
+     *         code are not present.
+     */
+    public Map<Integer, ClassFingerprint> getFingerprintMap() {
+        return fingerprintMap;
+    }
+
 }
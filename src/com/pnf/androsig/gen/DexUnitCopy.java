@@ -0,0 +1,247 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.pnf.androsig.common.DalvikInstructions;
+import com.pnfsoftware.jeb.core.units.code.ICodeType;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Copy of the classes of a processed dex unit, with what {@link DexProcessor} needs to sign them:
+ * types, prototypes and instructions (see {@link DalvikInstructions}). JEB units are not documented
+ * as thread-safe: units are copied on the thread that owns them, and only the copies are signed on
+ * worker threads.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexUnitCopy {
+
+    /**
+     * Copy of a class with at least one method.
+     */
+    public static class ClassCopy {
+        private final int index;
+        private final String type;
+        private final List<String> superTypes;
+        private final List<String> interfaces;
+        private final List<MethodCopy> methods;
+
+        private ClassCopy(int index, String type, List<String> superTypes, List<String> interfaces,
+                List<MethodCopy> methods) {
+            this.index = index;
+            this.type = type;
+            this.superTypes = superTypes;
+            this.interfaces = interfaces;
+            this.methods = methods;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public List<String> getSuperTypes() {
+            return superTypes;
+        }
+
+        public List<String> getInterfaces() {
+            return interfaces;
+        }
+
+        /**
+         * @return internal methods with data
+         */
+        public List<MethodCopy> getMethods() {
+            return methods;
+        }
+    }
+
+    /**
+     * Copy of an internal method.
+     */
+    public static class MethodCopy {
+        private final int index;
+        private final String name;
+        private final String signature;
+        private final String shorty;
+        private final String prototype;
+        private final DalvikInstructions code;
+
+        private MethodCopy(int index, String name, String signature, String shorty, String prototype,
+                DalvikInstructions code) {
+            this.index = index;
+            this.name = name;
+            this.signature = signature;
+            this.shorty = shorty;
+            this.prototype = prototype;
+            this.code = code;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return method signature, such as <code>Lcom/Foo;->bar(I)V</code>
+         */
+        public String getSignature() {
+            return signature;
+        }
+
+        public String getShorty() {
+            return shorty;
+        }
+
+        public String getPrototype() {
+            return prototype;
+        }
+
+        /**
+         * @return instructions, null for abstract and native methods
+         */
+        public DalvikInstructions getCode() {
+            return code;
+        }
+    }
+
+    private final int methodCount;
+    private final List<ClassCopy> classes;
+    /** signature of the copied methods, per method index */
+    private final String[] methodSignatures;
+
+    private DexUnitCopy(int methodCount, List<ClassCopy> classes) {
+        this.methodCount = methodCount;
+        this.classes = classes;
+        methodSignatures = new String[methodCount];
+        for(ClassCopy c: classes) {
+            for(MethodCopy m: c.methods) {
+                if(m.index >= 0 && m.index < methodCount) {
+                    methodSignatures[m.index] = m.signature;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the classes of a dex unit, processing it first if needed. Must be called from the thread
+     * owning the unit.
+     *
+     * @param dex dex unit
+     * @param classnameFilter regular expression of the classes to copy, null for all classes
+     * @return null if the unit could not be processed or has no class
+     */
+    public static DexUnitCopy copy(IDexUnit dex, String classnameFilter) {
+        if(!dex.isProcessed()) {
+            if(!dex.process()) {
+                return null;
+            }
+        }
+        List<? extends IDexClass> classes = dex.getClasses();
+        if(classes == null || classes.size() == 0) {
+            return null;
+        }
+        Pattern p = Strings.isBlank(classnameFilter) ? null: Pattern.compile(classnameFilter);
+        List<ClassCopy> res = new ArrayList<>();
+        for(IDexClass eClass: classes) {
+            ClassCopy c = copyClass(dex, eClass, p);
+            if(c != null) {
+                res.add(c);
+            }
+        }
+        List<? extends IDexMethod> methods = dex.getMethods();
+        return new DexUnitCopy(methods == null ? 0: methods.size(), res);
+    }
+
+    /**
+     * Copy one class of a dex unit.
+     *
+     * @param p classname filter, null for all classes
+     * @return null if the class has no method or does not match the filter
+     */
+    static ClassCopy copyClass(IDexUnit dex, IDexClass eClass, Pattern p) {
+        List<? extends IDexMethod> methods = eClass.getMethods();
+        if(methods == null || methods.size() == 0) {
+            return null;
+        }
+        String classname = eClass.getClassType().getSignature(true);
+        if(p != null && !p.matcher(classname).matches()) {
+            return null;
+        }
+        List<MethodCopy> methodCopies = new ArrayList<>();
+        for(IDexMethod m: methods) {
+            if(!m.isInternal()) {
+                continue;
+            }
+            IDexMethodData md = m.getData();
+            if(md == null) {
+                continue;
+            }
+            DalvikInstructions code = null;
+            IDexCodeItem ci = md.getCodeItem();
+            if(ci != null) {
+                code = new DalvikInstructions();
+                code.addAll(ci);
+                code.trimToSize();
+            }
+            IDexPrototype proto = dex.getPrototype(m.getPrototypeIndex());
+            methodCopies.add(new MethodCopy(m.getIndex(), m.getName(true), m.getSignature(false), proto.getShorty(),
+                    proto.generate(false), code));
+        }
+        return new ClassCopy(eClass.getIndex(), classname, getSignatures(eClass.getSupertypes()),
+                getSignatures(eClass.getImplementedInterfaces()), methodCopies);
+    }
+
+    private static List<String> getSignatures(List<? extends ICodeType> types) {
+        if(types == null || types.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> res = new ArrayList<>();
+        for(ICodeType type: types) {
+            res.add(type.getSignature(true));
+        }
+        return res;
+    }
+
+    /**
+     * @return number of methods of the unit (internal and external)
+     */
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /**
+     * @return copied classes
+     */
+    public List<ClassCopy> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return signature of a copied method, null if the method was not copied
+     */
+    public String getMethodSignature(int methodIndex) {
+        return methodIndex >= 0 && methodIndex < methodCount ? methodSignatures[methodIndex]: null;
+    }
+}
@@ -6,17 +6,36 @@
 package com.pnf.androsig.gen;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 
+import com.pnf.androsig.apply.model.BlockCompressedFile;
+import com.pnf.androsig.apply.model.IndexedSignatureFile;
+import com.pnf.androsig.apply.model.SignatureIndexBuilder;
+import com.pnf.androsig.common.CallGraph;
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnf.androsig.common.HashAlgorithm;
 import com.pnfsoftware.jeb.client.Licensing;
 import com.pnfsoftware.jeb.core.IRuntimeProject;
 import com.pnfsoftware.jeb.core.RuntimeProjectUtil;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
-import com.pnfsoftware.jeb.util.io.IO;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.util.format.Strings;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
@@ -32,61 +51,430 @@ public class LibraryGenerator {
     private static final boolean verbose = false;
 
     public static void generate(IRuntimeProject prj, File sigFolder, String libname, String classnameFilter) {
-        StringBuilder sb = new StringBuilder();
-        DexProcessor proc = new DexProcessor(classnameFilter);
+        generate(prj, sigFolder, libname, classnameFilter, HashAlgorithm.DEFAULT);
+    }
 
-        record(sb, ";comment=JEB signature file");
-        record(sb, ";author=" + Licensing.user_name);
-        record(sb, ";version=" + androidSigFileVersion);
-        record(sb, ";libname=" + libname);
+    public static void generate(IRuntimeProject prj, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm) {
+        generate(prj, sigFolder, libname, classnameFilter, hashAlgorithm, 0);
+    }
+
+    /**
+     * @param extensions optional columns, appended after an empty versions column (see
+     *            {@link DexProcessor#DexProcessor(String, HashAlgorithm, int)}). Lines are unchanged
+     *            when 0.
+     */
+    public static void generate(IRuntimeProject prj, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions) {
+        generate(prj, sigFolder, libname, classnameFilter, hashAlgorithm, extensions, 0);
+    }
 
-        // Process dex files
+    /**
+     * Generate the signature file of all dex units of a project. Dex units are signed concurrently,
+     * each by its own {@link DexProcessor}; lines are merged and sorted so that the file does not
+     * depend on the number of threads nor on the dex order. Lines are streamed to a
+     * {@link SortedLineWriter}, which spills sorted runs to disk, so the formatted lines of the library
+     * are not all kept in memory. Memory still grows with the library: each dex being signed keeps the
+     * lines of all its methods (at most one dex per thread, plus the one being written), the index
+     * builder keeps the offsets of every hashcode and class until the file is complete, and the caller
+     * dictionary keeps every distinct caller signature. The index file (see
+     * {@link IndexedSignatureFile}) and a statistics report (see {@link SignatureStats}) are written
+     * along with the signature file.
+     * <p>
+     * JEB units are only accessed from the calling thread: with several threads, units are copied
+     * there (see {@link DexUnitCopy}), and workers sign the copies.
+     * 
+     * @param extensions optional columns, see {@link #generate(IRuntimeProject, File, String, String,
+     *            HashAlgorithm, int)}
+     * @param threads number of dex units signed concurrently: 0 to use all available processors, 1
+     *            for sequential processing
+     */
+    public static void generate(IRuntimeProject prj, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads) {
         List<IDexUnit> dexlist = RuntimeProjectUtil.findUnitsByType(prj, IDexUnit.class, false);
-        List<String> lines = new ArrayList<>();
-        for(IDexUnit dex: dexlist) {
-            proc.processDex(dex);
-            // Store all info to sb
-            for(Map.Entry<Integer, String> each: proc.getSigMap().entrySet()) {
-                if(proc.getAllCallerLists().containsKey(each.getKey())) {
-                    lines.add(each.getValue() + ","
-                            + transferIndexToName(dex, proc.getAllCallerLists().get(each.getKey())));
+        generate(sigFolder, libname, classnameFilter, hashAlgorithm, extensions, (writer, callers) -> {
+            int effectiveThreads = getThreadCount(threads, dexlist.size());
+            if(effectiveThreads <= 1) {
+                return processDexes(dexlist, dex -> dex,
+                        dex -> processDex(dex, classnameFilter, hashAlgorithm, extensions), 1, writer, callers);
+            }
+            return processDexes(dexlist, dex -> DexUnitCopy.copy(dex, classnameFilter),
+                    copy -> processDex(copy, classnameFilter, hashAlgorithm, extensions), effectiveThreads, writer,
+                    callers);
+        });
+    }
+
+    /**
+     * Generate the signature file of dex units copied beforehand (see {@link DexUnitCopy}), for
+     * instance from the thread owning their project. JEB is not accessed: this method can be called
+     * from any thread.
+     * 
+     * @param units copies of the dex units of a library, filtered by <code>classnameFilter</code>
+     * @param extensions optional columns, see {@link #generate(IRuntimeProject, File, String, String,
+     *            HashAlgorithm, int)}
+     * @param threads number of dex units signed concurrently: 0 to use all available processors, 1
+     *            for sequential processing
+     */
+    public static void generate(List<DexUnitCopy> units, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads) {
+        generate(sigFolder, libname, classnameFilter, hashAlgorithm, extensions,
+                (writer, callers) -> processDexes(units, copy -> copy,
+                        copy -> processDex(copy, classnameFilter, hashAlgorithm, extensions),
+                        getThreadCount(threads, units.size()), writer, callers));
+    }
+
+    /**
+     * Generate the signature file of a DEX/APK file without JEB project: dex files are parsed by a
+     * {@link DexFile} instead of being processed by JEB, which is much faster for bulk generation.
+     * Method lines are the same as the ones generated from a project of the same file. JEB merges the
+     * dex files of a multi-dex artifact in one unit: here, methods are identified by signature across
+     * dex files, so that caller columns also list the callers of other dex files. Callers are then
+     * listed in signature order, which may differ from the order of a project. The method signatures
+     * and the call graph of the artifact are kept until the file is written.
+     * 
+     * @param artifact dex file, or APK/JAR archive containing dex files
+     * @param extensions optional columns, see {@link #generate(IRuntimeProject, File, String, String,
+     *            HashAlgorithm, int)}
+     * @param threads number of dex files processed concurrently: 0 to use all available processors,
+     *            1 for sequential processing
+     */
+    public static void generate(File artifact, File sigFolder, String libname, String classnameFilter,
+            HashAlgorithm hashAlgorithm, int extensions, int threads) {
+        generate(sigFolder, libname, classnameFilter, hashAlgorithm, extensions, (writer, callers) -> {
+            List<DexFile> dexlist = DexFile.openArtifact(artifact);
+            if(dexlist.size() <= 1) {
+                return processDexes(dexlist, dex -> dex,
+                        dex -> processDex(dex, classnameFilter, hashAlgorithm, extensions),
+                        getThreadCount(threads, dexlist.size()), writer, callers);
+            }
+            // one call graph for the artifact, built before signing: callers may be in any dex file
+            ArtifactMethods methods = new ArtifactMethods(dexlist);
+            CallGraph callGraph = new DexProcessor(classnameFilter, hashAlgorithm, extensions)
+                    .buildCallGraph(dexlist, methods.ids, methods.signatures.length);
+            List<Integer> indexes = new ArrayList<>();
+            for(int i = 0; i < dexlist.size(); i++) {
+                indexes.add(i);
+            }
+            return processDexes(indexes, i -> i, i -> {
+                DexProcessor proc = new DexProcessor(classnameFilter, hashAlgorithm, extensions);
+                if(!proc.processDex(dexlist.get(i), methods.ids[i], callGraph)) {
+                    return new SignedDex(null, null);
                 }
-                else {
-                    lines.add(each.getValue() + ",");
+                return new SignedDex(proc, id -> methods.signatures[id]);
+            }, getThreadCount(threads, dexlist.size()), writer, callers);
+        });
+    }
+
+    /**
+     * Methods of a multi-dex artifact: the methods of its dex files are identified by signature, with
+     * ids in signature order.
+     */
+    private static class ArtifactMethods {
+        /** sorted method signatures: signature of an id */
+        private final String[] signatures;
+        /** id of each method index, per dex */
+        private final int[][] ids;
+
+        ArtifactMethods(List<DexFile> dexlist) {
+            Set<String> all = new TreeSet<>();
+            for(DexFile dex: dexlist) {
+                for(int i = 0; i < dex.getMethodCount(); i++) {
+                    all.add(dex.getMethodSignature(i));
                 }
             }
-            for(Map.Entry<Integer, String> each: proc.getHierarchyMap().entrySet()) {
-                lines.add(each.getValue());
+            signatures = all.toArray(new String[all.size()]);
+            ids = new int[dexlist.size()][];
+            for(int d = 0; d < dexlist.size(); d++) {
+                DexFile dex = dexlist.get(d);
+                ids[d] = new int[dex.getMethodCount()];
+                for(int i = 0; i < ids[d].length; i++) {
+                    ids[d][i] = Arrays.binarySearch(signatures, dex.getMethodSignature(i));
+                }
             }
         }
+    }
 
-        // sort to have an absolute reference
-        Collections.sort(lines);
-        for(String line: lines) {
-            record(sb, line);
+    /**
+     * Source of signature lines.
+     */
+    private interface LineSource {
+        /**
+         * @param callers collects caller signatures, null if no dictionary is generated
+         * @return number of signed methods
+         */
+        int write(SortedLineWriter writer, Set<String> callers) throws IOException;
+    }
+
+    private static void generate(File sigFolder, String libname, String classnameFilter, HashAlgorithm hashAlgorithm,
+            int extensions, LineSource source) {
+        File f = new File(sigFolder, sanitizeFilename(libname) + ".sig");
+        // sorted to have an absolute reference; identical lines come from a class packaged in several dex units
+        try(SortedLineWriter writer = new SortedLineWriter(f)) {
+            record(writer, ";comment=JEB signature file");
+            record(writer, ";author=" + Licensing.user_name);
+            record(writer, ";version=" + androidSigFileVersion);
+            record(writer, ";libname=" + libname);
+            for(String header: getOptionHeaders(classnameFilter, hashAlgorithm, extensions)) {
+                record(writer, header);
+            }
+
+            // Process dex files
+            Set<String> callers = (extensions & DexProcessor.EXT_CALLER_DICTIONARY) != 0 ? new TreeSet<>(): null;
+            int methodCount = source.write(writer, callers);
+
+            if(callers != null && !callers.isEmpty()) {
+                // sorted ids: the file does not depend on the dex order
+                CallerDictionary dictionary = new CallerDictionary();
+                for(String caller: callers) {
+                    record(writer, ";" + dictionary.formatHeader(dictionary.add(caller)));
+                }
+                // lines are sorted in plain form, so that files can be merged whatever their dictionaries
+                writer.setEncoder(dictionary::encodeLine);
+            }
+
+            if(methodCount >= 1) {
+                logger.info("Saving signatures to file: %s", f);
+                // index lines while they are written: the file is ready to use, without index rebuild
+                SignatureIndexBuilder indexBuilder = new SignatureIndexBuilder(f);
+                SignatureStats stats = new SignatureStats();
+                writer.setListener((data, offset) -> {
+                    indexBuilder.addLine(data, 0, data.length, (int)offset);
+                    stats.addLine(data);
+                });
+                writer.commit();
+                indexBuilder.write(IndexedSignatureFile.getIndexFile(f), f.length());
+                File reportFile = SignatureStats.getReportFile(f);
+                stats.write(reportFile);
+                logger.info("%d methods, %d without code, %d small, %d with duplicate hashcode (report: %s)",
+                        stats.getMethodCount(), stats.getMethodsWithoutCode(), stats.getSmallMethods(),
+                        stats.getDuplicateMethods(), reportFile);
+                if((extensions & DexProcessor.EXT_COMPRESSED) != 0) {
+                    compress(f);
+                }
+            }
+        }
+        catch(IOException e) {
+            logger.error("Could not write signature file!");
+            logger.catching(e);
         }
+    }
+
+    /**
+     * Replace a signature file by its block-compressed version. The index stores uncompressed
+     * offsets, so it is kept as is.
+     */
+    private static void compress(File f) throws IOException {
+        File compressed = getSignatureFile(f.getParentFile(), f.getName().substring(0, f.getName().length() - 4),
+                DexProcessor.EXT_COMPRESSED);
+        BlockCompressedFile.compress(f, compressed, BlockCompressedFile.DEFAULT_BLOCK_SIZE);
+        File index = IndexedSignatureFile.getIndexFile(compressed);
+        Files.move(IndexedSignatureFile.getIndexFile(f).toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // index is considered up to date if not older than the signature file
+        index.setLastModified(Math.max(System.currentTimeMillis(), compressed.lastModified()));
+        if(!f.delete()) {
+            logger.warn("Can not delete uncompressed file %s", f);
+        }
+        logger.info("Signatures compressed to file: %s", compressed);
+    }
+
+    /**
+     * Get the header lines recording the generation options, so that a signature file generated with
+     * other options can be detected (see {@link BatchGenerator}). Default options have no header:
+     * default files are unchanged, and readable by older versions.
+     * 
+     * @return <code>;hash=</code>, <code>;filter=</code> and <code>;extensions=</code> lines, for
+     *         non-default options only
+     */
+    public static List<String> getOptionHeaders(String classnameFilter, HashAlgorithm hashAlgorithm,
+            int extensions) {
+        List<String> headers = new ArrayList<>();
+        if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+            headers.add(";hash=" + hashAlgorithm.getName());
+        }
+        if(!Strings.isBlank(classnameFilter)) {
+            headers.add(";filter=" + classnameFilter);
+        }
+        // the compression option is given by the file extension
+        int recorded = extensions & ~DexProcessor.EXT_COMPRESSED;
+        if(recorded != 0) {
+            headers.add(";extensions=" + recorded);
+        }
+        return headers;
+    }
+
+    /**
+     * @return true if the line is one of the headers of {@link #getOptionHeaders(String, HashAlgorithm, int)}
+     */
+    public static boolean isOptionHeader(String line) {
+        return line.startsWith(";hash=") || line.startsWith(";filter=") || line.startsWith(";extensions=");
+    }
 
-        if(proc.getMethodCount() >= 1) {
-            File f = new File(sigFolder, sanitizeFilename(libname) + ".sig");
-            logger.info("Saving signatures to file: %s", f);
-            try {
-                byte[] data = sb.toString().getBytes("UTF-8");
-                if(!IO.writeFileSafe(f, data, true)) {
-                    logger.error("Could not write signature file!");
+    /**
+     * @param basename sanitized library name
+     * @param extensions generation options: a compressed file is written with
+     *            {@link DexProcessor#EXT_COMPRESSED}
+     * @return signature file generated in a folder
+     */
+    public static File getSignatureFile(File sigFolder, String basename, int extensions) {
+        String ext = (extensions & DexProcessor.EXT_COMPRESSED) != 0 ? BlockCompressedFile.EXTENSION: ".sig";
+        return new File(sigFolder, basename + ext);
+    }
+
+    /**
+     * Processed dex, not written yet: lines are only formatted when the dex is written, since caller
+     * columns need the complete call graph of the dex.
+     */
+    private static class SignedDex {
+        /** null if the dex could not be processed */
+        private final DexProcessor proc;
+        /** method signature of a method index */
+        private final IntFunction<String> methodSignatures;
+
+        SignedDex(DexProcessor proc, IntFunction<String> methodSignatures) {
+            this.proc = proc;
+            this.methodSignatures = methodSignatures;
+        }
+    }
+
+    /**
+     * Reading of one dex, from the calling thread.
+     */
+    private interface DexReader<T, U> {
+        U read(T dex) throws IOException;
+    }
+
+    /**
+     * Signing of one dex, read by a {@link DexReader}.
+     */
+    private interface DexSigner<U> {
+        SignedDex process(U dex) throws IOException;
+    }
+
+    private static int getThreadCount(int threads, int dexCount) {
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return Math.min(threads, dexCount);
+    }
+
+    /**
+     * Sign dexes and write their lines. Dexes are read (and lines written) from the calling thread,
+     * only signing runs on workers. With several threads, at most <code>threads</code> dexes are
+     * submitted ahead of the writer, so that read dexes waiting to be signed or written stay bounded
+     * whatever the number of dexes.
+     * 
+     * @return number of signed methods
+     */
+    private static <T, U> int processDexes(List<T> dexlist, DexReader<T, U> reader, DexSigner<U> signer, int threads,
+            SortedLineWriter writer, Set<String> callers) throws IOException {
+        int methodCount = 0;
+        if(threads <= 1) {
+            for(T dex: dexlist) {
+                methodCount += write(writer, signer.process(reader.read(dex)), callers);
+            }
+            return methodCount;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<SignedDex>> pending = new ArrayDeque<>();
+        try {
+            for(T dex: dexlist) {
+                if(pending.size() >= threads) {
+                    // results are released as soon as they are written
+                    methodCount += write(writer, pending.poll().get(), callers);
                 }
+                U read = reader.read(dex);
+                pending.add(executor.submit(() -> signer.process(read)));
+            }
+            while(!pending.isEmpty()) {
+                methodCount += write(writer, pending.poll().get(), callers);
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
             }
-            catch(UnsupportedEncodingException e) {
-                logger.catching(e);
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return methodCount;
+    }
+
+    private static SignedDex processDex(IDexUnit dex, String classnameFilter, HashAlgorithm hashAlgorithm,
+            int extensions) {
+        DexProcessor proc = new DexProcessor(classnameFilter, hashAlgorithm, extensions);
+        if(!proc.processDex(dex)) {
+            return new SignedDex(null, null);
+        }
+        List<? extends IDexMethod> methods = dex.getMethods();
+        return new SignedDex(proc, index -> methods.get(index).getSignature(false));
+    }
+
+    private static SignedDex processDex(DexUnitCopy dex, String classnameFilter, HashAlgorithm hashAlgorithm,
+            int extensions) {
+        DexProcessor proc = new DexProcessor(classnameFilter, hashAlgorithm, extensions);
+        if(dex == null || !proc.processDex(dex)) {
+            return new SignedDex(null, null);
+        }
+        return new SignedDex(proc, dex::getMethodSignature);
+    }
+
+    private static SignedDex processDex(DexFile dex, String classnameFilter, HashAlgorithm hashAlgorithm,
+            int extensions) throws IOException {
+        DexProcessor proc = new DexProcessor(classnameFilter, hashAlgorithm, extensions);
+        if(!proc.processDex(dex)) {
+            return new SignedDex(null, null);
+        }
+        return new SignedDex(proc, dex::getMethodSignature);
+    }
+
+    /**
+     * Stream the lines of a processed dex to the writer, one line at a time.
+     * 
+     * @param callers collects caller signatures, null if no dictionary is generated
+     * @return number of signed methods
+     */
+    private static int write(SortedLineWriter writer, SignedDex dex, Set<String> callers) throws IOException {
+        DexProcessor proc = dex.proc;
+        if(proc == null) {
+            return 0;
+        }
+        CallGraph callGraph = proc.getCallGraph();
+        for(Map.Entry<Integer, String> each: proc.getSigMap().entrySet()) {
+            String line;
+            if(callGraph != null && callGraph.hasCallers(each.getKey())) {
+                line = each.getValue() + ","
+                        + transferIndexToName(dex.methodSignatures, callGraph, each.getKey(), callers);
+            }
+            else {
+                line = each.getValue() + ",";
             }
+            String ext = proc.getExtensionMap().get(each.getKey());
+            if(ext != null) {
+                line += ",," + ext;
+            }
+            writer.add(line);
+        }
+        for(Map.Entry<Integer, String> each: proc.getHierarchyMap().entrySet()) {
+            writer.add(each.getValue());
         }
+        // header lines: sorted before signature lines
+        for(ClassFingerprint fingerprint: proc.getFingerprintMap().values()) {
+            writer.add(";" + fingerprint.format());
+        }
+        return proc.getMethodCount();
     }
 
-    private static void record(StringBuilder sb, CharSequence s) {
-        sb.append(s);
-        sb.append('\n');
+    private static void record(SortedLineWriter writer, String s) {
+        writer.addHeader(s);
 
         if(verbose) {
-            logger.info(s.toString());
+            logger.info(s);
         }
     }
 
@@ -99,11 +487,15 @@ public class LibraryGenerator {
         return s2;
     }
 
-    private static String transferIndexToName(IDexUnit dex, Map<Integer, Integer> inputs) {
+    private static String transferIndexToName(IntFunction<String> methodSignatures, CallGraph callGraph, int callee,
+            Set<String> callers) {
         StringBuilder sb = new StringBuilder();
-        for(Map.Entry<Integer, Integer> each: inputs.entrySet()) {
-            sb.append(dex.getMethods().get(each.getKey()).getSignature(false)).append("=").append(each.getValue())
-                    .append("|");
+        for(int i = callGraph.getCallersStart(callee); i < callGraph.getCallersEnd(callee); i++) {
+            String caller = methodSignatures.apply(callGraph.getCallerAt(i));
+            if(callers != null) {
+                callers.add(caller);
+            }
+            sb.append(caller).append("=").append(callGraph.getCallCountAt(i)).append("|");
         }
         sb.deleteCharAt(sb.length() - 1);
         return sb.toString();
@@ -0,0 +1,321 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.pnf.androsig.apply.model.BlockCompressedFile;
+import com.pnf.androsig.apply.model.IndexedSignatureFile;
+import com.pnf.androsig.apply.model.SignatureIndexBuilder;
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Merge a signature file into another one, to build multi-version signature files. Signature lines
+ * which only differ by their versions column are written once, with the union of their versions;
+ * unversioned lines are assigned the version of their file. Versions may only be omitted for both
+ * files, to deduplicate lines: an unversioned line stands for all versions, it can not be merged with
+ * versioned lines.
+ * <p>
+ * Signature files may be compressed (see {@link BlockCompressedFile}): the output is compressed if
+ * its name has the compressed extension.
+ * <p>
+ * Both files must be sorted, as written by {@link LibraryGenerator} or by this class: the merge
+ * streams over both files and only keeps the lines of one method in memory, besides the caller
+ * dictionaries and the offsets of the index file of the output, which is written along with it.
+ * <p>
+ * Caller dictionaries (see {@link CallerDictionary}) are merged: lines are compared in plain form,
+ * and the output is encoded if one of the files is, with the entries of base followed by the new
+ * entries of added.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureMerger {
+    private static final ILogger logger = GlobalLog.getLogger(SignatureMerger.class);
+
+    private static final int VERSIONS_INDEX = 8;
+
+    /**
+     * Merge two signature files.
+     *
+     * @param base existing signature file
+     * @param baseVersion version of the unversioned lines of base, may be null if addedVersion is
+     *            null too
+     * @param added signature file to merge, usually a newly generated library version
+     * @param addedVersion version of the unversioned lines of added, may be null if baseVersion is
+     *            null too
+     * @param output output signature file, may be base
+     * @return number of signature lines written
+     * @throws IOException if a file has unversioned lines and no version, while the other one has a
+     *             version
+     */
+    public static int merge(File base, String baseVersion, File added, String addedVersion, File output)
+            throws IOException {
+        boolean compressed = BlockCompressedFile.isCompressed(output);
+        // the compressed file is written from a plain file, through its own temporary file
+        File tmp = new File(output.getPath() + (compressed ? ".plain.tmp": ".tmp"));
+        SignatureIndexBuilder indexBuilder = new SignatureIndexBuilder(output);
+        boolean versioned = baseVersion != null || addedVersion != null;
+        int lineCount = 0;
+        try(LineReader baseReader = new LineReader(base, baseVersion, versioned);
+                LineReader addedReader = new LineReader(added, addedVersion, versioned);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            long offset = 0;
+            List<String> headers = baseReader.readHeaders();
+            List<String> addedHeaders = addedReader.readHeaders();
+            if(!getHashHeader(headers).equals(getHashHeader(addedHeaders))) {
+                throw new IOException("Can not merge signature files with different hash algorithms: " + base
+                        + ", " + added);
+            }
+            for(String header: headers) {
+                offset = write(out, header, offset, indexBuilder);
+            }
+            CallerDictionary dictionary = null;
+            if(!baseReader.dictionary.isEmpty() || !addedReader.dictionary.isEmpty()) {
+                dictionary = new CallerDictionary();
+                for(CallerDictionary d: new CallerDictionary[]{baseReader.dictionary, addedReader.dictionary}) {
+                    for(int i = 0; i < d.size(); i++) {
+                        dictionary.add(d.get(i));
+                    }
+                }
+                for(int i = 0; i < dictionary.size(); i++) {
+                    offset = write(out, ";" + dictionary.formatHeader(i), offset, indexBuilder);
+                }
+            }
+
+            baseReader.next();
+            addedReader.next();
+            while(baseReader.key != null || addedReader.key != null) {
+                int c = baseReader.key == null ? 1: addedReader.key == null ? -1
+                        : baseReader.key.compareTo(addedReader.key);
+                // lines of one method, by columns after the versions column
+                Map<String, Set<String>> group = new TreeMap<>();
+                if(c <= 0) {
+                    baseReader.readGroup(group);
+                }
+                if(c >= 0) {
+                    addedReader.readGroup(group);
+                }
+                for(Map.Entry<String, Set<String>> line: group.entrySet()) {
+                    String merged = format(line.getKey(), line.getValue());
+                    if(dictionary != null) {
+                        merged = dictionary.encodeLine(merged);
+                    }
+                    offset = write(out, merged, offset, indexBuilder);
+                    lineCount++;
+                }
+            }
+        }
+        catch(IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        // the index stores uncompressed offsets and size
+        long size = tmp.length();
+        if(compressed) {
+            try {
+                BlockCompressedFile.compress(tmp, output, BlockCompressedFile.DEFAULT_BLOCK_SIZE);
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        else {
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        indexBuilder.write(IndexedSignatureFile.getIndexFile(output), size);
+        logger.info("%d lines merged to %s", lineCount, output);
+        return lineCount;
+    }
+
+    private static String getHashHeader(List<String> headers) {
+        for(String header: headers) {
+            if(header.startsWith(";hash=")) {
+                return header;
+            }
+        }
+        return "";
+    }
+
+    private static long write(OutputStream out, String line, long offset, SignatureIndexBuilder indexBuilder)
+            throws IOException {
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        out.write(data);
+        out.write('\n');
+        if(!indexBuilder.addLine(data, 0, data.length, (int)offset)) {
+            throw new IOException("Can not index merged signature line: " + line);
+        }
+        return offset + data.length + 1;
+    }
+
+    /**
+     * @param line line without versions (versions column replaced by a 0 char)
+     */
+    private static String format(String line, Set<String> versions) {
+        int index = line.indexOf('\0');
+        if(index < 0) {
+            return line;
+        }
+        String rest = line.substring(index + 1);
+        if(versions.isEmpty() && rest.isEmpty()) {
+            // generated lines have no versions column
+            return line.substring(0, index - 1);
+        }
+        return line.substring(0, index) + String.join(";", versions) + rest;
+    }
+
+    /**
+     * Read a sorted signature file, one method (lines with same columns before the versions
+     * column) at a time.
+     */
+    private static class LineReader implements Closeable {
+        private final File file;
+        private final BufferedReader reader;
+        private final String defaultVersion;
+        /** true if lines must have a version: unversioned lines are rejected without default version */
+        private final boolean versioned;
+        private String line;
+        /** columns before the versions column, followed by a comma; null at end of file */
+        private String key;
+        private String previousKey;
+        private final CallerDictionary dictionary = new CallerDictionary();
+
+        LineReader(File file, String defaultVersion, boolean versioned) throws IOException {
+            this.file = file;
+            this.defaultVersion = defaultVersion;
+            this.versioned = versioned;
+            reader = new BufferedReader(
+                    new InputStreamReader(BlockCompressedFile.openSignatureFile(file), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Read header lines (all comment lines except class fingerprints, which are sorted with
+         * signature lines, and caller dictionary entries).
+         */
+        List<String> readHeaders() throws IOException {
+            List<String> headers = new ArrayList<>();
+            while((line = reader.readLine()) != null) {
+                if(!line.startsWith(";") || line.startsWith(";" + ClassFingerprint.MARKER)) {
+                    break;
+                }
+                if(!dictionary.parseHeader(line.substring(1))) {
+                    headers.add(line);
+                }
+            }
+            line = line == null ? null: dictionary.decodeLine(line);
+            return headers;
+        }
+
+        /**
+         * @return next line, with plain callers
+         */
+        private String readLine() throws IOException {
+            String next = reader.readLine();
+            return next == null ? null: dictionary.decodeLine(next);
+        }
+
+        /**
+         * Move to the next key, the current line being the first line of the key.
+         */
+        void next() throws IOException {
+            while(line != null && line.trim().isEmpty()) {
+                line = readLine();
+            }
+            if(line == null) {
+                key = null;
+                return;
+            }
+            key = getKey(line);
+            if(previousKey != null && key.compareTo(previousKey) < 0) {
+                throw new IOException("Signature file is not sorted: " + file + " (at " + line + ")");
+            }
+            previousKey = key;
+        }
+
+        private static String getKey(String line) {
+            if(line.startsWith(";")) {
+                return line;
+            }
+            int index = -1;
+            for(int i = 0; i < VERSIONS_INDEX; i++) {
+                index = line.indexOf(',', index + 1);
+                if(index < 0) {
+                    // no versions column
+                    return i == VERSIONS_INDEX - 1 ? line + ",": line;
+                }
+            }
+            return line.substring(0, index + 1);
+        }
+
+        /**
+         * Add the lines of the current key to a group, then move to the next key.
+         */
+        void readGroup(Map<String, Set<String>> group) throws IOException {
+            String current = key;
+            while(line != null && current.equals(getKey(line))) {
+                addLine(group, line);
+                line = readLine();
+            }
+            next();
+        }
+
+        private void addLine(Map<String, Set<String>> group, String line) throws IOException {
+            if(!key.endsWith(",")) {
+                // no versions column: fingerprints, invalid lines
+                group.put(line, Collections.emptySet());
+                return;
+            }
+            String versionColumn = "";
+            String rest = "";
+            if(line.length() > key.length()) {
+                int end = line.indexOf(',', key.length());
+                versionColumn = end < 0 ? line.substring(key.length()): line.substring(key.length(), end);
+                rest = end < 0 ? "": line.substring(end);
+            }
+            String withoutVersions = key + '\0' + rest;
+            Set<String> versions = group.get(withoutVersions);
+            if(versions == null) {
+                versions = new LinkedHashSet<>();
+                group.put(withoutVersions, versions);
+            }
+            if(!versionColumn.isEmpty()) {
+                Collections.addAll(versions, versionColumn.split(";"));
+            }
+            else if(defaultVersion != null) {
+                versions.add(defaultVersion);
+            }
+            else if(versioned) {
+                throw new IOException("Signature file has unversioned lines, its version is required to merge: "
+                        + file + " (at " + line + ")");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
+import com.pnf.androsig.common.CallerDictionary;
+import com.pnf.androsig.common.ClassFingerprint;
+import com.pnfsoftware.jeb.util.io.IO;
+
+/**
+ * Statistics of a generated signature file, to estimate how useful it is for matching compared to
+ * its size. Lines are counted as they are written (see {@link SortedLineWriter.LineListener}), so
+ * that statistics cost no extra pass over the library.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureStats {
+
+    private static final String PARENT = "<parent>";
+
+    private final int methodSizeBar;
+
+    private long totalBytes;
+    private int headerLines;
+    private int dictionaryEntries;
+    private long dictionaryBytes;
+    private int fingerprints;
+    private int methods;
+    private int methodsWithoutCode;
+    private int smallMethods;
+    private long callerBytes;
+    private long extensionBytes;
+    private int hierarchyLines;
+    private long hierarchyBytes;
+    /** number of methods per tight hashcode */
+    private Map<String, Integer> tightHashcodes = new HashMap<>();
+
+    public SignatureStats() {
+        this(new DatabaseMatcherParameters().methodSizeBar);
+    }
+
+    /**
+     * @param methodSizeBar methods with no more instructions are ignored by hashcode matching
+     */
+    public SignatureStats(int methodSizeBar) {
+        this.methodSizeBar = methodSizeBar;
+    }
+
+    /**
+     * Count one line of the signature file.
+     *
+     * @param data UTF-8 encoded line, without line end
+     */
+    public void addLine(byte[] data) {
+        totalBytes += data.length + 1;
+        if(data.length > 0 && data[0] == ';') {
+            String header = new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            if(header.startsWith(ClassFingerprint.MARKER)) {
+                fingerprints++;
+            }
+            else if(header.startsWith(CallerDictionary.MARKER)) {
+                dictionaryEntries++;
+                dictionaryBytes += data.length + 1;
+            }
+            else {
+                headerLines++;
+            }
+            return;
+        }
+        // column boundaries: column i is [starts[i], ends[i])
+        int[] starts = new int[10];
+        int[] ends = new int[10];
+        int column = 0;
+        starts[0] = 0;
+        for(int i = 0; i <= data.length && column < starts.length; i++) {
+            if(i == data.length || data[i] == ',') {
+                ends[column] = i;
+                column++;
+                if(column < starts.length) {
+                    starts[column] = i + 1;
+                }
+            }
+        }
+        if(column < 8) {
+            return;
+        }
+        if(isColumn(data, starts[1], ends[1], PARENT)) {
+            hierarchyLines++;
+            hierarchyBytes += data.length + 1;
+            return;
+        }
+        methods++;
+        callerBytes += ends[7] - starts[7];
+        if(column > 9) {
+            // extension columns, after the versions column
+            extensionBytes += data.length - ends[8];
+        }
+        if(ends[5] == starts[5]) {
+            // abstract or native
+            methodsWithoutCode++;
+            return;
+        }
+        int opcount = parseInt(data, starts[4], ends[4]);
+        if(opcount <= methodSizeBar) {
+            smallMethods++;
+        }
+        String tight = new String(data, starts[5], ends[5] - starts[5], StandardCharsets.US_ASCII);
+        Integer count = tightHashcodes.get(tight);
+        tightHashcodes.put(tight, count == null ? 1: count + 1);
+    }
+
+    private static boolean isColumn(byte[] data, int start, int end, String value) {
+        if(end - start != value.length()) {
+            return false;
+        }
+        for(int i = 0; i < value.length(); i++) {
+            if(data[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(byte[] data, int start, int end) {
+        int res = 0;
+        for(int i = start; i < end; i++) {
+            if(data[i] < '0' || data[i] > '9') {
+                return -1;
+            }
+            res = res * 10 + (data[i] - '0');
+        }
+        return res;
+    }
+
+    public int getMethodCount() {
+        return methods;
+    }
+
+    /**
+     * @return methods without code (abstract, native)
+     */
+    public int getMethodsWithoutCode() {
+        return methodsWithoutCode;
+    }
+
+    /**
+     * @return methods with code but no more than methodSizeBar instructions
+     */
+    public int getSmallMethods() {
+        return smallMethods;
+    }
+
+    /**
+     * @return methods with code sharing their tight hashcode with another method of the library
+     */
+    public int getDuplicateMethods() {
+        int res = 0;
+        for(Integer count: tightHashcodes.values()) {
+            if(count > 1) {
+                res += count;
+            }
+        }
+        return res;
+    }
+
+    public int getDistinctTightHashcodes() {
+        return tightHashcodes.size();
+    }
+
+    public long getCallerBytes() {
+        return callerBytes;
+    }
+
+    public int getHierarchyLines() {
+        return hierarchyLines;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return text report
+     */
+    public String format() {
+        DecimalFormat df = new DecimalFormat("0.00");
+        int withCode = methods - methodsWithoutCode;
+        StringBuilder stb = new StringBuilder();
+        stb.append("*************** Signature Statistics ***************\n");
+        stb.append("File size: ").append(totalBytes).append(" bytes\n");
+        stb.append("Header lines: ").append(headerLines).append("\n");
+        stb.append("Methods: ").append(methods).append("\n");
+        stb.append("Methods without code (abstract/native): ").append(methodsWithoutCode).append("\n");
+        stb.append("Methods with at most ").append(methodSizeBar).append(" instructions: ").append(smallMethods)
+                .append(" (").append(percent(df, smallMethods, withCode)).append(" of methods with code)\n");
+        int duplicates = getDuplicateMethods();
+        stb.append("Distinct tight hashcodes: ").append(tightHashcodes.size()).append("\n");
+        stb.append("Methods with a duplicate tight hashcode: ").append(duplicates).append(" (")
+                .append(percent(df, duplicates, withCode)).append(" of methods with code)\n");
+        stb.append("Caller columns: ").append(callerBytes).append(" bytes (")
+                .append(percent(df, callerBytes, totalBytes)).append(")\n");
+        if(dictionaryEntries != 0) {
+            stb.append("Caller dictionary: ").append(dictionaryEntries).append(" entries, ").append(dictionaryBytes)
+                    .append(" bytes\n");
+        }
+        stb.append("Extension columns: ").append(extensionBytes).append(" bytes (")
+                .append(percent(df, extensionBytes, totalBytes)).append(")\n");
+        stb.append("Hierarchy lines: ").append(hierarchyLines).append(", ").append(hierarchyBytes).append(" bytes\n");
+        stb.append("Class fingerprints: ").append(fingerprints).append("\n");
+        return stb.toString();
+    }
+
+    private static String percent(DecimalFormat df, long value, long total) {
+        return total == 0 ? "-": df.format(value * 100.0 / total) + "%";
+    }
+
+    /**
+     * @return report file of a signature file: <code>[name].sigstats.txt</code>
+     */
+    public static File getReportFile(File sigFile) {
+        String name = sigFile.getName();
+        int index = name.lastIndexOf('.');
+        return new File(sigFile.getParentFile(), (index < 0 ? name: name.substring(0, index)) + ".sigstats.txt");
+    }
+
+    public void write(File reportFile) throws IOException {
+        IO.writeFile(reportFile, format());
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.UnaryOperator;
+
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Write a signature file whose lines are sorted, with bounded memory: lines are buffered, then
+ * sorted runs are spilled to temporary files when the buffer is full, and runs are k-way merged to
+ * the destination file on {@link #commit()}. Header lines are written first, in insertion order.
+ * Identical lines are written once.
+ * <p>
+ * The destination file is only replaced by {@link #commit()}; {@link #close()} deletes the
+ * temporary files. An optional {@link LineListener} receives each written line with its offset, to
+ * index the file in the same pass.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SortedLineWriter implements Closeable {
+    private static final ILogger logger = GlobalLog.getLogger(SortedLineWriter.class);
+
+    /** default buffer size, in characters */
+    public static final int DEFAULT_MAX_BUFFERED_CHARS = 16 * 1024 * 1024;
+
+    private final File file;
+    private final int maxBufferedChars;
+    private final List<String> headers = new ArrayList<>();
+    private List<String> buffer = new ArrayList<>();
+    private long bufferedChars = 0;
+    private final List<File> runs = new ArrayList<>();
+    private int lineCount = 0;
+    private LineListener listener;
+    private UnaryOperator<String> encoder;
+    /** offset of the next line in the destination file */
+    private long offset;
+
+    /**
+     * Receive the lines written to the destination file.
+     */
+    public interface LineListener {
+        /**
+         * @param data UTF-8 encoded line, without line end
+         * @param offset offset of the line in the destination file
+         */
+        void lineWritten(byte[] data, long offset) throws IOException;
+    }
+
+    /**
+     * @param file destination file
+     */
+    public SortedLineWriter(File file) {
+        this(file, DEFAULT_MAX_BUFFERED_CHARS);
+    }
+
+    /**
+     * @param file destination file
+     * @param maxBufferedChars number of characters kept in memory before spilling a sorted run
+     */
+    public SortedLineWriter(File file, int maxBufferedChars) {
+        this.file = file;
+        this.maxBufferedChars = maxBufferedChars;
+    }
+
+    /**
+     * @param listener optional listener of the lines written by {@link #commit()}
+     */
+    public void setListener(LineListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param encoder optional transformation of the lines written by {@link #commit()}, applied
+     *            after sorting (headers are not transformed)
+     */
+    public void setEncoder(UnaryOperator<String> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Add an unsorted header line, written before all lines.
+     */
+    public void addHeader(String line) {
+        headers.add(line);
+    }
+
+    /**
+     * Add a line, written in sorted order.
+     */
+    public void add(String line) throws IOException {
+        buffer.add(line);
+        lineCount++;
+        // approximate String footprint: chars and object/reference overhead
+        bufferedChars += line.length() + 32;
+        if(bufferedChars >= maxBufferedChars) {
+            spill();
+        }
+    }
+
+    /**
+     * @return number of added lines (excluding headers, including duplicates)
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    private void spill() throws IOException {
+        if(buffer.isEmpty()) {
+            return;
+        }
+        Collections.sort(buffer);
+        File run = File.createTempFile("androsig-run", ".tmp", getTempFolder());
+        runs.add(run);
+        try(Writer w = newWriter(run)) {
+            writeDistinct(w, buffer);
+        }
+        buffer = new ArrayList<>();
+        bufferedChars = 0;
+    }
+
+    private File getTempFolder() {
+        File folder = file.getAbsoluteFile().getParentFile();
+        return folder != null && folder.isDirectory() ? folder: null;
+    }
+
+    /**
+     * Write headers and sorted lines to the destination file.
+     */
+    public void commit() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Can not create folder " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        offset = 0;
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            for(String header: headers) {
+                writeOutput(out, header);
+            }
+            if(runs.isEmpty()) {
+                Collections.sort(buffer);
+                String previous = null;
+                for(String line: buffer) {
+                    if(!line.equals(previous)) {
+                        writeOutput(out, encode(line));
+                    }
+                    previous = line;
+                }
+            }
+            else {
+                spill();
+                merge(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("%d lines written to %s (%d runs)", lineCount, file, runs.size());
+    }
+
+    private void merge(OutputStream out) throws IOException {
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            PriorityQueue<RunReader> queue = new PriorityQueue<>();
+            for(File run: runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if(reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            String previous = null;
+            while(!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if(!reader.line.equals(previous)) {
+                    writeOutput(out, encode(reader.line));
+                    previous = reader.line;
+                }
+                if(reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        }
+        finally {
+            for(RunReader reader: readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static Writer newWriter(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+    }
+
+    private String encode(String line) {
+        return encoder == null ? line: encoder.apply(line);
+    }
+
+    private void writeOutput(OutputStream out, String line) throws IOException {
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        out.write(data);
+        out.write('\n');
+        if(listener != null) {
+            listener.lineWritten(data, offset);
+        }
+        offset += data.length + 1;
+    }
+
+    private static void writeDistinct(Writer w, List<String> sortedLines) throws IOException {
+        String previous = null;
+        for(String line: sortedLines) {
+            if(!line.equals(previous)) {
+                writeLine(w, line);
+            }
+            previous = line;
+        }
+    }
+
+    private static void writeLine(Writer w, String line) throws IOException {
+        w.write(line);
+        w.write('\n');
+    }
+
+    @Override
+    public void close() {
+        buffer = new ArrayList<>();
+        for(File run: runs) {
+            if(!run.delete()) {
+                run.deleteOnExit();
+            }
+        }
+        runs.clear();
+        File tmp = new File(file.getPath() + ".tmp");
+        if(tmp.exists()) {
+            tmp.delete();
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+        private final BufferedReader reader;
+        private String line;
+
+        RunReader(File run) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), StandardCharsets.UTF_8));
+        }
+
+        boolean next() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return line.compareTo(o.line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
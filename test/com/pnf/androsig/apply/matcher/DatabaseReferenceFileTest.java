@@ -0,0 +1,50 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pnf.androsig.apply.model.MethodSignature;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class DatabaseReferenceFileTest {
+
+    private static MethodSignature sig(String mname, String versions) {
+        return new MethodSignature("La;", mname, "V", "()V", versions);
+    }
+
+    @Test
+    public void testOrderedVersions() {
+        DatabaseReferenceFile refFile = new DatabaseReferenceFile("lib.sig");
+        refFile.mergeVersions(Arrays.asList(sig("a", "1.0;1.1"), sig("b", "1.0;1.1"), sig("c", "1.1"),
+                sig("d", null), sig("e", null), sig("f", null)));
+        List<BitSet> ordered = refFile.getOrderedVersions();
+        assertEquals(2, ordered.size());
+        // unversioned signatures are counted as the "all" pseudo-version
+        assertEquals(Arrays.asList("1.1", DatabaseReferenceFile.ALL_VERSIONS),
+                refFile.getVersionTable().toVersions(ordered.get(0)));
+        assertEquals(Arrays.asList("1.0"), refFile.getVersionTable().toVersions(ordered.get(1)));
+        assertEquals(Arrays.asList("1.1"), refFile.getMergedVersions());
+    }
+
+    @Test
+    public void testNoVersion() {
+        DatabaseReferenceFile refFile = new DatabaseReferenceFile("lib.sig");
+        refFile.mergeVersions(Arrays.asList(sig("a", null), sig("b", null)));
+        assertTrue(refFile.hasNoVersion());
+        assertTrue(refFile.getOrderedVersions().isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.common.MethodHash;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class BlockCompressedFileTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final File SIG = new File("testdata/sig/support-fragment-28_0_0.sig");
+
+    @Test
+    public void testRead() throws IOException {
+        File folder = tmp.getRoot();
+        File sigz = new File(folder, "lib.sigz");
+        // small blocks: lines span several blocks
+        BlockCompressedFile.compress(SIG, sigz, 1024);
+        assertTrue(sigz.length() < SIG.length());
+
+        byte[] data = Files.readAllBytes(SIG.toPath());
+        assertEquals(data.length, BlockCompressedFile.getSignatureSize(sigz));
+        assertArrayEquals(data, BlockCompressedFile.readSignatureFile(sigz));
+        try(BlockCompressedFile z = new BlockCompressedFile(sigz)) {
+            Random random = new Random(0);
+            for(int i = 0; i < 200; i++) {
+                int offset = random.nextInt(data.length);
+                int length = Math.min(random.nextInt(3000), data.length - offset);
+                assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), z.read(offset, length));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedFile() throws IOException {
+        File folder = tmp.getRoot();
+        File sig = new File(folder, "lib.sig");
+        File sigz = new File(folder, "lib.sigz");
+        Files.copy(SIG.toPath(), sig.toPath());
+        BlockCompressedFile.compress(sig, sigz, 4096);
+        assertTrue(IndexedSignatureFile.buildIndexFile(sig, IndexedSignatureFile.getIndexFile(sig)));
+        assertEquals(new File(folder, "lib.zidx"), IndexedSignatureFile.getIndexFile(sigz));
+        // index of the compressed file addresses uncompressed offsets
+        assertTrue(IndexedSignatureFile.buildIndexFile(sigz, IndexedSignatureFile.getIndexFile(sigz)));
+        assertArrayEquals(Files.readAllBytes(IndexedSignatureFile.getIndexFile(sig).toPath()),
+                Files.readAllBytes(IndexedSignatureFile.getIndexFile(sigz).toPath()));
+
+        List<String> lines = Files.readAllLines(sig.toPath());
+        try(IndexedSignatureFile plain = new IndexedSignatureFile();
+                IndexedSignatureFile compressed = new IndexedSignatureFile()) {
+            assertTrue(plain.loadSignatures(sig));
+            assertTrue(compressed.loadSignatures(sigz));
+            assertEquals(plain.getLibraryInfos().getLibName(), compressed.getLibraryInfos().getLibName());
+            for(int i = 4; i < lines.size(); i += 7) {
+                String[] tokens = MethodSignature.parseNative(lines.get(i));
+                MethodHash tight = MethodHash.fromHex(MethodSignature.getTightSignature(tokens));
+                if(tight == null) {
+                    continue;
+                }
+                List<MethodSignature> expected = plain.getTightSignatures(tight);
+                List<MethodSignature> actual = compressed.getTightSignatures(tight);
+                assertEquals(expected.size(), actual.size());
+                for(int j = 0; j < expected.size(); j++) {
+                    assertEquals(expected.get(j).toString(), actual.get(j).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPreferredFile() throws IOException {
+        File sig = tmp.newFile("lib.sig");
+        assertEquals(sig, DatabaseReference.getPreferredFile(sig));
+        File sigz = tmp.newFile("lib" + BlockCompressedFile.EXTENSION);
+        // as recent: compressed file
+        sig.setLastModified(1000000000000L);
+        sigz.setLastModified(1000000000000L);
+        assertEquals(sigz, DatabaseReference.getPreferredFile(sig));
+        assertEquals(sigz, DatabaseReference.getPreferredFile(sigz));
+        // most recent file
+        sig.setLastModified(1000000001000L);
+        assertEquals(sig, DatabaseReference.getPreferredFile(sig));
+        assertEquals(sig, DatabaseReference.getPreferredFile(sigz));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class DexHashcodeCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testDefaultFolder() {
+        assertEquals(new File(System.getProperty("user.home")), DexHashcodeCache.getDefaultFolder().getParentFile());
+    }
+
+    @Test
+    public void testEvict() throws IOException {
+        File folder = tmp.getRoot();
+        long now = System.currentTimeMillis();
+        File expired = entry(folder, "expired.hc", 10, now - TimeUnit.DAYS.toMillis(40));
+        File expiredTmp = entry(folder, "expired.tmp", 10, now - TimeUnit.DAYS.toMillis(40));
+        File writing = entry(folder, "writing.tmp", 10, now);
+        File old = entry(folder, "old.hc", 100, now - TimeUnit.DAYS.toMillis(2));
+        File recent = entry(folder, "recent.hc", 100, now - TimeUnit.DAYS.toMillis(1));
+        File other = entry(folder, "other.txt", 10, now - TimeUnit.DAYS.toMillis(40));
+
+        DexHashcodeCache cache = new DexHashcodeCache(folder, 200, TimeUnit.DAYS.toMillis(30));
+        assertEquals(2, cache.evict());
+        assertFalse(expired.exists());
+        assertFalse(expiredTmp.exists());
+        assertTrue(writing.exists());
+        assertTrue(old.exists());
+        assertTrue(other.exists());
+
+        // least recently used first
+        File latest = entry(folder, "latest.hc", 50, now);
+        assertEquals(1, cache.evict());
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(latest.exists());
+        assertEquals(0, cache.evict());
+    }
+
+    private static File entry(File folder, String name, int size, long lastModified) throws IOException {
+        File f = new File(folder, name);
+        Files.write(f.toPath(), new byte[size]);
+        f.setLastModified(lastModified);
+        return f;
+    }
+}
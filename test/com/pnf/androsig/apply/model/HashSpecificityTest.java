@@ -0,0 +1,62 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pnf.androsig.common.MethodHash;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class HashSpecificityTest {
+
+    private static final MethodHash H1 = MethodHash
+            .fromHex("78c5d86560b13cc8b03298cfe31af9791f9ac47f2de1b529a2d1d63ab7e3e47c");
+    private static final MethodHash H2 = MethodHash
+            .fromHex("513dc391d69110db642082091bbe622d4ab0073cb34fa819af0f3742e84129f7");
+
+    private static final List<MethodHash> BOTH = Arrays.asList(H1, H2);
+
+    @Test
+    public void testCounts() {
+        HashSpecificity specificity = new HashSpecificity();
+        specificity.add(H1, true, 3);
+        specificity.add(H1, true, 2);
+        specificity.add(H2, false, 1);
+        // counts are summed on compaction
+        assertEquals(0, specificity.getClassCount(H1, true));
+
+        specificity.compact(Arrays.asList(H1), Arrays.asList(H2));
+        assertEquals(5, specificity.getClassCount(H1, true));
+        assertEquals(0, specificity.getClassCount(H1, false));
+        assertEquals(1, specificity.getClassCount(H2, false));
+        assertEquals(0, specificity.getClassCount(H2, true));
+
+        // update after compaction
+        specificity.add(H1, true, 1);
+        specificity.add(H2, true, 4);
+        specificity.compact(BOTH, Arrays.asList(H2));
+        assertEquals(6, specificity.getClassCount(H1, true));
+        assertEquals(4, specificity.getClassCount(H2, true));
+        assertEquals(1, specificity.getClassCount(H2, false));
+    }
+
+    @Test
+    public void testSaturation() {
+        HashSpecificity specificity = new HashSpecificity();
+        specificity.add(H1, true, Integer.MAX_VALUE - 1);
+        specificity.add(H1, true, 10);
+        specificity.compact(BOTH, BOTH);
+        assertEquals(Integer.MAX_VALUE, specificity.getClassCount(H1, true));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class VersionTableTest {
+
+    @Test
+    public void testParse() {
+        VersionTable table = new VersionTable();
+        BitSet bits = table.parse("1.0;1.1");
+        assertEquals(2, table.size());
+        assertEquals(0, table.getId("1.0"));
+        assertEquals("1.1", table.getVersion(1));
+        assertNull(table.getVersion(2));
+        assertSame(bits, table.parse("1.0;1.1"));
+        assertNull(table.parse(""));
+        assertNull(table.parse(null));
+
+        BitSet other = table.parse("1.1;2.0");
+        assertEquals(3, table.size());
+        assertTrue(bits.intersects(other));
+        assertFalse(table.parse("1.0").intersects(table.parse("2.0")));
+        BitSet all = table.toBits(new String[]{"2.0", "1.0", "1.1"});
+        assertEquals(Arrays.asList("1.0", "1.1", "2.0"), table.toVersions(all));
+    }
+
+    @Test
+    public void testSignature() {
+        VersionTable table = new VersionTable();
+        MethodSignature sig = MethodSignature.parse("La;,m,V,()V,1,,,,1.0;1.1", true, table);
+        MethodSignature sig2 = MethodSignature.parse("La;,m,V,()V,2,,,,2.0", true, table);
+        sig.addRevision(sig2.getOwnRevision());
+        assertEquals(Arrays.asList("1.0", "1.1", "2.0"), table.toVersions(sig.getVersionBits(table)));
+        assertEquals(Arrays.asList("2.0"), table.toVersions(sig2.getOwnRevision().getVersionBits(table)));
+
+        // conversion to another table
+        VersionTable other = new VersionTable();
+        other.getId("2.0");
+        BitSet bits = sig.getVersionBits(other);
+        assertEquals(Arrays.asList("2.0", "1.0", "1.1"), other.toVersions(bits));
+        assertNull(MethodSignature.parse("La;,m,V,()V,1,,,null", true, table).getVersionBits(table));
+    }
+}
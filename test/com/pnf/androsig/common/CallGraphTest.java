@@ -0,0 +1,61 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class CallGraphTest {
+
+    @Test
+    public void testBuild() {
+        CallGraph.Builder builder = new CallGraph.Builder(6);
+        builder.addCall(4, 1);
+        builder.addCall(0, 1);
+        builder.addCall(4, 1);
+        builder.addCall(2, 5);
+        builder.addCall(0, 1);
+        builder.addCall(4, 1);
+        builder.addCall(3, 0);
+        builder.addCall(3, 6); // out of range
+        builder.addCall(-1, 2); // out of range
+        CallGraph graph = builder.build();
+
+        assertEquals(6, graph.getMethodCount());
+        assertEquals(4, graph.getEdgeCount());
+        assertFalse(graph.hasCallers(2));
+        assertFalse(graph.hasCallers(6));
+        assertTrue(graph.hasCallers(5));
+
+        Map<Integer, Integer> expected = new LinkedHashMap<>();
+        expected.put(0, 2);
+        expected.put(4, 3);
+        assertEquals(expected, graph.getCallers(1));
+        assertEquals(2, graph.getCallerCount(1));
+        int start = graph.getCallersStart(1);
+        assertEquals(0, graph.getCallerAt(start));
+        assertEquals(3, graph.getCallCountAt(start + 1));
+        assertEquals(3, graph.getCallerAt(graph.getCallersStart(0)));
+        assertTrue(graph.getCallers(3).isEmpty());
+    }
+
+    @Test
+    public void testEmpty() {
+        CallGraph graph = new CallGraph.Builder(0).build();
+        assertEquals(0, graph.getEdgeCount());
+        assertFalse(graph.hasCallers(0));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.gen.SignatureMerger;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class CallerDictionaryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String CALLER = "Lcom/pnf/testandrosig/GreatClass;->main([Ljava/lang/String;)V";
+
+    @Test
+    public void testEncode() {
+        CallerDictionary dictionary = new CallerDictionary();
+        assertEquals(0, dictionary.add("La;->a()V"));
+        assertEquals(1, dictionary.add(CALLER));
+        assertEquals(1, dictionary.add(CALLER));
+        assertEquals("@1=2|@0=1|Lb;->b()V=3", dictionary.encode(CALLER + "=2|La;->a()V=1|Lb;->b()V=3"));
+        assertEquals(CALLER + "=2|La;->a()V=1|Lb;->b()V=3", dictionary.decode("@1=2|@0=1|Lb;->b()V=3"));
+        assertEquals("@7", dictionary.resolve("@7"));
+
+        String line = "La;,m,V,()V,2,aa,bb," + CALLER + "=1,,bb:1";
+        String encoded = dictionary.encodeLine(line);
+        assertEquals("La;,m,V,()V,2,aa,bb,@1=1,,bb:1", encoded);
+        assertEquals(line, dictionary.decodeLine(encoded));
+        // unchanged lines
+        assertEquals("La;,m,V,()V,2,aa,bb,null", dictionary.encodeLine("La;,m,V,()V,2,aa,bb,null"));
+        assertEquals("La;,<parent>,,,0,,,La;", dictionary.encodeLine("La;,<parent>,,,0,,,La;"));
+        assertEquals(";class=La;,2,00", dictionary.encodeLine(";class=La;,2,00"));
+    }
+
+    @Test
+    public void testHeaders() {
+        CallerDictionary dictionary = new CallerDictionary();
+        dictionary.add(CALLER);
+        CallerDictionary read = new CallerDictionary();
+        assertTrue(read.parseHeader(dictionary.formatHeader(0)));
+        assertFalse(read.parseHeader("libname=test"));
+        assertEquals(CALLER, read.get(0));
+        assertEquals(0, read.add(CALLER));
+
+        MethodSignature sig = MethodSignature.parse("La;,m,V,()V,2,aa,bb,@0=3|Lb;->b()V=1", true, null, read);
+        assertEquals(Integer.valueOf(3), sig.getOwnRevision().getTargetCaller().get(CALLER));
+        assertEquals(CALLER + "=3|Lb;->b()V=1", sig.getOwnRevision().getCaller());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        File folder = tmp.getRoot();
+        File plain = new File("testdata/sig/sig-gen-test-3.sig");
+        File encoded = new File(folder, "encoded.sig");
+        CallerDictionary dictionary = new CallerDictionary();
+        dictionary.add(CALLER);
+        List<String> lines = Files.readAllLines(plain.toPath(), StandardCharsets.UTF_8);
+        for(int i = 0; i < lines.size(); i++) {
+            lines.set(i, dictionary.encodeLine(lines.get(i)));
+        }
+        lines.add(4, ";" + dictionary.formatHeader(0));
+        Files.write(encoded.toPath(), lines, StandardCharsets.UTF_8);
+
+        // merged in plain form, written encoded
+        File v1 = new File("testdata/sig/sig-gen-test.sig");
+        File merged = new File(folder, "merged.sig");
+        File mergedPlain = new File(folder, "merged-plain.sig");
+        assertEquals(10, SignatureMerger.merge(v1, "1.0", encoded, "3.0", merged));
+        assertEquals(10, SignatureMerger.merge(v1, "1.0", plain, "3.0", mergedPlain));
+        List<String> mergedLines = Files.readAllLines(merged.toPath(), StandardCharsets.UTF_8);
+        List<String> plainLines = Files.readAllLines(mergedPlain.toPath(), StandardCharsets.UTF_8);
+        assertEquals(";" + dictionary.formatHeader(0), mergedLines.get(4));
+        mergedLines.remove(4);
+        assertEquals(plainLines.size(), mergedLines.size());
+        for(int i = 0; i < plainLines.size(); i++) {
+            assertEquals(dictionary.encodeLine(plainLines.get(i)), mergedLines.get(i));
+        }
+    }
+}
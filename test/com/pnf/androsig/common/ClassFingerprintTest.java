@@ -0,0 +1,66 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class ClassFingerprintTest {
+
+    private static final MethodHash H1 = MethodHash
+            .fromHex("78c5d86560b13cc8b03298cfe31af9791f9ac47f2de1b529a2d1d63ab7e3e47c");
+    private static final MethodHash H2 = MethodHash
+            .fromHex("513dc391d69110db642082091bbe622d4ab0073cb34fa819af0f3742e84129f7");
+    private static final MethodHash H3 = MethodHash
+            .fromHex("0c1e3b5a7f9d2e4c6b8a0f1e3d5c7b9a2e4f6a8c0b1d3e5f7a9c2b4d6e8f0a1c");
+
+    @Test
+    public void testCompute() {
+        HashAlgorithm sha = HashAlgorithm.SHA256;
+        MethodHash fp = ClassFingerprint.compute(sha, Arrays.asList(H1, H2, H3));
+        assertNotNull(fp);
+        assertEquals(sha, fp.getAlgorithm());
+        // method order does not matter
+        assertEquals(fp, ClassFingerprint.compute(sha, Arrays.asList(H3, H2, H1)));
+        // multiset: duplicated methods count
+        assertNotEquals(fp, ClassFingerprint.compute(sha, Arrays.asList(H1, H2, H3, H3)));
+        assertNotEquals(fp, ClassFingerprint.compute(sha, Arrays.asList(H1, H1, H2)));
+
+        assertNull(ClassFingerprint.compute(sha, Arrays.asList(H1, H2)));
+        assertNull(ClassFingerprint.compute(sha, Collections.singletonList(H1)));
+        assertNull(ClassFingerprint.compute(sha, Collections.<MethodHash> emptyList()));
+    }
+
+    @Test
+    public void testFormat() {
+        MethodHash fp = ClassFingerprint.compute(HashAlgorithm.SHA256, Arrays.asList(H1, H2, H3));
+        ClassFingerprint cf = new ClassFingerprint("Lcom/pnf/A$1;", 3, fp);
+        String line = cf.format();
+        assertEquals("class=Lcom/pnf/A$1;,3," + fp.toHex(), line);
+
+        ClassFingerprint parsed = ClassFingerprint.parse(line, HashAlgorithm.SHA256);
+        assertNotNull(parsed);
+        assertEquals("Lcom/pnf/A$1;", parsed.getClassName());
+        assertEquals(3, parsed.getMethodCount());
+        assertEquals(fp, parsed.getFingerprint());
+
+        assertNull(ClassFingerprint.parse(line, HashAlgorithm.MURMUR3_128));
+        assertNull(ClassFingerprint.parse("libname=" + line, HashAlgorithm.SHA256));
+        assertNull(ClassFingerprint.parse("class=," + fp.toHex(), HashAlgorithm.SHA256));
+        assertNull(ClassFingerprint.parse("class=La;,x," + fp.toHex(), HashAlgorithm.SHA256));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class MethodHashTest {
+
+    private static final String HEX = "78c5d86560b13cc8b03298cfe31af9791f9ac47f2de1b529a2d1d63ab7e3e47c";
+
+    @Test
+    public void testHexConversion() {
+        MethodHash h = MethodHash.fromHex(HEX);
+        assertEquals(HEX, h.toHex());
+        assertEquals(h, MethodHash.fromHex(HEX.toUpperCase()));
+        assertEquals(h, MethodHash.fromBytes(HashAlgorithm.SHA256, h.toBytes()));
+
+        byte[] line = ("abc," + HEX + ",def").getBytes(StandardCharsets.US_ASCII);
+        assertEquals(h, MethodHash.fromHex(HashAlgorithm.SHA256, line, 4, 4 + HEX.length()));
+
+        assertNotEquals(h, MethodHash.fromHex("513dc391d69110db642082091bbe622d4ab0073cb34fa819af0f3742e84129f7"));
+    }
+
+    @Test
+    public void testInvalidHex() {
+        assertNull(MethodHash.fromHex(""));
+        assertNull(MethodHash.fromHex("null"));
+        assertNull(MethodHash.fromHex(HEX.substring(1)));
+        assertNull(MethodHash.fromHex(HEX.replace('c', 'g')));
+        assertNull(MethodHash.fromHex(HashAlgorithm.MURMUR3_128, HEX));
+    }
+
+    @Test
+    public void testAlgorithms() {
+        MethodHash sha = MethodHash.fromHex(HEX);
+        MethodHash murmur = MethodHash.fromHex(HEX.substring(0, 32));
+        assertEquals(HashAlgorithm.SHA256, sha.getAlgorithm());
+        assertEquals(HashAlgorithm.MURMUR3_128, murmur.getAlgorithm());
+        assertEquals(HEX.substring(0, 32), murmur.toHex());
+        assertEquals(murmur, MethodHash.fromBytes(HashAlgorithm.MURMUR3_128, murmur.toBytes()));
+        // same leading bits, distinct algorithms
+        assertNotEquals(sha, new MethodHash(HashAlgorithm.MURMUR3_128, 0x78c5d86560b13cc8L, 0xb03298cfe31af979L,
+                0x1f9ac47f2de1b529L, 0xa2d1d63ab7e3e47cL));
+    }
+
+    @Test
+    public void testDigest() {
+        MethodHasher hasher = MethodHasher.get();
+        hasher.append("return-void:").append(' ');
+        String hex = hasher.digestHex();
+        hasher.append("return-void:").append(' ');
+        assertEquals(hex, hasher.digestHash().toHex());
+
+        hasher = MethodHasher.get(HashAlgorithm.MURMUR3_128, 0);
+        hasher.append("return-void:").append(' ');
+        MethodHash h = hasher.digestHash();
+        assertEquals(HashAlgorithm.MURMUR3_128, h.getAlgorithm());
+        assertEquals(32, h.toHex().length());
+    }
+}
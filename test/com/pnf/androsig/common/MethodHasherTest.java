@@ -0,0 +1,47 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.Test;
+
+import com.pnfsoftware.jeb.util.format.Formatter;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class MethodHasherTest {
+
+    private static String sha256(String s) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        return Formatter.byteArrayToHexString(md.digest(s.getBytes())).toLowerCase();
+    }
+
+    @Test
+    public void testSameAsFullString() throws NoSuchAlgorithmException {
+        StringBuilder expected = new StringBuilder();
+        MethodHasher hasher = MethodHasher.get();
+        long[] values = {0, 7, -1, 42, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for(int i = 0; i < 200; i++) {
+            String mnemonic = i % 3 == 0 ? "invoke-virtual/range": "add-int/2addr";
+            expected.append(mnemonic, 0, 10).append(':').append(i % 5).append(',').append(values[i % values.length])
+                    .append(',').append(' ');
+            hasher.append(mnemonic, 0, 10).append(':').append(i % 5).append(',').append(values[i % values.length])
+                    .append(',').append(' ');
+        }
+        assertEquals(sha256(expected.toString()), hasher.digestHex());
+
+        // hasher is reusable after digest
+        hasher.append("return-void:").append(' ');
+        assertEquals(sha256("return-void: "), hasher.digestHex());
+        assertEquals(sha256(""), MethodHasher.get().digestHex());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class MinHashTest {
+
+    private static int[] digest(int[] tokens) {
+        MinHash mh = new MinHash();
+        for(int token: tokens) {
+            mh.add(token);
+        }
+        return mh.digest();
+    }
+
+    private static int[] sequence(int length, int seed) {
+        int[] tokens = new int[length];
+        for(int i = 0; i < length; i++) {
+            tokens[i] = (i * 7 + seed) % 23;
+        }
+        return tokens;
+    }
+
+    @Test
+    public void testSimilarity() {
+        int[] tokens = sequence(200, 0);
+        int[] sig = digest(tokens);
+        assertNotNull(sig);
+        assertArrayEquals(sig, digest(tokens));
+        assertEquals(1.0, MinHash.similarity(sig, digest(tokens)), 0.0);
+
+        // one inserted token: most n-grams are kept
+        int[] drifted = new int[tokens.length + 1];
+        System.arraycopy(tokens, 0, drifted, 0, 100);
+        drifted[100] = 99;
+        System.arraycopy(tokens, 100, drifted, 101, 100);
+        assertTrue(MinHash.similarity(sig, digest(drifted)) >= 0.5);
+
+        int[] other = new int[200];
+        for(int i = 0; i < other.length; i++) {
+            other[i] = 1000 + i;
+        }
+        assertTrue(MinHash.similarity(sig, digest(other)) < 0.2);
+    }
+
+    @Test
+    public void testShortMethods() {
+        MinHash mh = new MinHash();
+        assertNull(mh.digest());
+        mh.add(1);
+        int[] sig1 = mh.digest();
+        assertNotNull(sig1);
+        mh.add(1);
+        mh.add(2);
+        int[] sig2 = mh.digest();
+        assertNotNull(sig2);
+        assertTrue(MinHash.similarity(sig1, sig2) < 1.0);
+    }
+
+    @Test
+    public void testBandKeys() {
+        int[] sig = digest(sequence(50, 3));
+        int[] copy = sig.clone();
+        copy[MinHash.SIZE - 1]++;
+        long[] keys = MinHash.getBandKeys(sig);
+        long[] keys2 = MinHash.getBandKeys(copy);
+        assertEquals(MinHash.BANDS, keys.length);
+        for(int b = 0; b < MinHash.BANDS - 1; b++) {
+            assertEquals(keys[b], keys2[b]);
+        }
+        assertTrue(keys[MinHash.BANDS - 1] != keys2[MinHash.BANDS - 1]);
+    }
+
+    @Test
+    public void testFormat() {
+        int[] sig = digest(sequence(50, 5));
+        String column = MinHash.format(sig);
+        assertTrue(column.startsWith(MinHash.PREFIX));
+        assertEquals(MinHash.PREFIX.length() + 8 * MinHash.SIZE, column.length());
+        assertArrayEquals(sig, MinHash.parse(column));
+        assertNull(MinHash.parse(column.substring(1)));
+        assertNull(MinHash.parse("bb:0000000000000001"));
+        assertEquals("", MinHash.format(null));
+    }
+}
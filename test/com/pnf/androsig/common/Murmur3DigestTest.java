@@ -0,0 +1,53 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class Murmur3DigestTest {
+
+    /**
+     * SMHasher verification value of MurmurHash3_x64_128.
+     */
+    @Test
+    public void testVerificationValue() {
+        byte[] key = new byte[256];
+        byte[] hashes = new byte[16 * 256];
+        for(int i = 0; i < 256; i++) {
+            key[i] = (byte)i;
+            Murmur3Digest md = new Murmur3Digest(256 - i);
+            md.update(key, 0, i);
+            System.arraycopy(md.digest(), 0, hashes, 16 * i, 16);
+        }
+        byte[] res = new Murmur3Digest(0).digest(hashes);
+        int verification = (res[0] & 0xFF) | (res[1] & 0xFF) << 8 | (res[2] & 0xFF) << 16 | (res[3] & 0xFF) << 24;
+        assertEquals(0x6384BA69, verification);
+    }
+
+    @Test
+    public void testStreaming() {
+        byte[] data = "const/4:0 if-eqz:,0 invoke-virtual:Ljava/lang/Object;->toString()Ljava/lang/String;"
+                .getBytes(StandardCharsets.US_ASCII);
+        Murmur3Digest md = new Murmur3Digest();
+        byte[] expected = md.digest(data);
+        for(int split = 0; split < data.length; split++) {
+            md.update(data, 0, split);
+            for(int i = split; i < data.length; i++) {
+                md.update(data[i]);
+            }
+            assertArrayEquals(expected, md.digest());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class OpcodeInfoTest {
+
+    @Test
+    public void testTable() {
+        int count = 0;
+        for(int opcode = 0; opcode < 256; opcode++) {
+            OpcodeInfo info = OpcodeInfo.get(opcode);
+            if(info != null) {
+                assertEquals(opcode, info.getOpcode());
+                count++;
+            }
+        }
+        assertEquals(224, count);
+        assertNull(OpcodeInfo.get(0x3E));
+        assertNull(OpcodeInfo.get(0x73));
+        assertNull(OpcodeInfo.get(0xE3));
+        assertNull(OpcodeInfo.get(-1));
+        assertNull(OpcodeInfo.get(256));
+    }
+
+    @Test
+    public void testMnemonics() {
+        assertEquals("nop", OpcodeInfo.get(0x00).getMnemonic());
+        assertEquals("const-wide/high16", OpcodeInfo.get(0x19).getMnemonic());
+        assertEquals("sput-short", OpcodeInfo.get(0x6D).getMnemonic());
+        assertEquals("invoke-interface/range", OpcodeInfo.get(0x78).getMnemonic());
+        assertEquals("rem-double/2addr", OpcodeInfo.get(0xCF).getMnemonic());
+        assertEquals("ushr-int/lit8", OpcodeInfo.get(0xE2).getMnemonic());
+        assertEquals("const-method-type", OpcodeInfo.get(0xFF).getMnemonic());
+    }
+
+    @Test
+    public void testClassification() {
+        OpcodeInfo info = OpcodeInfo.get(0x01); // move
+        assertEquals(OpcodeInfo.SKIP, info.getLooseKind());
+        info = OpcodeInfo.get(0x29); // goto/16
+        assertEquals(OpcodeInfo.GOTO, info.getLooseKind());
+        assertEquals("goto:", info.getLooseToken());
+        assertTrue(info.isBlockEnd());
+        info = OpcodeInfo.get(0x76); // invoke-direct/range
+        assertEquals(OpcodeInfo.STRIP, info.getLooseKind());
+        assertEquals("invoke-direct:", info.getLooseToken());
+        assertEquals("invoke-direct/range:", info.getTightToken());
+        assertTrue(info.isInvoke());
+        assertFalse(info.isBlockEnd());
+        info = OpcodeInfo.get(0x27); // throw
+        assertEquals(OpcodeInfo.KEEP, info.getLooseKind());
+        assertTrue(info.isBlockEnd());
+        assertTrue(OpcodeInfo.get(0x2B).isBlockEnd()); // packed-switch
+        assertTrue(OpcodeInfo.get(0x3D).isBlockEnd()); // if-lez
+        assertFalse(OpcodeInfo.get(0x2D).isBlockEnd()); // cmpl-float
+        assertTrue(OpcodeInfo.get(0xFC).isInvoke()); // invoke-custom
+        assertFalse(OpcodeInfo.get(0xFE).isInvoke()); // const-method-handle
+    }
+}
@@ -5,8 +5,10 @@
  */
 package com.pnf.androsig.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.File;
@@ -24,6 +26,7 @@ import com.pnfsoftware.jeb.core.exceptions.JebException;
 import com.pnfsoftware.jeb.core.input.FileInput;
 import com.pnfsoftware.jeb.core.units.UnitUtil;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
 
 /**
@@ -75,4 +78,45 @@ public class SignatureHandlerTest {
         assertNotEquals("513dc391d69110db642082091bbe622d4ab0073cb34fa819af0f3742e84129f7", hash);
         System.out.println("--------------------------");
     }
+
+    @Test
+    public void testBlockHashcodes() {
+        long[] blocks = {-5L, 0x12L, 0x7fabcdef01234567L};
+        String column = SignatureHandler.formatBlockHashcodes(blocks);
+        assertEquals("bb:fffffffffffffffb|0000000000000012|7fabcdef01234567", column);
+        assertArrayEquals(new long[]{-5L, 0x12L, 0x7fabcdef01234567L}, SignatureHandler.parseBlockHashcodes(column));
+        assertEquals("", SignatureHandler.formatBlockHashcodes(new long[0]));
+        assertNull(SignatureHandler.parseBlockHashcodes(""));
+        assertNull(SignatureHandler.parseBlockHashcodes("bb:"));
+        assertNull(SignatureHandler.parseBlockHashcodes("bb:xyz"));
+        assertNull(SignatureHandler.parseBlockHashcodes("Lcom/Caller;->a()V=1"));
+
+        assertEquals(2, SignatureHandler.countSharedBlocks(new long[]{-5L, 1, 3, 7}, new long[]{-5L, 2, 7, 9}));
+        assertEquals(0, SignatureHandler.countSharedBlocks(new long[]{1}, new long[0]));
+    }
+
+    @Test
+    public void testMethodHashes() {
+        // const/4 v0, 1; return v0
+        DalvikInstructions insns = new DalvikInstructions();
+        insns.add(OpcodeInfo.get(0x12));
+        insns.addParameter(IDalvikInstruction.TYPE_REG, 0);
+        insns.addParameter(IDalvikInstruction.TYPE_IMM, 1);
+        insns.add(OpcodeInfo.get(0x0F));
+        insns.addParameter(IDalvikInstruction.TYPE_REG, 0);
+        for(HashAlgorithm algorithm: HashAlgorithm.values()) {
+            String[] hex = SignatureHandler.generateHashcodes(insns, algorithm);
+            MethodHash[] hashes = SignatureHandler.generateMethodHashes(insns, algorithm);
+            assertEquals(hex[0], hashes[0].toHex());
+            assertEquals(hex[1], hashes[1].toHex());
+        }
+
+        // copies kept by DexUnitCopy are trimmed, and still hashed the same
+        String[] expected = SignatureHandler.generateHashcodes(insns, HashAlgorithm.DEFAULT);
+        insns.trimToSize();
+        assertArrayEquals(expected, SignatureHandler.generateHashcodes(insns, HashAlgorithm.DEFAULT));
+        insns.add(OpcodeInfo.get(0x0E));
+        assertEquals(3, insns.size());
+        assertEquals(0, insns.getParameterCount(2));
+    }
 }
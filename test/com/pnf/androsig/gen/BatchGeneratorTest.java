@@ -0,0 +1,124 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.common.HashAlgorithm;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class BatchGeneratorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testLibname() {
+        File input = new File("testdata/dex");
+        assertEquals("sig-gen-test.dex", BatchGenerator.getLibname(input, new File(input, "sig-gen-test.dex")));
+        assertEquals("okhttp/okhttp-3.12.0.apk",
+                BatchGenerator.getLibname(input, new File(new File(input, "okhttp"), "okhttp-3.12.0.apk")));
+        // same output as the generator plugin for a root artifact
+        assertEquals(new File("out", "sig-gen-test_dex.sig"),
+                BatchGenerator.getSignatureFile(new File("out"), "sig-gen-test.dex", 0));
+        assertEquals(new File("out", "sig-gen-test_dex.sigz"),
+                BatchGenerator.getSignatureFile(new File("out"), "sig-gen-test.dex", DexProcessor.EXT_COMPRESSED));
+    }
+
+    @Test
+    public void testUpToDate() throws IOException {
+        File folder = tmp.getRoot();
+        File artifact = new File(folder, "lib.dex");
+        File sig = new File(folder, "lib_dex.sig");
+        File idx = new File(folder, "lib_dex.idx");
+        List<String> defaults = Collections.emptyList();
+        Files.write(artifact.toPath(), new byte[1]);
+        assertFalse(BatchGenerator.isUpToDate(artifact, sig, defaults));
+
+        // interrupted before the index was written
+        Files.write(sig.toPath(), Arrays.asList(";libname=lib.dex"));
+        assertFalse(BatchGenerator.isUpToDate(artifact, sig, defaults));
+
+        Files.write(idx.toPath(), new byte[1]);
+        artifact.setLastModified(1000000000000L);
+        sig.setLastModified(1000000001000L);
+        idx.setLastModified(1000000001000L);
+        assertTrue(BatchGenerator.isUpToDate(artifact, sig, defaults));
+
+        // other options
+        List<String> options = LibraryGenerator.getOptionHeaders("Lcom/pnf/.*", HashAlgorithm.MURMUR3_128,
+                DexProcessor.EXT_BLOCK_HASHES | DexProcessor.EXT_COMPRESSED);
+        assertEquals(Arrays.asList(";hash=murmur3-128", ";filter=Lcom/pnf/.*", ";extensions=1"), options);
+        assertFalse(BatchGenerator.isUpToDate(artifact, sig, options));
+        Files.write(sig.toPath(), Arrays.asList(";libname=lib.dex", ";hash=murmur3-128", ";filter=Lcom/pnf/.*",
+                ";extensions=1", ";d=La;->a()V", "La;,a,V,()V,1,00,00,"));
+        sig.setLastModified(1000000001000L);
+        assertTrue(BatchGenerator.isUpToDate(artifact, sig, options));
+        assertFalse(BatchGenerator.isUpToDate(artifact, sig, defaults));
+
+        // artifact updated
+        artifact.setLastModified(1000000002000L);
+        assertFalse(BatchGenerator.isUpToDate(artifact, sig, options));
+    }
+
+    @Test
+    public void testGenerateWithoutProject() throws IOException {
+        File folder = tmp.getRoot();
+        BatchGenerator.Result result = BatchGenerator.generate(new File("testdata/dex"), folder, null,
+                HashAlgorithm.DEFAULT, 0, 2);
+        assertEquals(2, result.getGenerated());
+        assertEquals(0, result.getFailed());
+        assertTrue(new File(folder, "sig-gen-test_dex.sig").isFile());
+        assertTrue(new File(folder, "sig-gen-test-obf_dex.sig").isFile());
+
+        // resumed: nothing to do
+        result = BatchGenerator.generate(new File("testdata/dex"), folder, null, HashAlgorithm.DEFAULT, 0, 2);
+        assertEquals(0, result.getGenerated());
+        assertEquals(2, result.getSkipped());
+
+        // other options: generated again
+        result = BatchGenerator.generate(new File("testdata/dex"), folder, null, HashAlgorithm.DEFAULT,
+                DexProcessor.EXT_BLOCK_HASHES, 2);
+        assertEquals(2, result.getGenerated());
+        assertEquals(0, result.getSkipped());
+    }
+
+    @Test
+    public void testCollidingNames() throws IOException {
+        File input = tmp.newFolder("input");
+        File folder = tmp.newFolder("sig");
+        File dex = new File("testdata/dex/sig-gen-test.dex");
+        // both give a_b_dex.sig
+        new File(input, "a").mkdir();
+        Files.copy(dex.toPath(), new File(input, "a/b.dex").toPath());
+        Files.copy(dex.toPath(), new File(input, "a_b.dex").toPath());
+        Files.copy(dex.toPath(), new File(input, "c.dex").toPath());
+        for(int i = 0; i < 2; i++) {
+            BatchGenerator.Result result = BatchGenerator.generate(input, folder, null, HashAlgorithm.DEFAULT, 0, 2);
+            assertEquals(i == 0 ? 1: 0, result.getGenerated());
+            assertEquals(i == 0 ? 0: 1, result.getSkipped());
+            assertEquals(2, result.getFailed());
+            assertFalse(new File(folder, "a_b_dex.sig").exists());
+            assertTrue(new File(folder, "c_dex.sig").isFile());
+        }
+    }
+}
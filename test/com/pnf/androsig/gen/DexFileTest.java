@@ -0,0 +1,302 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.common.DalvikInstructions;
+import com.pnf.androsig.common.HashAlgorithm;
+import com.pnf.androsig.common.SignatureHandler;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class DexFileTest {
+
+    private static final File DEX = new File("testdata/dex/sig-gen-test.dex");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRead() throws IOException {
+        DexFile dex = DexFile.open(DEX);
+        assertEquals(1, dex.getClassCount());
+        DexFile.ClassDef c = dex.getClass(0);
+        assertEquals("Lcom/pnf/testandrosig/GreatClass;", c.getType());
+        assertEquals("Ljava/lang/Object;", c.getSuperType());
+        assertTrue(c.getInterfaces().isEmpty());
+        assertEquals(4, c.getMethodCount());
+
+        List<String> signatures = new ArrayList<>();
+        for(int i = 0; i < c.getMethodCount(); i++) {
+            signatures.add(dex.getMethodSignature(c.getMethodIndex(i)));
+        }
+        assertEquals(Arrays.asList("Lcom/pnf/testandrosig/GreatClass;-><init>()V",
+                "Lcom/pnf/testandrosig/GreatClass;->main([Ljava/lang/String;)V",
+                "Lcom/pnf/testandrosig/GreatClass;->getGreatField()I",
+                "Lcom/pnf/testandrosig/GreatClass;->setGreatField(I)V"), signatures);
+        assertEquals("VL", dex.getShorty(dex.getMethodPrototypeIndex(c.getMethodIndex(1))));
+
+        // main: new-instance v0, type; ... if-eqz v1, +9; ... const/4 v2, 1; ... goto -13
+        DalvikInstructions insns = new DalvikInstructions();
+        dex.readInstructions(c.getCodeOffset(1), insns);
+        assertEquals(16, insns.size());
+        assertEquals("new-instance", insns.getOpcode(0).getMnemonic());
+        assertEquals(IDalvikInstruction.TYPE_IDX, insns.getParameterType(0, 1));
+        assertEquals("if-eqz", insns.getOpcode(5).getMnemonic());
+        assertEquals(IDalvikInstruction.TYPE_BRA, insns.getParameterType(5, 1));
+        assertEquals(9, insns.getParameterValue(5, 1));
+        assertEquals("const/4", insns.getOpcode(7).getMnemonic());
+        assertEquals(IDalvikInstruction.TYPE_IMM, insns.getParameterType(7, 1));
+        assertEquals(1, insns.getParameterValue(7, 1));
+        assertEquals("goto", insns.getOpcode(15).getMnemonic());
+        assertEquals(-13, insns.getParameterValue(15, 0));
+        // invoke: method index first
+        assertEquals("invoke-direct", insns.getOpcode(2).getMnemonic());
+        assertEquals(IDalvikInstruction.TYPE_IDX, insns.getParameterType(2, 0));
+        assertEquals(3, insns.getParameterCount(2));
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        File folder = tmp.getRoot();
+        LibraryGenerator.generate(DEX, folder, "sig-gen-test.dex", null, HashAlgorithm.DEFAULT, 0, 1);
+        File sig = new File(folder, "sig-gen-test_dex.sig");
+        assertTrue(sig.isFile());
+
+        // reference file was generated by a JEB project, before hierarchy lines and caller columns updates
+        List<String> expected = new ArrayList<>();
+        for(String line: Files.readAllLines(new File("testdata/sig/sig-gen-test.sig").toPath())) {
+            if(!line.startsWith(";")) {
+                expected.add(line.endsWith(",null") ? line.substring(0, line.length() - 4): line);
+            }
+        }
+        List<String> actual = new ArrayList<>();
+        String hierarchy = null;
+        for(String line: Files.readAllLines(sig.toPath())) {
+            if(line.contains(",<parent>,")) {
+                assertNull(hierarchy);
+                hierarchy = line;
+            }
+            else if(!line.startsWith(";")) {
+                actual.add(line);
+            }
+        }
+        assertEquals(expected, actual);
+        assertEquals("Lcom/pnf/testandrosig/GreatClass;,<parent>,,,0,,,", hierarchy);
+    }
+
+    /**
+     * Formats missing from the test dex (register ranges, high16 constants, payloads and their
+     * alignment) are checked against hashcodes generated by JEB for support-fragment 28.0.0: the code
+     * items below reproduce the instructions of these methods, with arbitrary pool indexes.
+     */
+    @Test
+    public void testJebHashcodes() throws IOException {
+        int[][] codes = {
+                // FragmentManagerImpl.<clinit>: const/high16 v1, 2.5f; const/high16 v2, 1.5f
+                {0x0022, 0x0000, 0x0115, 0x4020, 0x2070, 0x0000, 0x0010, 0x0069, 0x0000, 0x0022, 0x0000, 0x0215,
+                        0x3FC0, 0x2070, 0x0000, 0x0020, 0x0069, 0x0001, 0x0022, 0x0001, 0x2070, 0x0001, 0x0010,
+                        0x0069, 0x0002, 0x0022, 0x0001, 0x2070, 0x0001, 0x0020, 0x0069, 0x0003, 0x000E},
+                // FragmentTransition.<clinit>: fill-array-data v0, +28; nop (alignment); array payload
+                {0x0013, 0x000A, 0x0023, 0x0000, 0x0026, 0x001C, 0x0000, 0x0069, 0x0000, 0x0060, 0x0001, 0x0113,
+                        0x0015, 0x1034, 0x0008, 0x0022, 0x0001, 0x1070, 0x0000, 0x0000, 0x0228, 0x0012, 0x0069,
+                        0x0002, 0x0071, 0x0001, 0x0000, 0x000C, 0x0069, 0x0003, 0x000E, 0x0000, 0x0300, 0x0004,
+                        0x000A, 0x0000, 0x0000, 0x0000, 0x0003, 0x0000, 0x0000, 0x0000, 0x0001, 0x0000, 0x0005,
+                        0x0000, 0x0004, 0x0000, 0x0007, 0x0000, 0x0006, 0x0000, 0x0009, 0x0000, 0x0008, 0x0000},
+                // FragmentActivity$HostCallbacks.onStartIntentSenderFromFragment: invoke-virtual/range {v0..v8}
+                {0x9007, 0x0054, 0x0000, 0xA107, 0xB207, 0xC301, 0xD407, 0xE501, 0xF601, 0x0702, 0x0010, 0x0808,
+                        0x0011, 0x0974, 0x0000, 0x0000, 0x000E}};
+        String[] methods = {"Landroid/support/v4/app/FragmentManagerImpl;,<clinit>,",
+                "Landroid/support/v4/app/FragmentTransition;,<clinit>,",
+                "Landroid/support/v4/app/FragmentActivity$HostCallbacks;,onStartIntentSenderFromFragment,"};
+        int[] sizes = {15, 16, 12};
+
+        List<String> lines = Files.readAllLines(new File("testdata/sig/support-fragment-28_0_0.sig").toPath());
+        DexFile dex = new DexFile(buildDex(codes));
+        DalvikInstructions insns = new DalvikInstructions();
+        int codeOffset = 0x70;
+        for(int i = 0; i < codes.length; i++) {
+            dex.readInstructions(codeOffset, insns);
+            assertEquals(sizes[i], insns.size());
+            String[] expected = null;
+            for(String line: lines) {
+                if(line.startsWith(methods[i])) {
+                    expected = line.split(",");
+                }
+            }
+            String[] hashcodes = SignatureHandler.generateHashcodes(insns, HashAlgorithm.SHA256);
+            assertEquals(methods[i], expected[5], hashcodes[0]);
+            assertEquals(methods[i], expected[6], hashcodes[1]);
+            codeOffset += 16 + 2 * codes[i].length;
+        }
+        // last register in the high 32 bits
+        assertEquals(8L << 32, insns.getParameterValue(10, 1));
+    }
+
+    /**
+     * Callers of a multi-dex artifact must be resolved across its dex files, whatever the number of
+     * threads.
+     */
+    @Test
+    public void testGenerateMultiDex() throws IOException {
+        File apk = tmp.newFile("multidex.apk");
+        try(ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            // LA;->foo()V: return-void
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(buildDex("LA;", "foo", null, null, 0x000E));
+            // LB;->bar()V: invoke-static {}, LA;->foo()V; return-void
+            out.putNextEntry(new ZipEntry("classes2.dex"));
+            out.write(buildDex("LB;", "bar", "LA;", "foo", 0x0071, 0x0001, 0x0000, 0x000E));
+        }
+        List<String> previous = null;
+        for(int threads = 1; threads <= 2; threads++) {
+            File folder = tmp.newFolder("sig" + threads);
+            LibraryGenerator.generate(apk, folder, "multidex.apk", null, HashAlgorithm.DEFAULT, 0, threads);
+            List<String> lines = Files.readAllLines(new File(folder, "multidex_apk.sig").toPath());
+            String foo = null;
+            String bar = null;
+            for(String line: lines) {
+                if(line.startsWith("LA;,foo,")) {
+                    foo = line;
+                }
+                else if(line.startsWith("LB;,bar,")) {
+                    bar = line;
+                }
+            }
+            assertEquals("LB;->bar()V=1", foo.split(",", -1)[7]);
+            assertEquals("", bar.split(",", -1)[7]);
+            if(previous != null) {
+                assertEquals(previous, lines);
+            }
+            previous = lines;
+        }
+    }
+
+    /**
+     * @return dex file defining one class with one static method, which may reference a method of
+     *         another class (method index 1)
+     */
+    private static byte[] buildDex(String type, String method, String calleeType, String calleeMethod,
+            int... code) {
+        List<String> strings = new ArrayList<>(Arrays.asList(type, "Ljava/lang/Object;", "V", method));
+        if(calleeType != null) {
+            strings.add(calleeType);
+            strings.add(calleeMethod);
+        }
+        int typeCount = calleeType == null ? 3: 4;
+        int methodCount = calleeType == null ? 1: 2;
+        ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(new byte[]{'d', 'e', 'x', '\n', '0', '3', '5', 0});
+        buf.putInt(0x24, 0x70);
+        buf.putInt(0x28, 0x12345678);
+        int off = 0x70;
+        buf.putInt(0x38, strings.size());
+        buf.putInt(0x3C, off);
+        int stringIdsOff = off;
+        off += 4 * strings.size();
+        buf.putInt(0x40, typeCount);
+        buf.putInt(0x44, off);
+        for(int i = 0; i < typeCount; i++) {
+            // types: class, Object, V, callee class
+            buf.putInt(off, i == 3 ? 4: i);
+            off += 4;
+        }
+        buf.putInt(0x48, 1);
+        buf.putInt(0x4C, off);
+        // proto ()V: shorty, return type, no parameters
+        buf.putInt(off, 2);
+        buf.putInt(off + 4, 2);
+        off += 12;
+        buf.putInt(0x58, methodCount);
+        buf.putInt(0x5C, off);
+        buf.putShort(off, (short)0);
+        buf.putInt(off + 4, 3);
+        if(calleeType != null) {
+            buf.putShort(off + 8, (short)3);
+            buf.putInt(off + 12, 5);
+        }
+        off += 8 * methodCount;
+        buf.putInt(0x60, 1);
+        buf.putInt(0x64, off);
+        int classDefOff = off;
+        buf.putInt(off, 0);
+        buf.putInt(off + 4, 0x1);
+        buf.putInt(off + 8, 1);
+        buf.putInt(off + 16, -1);
+        off += 32;
+        buf.position(off);
+        for(int i = 0; i < strings.size(); i++) {
+            buf.putInt(stringIdsOff + 4 * i, buf.position());
+            buf.put((byte)strings.get(i).length());
+            buf.put(strings.get(i).getBytes());
+            buf.put((byte)0);
+        }
+        // code item, 4-byte aligned
+        int codeOff = (buf.position() + 3) & ~3;
+        buf.position(codeOff);
+        buf.put(new byte[12]);
+        buf.putInt(code.length);
+        for(int unit: code) {
+            buf.putShort((short)unit);
+        }
+        // class data: one direct method, public static
+        buf.putInt(classDefOff + 24, buf.position());
+        buf.put(new byte[]{0, 0, 1, 0, 0, 0x09});
+        buf.put((byte)(codeOff & 0x7F | 0x80));
+        buf.put((byte)(codeOff >> 7));
+        int size = buf.position();
+        buf.putInt(0x20, size);
+        return Arrays.copyOf(buf.array(), size);
+    }
+
+    /**
+     * @return dex file with empty pools, and code items from offset 0x70
+     */
+    private static ByteBuffer buildDex(int[][] codes) {
+        int size = 0x70;
+        for(int[] code: codes) {
+            size += 16 + 2 * code.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(new byte[]{'d', 'e', 'x', '\n', '0', '3', '5', 0});
+        buf.putInt(0x20, size);
+        buf.putInt(0x24, 0x70);
+        buf.putInt(0x28, 0x12345678);
+        buf.position(0x70);
+        for(int[] code: codes) {
+            // registers, ins, outs, tries, debug info: not read
+            buf.put(new byte[12]);
+            buf.putInt(code.length);
+            for(int unit: code) {
+                buf.putShort((short)unit);
+            }
+        }
+        buf.position(0);
+        return buf;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.apply.model.BlockCompressedFile;
+import com.pnf.androsig.apply.model.IndexedSignatureFile;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureMergerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testMerge() throws IOException {
+        File folder = tmp.getRoot();
+        File merged = new File(folder, "merged.sig");
+        File v1 = new File("testdata/sig/sig-gen-test.sig");
+        File v3 = new File("testdata/sig/sig-gen-test-3.sig");
+        assertEquals(10, SignatureMerger.merge(v1, "1.0", v3, "3.0", merged));
+
+        List<String> lines = Files.readAllLines(merged.toPath(), StandardCharsets.UTF_8);
+        assertEquals(14, lines.size());
+        assertEquals(";libname=sig-gen-test.dex", lines.get(3));
+        assertTrue(lines.get(4).startsWith("Lcom/pnf/testandrosig/GreatClass;,<init>,"));
+        assertTrue(lines.get(4).endsWith(",1.0;3.0"));
+        assertTrue(lines.get(6).startsWith("Lcom/pnf/testandrosig/GreatClass;,getGreatField2,"));
+        assertTrue(lines.get(6).endsWith(",null,3.0"));
+
+        // merging the same version again changes nothing
+        byte[] data = Files.readAllBytes(merged.toPath());
+        assertEquals(10, SignatureMerger.merge(merged, null, v3, "3.0", merged));
+        assertArrayEquals(data, Files.readAllBytes(merged.toPath()));
+
+        // same index as rebuilt from the file
+        File rebuilt = new File(folder, "rebuilt.idx");
+        assertTrue(IndexedSignatureFile.buildIndexFile(merged, rebuilt));
+        assertArrayEquals(Files.readAllBytes(rebuilt.toPath()),
+                Files.readAllBytes(IndexedSignatureFile.getIndexFile(merged).toPath()));
+    }
+
+    @Test
+    public void testUnversioned() throws IOException {
+        File folder = tmp.getRoot();
+        File merged = new File(folder, "merged.sig");
+        File v1 = new File("testdata/sig/sig-gen-test.sig");
+        // no version: lines are only deduplicated, and written unchanged
+        assertEquals(4, SignatureMerger.merge(v1, null, v1, null, merged));
+        assertArrayEquals(Files.readAllBytes(v1.toPath()), Files.readAllBytes(merged.toPath()));
+    }
+
+    @Test
+    public void testUnversionedTarget() throws IOException {
+        File folder = tmp.getRoot();
+        File merged = new File(folder, "merged.sig");
+        File v1 = new File("testdata/sig/sig-gen-test.sig");
+        File v3 = new File("testdata/sig/sig-gen-test-3.sig");
+        Files.copy(v1.toPath(), merged.toPath());
+        // unversioned lines stand for all versions: their version is required
+        try {
+            SignatureMerger.merge(merged, null, v3, "3.0", merged);
+            fail();
+        }
+        catch(IOException e) {
+            // expected
+        }
+        assertArrayEquals(Files.readAllBytes(v1.toPath()), Files.readAllBytes(merged.toPath()));
+        assertFalse(new File(folder, "merged.sig.tmp").exists());
+        assertEquals(10, SignatureMerger.merge(merged, "1.0", v3, "3.0", merged));
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        File folder = tmp.getRoot();
+        File plain = new File(folder, "merged.sig");
+        File v1 = new File("testdata/sig/sig-gen-test.sig");
+        File v3 = new File("testdata/sig/sig-gen-test-3.sig");
+        SignatureMerger.merge(v1, "1.0", v3, "3.0", plain);
+
+        // compressed target, read and written compressed
+        File compressed = new File(folder, "merged" + BlockCompressedFile.EXTENSION);
+        SignatureMerger.merge(v1, "1.0", v1, "1.0", compressed);
+        assertEquals(10, SignatureMerger.merge(compressed, null, v3, "3.0", compressed));
+        assertArrayEquals(Files.readAllBytes(plain.toPath()), BlockCompressedFile.readSignatureFile(compressed));
+        assertArrayEquals(Files.readAllBytes(IndexedSignatureFile.getIndexFile(plain).toPath()),
+                Files.readAllBytes(IndexedSignatureFile.getIndexFile(compressed).toPath()));
+        assertFalse(new File(folder, "merged" + BlockCompressedFile.EXTENSION + ".plain.tmp").exists());
+    }
+}
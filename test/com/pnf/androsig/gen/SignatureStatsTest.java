@@ -0,0 +1,47 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureStatsTest {
+
+    @Test
+    public void testStats() {
+        SignatureStats stats = new SignatureStats(6);
+        String[] lines = {";comment=JEB signature file", ";d=La;->b()V", ";class=La;,2,0011",
+                "La;,<parent>,,,0,,,Ljava/lang/Object;||",
+                "La;,a,V,()V,3,0a0b,0c0d,@0",
+                "La;,b,V,()V,12,0a0b,0c0e,",
+                "La;,c,V,()V,0,,,",
+                "Lb;,d,I,()I,20,1a1b,1c1d,,,bb:0011"};
+        for(String line: lines) {
+            stats.addLine(line.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(4, stats.getMethodCount());
+        assertEquals(1, stats.getMethodsWithoutCode());
+        assertEquals(1, stats.getSmallMethods());
+        assertEquals(2, stats.getDuplicateMethods());
+        assertEquals(2, stats.getDistinctTightHashcodes());
+        assertEquals(2, stats.getCallerBytes());
+        assertEquals(1, stats.getHierarchyLines());
+        long size = 0;
+        for(String line: lines) {
+            size += line.length() + 1;
+        }
+        assertEquals(size, stats.getTotalBytes());
+        assertEquals(new File("out", "lib.sigstats.txt"), SignatureStats.getReportFile(new File("out", "lib.sig")));
+    }
+}
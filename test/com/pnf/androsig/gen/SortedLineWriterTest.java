@@ -0,0 +1,103 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.gen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pnf.androsig.apply.model.IndexedSignatureFile;
+import com.pnf.androsig.apply.model.SignatureIndexBuilder;
+import com.pnf.androsig.common.ClassFingerprint;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class SortedLineWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testExternalSort() throws IOException {
+        File folder = tmp.getRoot();
+        File f = new File(folder, "lib.sig");
+        Random r = new Random(1);
+        TreeSet<String> expected = new TreeSet<>();
+        // small buffer: many runs
+        try(SortedLineWriter writer = new SortedLineWriter(f, 4096)) {
+            writer.addHeader(";libname=lib");
+            for(int i = 0; i < 5000; i++) {
+                String line = "Lcom/pnf/C" + r.nextInt(2000) + ";,m,V,()V," + i % 7 + ",";
+                expected.add(line);
+                writer.add(line);
+            }
+            writer.add(";class=La;,2,00");
+            expected.add(";class=La;,2,00");
+            assertEquals(5001, writer.getLineCount());
+            writer.commit();
+        }
+        List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+        assertEquals(";libname=lib", lines.get(0));
+        assertEquals(new ArrayList<>(expected), lines.subList(1, lines.size()));
+        // temporary runs are deleted
+        assertEquals(1, folder.listFiles().length);
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        File folder = tmp.getRoot();
+        File f = new File(folder, "lib.sig");
+        List<String> lines = Files.readAllLines(new File("testdata/sig/support-fragment-28_0_0.sig").toPath(),
+                StandardCharsets.UTF_8);
+        SignatureIndexBuilder indexBuilder = new SignatureIndexBuilder(f);
+        try(SortedLineWriter writer = new SortedLineWriter(f, 64 * 1024)) {
+            for(String line: lines) {
+                if(line.startsWith(";") && !line.startsWith(";" + ClassFingerprint.MARKER)) {
+                    writer.addHeader(line);
+                }
+                else {
+                    writer.add(line);
+                }
+            }
+            writer.setListener((data, offset) -> indexBuilder.addLine(data, 0, data.length, (int)offset));
+            writer.commit();
+        }
+        File idx = new File(folder, "lib.idx");
+        indexBuilder.write(idx, f.length());
+        // same index as rebuilt from the file
+        File rebuilt = new File(folder, "rebuilt.idx");
+        assertTrue(IndexedSignatureFile.buildIndexFile(f, rebuilt));
+        assertArrayEquals(Files.readAllBytes(rebuilt.toPath()), Files.readAllBytes(idx.toPath()));
+    }
+
+    @Test
+    public void testNoCommit() throws IOException {
+        File f = new File(tmp.getRoot(), "lib.sig");
+        try(SortedLineWriter writer = new SortedLineWriter(f, 16)) {
+            writer.add("Lb;");
+            writer.add("La;");
+        }
+        assertFalse(f.exists());
+        // temporary runs are deleted
+        assertEquals(0, tmp.getRoot().listFiles().length);
+    }
+}